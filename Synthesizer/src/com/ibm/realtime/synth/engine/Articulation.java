@@ -59,7 +59,8 @@ public abstract class Articulation {
 	protected double[] effectiveLinearVolume = new double[2];
 
 	/**
-	 * Should be called by the constructors of subclasses.
+	 * Should be called by the constructors of subclasses, and when reusing an
+	 * instance for a new note. Resets the state of this base class.
 	 * 
 	 * @param patch
 	 * @param channel
@@ -67,6 +68,10 @@ public abstract class Articulation {
 	protected void init(AudioTime time, Patch patch, MidiChannel channel) {
 		this.patch = patch;
 		this.channel = channel;
+		this.initialPitchOffset = 0.0;
+		for (int i = 0; i < effectiveLinearVolume.length; i++) {
+			effectiveLinearVolume[i] = 0.0;
+		}
 	}
 
 	/**
@@ -92,6 +97,79 @@ public abstract class Articulation {
 	 */
 	public abstract void process(AudioBuffer buffer);
 
+	/**
+	 * Calculate all control values for the given time, without skipping any
+	 * values for optimization. This is called once per control block if the
+	 * synthesizer uses a fixed control rate. By default, calls calculate().
+	 * 
+	 * @param time the start time of the control block
+	 */
+	public void calculateControl(AudioTime time) {
+		calculate(time);
+	}
+
+	/**
+	 * Apply further processing to a part of the rendered buffer, with the
+	 * control values of the last call to calculateControl(). By default, the
+	 * entire buffer is processed with process() when the last part of the
+	 * buffer is passed.
+	 * 
+	 * @param buffer the sample buffer
+	 * @param offset the first sample to process
+	 * @param count the number of samples to process
+	 */
+	public void process(AudioBuffer buffer, int offset, int count) {
+		if (offset + count >= buffer.getSampleCount()) {
+			process(buffer);
+		}
+	}
+
+	/**
+	 * Descendant classes whose processing is a filter that the kernel
+	 * supports should override this method and loadKernel(). By default,
+	 * fused rendering is not possible, and the voice is rendered to a
+	 * temporary buffer that is processed with process().
+	 * 
+	 * @return true if the kernel can do the processing of process()
+	 */
+	public boolean supportsKernel() {
+		return false;
+	}
+
+	/**
+	 * Load the processing of process() into the kernel for fused rendering,
+	 * with the control values of the last call to calculate() or
+	 * calculateControl(). Only called if supportsKernel() returns true.
+	 * 
+	 * @param kernel the kernel to set up
+	 * @param sampleRate the sample rate of the rendered samples
+	 */
+	public void loadKernel(MixKernel kernel, float sampleRate) {
+		// nothing
+	}
+
+	/**
+	 * Store the filter state of the kernel after fused rendering, so that
+	 * the next block continues seamlessly.
+	 * 
+	 * @param kernel the kernel that was set up with loadKernel()
+	 */
+	public void storeKernel(MixKernel kernel) {
+		// nothing
+	}
+
+	/**
+	 * The relative cost of the process() method, in units of the cost of
+	 * calculating one block of an oscillator. Descendant classes should
+	 * override this method if process() does considerable work, e.g.
+	 * filtering.
+	 * 
+	 * @return the processing cost, 0 by default
+	 */
+	public int getProcessingCost() {
+		return 0;
+	}
+
 	/**
 	 * Must be called when releasing the note.
 	 * 
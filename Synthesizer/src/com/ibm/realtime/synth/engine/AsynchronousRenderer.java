@@ -27,6 +27,12 @@ package com.ibm.realtime.synth.engine;
 
 import static com.ibm.realtime.synth.utils.Debug.*;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.tritonus.share.sampled.AudioBuffer;
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * A class to maintain a pool of threads which continously render a set of
  * Renderables. For that to work, the method dispatch() must be called for every
@@ -66,6 +72,186 @@ public class AsynchronousRenderer {
 	 */
 	private static final boolean USE_WAIT = true;
 
+	/**
+	 * Scheduling mode: each rendering thread renders a fixed partition of the
+	 * Renderables, as described for PARTITION_RENDERABLES. dispatch() returns
+	 * immediately, the mixer renders those Renderables on demand that the
+	 * rendering threads did not render yet.
+	 */
+	public static final int SCHEDULING_PARTITIONED = 0;
+
+	/**
+	 * Scheduling mode: the Renderables are split into chunks of approximately
+	 * the same estimated rendering cost. The rendering threads and the thread
+	 * calling dispatch() claim the chunks one by one with an atomic cursor, so
+	 * that a thread with cheap voices steals the remaining work of threads
+	 * with expensive voices. dispatch() only returns when all chunks are
+	 * rendered (or after a fraction of the slice time, see
+	 * BARRIER_WAIT_DIVISOR), so that the mixer only mixes rendered
+	 * Renderables.
+	 */
+	public static final int SCHEDULING_WORK_STEALING = 1;
+
+	/**
+	 * In work stealing mode, the number of chunks per participating thread.
+	 * More chunks balance better, fewer chunks cause less contention on the
+	 * cursor.
+	 */
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	/**
+	 * In work stealing mode, the number of busy loops before a waiting thread
+	 * starts to yield.
+	 */
+	private static final int SPIN_COUNT = 1000;
+
+	/**
+	 * In work stealing mode, the number of calls to Thread.yield() before the
+	 * thread waiting for the completion barrier parks.
+	 */
+	private static final int YIELD_COUNT = 20;
+
+	/**
+	 * The park time of a thread waiting at the completion barrier. The last
+	 * rendering thread unparks it, so this is only a safety net.
+	 */
+	private static final long BARRIER_PARK_NANOS = 50000L;
+
+	/**
+	 * The park time of an idle rendering thread. dispatch() unparks the
+	 * rendering threads, so this is only a safety net.
+	 */
+	private static final long IDLE_PARK_NANOS = 1000000L;
+
+	/**
+	 * dispatch() waits at most the slice time divided by this value for the
+	 * rendering threads, e.g. if a rendering thread is preempted. Remaining
+	 * Renderables are then rendered by the mixer in the rest of the slice.
+	 */
+	private static final int BARRIER_WAIT_DIVISOR = 4;
+
+	/**
+	 * The slice time that is assumed until dispatch() is called with the
+	 * duration of the slice: the default slice time of the AudioPullThread.
+	 */
+	private static final long DEFAULT_SLICE_NANOS = 1000000L;
+
+	/**
+	 * The scheduling mode, one of the SCHEDULING_* constants.
+	 */
+	private volatile int schedulingMode = SCHEDULING_PARTITIONED;
+
+	/**
+	 * In work stealing mode: the estimated cost of each Renderable of the
+	 * current slice.
+	 */
+	private int[] costs = new int[0];
+
+	/**
+	 * In work stealing mode: the exclusive end index of each chunk. The first
+	 * chunk starts at index 0, all other chunks start at the end of the
+	 * previous chunk.
+	 */
+	private int[] chunkEnds = new int[0];
+
+	/**
+	 * In work stealing mode: the number of chunks in the current slice.
+	 */
+	private volatile int chunkCount = 0;
+
+	/**
+	 * In work stealing mode: the generation (i.e. slice number) in the upper
+	 * 32 bits, and the next chunk to be claimed in the lower 32 bits. After
+	 * the completion barrier, the lower bits are set to Integer.MAX_VALUE so
+	 * that late threads cannot claim a chunk anymore.
+	 */
+	private final AtomicLong chunkCursor = new AtomicLong();
+
+	/**
+	 * In work stealing mode: the generation in the upper 32 bits, and the
+	 * number of rendered chunks in the lower 32 bits.
+	 */
+	private final AtomicLong chunksDone = new AtomicLong();
+
+	/**
+	 * The generation of the current slice.
+	 */
+	private int generation = 0;
+
+	/**
+	 * The maximum time that dispatch() waits at the completion barrier, as
+	 * derived from the duration of the current slice.
+	 */
+	private long maxBarrierWaitNanos = DEFAULT_SLICE_NANOS
+			/ BARRIER_WAIT_DIVISOR;
+
+	/**
+	 * The thread waiting at the completion barrier, or null.
+	 */
+	private volatile Thread barrierThread = null;
+
+	/**
+	 * For performance metrics, how often the completion barrier timed out.
+	 */
+	private int barrierTimeoutCount = 0;
+
+	/**
+	 * If true, and in work stealing mode, the threads add the rendered notes
+	 * to their own mix bus, and the mixer only adds the sum of the mix buses
+	 * instead of mixing every note.
+	 */
+	private volatile boolean useMixBuses = false;
+
+	/**
+	 * In mix bus mode: true if the threads mix the current slice into the
+	 * mix buses.
+	 */
+	private boolean sliceUsesMixBuses = false;
+
+	/**
+	 * The format of the mix buses, as reported by the mixer. A sample count
+	 * of 0 means that the format is not known yet.
+	 */
+	private volatile int busChannelCount = 0;
+	private volatile int busSampleCount = 0;
+	private volatile float busSampleRate = 0.0f;
+
+	/**
+	 * The mix bus of the thread calling dispatch().
+	 */
+	private final MixBus dispatchBus = new MixBus();
+
+	/**
+	 * Temporary array for the reduction of the mix buses.
+	 */
+	private MixBus[] reduceBuses = new MixBus[0];
+
+	/**
+	 * The reduced mix bus of the last slice to be added by the mixer, or null.
+	 * Published with mixedGeneration.
+	 */
+	private AudioBuffer mixedBus = null;
+
+	/**
+	 * The time of mixedBus, in nanoseconds.
+	 */
+	private long mixedBusTime = -1;
+
+	/**
+	 * The buses of the threads that missed the completion barrier of the
+	 * last slice: the first lateCount elements. Published with
+	 * mixedGeneration.
+	 */
+	private MixBus[] lateBuses = new MixBus[0];
+	private int lateCount = 0;
+
+	/**
+	 * The generation of mixedBus, or 0 if the mixer has taken it already.
+	 * The mixer takes it with an atomic swap, so that it never waits for a
+	 * lock of this renderer.
+	 */
+	private final AtomicInteger mixedGeneration = new AtomicInteger();
+
 	private volatile boolean started = false;
 
 	private static int defaultThreadCount;
@@ -101,6 +287,39 @@ public class AsynchronousRenderer {
 	 */
 	private volatile Renderable[] renderables = new Renderable[0];
 
+	/**
+	 * If non-null, the mixer whose streams are to be rendered. In that case,
+	 * renderables is not used, and the threads iterate over the mixer's slots
+	 * directly.
+	 */
+	private volatile AudioMixer mixer = null;
+
+	/**
+	 * The epoch of a thread that does not render.
+	 */
+	private static final long IDLE_EPOCH = Long.MAX_VALUE;
+
+	/**
+	 * The number of dispatched slices. A thread that starts rendering reads
+	 * it before it reads the mixer's slots, and publishes it as its active
+	 * epoch. A note retired by the mixer is stamped with the epoch after it
+	 * is removed from its slot, so it can be recycled once all threads
+	 * render a later epoch or none.
+	 */
+	private volatile long epoch = 0;
+
+	/**
+	 * The active epoch of the thread calling dispatch(), or IDLE_EPOCH.
+	 */
+	private volatile long dispatchEpoch = IDLE_EPOCH;
+
+	/**
+	 * The rendering threads that are running, including the ones that are
+	 * asked to finish but did not exit yet. The array is replaced on change,
+	 * so that it can be iterated without a lock.
+	 */
+	private volatile RenderingThread[] liveThreads = new RenderingThread[0];
+
 	/**
 	 * Default constructor: by default, assigns defaultThreadCount threads.
 	 */
@@ -149,6 +368,56 @@ public class AsynchronousRenderer {
 		assertThreadCount();
 	}
 
+	/**
+	 * @return the scheduling mode, one of the SCHEDULING_* constants
+	 */
+	public int getSchedulingMode() {
+		return schedulingMode;
+	}
+
+	/**
+	 * Set the way how the Renderables are distributed to the rendering threads.
+	 * 
+	 * @param mode one of the SCHEDULING_* constants
+	 */
+	public synchronized void setSchedulingMode(int mode) {
+		if (mode != SCHEDULING_PARTITIONED && mode != SCHEDULING_WORK_STEALING) {
+			throw new IllegalArgumentException("Illegal scheduling mode: "
+					+ mode);
+		}
+		schedulingMode = mode;
+		// make the threads re-evaluate their waiting strategy
+		for (RenderingThread rt : threads) {
+			rt.schedulingModeChanged();
+		}
+	}
+
+	/**
+	 * @return true if mix buses are used in work stealing mode
+	 */
+	public boolean isUsingMixBuses() {
+		return useMixBuses;
+	}
+
+	/**
+	 * Enable or disable mix buses. If enabled, and in work stealing mode, the
+	 * rendering threads do not only render the notes, but also add them to a
+	 * mix bus per thread, so that the mixer does not need to mix and
+	 * synchronize on every note. Only works when dispatching the streams of a
+	 * mixer.
+	 */
+	public synchronized void setUseMixBuses(boolean value) {
+		useMixBuses = value;
+	}
+
+	/**
+	 * @return how often dispatch() did not wait for the completion of all
+	 *         chunks in work stealing mode
+	 */
+	public synchronized int getBarrierTimeoutCount() {
+		return barrierTimeoutCount;
+	}
+
 	/**
 	 * Create and start the rendering threads.
 	 */
@@ -190,6 +459,21 @@ public class AsynchronousRenderer {
 		return result;
 	}
 
+	/**
+	 * Get the utilization of the rendering threads: for each thread, the
+	 * fraction of time spent rendering since it was started. The rendering
+	 * done by the dispatching thread is not included.
+	 * 
+	 * @return the utilization of each rendering thread, [0..1]
+	 */
+	public synchronized double[] getThreadUtilization() {
+		double[] result = new double[threads.length];
+		for (int i = 0; i < threads.length; i++) {
+			result[i] = threads[i].getUtilization();
+		}
+		return result;
+	}
+
 	private synchronized void assertThreadCount() {
 		if (!started) {
 			return;
@@ -222,8 +506,60 @@ public class AsynchronousRenderer {
 	 * Start a new slice in all threads
 	 */
 	public synchronized void dispatch(AudioTime time, Renderable[] renderables) {
-		this.renderTime = time;
+		epoch++;
+		this.mixer = null;
 		this.renderables = renderables;
+		if (schedulingMode == SCHEDULING_WORK_STEALING) {
+			sliceUsesMixBuses = false;
+			dispatchChunks(time);
+			return;
+		}
+		this.renderTime = time;
+		nextSlice();
+	}
+
+	/**
+	 * Start a new slice in all threads, rendering the Renderable streams of
+	 * the mixer. Other than dispatch(AudioTime, Renderable[]), this method
+	 * does not need a copy of the mixer's streams.
+	 */
+	public synchronized void dispatch(AudioTime time, AudioMixer mixer) {
+		dispatch(time, null, mixer);
+	}
+
+	/**
+	 * Start a new slice of the given duration in all threads, rendering the
+	 * Renderable streams of the mixer. In work stealing mode, the duration
+	 * bounds the time spent waiting for the rendering threads.
+	 * 
+	 * @param duration the duration of the slice, or null to use the duration
+	 *            of the previous slice
+	 */
+	public synchronized void dispatch(AudioTime time, AudioTime duration,
+			AudioMixer mixer) {
+		if (duration != null) {
+			maxBarrierWaitNanos = duration.getNanoTime() / BARRIER_WAIT_DIVISOR;
+		}
+		this.mixer = mixer;
+		mixer.setRenderer(this);
+		epoch++;
+		if (schedulingMode == SCHEDULING_WORK_STEALING) {
+			boolean buses = useMixBuses;
+			mixer.setMixBusSource(buses ? this : null);
+			// the format is known after the first read of the mixer
+			sliceUsesMixBuses = buses && busSampleCount > 0;
+			dispatchChunks(time);
+			return;
+		}
+		mixer.setMixBusSource(null);
+		this.renderTime = time;
+		nextSlice();
+	}
+
+	/**
+	 * Notify all threads of the new slice
+	 */
+	private final void nextSlice() {
 		if (PARTITION_RENDERABLES) {
 			int threadCount = threads.length;
 			for (int i = 0; i < threadCount; i++) {
@@ -236,6 +572,468 @@ public class AsynchronousRenderer {
 		}
 	}
 
+	/**
+	 * @return the Renderable at index i of the mixer's slots, or of the
+	 *         renderables array if m is null. Returns null for empty slots.
+	 */
+	private static final Renderable getRenderable(AudioMixer m,
+			Renderable[] rs, int i) {
+		if (m != null) {
+			AudioInput ai = m.getStreamAt(i);
+			if (ai instanceof Renderable) {
+				return (Renderable) ai;
+			}
+			return null;
+		}
+		return (i < rs.length) ? rs[i] : null;
+	}
+
+	/**
+	 * Work stealing mode: split the Renderables into chunks of about the same
+	 * cost, wake up the rendering threads, render chunks in this thread, too,
+	 * and wait until all chunks are rendered.
+	 */
+	private final void dispatchChunks(AudioTime time) {
+		AudioMixer m = mixer;
+		Renderable[] rs = renderables;
+		int limit = (m != null) ? m.getSlotLimit() : rs.length;
+		if (costs.length < limit) {
+			costs = new int[limit];
+		}
+		// estimate the cost of every Renderable
+		int totalCost = 0;
+		for (int i = 0; i < limit; i++) {
+			Renderable r = getRenderable(m, rs, i);
+			int cost;
+			if (r == null) {
+				cost = 0;
+			} else if (r instanceof NoteInput) {
+				cost = ((NoteInput) r).getRenderCost();
+			} else {
+				cost = 1;
+			}
+			costs[i] = cost;
+			totalCost += cost;
+		}
+		// build the chunks
+		int maxChunks = (threads.length + 1) * CHUNKS_PER_THREAD;
+		if (chunkEnds.length < maxChunks + 1) {
+			chunkEnds = new int[maxChunks + 1];
+		}
+		int chunkCost = (totalCost + maxChunks - 1) / maxChunks;
+		if (chunkCost < 1) {
+			chunkCost = 1;
+		}
+		int count = 0;
+		int cost = 0;
+		for (int i = 0; i < limit; i++) {
+			cost += costs[i];
+			if (cost >= chunkCost) {
+				chunkEnds[count++] = i + 1;
+				cost = 0;
+			}
+		}
+		if (cost > 0) {
+			chunkEnds[count++] = limit;
+		}
+		// publish the new slice
+		int gen = ++generation;
+		long genBits = ((long) gen) << 32;
+		chunkCount = count;
+		renderTime = time;
+		chunksDone.set(genBits);
+		chunkCursor.set(genBits);
+		if (count == 0) {
+			return;
+		}
+		for (RenderingThread rt : threads) {
+			rt.wakeUp();
+		}
+		// participate in rendering
+		dispatchEpoch = epoch;
+		try {
+			renderChunks(dispatchBus);
+		} finally {
+			dispatchEpoch = IDLE_EPOCH;
+		}
+		boolean complete = awaitChunks(gen, count);
+		// prevent late threads from claiming chunks
+		chunkCursor.set(genBits | Integer.MAX_VALUE);
+		if (sliceUsesMixBuses) {
+			reduceMixBuses(gen, time, complete);
+		}
+	}
+
+	/**
+	 * @return the current epoch, to be stamped on a note retired by the
+	 *         mixer after it is removed from its slot
+	 */
+	final long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * A note retired by the mixer in an epoch before the returned one is not
+	 * rendered by any thread anymore. Late threads, e.g. after the
+	 * completion barrier timed out, or in partitioned mode, only hold back
+	 * the notes retired while they render.
+	 * 
+	 * @return the oldest active epoch of all threads, or Long.MAX_VALUE if
+	 *         no thread is rendering
+	 */
+	final long getOldestActiveEpoch() {
+		long oldest = dispatchEpoch;
+		RenderingThread[] rts = liveThreads;
+		for (int i = 0; i < rts.length; i++) {
+			long e = rts[i].activeEpoch;
+			if (e < oldest) {
+				oldest = e;
+			}
+		}
+		return oldest;
+	}
+
+	/**
+	 * Add or remove a rendering thread to the threads checked by
+	 * getOldestActiveEpoch().
+	 */
+	private synchronized void setLive(RenderingThread rt, boolean live) {
+		RenderingThread[] old = liveThreads;
+		int count = 0;
+		RenderingThread[] result = new RenderingThread[old.length + 1];
+		for (RenderingThread t : old) {
+			if (t != rt) {
+				result[count++] = t;
+			}
+		}
+		if (live) {
+			result[count++] = rt;
+		}
+		RenderingThread[] trimmed = new RenderingThread[count];
+		System.arraycopy(result, 0, trimmed, 0, count);
+		liveThreads = trimmed;
+	}
+
+	/**
+	 * Mix bus mode: add the mix buses of all threads that participated in
+	 * rendering the slice gen. The buses are added pairwise in a tree, the
+	 * result is stored in mixedBus.
+	 * <p>
+	 * If the completion barrier timed out, the buses of the threads that are
+	 * still rendering a chunk are left out. The mixer adds them in
+	 * mixBuses() if they are finished by then, otherwise they are dropped.
+	 * 
+	 * @param complete false if the completion barrier timed out
+	 */
+	private final void reduceMixBuses(int gen, AudioTime time, boolean complete) {
+		int maxCount = threads.length + 1;
+		if (reduceBuses.length < maxCount) {
+			reduceBuses = new MixBus[maxCount];
+		}
+		// the mixer does not use the previous slice's late buses anymore
+		mixedGeneration.set(0);
+		if (lateBuses.length < maxCount) {
+			lateBuses = new MixBus[maxCount];
+		}
+		int count = 0;
+		int late = 0;
+		if (dispatchBus.generation == gen) {
+			reduceBuses[count++] = dispatchBus;
+		}
+		for (RenderingThread rt : threads) {
+			MixBus bus = rt.bus;
+			if (bus.generation == gen) {
+				if (complete || !bus.rendering) {
+					reduceBuses[count++] = bus;
+				} else {
+					lateBuses[late++] = bus;
+				}
+			}
+		}
+		for (int step = 1; step < count; step <<= 1) {
+			for (int i = 0; i + step < count; i += (step << 1)) {
+				AudioBuffer target = reduceBuses[i].buffer;
+				AudioBuffer source = reduceBuses[i + step].buffer;
+				int sampleCount = target.getSampleCount();
+				for (int c = 0; c < target.getChannelCount(); c++) {
+					float[] t = target.getChannel(c);
+					float[] src = source.getChannel(c);
+					for (int n = 0; n < sampleCount; n++) {
+						t[n] += src[n];
+					}
+				}
+			}
+		}
+		mixedBus = (count > 0) ? reduceBuses[0].buffer : null;
+		for (int i = 0; i < count; i++) {
+			// from now on, the mixer skips the notes of this bus
+			reduceBuses[i].reducedGeneration = gen;
+			reduceBuses[i] = null;
+		}
+		for (int i = late; i < lateCount; i++) {
+			lateBuses[i] = null;
+		}
+		lateCount = late;
+		mixedBusTime = time.getNanoTime();
+		mixedGeneration.set(gen);
+	}
+
+	/**
+	 * Called by the mixer for every read: add the reduced mix bus to the
+	 * buffer if it was rendered for this time. The mixer's format is used for
+	 * the mix buses of the following slices.
+	 * <p>
+	 * The bus of a thread that missed the completion barrier is added, too,
+	 * if the thread has finished in the meantime. Otherwise, the bus is
+	 * dropped: its thread does not mix any further notes into it, and the
+	 * mixer renders them.
+	 * <p>
+	 * This method does not lock: the reduced bus of a slice is handed over
+	 * with an atomic swap of its generation. It must be called by the thread
+	 * that calls dispatch().
+	 */
+	final void mixBuses(AudioTime time, AudioBuffer buffer,
+			int offset, int count) {
+		busChannelCount = buffer.getChannelCount();
+		busSampleCount = count;
+		busSampleRate = buffer.getSampleRate();
+		int gen = mixedGeneration.getAndSet(0);
+		if (gen == 0) {
+			return;
+		}
+		AudioBuffer bus = mixedBus;
+		boolean current = mixedBusTime + NoteInput.BLOCK_TIME_TOLERANCE_NANOS
+				>= time.getNanoTime();
+		for (int i = 0; i < lateCount; i++) {
+			MixBus late = lateBuses[i];
+			if (current && !late.rendering) {
+				addBus(late.buffer, buffer, offset, count);
+				late.reducedGeneration = gen;
+			} else {
+				late.droppedGeneration = gen;
+			}
+		}
+		if (bus != null && current) {
+			addBus(bus, buffer, offset, count);
+		}
+	}
+
+	/**
+	 * Add the mix bus to the mixer's buffer.
+	 */
+	private static final void addBus(AudioBuffer bus, AudioBuffer buffer,
+			int offset, int count) {
+		if (count > bus.getSampleCount()) {
+			count = bus.getSampleCount();
+		}
+		if (count > buffer.getSampleCount() - offset) {
+			count = buffer.getSampleCount() - offset;
+		}
+		int channels = buffer.getChannelCount();
+		if (channels > bus.getChannelCount()) {
+			channels = bus.getChannelCount();
+		}
+		for (int c = 0; c < channels; c++) {
+			float[] target = buffer.getChannel(c);
+			float[] source = bus.getChannel(c);
+			for (int i = 0; i < count; i++) {
+				target[offset + i] += source[i];
+			}
+		}
+	}
+
+	/**
+	 * Work stealing mode: claim chunks and render them until all chunks of
+	 * the current slice are claimed.
+	 * 
+	 * @return the number of rendered Renderables
+	 */
+	private final int renderChunks(MixBus bus) {
+		int rendered = 0;
+		while (true) {
+			long c = chunkCursor.get();
+			int chunk = (int) c;
+			int count = chunkCount;
+			if (chunk >= count) {
+				break;
+			}
+			// read the slice data before claiming the chunk: once the chunk is
+			// claimed, the barrier may time out and a new slice may begin
+			AudioTime time = renderTime;
+			AudioMixer m = mixer;
+			Renderable[] rs = renderables;
+			int start = (chunk == 0) ? 0 : chunkEnds[chunk - 1];
+			int end = chunkEnds[chunk];
+			boolean useBus = sliceUsesMixBuses;
+			// mark the bus as busy before claiming the chunk, so that a timed
+			// out barrier does not reduce a bus that is still being mixed
+			bus.rendering = true;
+			if (!chunkCursor.compareAndSet(c, c + 1)) {
+				bus.rendering = false;
+				continue;
+			}
+			int gen = (int) (c >>> 32);
+			if (useBus && bus.generation != gen) {
+				bus.prepare(gen, busChannelCount, busSampleCount, busSampleRate);
+			}
+			for (int i = start; i < end; i++) {
+				Renderable r = getRenderable(m, rs, i);
+				if (r == null) {
+					continue;
+				}
+				if (useBus && r instanceof NoteInput) {
+					if (((NoteInput) r).renderAndMix(time, bus)) {
+						rendered++;
+					}
+				} else if (r.render(time)) {
+					rendered++;
+				}
+			}
+			bus.rendering = false;
+			chunkDone(gen, count);
+		}
+		return rendered;
+	}
+
+	/**
+	 * Work stealing mode: count a rendered chunk of the given generation. The
+	 * last chunk unparks the thread waiting at the completion barrier.
+	 */
+	private final void chunkDone(int gen, int count) {
+		while (true) {
+			long d = chunksDone.get();
+			if ((int) (d >>> 32) != gen) {
+				// the barrier timed out already
+				return;
+			}
+			if (chunksDone.compareAndSet(d, d + 1)) {
+				if (((int) d) + 1 == count) {
+					Thread t = barrierThread;
+					if (t != null) {
+						LockSupport.unpark(t);
+					}
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Work stealing mode: the completion barrier. Wait until all chunks of the
+	 * given generation are rendered, but at most maxBarrierWaitNanos. First
+	 * spin, then yield, then park.
+	 * 
+	 * @return true if all chunks are rendered, false if the barrier timed out
+	 */
+	private final boolean awaitChunks(int gen, int count) {
+		long done = (((long) gen) << 32) | count;
+		if (chunksDone.get() == done) {
+			return true;
+		}
+		boolean complete = true;
+		long start = System.nanoTime();
+		long maxWait = maxBarrierWaitNanos;
+		barrierThread = Thread.currentThread();
+		int loop = 0;
+		while (chunksDone.get() != done) {
+			if (loop < SPIN_COUNT) {
+				loop++;
+			} else if (System.nanoTime() - start > maxWait) {
+				complete = false;
+				barrierTimeoutCount++;
+				if (DEBUG_ASYNCH_RENDERER) {
+					debug("AsynchronousRenderer: completion barrier timed out");
+				}
+				break;
+			} else if (loop < SPIN_COUNT + YIELD_COUNT) {
+				loop++;
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(this, Math.min(BARRIER_PARK_NANOS,
+						maxWait - (System.nanoTime() - start) + 1));
+			}
+		}
+		barrierThread = null;
+		return complete;
+	}
+
+	/**
+	 * A mix bus: the buffer that a thread adds its rendered notes to.
+	 */
+	static final class MixBus {
+		/**
+		 * The generation of the slice that is currently mixed in buffer.
+		 * Written by the owning thread, read by the thread reducing the
+		 * buses.
+		 */
+		private volatile int generation = 0;
+
+		/**
+		 * The generation of the last slice for which this bus was added to
+		 * the reduced mix bus.
+		 */
+		private volatile int reducedGeneration = 0;
+
+		/**
+		 * The generation of the last slice for which this bus was dropped
+		 * because its thread did not finish in time.
+		 */
+		private volatile int droppedGeneration = 0;
+
+		/**
+		 * True while the owning thread renders a chunk into buffer.
+		 */
+		private volatile boolean rendering = false;
+
+		private AudioBuffer buffer = null;
+
+		/**
+		 * Clear the buffer for mixing the slice gen. Only allocates a new
+		 * buffer if the format has changed.
+		 */
+		private void prepare(int gen, int channels, int sampleCount,
+				float sampleRate) {
+			if (buffer == null || buffer.getChannelCount() != channels) {
+				buffer = new AudioBuffer(channels, sampleCount, sampleRate);
+			} else {
+				buffer.changeSampleCount(sampleCount, false);
+				buffer.setSampleRate(sampleRate);
+				buffer.makeSilence();
+			}
+			generation = gen;
+		}
+
+		/**
+		 * @return the generation of the slice that is currently mixed
+		 */
+		int getGeneration() {
+			return generation;
+		}
+
+		/**
+		 * @return the buffer of this bus
+		 */
+		AudioBuffer getBuffer() {
+			return buffer;
+		}
+
+		/**
+		 * @return true if this bus was reduced for the slice gen, i.e. the
+		 *         notes mixed into it for that slice are heard
+		 */
+		boolean isReduced(int gen) {
+			return reducedGeneration == gen;
+		}
+
+		/**
+		 * @return true if this bus was dropped for the slice gen, i.e. the
+		 *         notes mixed into it for that slice are not heard
+		 */
+		boolean isDropped(int gen) {
+			return droppedGeneration == gen;
+		}
+	}
+
 	/**
 	 * A thread to call the render method of the inputs of a mixer. Note: only
 	 * this classes' run() method may wait on this object. Otherwise,
@@ -269,6 +1067,29 @@ public class AsynchronousRenderer {
 		
 		private String name;
 
+		/**
+		 * The thread executing this rendering thread, for unparking it.
+		 */
+		private volatile Thread thread;
+
+		/**
+		 * The mix bus of this thread.
+		 */
+		private final MixBus bus = new MixBus();
+
+		/**
+		 * The epoch read before the mixer's slots of the current slice, or
+		 * IDLE_EPOCH when not rendering.
+		 */
+		private volatile long activeEpoch = IDLE_EPOCH;
+
+		/**
+		 * For utilization metrics: the System.nanoTime() when this thread
+		 * started, and the time spent rendering since then.
+		 */
+		private volatile long startNanos;
+		private volatile long busyNanos;
+
 		/**
 		 * Create a rendering thread with the thread number threadNum.
 		 * 
@@ -307,6 +1128,45 @@ public class AsynchronousRenderer {
 			if (USE_WAIT) {
 				this.notify();
 			}
+			Thread t = thread;
+			if (t != null) {
+				LockSupport.unpark(t);
+			}
+		}
+
+		/**
+		 * Wake up this thread if it is parked in work stealing mode.
+		 */
+		public void wakeUp() {
+			Thread t = thread;
+			if (t != null) {
+				LockSupport.unpark(t);
+			}
+		}
+
+		/**
+		 * Wake up this thread after a change of the scheduling mode, no matter
+		 * if it is parked or waiting.
+		 */
+		public synchronized void schedulingModeChanged() {
+			wakeUp();
+			this.notify();
+		}
+
+		/**
+		 * Work stealing mode: wait until a new slice is dispatched. First
+		 * spin, then park.
+		 */
+		private final void awaitSlice(AudioTime lastRenderTime) {
+			int loop = 0;
+			while (!doStop && lastRenderTime == renderTime
+					&& schedulingMode == SCHEDULING_WORK_STEALING) {
+				if (loop < SPIN_COUNT) {
+					loop++;
+				} else {
+					LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+				}
+			}
 		}
 
 		public synchronized void nextSlice() {
@@ -365,6 +1225,33 @@ public class AsynchronousRenderer {
 			}
 		}
 
+		/**
+		 * The render method for rendering directly from the mixer's slots.
+		 * Slots that are empty or do not contain a Renderable are skipped. If
+		 * not partitioned (inc == 1), all threads try all slots, and the
+		 * Renderable's render() method will return false for the slots
+		 * already rendered by another thread.
+		 */
+		private final void render(AudioTime time, AudioMixer m, int start,
+				int inc) {
+			int limit = m.getSlotLimit();
+			for (int i = start; i < limit; i += inc) {
+				if (time != renderTime) {
+					break;
+				}
+				AudioInput ai = m.getStreamAt(i);
+				if (!(ai instanceof Renderable)) {
+					// empty slot or not renderable
+					continue;
+				}
+				if (((Renderable) ai).render(time)) {
+					renderCount++;
+				} else {
+					renderMissCount++;
+				}
+			}
+		}
+
 		/**
 		 * The render method for partitioned rendering.
 		 * 
@@ -391,8 +1278,28 @@ public class AsynchronousRenderer {
 			}
 		}
 
+		/**
+		 * @return the fraction of time spent rendering since this thread
+		 *         started, [0..1]
+		 */
+		public double getUtilization() {
+			long start = startNanos;
+			if (start == 0) {
+				return 0.0;
+			}
+			long elapsed = System.nanoTime() - start;
+			if (elapsed <= 0) {
+				return 0.0;
+			}
+			return Math.min(1.0, ((double) busyNanos) / elapsed);
+		}
+
 		public void run() {
 			AudioTime lastRenderTime = null;
+			thread = Thread.currentThread();
+			setLive(this, true);
+			busyNanos = 0;
+			startNanos = System.nanoTime();
 			if (DEBUG_ASYNCH_RENDERER) {
 				debug("Start " + getName());
 			}
@@ -402,9 +1309,25 @@ public class AsynchronousRenderer {
 				// inner loop
 				try {
 					while (!doStop) {
+						if (schedulingMode == SCHEDULING_WORK_STEALING) {
+							awaitSlice(lastRenderTime);
+							if (!doStop && lastRenderTime != renderTime) {
+								long start = System.nanoTime();
+								lastRenderTime = renderTime;
+								activeEpoch = epoch;
+								try {
+									renderCount += renderChunks(bus);
+								} finally {
+									activeEpoch = IDLE_EPOCH;
+								}
+								busyNanos += System.nanoTime() - start;
+							}
+							continue;
+						}
 						if (USE_WAIT) {
 							synchronized (this) {
-								while (!doStop && lastRenderTime == renderTime) {
+								while (!doStop && lastRenderTime == renderTime
+										&& schedulingMode != SCHEDULING_WORK_STEALING) {
 									this.wait();
 								}
 							}
@@ -413,21 +1336,36 @@ public class AsynchronousRenderer {
 								Thread.yield();
 							}
 						}
-						while (!doStop && lastRenderTime != renderTime) {
-							// TODO: TRACE: start render on thread (interval)
-							lastRenderTime = renderTime;
-							if (PARTITION_RENDERABLES) {
-								render(renderTime, renderables, partitionStart, partitionInc);
-							} else {
-								render(renderTime, renderables);
+						long start = System.nanoTime();
+						try {
+							while (!doStop && lastRenderTime != renderTime) {
+								// TODO: TRACE: start render on thread (interval)
+								lastRenderTime = renderTime;
+								activeEpoch = epoch;
+								AudioMixer m = mixer;
+								if (m != null) {
+									if (PARTITION_RENDERABLES) {
+										render(lastRenderTime, m, partitionStart, partitionInc);
+									} else {
+										render(lastRenderTime, m, 0, 1);
+									}
+								} else if (PARTITION_RENDERABLES) {
+									render(renderTime, renderables, partitionStart, partitionInc);
+								} else {
+									render(renderTime, renderables);
+								}
+								// end interval
 							}
-							// end interval
+						} finally {
+							activeEpoch = IDLE_EPOCH;
 						}
+						busyNanos += System.nanoTime() - start;
 					}
 				} catch (Throwable t) {
 					debug(t);
 				}
 			}
+			setLive(this, false);
 			synchronized (AsynchronousRenderer.this) {
 				running = false;
 				AsynchronousRenderer.this.notifyAll();
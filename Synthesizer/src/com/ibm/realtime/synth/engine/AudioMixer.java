@@ -28,12 +28,39 @@ package com.ibm.realtime.synth.engine;
 import org.tritonus.share.sampled.AudioBuffer;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import static org.jsresources.utils.audio.AudioUtils.*;
 import static com.ibm.realtime.synth.utils.Debug.*;
 
 /**
  * An object that takes an arbitrary number of input audio streams and renders
  * them to the output buffer.
+ * <p>
+ * The streams are kept in a preallocated array of slots. Adding a stream
+ * claims a free slot with a compare-and-set, without taking a lock. A stream
+ * that reports done() is retired in place by read(), i.e. its slot is set to
+ * null and can be reused by the next added stream. Consequently, the order of
+ * the streams in the slots is not necessarily the order in which they were
+ * added.
+ * <p>
+ * The rendering path does not need to copy the list of streams: it iterates
+ * over the slots from 0 to getSlotLimit() (exclusive) and skips the empty
+ * slots returned by getStreamAt():
+ * 
+ * <pre>
+ * int limit = mixer.getSlotLimit();
+ * for (int i = 0; i &lt; limit; i++) {
+ *     AudioInput ai = mixer.getStreamAt(i);
+ *     if (ai != null) {
+ *         ...
+ *     }
+ * }
+ * </pre>
  * 
  * @author florian
  */
@@ -42,86 +69,389 @@ public class AudioMixer implements AudioInput, Serviceable {
 	public static boolean DEBUG_MIXER = false;
 
 	/**
-	 * Collection of currently active input streams
+	 * The default maximum number of streams in a mixer
+	 */
+	public static final int DEFAULT_CAPACITY = 512;
+
+	/**
+	 * The slots with the currently active input streams. Empty slots are null.
 	 */
-	private LinkedList<AudioInput> streams;
+	private final AtomicReferenceArray<AudioInput> slots;
 
 	/**
-	 * Create an instance of a mixer
+	 * All slots at this index and above are empty.
+	 */
+	private final AtomicInteger slotLimit = new AtomicInteger(0);
+
+	/**
+	 * The index where to start searching for a free slot. This is only a hint,
+	 * the search will wrap around and try all slots.
+	 */
+	private final AtomicInteger freeSlotHint = new AtomicInteger(0);
+
+	/**
+	 * The current number of streams
+	 */
+	private final AtomicInteger count = new AtomicInteger(0);
+
+	/**
+	 * For each slot, the sequence number of the stream added to it, so that
+	 * removeLast() can remove the streams in the reverse order of adding
+	 */
+	private final AtomicLongArray addSequence;
+
+	/**
+	 * The sequence number of the last added stream
+	 */
+	private final AtomicLong lastAddSequence = new AtomicLong(0);
+
+	/**
+	 * Notes removed from the slots outside of the render loop, or while
+	 * rendering threads are used, in the order of their retirement. A render
+	 * thread may still be reading them, so they are returned to their voice
+	 * pool by read() once no thread renders them anymore.
+	 */
+	private final ConcurrentLinkedQueue<NoteInput> retiredNotes =
+			new ConcurrentLinkedQueue<NoteInput>();
+
+	/**
+	 * If non-null, the AsynchronousRenderer that mixes the notes into mix
+	 * buses. Notes that are already mixed into a mix bus are skipped by read().
+	 */
+	private volatile AsynchronousRenderer mixBusSource = null;
+
+	/**
+	 * If non-null, the AsynchronousRenderer whose threads render the notes
+	 * of this mixer. A retired note is stamped with the renderer's epoch and
+	 * only recycled once none of its threads renders that epoch anymore.
+	 */
+	private volatile AsynchronousRenderer renderer = null;
+
+	/**
+	 * If non-null, each slice is split at the times of the events provided by
+	 * this splitter.
+	 */
+	private volatile SliceSplitter sliceSplitter = null;
+
+	/**
+	 * The start time of the current sub-range when splitting a slice, reused
+	 * for all sub-ranges to not allocate in the render loop.
+	 */
+	private final AudioTime subRangeTime = new AudioTime(0);
+
+	/**
+	 * The slots of the notes that a rendering thread owned when they were
+	 * to be mixed, to be tried again after the other streams.
+	 */
+	private final int[] deferred;
+
+	/**
+	 * Create an instance of a mixer with the default capacity
 	 */
 	public AudioMixer() {
-		streams = new LinkedList<AudioInput>();
+		this(DEFAULT_CAPACITY);
 	}
 
-	private AudioInput[] localStreams = new AudioInput[16];
+	/**
+	 * Create an instance of a mixer that can hold up to capacity streams.
+	 * 
+	 * @param capacity the maximum number of streams in this mixer
+	 */
+	public AudioMixer(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Illegal mixer capacity: "
+					+ capacity);
+		}
+		slots = new AtomicReferenceArray<AudioInput>(capacity);
+		addSequence = new AtomicLongArray(capacity);
+		deferred = new int[capacity];
+	}
 
 	/**
 	 * The actual mixing function type 1 (mix into the provided buffer)
 	 */
 	public void read(AudioTime time, AudioBuffer buffer, int offset, int count) {
-		// get a local copy of the input streams, so that we can call
-		// the potentially time-consuming rendering task unsynchronized
-		synchronized (streams) {
-			int size = streams.size();
-			if (localStreams.length < size) {
-				localStreams = new AudioInput[size + 8];
+		AsynchronousRenderer source = mixBusSource;
+		if (source != null) {
+			source.mixBuses(time, buffer, offset, count);
+		}
+		SliceSplitter splitter = sliceSplitter;
+		if (splitter == null) {
+			readStreams(time, buffer, offset, count, source, false, time);
+			recycleRetiredNotes();
+			return;
+		}
+		// render the sub-ranges between the events
+		long startNanos = time.getNanoTime();
+		float sampleRate = buffer.getSampleRate();
+		AudioTime subTime = time;
+		int pos = 0;
+		while (true) {
+			// dispatch the events that fall on sample pos
+			long next = splitter.dispatchEventsBefore(startNanos
+					+ samples2nanos(pos + 1, sampleRate));
+			int end = count;
+			if (next != Long.MAX_VALUE) {
+				long nextPos = nanos2samples(next - startNanos, sampleRate);
+				if (nextPos < end) {
+					end = (int) Math.max(nextPos, pos + 1);
+				}
+			}
+			readStreams(subTime, buffer, offset + pos, end - pos, source,
+					pos > 0 || end < count, time);
+			pos = end;
+			if (pos >= count) {
+				break;
 			}
-			localStreams = (AudioInput[]) streams.toArray(localStreams);
-			// localStreams must be null-terminated if it has more elements
-			// than size. toArray() does null-terminate!
+			subRangeTime.setNanoTime(startNanos + samples2nanos(pos, sampleRate));
+			subTime = subRangeTime;
 		}
+		recycleRetiredNotes();
+	}
 
-		// read from all registered input streams
-		for (AudioInput stream : localStreams) {
-			if (stream == null) break;
-			// read from this source stream, it will add to
-			// the buffer
-			stream.read(time, buffer, offset, count);
+	/**
+	 * Mix all streams into the buffer. A note that a rendering thread still
+	 * renders is tried again after the other streams. If it is still owned
+	 * then, e.g. by a thread that missed the completion barrier, this block
+	 * of the note is skipped: the audio thread does not wait for a rendering
+	 * thread.
+	 * 
+	 * @param split if true, the block is a part of a slice, and notes need to
+	 *            render it even if they rendered just before
+	 * @param sliceTime the start time of the slice, used to skip the notes
+	 *            that are already mixed into the mix buses
+	 */
+	private final void readStreams(AudioTime time, AudioBuffer buffer,
+			int offset, int count, AsynchronousRenderer source, boolean split,
+			AudioTime sliceTime) {
+		// read from all registered input streams -- the potentially
+		// time-consuming rendering task does not block addAudioStream()
+		int limit = slotLimit.get();
+		int deferredCount = 0;
+		for (int i = 0; i < limit; i++) {
+			AudioInput stream = slots.get(i);
+			if (stream == null) continue;
+			if (stream instanceof NoteInput) {
+				if (!readNote((NoteInput) stream, time, buffer, offset, count,
+						source, split, sliceTime)) {
+					deferred[deferredCount++] = i;
+					continue;
+				}
+			} else {
+				// read from this source stream, it will add to the buffer
+				stream.read(time, buffer, offset, count);
+			}
+			if (stream.done()) {
+				retire(i, stream, true);
+			}
+		}
+		for (int d = 0; d < deferredCount; d++) {
+			int i = deferred[d];
+			AudioInput stream = slots.get(i);
+			if (stream instanceof NoteInput) {
+				readNote((NoteInput) stream, time, buffer, offset, count,
+						source, split, sliceTime);
+				if (stream.done()) {
+					retire(i, stream, true);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Mix a note into the buffer, unless it is contained in the mix buses.
+	 * 
+	 * @return false if the note was not mixed because a rendering thread
+	 *         owns it
+	 */
+	private final boolean readNote(NoteInput note, AudioTime time,
+			AudioBuffer buffer, int offset, int count,
+			AsynchronousRenderer source, boolean split, AudioTime sliceTime) {
+		if (source != null && note.skipIfMixed(sliceTime)) {
+			// contained in the mix buses
+			return true;
+		}
+		if (split) {
+			return note.tryReadRange(time, buffer, offset, count);
 		}
+		return note.tryRead(time, buffer, offset, count);
 	}
 
 	/**
 	 * The actual mixing function type 2 (return a mixed buffer)
 	 */
 	public AudioBuffer read(AudioTime time, int sampleCount, int channelCount, float sampleRate) {
-		// get a local copy of the input streams, so that we can call
-		// the potentially time-consuming rendering task unsynchronized
-		AudioInput[] streamsCopy;
-		synchronized (streams) {
-			int size = streams.size();
-			streamsCopy = (AudioInput[]) streams.toArray(new AudioInput[size]);
-		}
-		
 		AudioBuffer returnBuffer = new AudioBuffer(channelCount, sampleCount, sampleRate);
 
+		if (sliceSplitter != null) {
+			// splitting needs to mix into one buffer
+			read(time, returnBuffer, 0, sampleCount);
+			return returnBuffer;
+		}
+		AsynchronousRenderer source = mixBusSource;
+		if (source != null) {
+			source.mixBuses(time, returnBuffer, 0, sampleCount);
+		}
 		// read from all registered input streams
-		for (AudioInput stream : streamsCopy) {
+		int limit = slotLimit.get();
+		for (int i = 0; i < limit; i++) {
+			AudioInput stream = slots.get(i);
+			if (stream == null) continue;
+			if (source != null && (stream instanceof NoteInput)
+					&& ((NoteInput) stream).skipIfMixed(time)) {
+				continue;
+			}
 			// read from this source stream, it will add to
 			// the buffer
 			AudioBuffer buffer = stream.read(time, sampleCount, channelCount, sampleRate);
 			returnBuffer.mix(buffer);
 		}
+		recycleRetiredNotes();
 		return returnBuffer;
 	}
 
+	/**
+	 * Set the splitter that provides the events inside of a slice. If set,
+	 * read() renders the part of the slice up to the next event, dispatches
+	 * the event, and continues rendering with the changed parameters.
+	 * 
+	 * @param splitter the splitter, or null to render each slice in one block
+	 */
+	public void setSliceSplitter(SliceSplitter splitter) {
+		this.sliceSplitter = splitter;
+	}
+
+	/**
+	 * @return the slice splitter, or null
+	 */
+	public SliceSplitter getSliceSplitter() {
+		return sliceSplitter;
+	}
+
+	/**
+	 * Set the AsynchronousRenderer that mixes the notes of this mixer into
+	 * mix buses, or null.
+	 */
+	void setMixBusSource(AsynchronousRenderer source) {
+		if (mixBusSource != source) {
+			mixBusSource = source;
+		}
+	}
+
+	/**
+	 * Set the AsynchronousRenderer whose threads render the notes of this
+	 * mixer, or null.
+	 */
+	void setRenderer(AsynchronousRenderer renderer) {
+		if (this.renderer != renderer) {
+			this.renderer = renderer;
+		}
+	}
+
+	/**
+	 * Empty the given slot if it still contains stream. A retired NoteInput
+	 * is recycled, i.e. returned to its voice pool: immediately if it was
+	 * retired by the render loop and no rendering threads are used,
+	 * otherwise once no thread renders the epoch it was retired in.
+	 * 
+	 * @param rendered true if called from the render loop after reading the
+	 *            stream
+	 * @return true if the stream was removed by this call
+	 */
+	private final boolean retire(int slot, AudioInput stream, boolean rendered) {
+		if (!slots.compareAndSet(slot, stream, null)) {
+			// somebody else removed it already
+			return false;
+		}
+		count.decrementAndGet();
+		if (stream instanceof NoteInput) {
+			// return to its voice pool, if any
+			NoteInput note = (NoteInput) stream;
+			AsynchronousRenderer r = renderer;
+			if (rendered && r == null) {
+				note.recycle();
+			} else {
+				// stamp after removing it from the slot: a thread that
+				// still saw it has read this epoch or an earlier one
+				note.setRetireEpoch((r == null) ? 0 : r.getEpoch());
+				retiredNotes.add(note);
+			}
+		}
+		if (slot < freeSlotHint.get()) {
+			freeSlotHint.set(slot);
+		}
+		if (DEBUG_MIXER) {
+			debug("Mixer: retired audio stream in slot " + slot + " -- now "
+					+ count.get() + " streams.");
+		}
+		return true;
+	}
+
+	/**
+	 * Recycle the retired notes. Called by the render thread after reading
+	 * all streams. If rendering threads are used, a late thread may still be
+	 * rendering a note retired in its epoch, so these notes are left for a
+	 * later slice.
+	 */
+	private final void recycleRetiredNotes() {
+		AsynchronousRenderer r = renderer;
+		long oldest = (r == null) ? Long.MAX_VALUE : r.getOldestActiveEpoch();
+		NoteInput note;
+		// only this thread removes notes from the queue
+		while ((note = retiredNotes.peek()) != null
+				&& note.getRetireEpoch() < oldest) {
+			retiredNotes.poll();
+			note.recycle();
+		}
+	}
+
+	/**
+	 * Raise the slot limit to at least newLimit.
+	 */
+	private final void raiseSlotLimit(int newLimit) {
+		int limit;
+		do {
+			limit = slotLimit.get();
+			if (limit >= newLimit) {
+				return;
+			}
+		} while (!slotLimit.compareAndSet(limit, newLimit));
+	}
+
+	/**
+	 * Lower the slot limit as long as the topmost slot is empty. If a stream
+	 * is added concurrently to the slot just cut off, the limit is raised
+	 * again.
+	 */
+	private final void trimSlotLimit() {
+		int limit = slotLimit.get();
+		while (limit > 0 && slots.get(limit - 1) == null) {
+			if (slotLimit.compareAndSet(limit, limit - 1)) {
+				if (slots.get(limit - 1) != null) {
+					raiseSlotLimit(limit);
+					return;
+				}
+				limit--;
+			} else {
+				limit = slotLimit.get();
+			}
+		}
+	}
+
 	/**
 	 * Cleans the list of streams from streams that are already done. Should be
-	 * called from time to time.
+	 * called from time to time. Streams are usually retired already in read(),
+	 * this method also releases unused slots at the end of the slot array.
 	 */
 	public void cleanUp() {
-		synchronized (streams) {
-			Iterator<AudioInput> it = streams.listIterator(0);
-			while (it.hasNext()) {
-				AudioInput ai = it.next();
-				if (ai.done()) {
-					it.remove();
-					if (DEBUG_MIXER) {
-						debug("Mixer.cleanUp: removed audio stream -- now "
-								+ streams.size() + "streams.");
-					}
-				}
+		int limit = slotLimit.get();
+		for (int i = 0; i < limit; i++) {
+			AudioInput ai = slots.get(i);
+			if (ai != null && ai.done()) {
+				retire(i, ai, false);
 			}
 		}
+		trimSlotLimit();
 	}
 
 	/**
@@ -131,14 +461,44 @@ public class AudioMixer implements AudioInput, Serviceable {
 		return false;
 	}
 
-	public void addAudioStream(AudioInput stream) {
-		synchronized (streams) {
-			streams.add(stream);
-		}
-		if (DEBUG_MIXER) {
-			debug("Mixer: added " + stream + " -- now " + streams.size()
-					+ "streams.");
+	/**
+	 * Add the stream to this mixer. This method does not block; it can be
+	 * called concurrently with read() and with other threads adding or
+	 * removing streams. The mixer does not grow: if all slots are in use,
+	 * the stream is not added, and the caller must dispose of it. The
+	 * synthesizer steals voices before the mixer is full, and counts the
+	 * voices it could not add, see Synthesizer.getDroppedVoiceCount().
+	 * 
+	 * @param stream the stream to add
+	 * @return true if the stream was added, false if all slots are in use
+	 */
+	public boolean addAudioStream(AudioInput stream) {
+		int capacity = slots.length();
+		int start = freeSlotHint.get();
+		if (start >= capacity) {
+			start = 0;
 		}
+		int i = start;
+		do {
+			if (slots.get(i) == null && slots.compareAndSet(i, null, stream)) {
+				addSequence.set(i, lastAddSequence.incrementAndGet());
+				count.incrementAndGet();
+				raiseSlotLimit(i + 1);
+				freeSlotHint.set(i + 1);
+				if (DEBUG_MIXER) {
+					debug("Mixer: added " + stream + " in slot " + i
+							+ " -- now " + count.get() + " streams.");
+				}
+				return true;
+			}
+			i++;
+			if (i == capacity) {
+				i = 0;
+			}
+		} while (i != start);
+		error("Mixer: all " + capacity + " slots are in use, cannot add "
+				+ stream);
+		return false;
 	}
 
 	/**
@@ -149,12 +509,12 @@ public class AudioMixer implements AudioInput, Serviceable {
 	 * @param stream the stream to remove from this mixer
 	 */
 	public void removeAudioStream(AudioInput stream) {
-		synchronized (streams) {
-			streams.remove(stream);
-		}
-		if (DEBUG_MIXER) {
-			debug("Mixer: removed " + stream + " -- now " + streams.size()
-					+ "streams.");
+		int limit = slotLimit.get();
+		for (int i = 0; i < limit; i++) {
+			if (slots.get(i) == stream) {
+				retire(i, stream, false);
+				break;
+			}
 		}
 	}
 
@@ -163,25 +523,61 @@ public class AudioMixer implements AudioInput, Serviceable {
 	 */
 	public void clear() {
 		if (DEBUG_MIXER) {
-			debug("Mixer: removing all "+streams.size()+" audio streams.");
+			debug("Mixer: removing all " + count.get() + " audio streams.");
 		}
-		synchronized (streams) {
-			streams.clear();
+		int limit = slotLimit.get();
+		for (int i = 0; i < limit; i++) {
+			AudioInput ai = slots.get(i);
+			if (ai != null) {
+				retire(i, ai, false);
+			}
 		}
+		trimSlotLimit();
 	}
 
 	/**
 	 * @return the current number of streams
 	 */
 	public final int getCount() {
-		return streams.size();
+		return count.get();
+	}
+
+	/**
+	 * @return the maximum number of streams in this mixer
+	 */
+	public final int getCapacity() {
+		return slots.length();
+	}
+
+	/**
+	 * The exclusive upper bound of the slot indexes that may contain a stream.
+	 * Use with getStreamAt() for iterating over the streams without creating a
+	 * copy.
+	 * 
+	 * @return the number of slots to iterate
+	 */
+	public final int getSlotLimit() {
+		return slotLimit.get();
+	}
+
+	/**
+	 * Return the stream in the given slot.
+	 * 
+	 * @param slot the slot index, 0...getSlotLimit()-1
+	 * @return the stream in the slot, or null if the slot is empty
+	 */
+	public final AudioInput getStreamAt(int slot) {
+		return slots.get(slot);
 	}
 
 	public final List<AudioInput> getAudioStreams() {
-		// TODO: optimization of the code that calls this method!
-		List<AudioInput> list;
-		synchronized (streams) {
-			list = new ArrayList<AudioInput>(streams);
+		List<AudioInput> list = new ArrayList<AudioInput>(count.get());
+		int limit = slotLimit.get();
+		for (int i = 0; i < limit; i++) {
+			AudioInput ai = slots.get(i);
+			if (ai != null) {
+				list.add(ai);
+			}
 		}
 		return list;
 	}
@@ -190,9 +586,8 @@ public class AudioMixer implements AudioInput, Serviceable {
 	 * @return an array with the current audio streams
 	 */
 	public final AudioInput[] getAudioStreamsArray() {
-		synchronized (streams) {
-			return (AudioInput[]) streams.toArray(new AudioInput[streams.size()]);
-		}
+		List<AudioInput> list = getAudioStreams();
+		return (AudioInput[]) list.toArray(new AudioInput[list.size()]);
 	}
 
 	/**
@@ -205,13 +600,11 @@ public class AudioMixer implements AudioInput, Serviceable {
 	 * @return the array of audio streams
 	 */
 	public final AudioInput[] getAudioStreams(AudioInput[] template) {
-		synchronized (streams) {
-			if (template == null) {
-				template = new AudioInput[streams.size()];
-			}
-			template = (AudioInput[]) streams.toArray(template);
+		List<AudioInput> list = getAudioStreams();
+		if (template == null) {
+			template = new AudioInput[list.size()];
 		}
-		return template;
+		return (AudioInput[]) list.toArray(template);
 	}
 
 	/**
@@ -222,15 +615,13 @@ public class AudioMixer implements AudioInput, Serviceable {
 	 * @return the array of NoteInput objects
 	 */
 	public final NoteInput[] getNoteInputs() {
-		NoteInput[] result;
-		synchronized (streams) {
-			int size = streams.size();
-			result = new NoteInput[size];
-			int i = 0;
-			for (AudioInput ai : streams) {
-				if (!ai.done() && (ai instanceof NoteInput)) {
-					result[i++] = (NoteInput) ai;
-				}
+		int limit = slotLimit.get();
+		NoteInput[] result = new NoteInput[limit];
+		int n = 0;
+		for (int i = 0; i < limit; i++) {
+			AudioInput ai = slots.get(i);
+			if (ai != null && !ai.done() && (ai instanceof NoteInput)) {
+				result[n++] = (NoteInput) ai;
 			}
 		}
 		return result;
@@ -246,49 +637,63 @@ public class AudioMixer implements AudioInput, Serviceable {
 	 *         array
 	 */
 	public final int getRenderables(Renderable[] renderables) {
-		synchronized (streams) {
-			int size = streams.size();
-			if (renderables.length < size) {
-				return -size;
-			}
-			int i = 0;
-			for (AudioInput ai : streams) {
-				if (ai instanceof Renderable && !ai.done()) {
-					renderables[i++] = (Renderable) ai;
-				}
-			}
-			return i;
+		int limit = slotLimit.get();
+		if (renderables.length < limit) {
+			return -limit;
 		}
+		return fillRenderables(renderables, limit);
 	}
 
 	public final Renderable[] getRenderables() {
-		synchronized (streams) {
-			int size = streams.size();
-			Renderable[] renderables = new Renderable[size];
-			int i = 0;
-			for (AudioInput ai : streams) {
-				if (ai instanceof Renderable && !ai.done()) {
-					renderables[i++] = (Renderable) ai;
-				}
+		int limit = slotLimit.get();
+		Renderable[] renderables = new Renderable[limit];
+		fillRenderables(renderables, limit);
+		return renderables;
+	}
+
+	/**
+	 * Fill the array with the Renderable streams in the slots below limit.
+	 * The array must have at least limit elements. Only the snapshot of the
+	 * slot limit is used, so that the count never exceeds the array.
+	 * 
+	 * @return the number of Renderable objects written to the array
+	 */
+	private final int fillRenderables(Renderable[] renderables, int limit) {
+		int n = 0;
+		for (int i = 0; i < limit; i++) {
+			AudioInput ai = slots.get(i);
+			if (ai instanceof Renderable && !ai.done()) {
+				renderables[n++] = (Renderable) ai;
 			}
-			return renderables;
 		}
+		return n;
 	}
 
 	/**
-	 * Remove the last <num> streams. This method is mainly for debugging
-	 * purposes.
+	 * Remove the last <num> streams, i.e. the most recently added ones. This
+	 * method is mainly for debugging purposes. It searches all slots for
+	 * every removed stream.
 	 */
 	public void removeLast(int num) {
-		synchronized (streams) {
-			int index = streams.size() - num;
-			if (index < 0) index = 0;
-			Iterator<AudioInput> it = streams.listIterator(index);
-			while (it.hasNext()) {
-				it.next();
-				it.remove();
+		for (; num > 0; num--) {
+			int last = -1;
+			long lastSequence = 0;
+			int limit = slotLimit.get();
+			for (int i = 0; i < limit; i++) {
+				if (slots.get(i) != null && addSequence.get(i) > lastSequence) {
+					last = i;
+					lastSequence = addSequence.get(i);
+				}
+			}
+			if (last < 0) {
+				break;
+			}
+			AudioInput ai = slots.get(last);
+			if (ai != null) {
+				retire(last, ai, false);
 			}
 		}
+		trimSlotLimit();
 	}
 
 	// interface Serviceable
@@ -31,12 +31,21 @@ import static org.jsresources.utils.audio.AudioUtils.*;
 import static com.ibm.realtime.synth.utils.Debug.*;
 
 import java.util.*;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * The AudioPullThread reads data from an AudioInput and writes it to an
  * AudioSink. By way of the implemented AudioClock interface, you can query the
  * start time of the currently filled audio buffer -- this is in steps of the
  * buffer size of the audio sink.
+ * <p>
+ * With a pipeline depth larger than 1, the buffers are written to the sink by
+ * a separate writer thread, so that the next buffer is rendered while the
+ * sink blocks in write(). The pull thread rotates through pipeline depth
+ * buffers, so it is at most (pipeline depth - 1) buffers ahead of the
+ * synchronous mode. This additional latency is available from
+ * getPipelineLatencyNanos(), and is added to the fixed delay of listening
+ * synthesizers.
  * 
  * @author florian
  */
@@ -62,6 +71,12 @@ public class AudioPullThread implements Runnable, AudioClock {
 	 */
 	public static boolean DEBUG_USE_FUNCTIONAL_READ = false;
 
+	/**
+	 * The maximum time that the pull thread or the writer thread are parked
+	 * before checking the pipeline state again.
+	 */
+	private static final long PIPELINE_PARK_NANOS = 1000000L;
+
 	// default 1 millisecond slicetime
 	private final static double DEFAULT_SLICE_TIME = 0.001;
 	private volatile AudioInput input;
@@ -104,6 +119,28 @@ public class AudioPullThread implements Runnable, AudioClock {
 	 */
 	private long resynchCounter = 0;
 
+	/**
+	 * The requested number of buffers in the pipeline. 1 means synchronous
+	 * writing from the pull thread.
+	 */
+	private volatile int pipelineDepth = 1;
+
+	/**
+	 * The additional latency of the currently running pipeline, in samples.
+	 */
+	private volatile int pipelineLatencySamples = 0;
+
+	/**
+	 * If non-null, the controller that chooses the size of each slice as a
+	 * multiple of the slice time.
+	 */
+	private volatile SliceTimeController sliceTimeController = null;
+
+	/**
+	 * If non-null, the render times and xruns are recorded here.
+	 */
+	private volatile SynthMetrics metrics = null;
+
 	public AudioPullThread() {
 		// nothing
 	}
@@ -113,12 +150,42 @@ public class AudioPullThread implements Runnable, AudioClock {
 		setSink(sink);
 	}
 
+	/**
+	 * Add a listener that is called for every slice. If the listener is a
+	 * Synthesizer and no metrics are set, its metrics receive the render
+	 * times, so that its overload handling sees the DSP load.
+	 */
 	public void addListener(AudioRendererListener L) {
 		listeners.add(L);
+		if (L instanceof Synthesizer) {
+			if (metrics == null) {
+				metrics = ((Synthesizer) L).getMetrics();
+			}
+			((Synthesizer) L).setPipelineLatencyNanos(getPipelineLatencyNanos());
+		}
 	}
 
 	public void removeListener(AudioRendererListener L) {
 		listeners.remove(L);
+		if (L instanceof Synthesizer) {
+			if (metrics == ((Synthesizer) L).getMetrics()) {
+				metrics = null;
+			}
+			((Synthesizer) L).setPipelineLatencyNanos(0);
+		}
+	}
+
+	/**
+	 * Pass the current pipeline latency to all listeners that are a
+	 * Synthesizer, so that it is added to their fixed delay.
+	 */
+	private void publishPipelineLatency() {
+		long latency = getPipelineLatencyNanos();
+		for (AudioRendererListener arl : listeners) {
+			if (arl instanceof Synthesizer) {
+				((Synthesizer) arl).setPipelineLatencyNanos(latency);
+			}
+		}
 	}
 
 	/**
@@ -230,6 +297,88 @@ public class AudioPullThread implements Runnable, AudioClock {
 		return (bufferSampleCount / sliceTimeSamples) * sliceTimeSamples;
 	}
 
+	/**
+	 * @return the slice time controller, or null if the slice time is fixed
+	 */
+	public SliceTimeController getSliceTimeController() {
+		return sliceTimeController;
+	}
+
+	/**
+	 * Set a controller to adapt the slice size to the load and to the
+	 * incoming events. The slice time then acts as the minimum slice time,
+	 * and each slice is a multiple of it. Set to null for a fixed slice time.
+	 * 
+	 * @param controller the controller, or null
+	 */
+	public void setSliceTimeController(SliceTimeController controller) {
+		this.sliceTimeController = controller;
+	}
+
+	/**
+	 * @return the metrics receiving render times and xruns, or null
+	 */
+	public SynthMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Set the metrics instance to record the render time of each slice and
+	 * the resynchronizations of the sink. Set to null to not measure.
+	 * 
+	 * @param metrics the metrics, or null
+	 */
+	public void setMetrics(SynthMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return the number of buffers in the pipeline, 1 for synchronous writing
+	 */
+	public int getPipelineDepth() {
+		return pipelineDepth;
+	}
+
+	/**
+	 * Set the number of rotating buffers. If depth is 1 (the default), the
+	 * pull thread writes the rendered buffer to the sink before rendering the
+	 * next buffer. If depth is 2 or larger, a writer thread writes the
+	 * buffers to the sink while the pull thread already renders the next
+	 * buffer. The change is effective at the next buffer.
+	 * 
+	 * @param depth the number of buffers in the pipeline
+	 */
+	public void setPipelineDepth(int depth) {
+		if (depth < 1) {
+			throw new IllegalArgumentException("Illegal pipeline depth: "
+					+ depth);
+		}
+		pipelineDepth = depth;
+	}
+
+	/**
+	 * @return the number of samples that rendering is ahead of synchronous
+	 *         writing due to the pipeline, or 0 if not pipelined
+	 */
+	public int getPipelineLatencySamples() {
+		return pipelineLatencySamples;
+	}
+
+	/**
+	 * Return the additional latency introduced by the pipeline. Listeners
+	 * that are a Synthesizer receive this latency whenever it changes, and add
+	 * it to their fixed delay.
+	 * 
+	 * @return the pipeline latency in nanoseconds, or 0 if not pipelined
+	 */
+	public long getPipelineLatencyNanos() {
+		AudioSink localSink = sink;
+		if (localSink == null) {
+			return 0;
+		}
+		return samples2nanos(pipelineLatencySamples, localSink.getSampleRate());
+	}
+
 	/**
 	 * @return the resynchCounter
 	 */
@@ -273,6 +422,9 @@ public class AudioPullThread implements Runnable, AudioClock {
 	 * the audio sink's buffer, the returned time is not continuos, but jumps in
 	 * steps of the sink's buffer size. Since this is the start time of the next
 	 * buffer, the returned time is usually a future reference.
+	 * <p>
+	 * If pipelined, this is the start time of the next buffer to be rendered,
+	 * which is written to the sink after the buffers in the pipeline.
 	 * 
 	 * @return the next buffer's time
 	 * @see com.ibm.realtime.synth.engine.AudioClock#getAudioTime()
@@ -330,7 +482,13 @@ public class AudioPullThread implements Runnable, AudioClock {
 			}
 			AudioTime oldOffset = sink.getTimeOffset();
 			if (adjust != 0) {
-				if (!reset) resynchCounter++;
+				if (!reset) {
+					resynchCounter++;
+					SynthMetrics m = metrics;
+					if (m != null) {
+						m.xrun();
+					}
+				}
 				AudioTime adjustTime = new AudioTime(adjust,
 						sink.getSampleRate());
 				sink.setTimeOffset(oldOffset.add(adjustTime));
@@ -353,7 +511,13 @@ public class AudioPullThread implements Runnable, AudioClock {
 				adjust = (sinkSamplesTime - samples);
 			}
 			if (adjust != 0) {
-				if (!reset) resynchCounter++;
+				if (!reset) {
+					resynchCounter++;
+					SynthMetrics m = metrics;
+					if (m != null) {
+						m.xrun();
+					}
+				}
 				AudioTime adjustTime = new AudioTime(adjust,
 						sink.getSampleRate());
 				if (DEBUG_PULLTHREAD) {
@@ -396,6 +560,162 @@ public class AudioPullThread implements Runnable, AudioClock {
 		}
 	}
 
+	/**
+	 * The writer of the pipelined mode, or null if writing synchronously. Only
+	 * accessed by the pull thread.
+	 */
+	private PipelineWriter writer = null;
+
+	/**
+	 * The writer thread of the pipelined mode: a ring of buffers with a single
+	 * producer, the pull thread, and a single consumer, the writer thread. The
+	 * writer writes the buffers to the sink and the slave sink, synchronizes
+	 * the sink's time, and clears the buffers for reuse.
+	 */
+	private class PipelineWriter implements Runnable {
+		private final AudioBuffer[] buffers;
+
+		/**
+		 * For each buffer, the sample time of the end of the buffer.
+		 */
+		private final long[] endSamples;
+
+		private final int bufferSampleCount;
+
+		/**
+		 * The number of buffers passed to the writer thread.
+		 */
+		private volatile long filled = 0;
+
+		/**
+		 * The number of buffers written to the sink.
+		 */
+		private volatile long written = 0;
+
+		private volatile boolean doStop = false;
+
+		private volatile Thread writerThread;
+
+		private volatile Thread pullThread;
+
+		private int synchronizeCounter = 0;
+
+		public PipelineWriter(int depth, int channels, int bufferSampleCount,
+				float sampleRate) {
+			this.bufferSampleCount = bufferSampleCount;
+			buffers = new AudioBuffer[depth];
+			for (int i = 0; i < depth; i++) {
+				buffers[i] = new AudioBuffer(channels, bufferSampleCount,
+						sampleRate);
+			}
+			endSamples = new long[depth];
+			ThreadFactory.createThread(this, AudioPullThread.this.getClass().getSimpleName()
+					+ " writer thread", PULLTHREAD_PRIORITY);
+		}
+
+		/**
+		 * Return the buffer to be filled next, waiting until the writer has
+		 * freed a buffer. Returns null if stopped while waiting.
+		 */
+		public AudioBuffer getFillBuffer() {
+			long f = filled;
+			if (f - written >= buffers.length) {
+				pullThread = Thread.currentThread();
+				while (f - written >= buffers.length) {
+					if (stopped || doStop) {
+						return null;
+					}
+					LockSupport.parkNanos(this, PIPELINE_PARK_NANOS);
+				}
+			}
+			return buffers[(int) (f % buffers.length)];
+		}
+
+		/**
+		 * Pass the filled buffer to the writer thread.
+		 * 
+		 * @param end the sample time of the end of the buffer
+		 */
+		public void submit(long end) {
+			long f = filled;
+			endSamples[(int) (f % buffers.length)] = end;
+			filled = f + 1;
+			Thread t = writerThread;
+			if (t != null) {
+				LockSupport.unpark(t);
+			}
+		}
+
+		/**
+		 * Wait until all submitted buffers are written.
+		 */
+		public void drain() {
+			pullThread = Thread.currentThread();
+			while (written < filled && !stopped && !doStop) {
+				LockSupport.parkNanos(this, PIPELINE_PARK_NANOS);
+			}
+		}
+
+		/**
+		 * Stop the writer thread (asynchronously).
+		 */
+		public void finish() {
+			doStop = true;
+			Thread t = writerThread;
+			if (t != null) {
+				LockSupport.unpark(t);
+			}
+		}
+
+		public void run() {
+			writerThread = Thread.currentThread();
+			if (DEBUG_PULLTHREAD) {
+				debug("AudioPullThread: start writer thread with "
+						+ buffers.length + " buffers");
+			}
+			while (!doStop && !stopped) {
+				try {
+					long w = written;
+					if (w == filled) {
+						LockSupport.parkNanos(this, PIPELINE_PARK_NANOS);
+						continue;
+					}
+					int index = (int) (w % buffers.length);
+					AudioBuffer buffer = buffers[index];
+					long end = endSamples[index];
+					// wait for sink to be ready
+					if (sink == null || !sink.isOpen()) {
+						waitForSinkToBeOpen(end, bufferSampleCount);
+					}
+					if (doStop || stopped) {
+						break;
+					}
+					// this is a blocking call
+					sink.write(buffer);
+					// see run() of the pull thread: the sink's time must be
+					// somewhere in the buffer just written
+					if ((++synchronizeCounter & 15) == 0) {
+						synchronizeSink(end, bufferSampleCount, false);
+					}
+					if (slaveSink != null) {
+						slaveSink.write(buffer);
+					}
+					buffer.makeSilence();
+					written = w + 1;
+					Thread t = pullThread;
+					if (t != null) {
+						LockSupport.unpark(t);
+					}
+				} catch (Throwable t) {
+					debug(t);
+				}
+			}
+			if (DEBUG_PULLTHREAD) {
+				debug("AudioPullThread: quit writer thread");
+			}
+		}
+	}
+
 	/**
 	 * The actual loop of reading from the AudioInput and writing it to the
 	 * soundcard
@@ -414,10 +734,13 @@ public class AudioPullThread implements Runnable, AudioClock {
 			// force re-setup of buffer
 			double localSliceTime = -1.0;
 			int localBufferSampleCount = -1;
+			int localPipelineDepth = -1;
 			int bufferSampleCount = 0;
 			int sliceSampleCount = 0;
 			AudioBuffer buffer = null;
 			AudioTime duration = null;
+			// the durations of all multiples of the slice time in a buffer
+			AudioTime[] durations = null;
 			int offset = 0;
 			long samples = 0;
 			int synchronizeCounter = 0;
@@ -427,10 +750,18 @@ public class AudioPullThread implements Runnable, AudioClock {
 					// TODO: some global way to signal a change of parameter
 					// (also for, e.g. stopped flag)
 					if (localSliceTime != sliceTime
-							|| localBufferSampleCount != sink.getBufferSize()) {
+							|| localBufferSampleCount != sink.getBufferSize()
+							|| localPipelineDepth != pipelineDepth) {
+						// write the pending buffers with the old setup
+						if (writer != null) {
+							writer.drain();
+							writer.finish();
+							writer = null;
+						}
 						// set up the temporary buffer for reading
 						localBufferSampleCount = sink.getBufferSize();
 						localSliceTime = sliceTime;
+						localPipelineDepth = pipelineDepth;
 
 						sliceSampleCount = getSliceTimeSamples(sampleRate);
 						if (sliceSampleCount > localBufferSampleCount) {
@@ -452,9 +783,26 @@ public class AudioPullThread implements Runnable, AudioClock {
 									+ ", sink buffer size = "
 									+ sink.getBufferSize() + " samples.");
 						}
-						buffer = new AudioBuffer(sink.getChannels(),
-								bufferSampleCount, sampleRate);
+						if (localPipelineDepth > 1) {
+							writer = new PipelineWriter(localPipelineDepth,
+									sink.getChannels(), bufferSampleCount,
+									sampleRate);
+							buffer = writer.getFillBuffer();
+							pipelineLatencySamples = (localPipelineDepth - 1)
+									* bufferSampleCount;
+						} else {
+							buffer = new AudioBuffer(sink.getChannels(),
+									bufferSampleCount, sampleRate);
+							pipelineLatencySamples = 0;
+						}
+						publishPipelineLatency();
 						duration = new AudioTime(sliceSampleCount, sampleRate);
+						durations = new AudioTime[bufferSampleCount
+								/ sliceSampleCount + 1];
+						for (int i = 1; i < durations.length; i++) {
+							durations[i] = new AudioTime(i * sliceSampleCount,
+									sampleRate);
+						}
 						synchronizeSink(samples, bufferSampleCount, true);
 						if (offset > localBufferSampleCount) {
 							// adapt offset if in the middle of filling a buffer
@@ -464,8 +812,29 @@ public class AudioPullThread implements Runnable, AudioClock {
 
 					AudioTime time = new AudioTime(samples, sampleRate);
 
+					// the size of this slice
+					SliceTimeController stc = sliceTimeController;
+					AudioTime thisDuration = duration;
+					int thisSliceSampleCount = sliceSampleCount;
+					SynthMetrics m = metrics;
+					long renderStart = 0;
+					if (stc != null) {
+						int maxMultiple = (bufferSampleCount - offset)
+								/ sliceSampleCount;
+						int multiple = stc.nextSliceMultiple(
+								time.getNanoTime(), duration.getNanoTime(),
+								maxMultiple);
+						if (multiple > 1 && multiple <= maxMultiple) {
+							thisDuration = durations[multiple];
+							thisSliceSampleCount = multiple * sliceSampleCount;
+						}
+					}
+					if (stc != null || m != null) {
+						renderStart = System.nanoTime();
+					}
+
 					for (AudioRendererListener arl : listeners) {
-						arl.newAudioSlice(time, duration);
+						arl.newAudioSlice(time, thisDuration);
 					}
 
 					// wait for input to become ready
@@ -492,23 +861,43 @@ public class AudioPullThread implements Runnable, AudioClock {
 					// read audio data from input
 					if (!DEBUG_USE_FUNCTIONAL_READ) {
 						// this call will take some time
-						input.read(time, buffer, offset, sliceSampleCount);
+						input.read(time, buffer, offset, thisSliceSampleCount);
 					} else {
 						AudioBuffer thisBuffer = input.read(time,
-								sliceSampleCount, buffer.getChannelCount(),
+								thisSliceSampleCount, buffer.getChannelCount(),
 								sampleRate);
 						// if we're doing synchronous read/write, just exchange
-						// the buffer
-						if (sliceSampleCount == bufferSampleCount) {
+						// the buffer (the pipeline's buffers must be kept)
+						if (thisSliceSampleCount == bufferSampleCount
+								&& writer == null) {
 							buffer = thisBuffer;
 						} else {
-							thisBuffer.copyTo(buffer, offset, sliceSampleCount);
+							thisBuffer.copyTo(buffer, offset, thisSliceSampleCount);
+						}
+					}
+
+					if (stc != null || m != null) {
+						long renderNanos = System.nanoTime() - renderStart;
+						if (stc != null) {
+							stc.sliceRendered(renderNanos,
+									thisDuration.getNanoTime());
+						}
+						if (m != null) {
+							m.sliceRendered(renderNanos,
+									thisDuration.getNanoTime());
 						}
 					}
 
-					samples += sliceSampleCount;
-					offset += sliceSampleCount;
-					if (offset >= bufferSampleCount) {
+					samples += thisSliceSampleCount;
+					offset += thisSliceSampleCount;
+					if (offset >= bufferSampleCount && writer != null) {
+						// pass the buffer to the writer thread and continue
+						// with the next free buffer
+						writer.submit(samples);
+						buffer = writer.getFillBuffer();
+						offset = 0;
+						nextBufferSamples = samples;
+					} else if (offset >= bufferSampleCount) {
 						// wait for sink to be ready
 						if (sink == null || !sink.isOpen()) {
 							waitForSinkToBeOpen(samples, bufferSampleCount);
@@ -550,6 +939,12 @@ public class AudioPullThread implements Runnable, AudioClock {
 				}
 			}
 		} finally {
+			if (writer != null) {
+				writer.finish();
+				writer = null;
+			}
+			pipelineLatencySamples = 0;
+			publishPipelineLatency();
 			inThread = false;
 		}
 		if (DEBUG_PULLTHREAD) {
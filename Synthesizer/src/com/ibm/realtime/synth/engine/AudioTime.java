@@ -47,6 +47,14 @@ public class AudioTime implements Comparable<AudioTime> {
 		return nanosecond;
 	}
 
+	/**
+	 * Change this time. Only for preallocated instances that are not shared,
+	 * like the sub-range time of the mixer.
+	 */
+	final void setNanoTime(long nanosecond) {
+		this.nanosecond = nanosecond;
+	}
+
 	public long getMicroTime() {
 		return nanosecond / 1000L;
 	}
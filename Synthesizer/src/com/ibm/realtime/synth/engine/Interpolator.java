@@ -0,0 +1,658 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ibm.realtime.synth.engine;
+
+/**
+ * The interpolation tiers for resampling the native sample data in the
+ * oscillators. The tiers are ordered by cost and quality:
+ * <ul>
+ * <li>NEAREST: no interpolation, just take the nearest sample
+ * <li>LINEAR: linear interpolation of 2 samples
+ * <li>CUBIC: 4-point cubic Hermite (Catmull-Rom) interpolation
+ * <li>SINC_8, SINC_16, SINC_32: windowed sinc with 8, 16, or 32 taps
+ * </ul>
+ * The windowed sinc tiers use precomputed polyphase tables. When the sample
+ * is pitched up, a table with a lower cutoff frequency is used to prevent
+ * aliasing. The tables of a tier are calculated by prepare(), which the
+ * synthesizer calls when the tier is selected, so that the rendering threads
+ * do not need to calculate them.
+ * <p>
+ * Run main() for a benchmark of CPU cost against SNR for every tier.
+ */
+public final class Interpolator {
+
+	public final static int NEAREST = 0;
+	public final static int LINEAR = 1;
+	public final static int CUBIC = 2;
+	public final static int SINC_8 = 3;
+	public final static int SINC_16 = 4;
+	public final static int SINC_32 = 5;
+
+	/**
+	 * The number of tiers
+	 */
+	public final static int TIER_COUNT = 6;
+
+	private final static String[] NAMES = {
+			"nearest", "linear", "cubic", "sinc8", "sinc16", "sinc32"
+	};
+
+	/**
+	 * The number of multiply-adds per output sample of each tier
+	 */
+	private final static int[] COST = {
+			0, 1, 7, 8, 16, 32
+	};
+
+	/**
+	 * The number of samples that the interpolators of the typed arrays may
+	 * read before and after the read position. Decoded sample data must
+	 * provide this many guard samples before the first and after the last
+	 * sample.
+	 */
+	public final static int GUARD_SAMPLES = 20;
+
+	/**
+	 * The number of phases of the polyphase tables. The table has one more
+	 * phase for a fraction of 1.0.
+	 */
+	private final static int PHASES = 1024;
+
+	/**
+	 * The number of bandwidths of the tables. Bandwidth i is 2^(-i/2) times
+	 * the Nyquist frequency of the native samples, so the lowest is for
+	 * pitching up by 2 octaves.
+	 */
+	private final static int BANDWIDTHS = 5;
+
+	/**
+	 * Scale factor for 16-bit samples
+	 */
+	private final static float SCALE_16 = 1.0f / 32768.0f;
+
+	/**
+	 * The polyphase tables by tier and bandwidth. The tables of a tier are
+	 * never modified once published: prepare() replaces the entire array.
+	 */
+	private static volatile float[][][] tables = new float[TIER_COUNT][][];
+
+	private Interpolator() {
+		// no instances
+	}
+
+	/**
+	 * @return the name of the tier
+	 */
+	public static String getName(int tier) {
+		return NAMES[tier];
+	}
+
+	/**
+	 * @return the number of multiply-adds per output sample of the tier
+	 */
+	public static int getCost(int tier) {
+		return COST[tier];
+	}
+
+	/**
+	 * @return the tier for the given name, or -1 if not known
+	 */
+	public static int getTier(String name) {
+		for (int i = 0; i < NAMES.length; i++) {
+			if (NAMES[i].equalsIgnoreCase(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the number of taps of a sinc tier, or 0 for the other tiers
+	 */
+	public static int getTaps(int tier) {
+		switch (tier) {
+		case SINC_8:
+			return 8;
+		case SINC_16:
+			return 16;
+		case SINC_32:
+			return 32;
+		}
+		return 0;
+	}
+
+	/**
+	 * Interpolate 16-bit signed little endian mono samples.
+	 * 
+	 * @param tier the interpolation tier
+	 * @param data the native samples
+	 * @param pos the read position in samples
+	 * @param delta the increment of the read position per output sample
+	 * @param out the output samples
+	 * @param offset the index of the first output sample
+	 * @param count the number of samples to write
+	 */
+	public static void interpolate16(int tier, byte[] data, double pos,
+			double delta, float[] out, int offset, int count) {
+		switch (tier) {
+		case NEAREST:
+			nearest16(data, pos, delta, out, offset, count);
+			break;
+		case CUBIC:
+			cubic16(data, pos, delta, out, offset, count);
+			break;
+		case SINC_8: // fall through
+		case SINC_16: // fall through
+		case SINC_32:
+			sinc16(getTable(tier, delta), getTaps(tier), data, pos, delta,
+					out, offset, count);
+			break;
+		default:
+			linear16(data, pos, delta, out, offset, count);
+		}
+	}
+
+	/**
+	 * Interpolate decoded 16-bit samples. The data must have GUARD_SAMPLES
+	 * guard samples around the read positions, so no bounds are checked.
+	 * 
+	 * @param tier the interpolation tier
+	 * @param data the decoded samples
+	 * @param indexOffset the value to add to a read position to get the
+	 *            index in data
+	 * @param pos the read position in samples
+	 * @param delta the increment of the read position per output sample
+	 * @param out the output samples
+	 * @param offset the index of the first output sample
+	 * @param count the number of samples to write
+	 */
+	public static void interpolate(int tier, short[] data, int indexOffset,
+			double pos, double delta, float[] out, int offset, int count) {
+		int end = offset + count;
+		switch (tier) {
+		case NEAREST:
+			for (int i = offset; i < end; i++) {
+				out[i] = data[((int) (pos + 0.5)) + indexOffset] * SCALE_16;
+				pos += delta;
+			}
+			break;
+		case CUBIC:
+			for (int i = offset; i < end; i++) {
+				int ip = (int) pos;
+				float t = (float) (pos - ip);
+				int x = ip + indexOffset;
+				out[i] = cubic(data[x - 1], data[x], data[x + 1],
+						data[x + 2], t) * SCALE_16;
+				pos += delta;
+			}
+			break;
+		case SINC_8: // fall through
+		case SINC_16: // fall through
+		case SINC_32:
+			int taps = getTaps(tier);
+			float[] table = getTable(tier, delta);
+			int first = indexOffset - (taps >> 1) + 1;
+			for (int i = offset; i < end; i++) {
+				int ip = (int) pos;
+				int c = ((int) ((pos - ip) * PHASES + 0.5)) * taps;
+				int x = ip + first;
+				float sum = 0.0f;
+				for (int k = 0; k < taps; k++) {
+					sum += table[c + k] * data[x + k];
+				}
+				out[i] = sum * SCALE_16;
+				pos += delta;
+			}
+			break;
+		default:
+			for (int i = offset; i < end; i++) {
+				int ip = (int) pos;
+				float frac = (float) (pos - ip);
+				int x = ip + indexOffset;
+				float s0 = data[x];
+				out[i] = (s0 + frac * (data[x + 1] - s0)) * SCALE_16;
+				pos += delta;
+			}
+		}
+	}
+
+	/**
+	 * Interpolate decoded float samples. The data must have GUARD_SAMPLES
+	 * guard samples around the read positions, so no bounds are checked.
+	 * 
+	 * @see #interpolate(int, short[], int, double, double, float[], int, int)
+	 */
+	public static void interpolate(int tier, float[] data, int indexOffset,
+			double pos, double delta, float[] out, int offset, int count) {
+		int end = offset + count;
+		switch (tier) {
+		case NEAREST:
+			for (int i = offset; i < end; i++) {
+				out[i] = data[((int) (pos + 0.5)) + indexOffset];
+				pos += delta;
+			}
+			break;
+		case CUBIC:
+			for (int i = offset; i < end; i++) {
+				int ip = (int) pos;
+				float t = (float) (pos - ip);
+				int x = ip + indexOffset;
+				out[i] = cubic(data[x - 1], data[x], data[x + 1],
+						data[x + 2], t);
+				pos += delta;
+			}
+			break;
+		case SINC_8: // fall through
+		case SINC_16: // fall through
+		case SINC_32:
+			int taps = getTaps(tier);
+			float[] table = getTable(tier, delta);
+			int first = indexOffset - (taps >> 1) + 1;
+			for (int i = offset; i < end; i++) {
+				int ip = (int) pos;
+				int c = ((int) ((pos - ip) * PHASES + 0.5)) * taps;
+				int x = ip + first;
+				float sum = 0.0f;
+				for (int k = 0; k < taps; k++) {
+					sum += table[c + k] * data[x + k];
+				}
+				out[i] = sum;
+				pos += delta;
+			}
+			break;
+		default:
+			for (int i = offset; i < end; i++) {
+				int ip = (int) pos;
+				float frac = (float) (pos - ip);
+				int x = ip + indexOffset;
+				float s0 = data[x];
+				out[i] = s0 + frac * (data[x + 1] - s0);
+				pos += delta;
+			}
+		}
+	}
+
+	/**
+	 * 4-point cubic Hermite (Catmull-Rom) interpolation in between x0 and
+	 * x1.
+	 */
+	private static final float cubic(float xm1, float x0, float x1,
+			float x2, float t) {
+		float c1 = 0.5f * (x1 - xm1);
+		float c2 = xm1 - 2.5f * x0 + 2.0f * x1 - 0.5f * x2;
+		float c3 = 0.5f * (x2 - xm1) + 1.5f * (x0 - x1);
+		return ((c3 * t + c2) * t + c1) * t + x0;
+	}
+
+	private static final float get16(byte[] data, int index) {
+		int b = index << 1;
+		return (short) ((data[b] & 0xFF) | (data[b + 1] << 8));
+	}
+
+	/**
+	 * Read a sample, clamping the index to the sample data.
+	 */
+	private static final float get16Clamped(byte[] data, int index) {
+		if (index < 0) {
+			index = 0;
+		} else if (index >= (data.length >> 1)) {
+			index = (data.length >> 1) - 1;
+		}
+		return get16(data, index);
+	}
+
+	private static void nearest16(byte[] data, double pos, double delta,
+			float[] out, int offset, int count) {
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			out[i] = get16Clamped(data, (int) (pos + 0.5)) * SCALE_16;
+			pos += delta;
+		}
+	}
+
+	private static void linear16(byte[] data, double pos, double delta,
+			float[] out, int offset, int count) {
+		int last = (data.length >> 1) - 1;
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			int ip = (int) pos;
+			float frac = (float) (pos - ip);
+			float s0 = get16(data, ip);
+			float s1 = (ip < last) ? get16(data, ip + 1) : s0;
+			out[i] = (s0 + frac * (s1 - s0)) * SCALE_16;
+			pos += delta;
+		}
+	}
+
+	private static void cubic16(byte[] data, double pos, double delta,
+			float[] out, int offset, int count) {
+		int frames = data.length >> 1;
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			int ip = (int) pos;
+			float t = (float) (pos - ip);
+			float xm1, x0, x1, x2;
+			if (ip >= 1 && ip + 2 < frames) {
+				xm1 = get16(data, ip - 1);
+				x0 = get16(data, ip);
+				x1 = get16(data, ip + 1);
+				x2 = get16(data, ip + 2);
+			} else {
+				xm1 = get16Clamped(data, ip - 1);
+				x0 = get16Clamped(data, ip);
+				x1 = get16Clamped(data, ip + 1);
+				x2 = get16Clamped(data, ip + 2);
+			}
+			out[i] = cubic(xm1, x0, x1, x2, t) * SCALE_16;
+			pos += delta;
+		}
+	}
+
+	private static void sinc16(float[] table, int taps, byte[] data,
+			double pos, double delta, float[] out, int offset, int count) {
+		int frames = data.length >> 1;
+		int half = taps >> 1;
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			int ip = (int) pos;
+			int phase = (int) ((pos - ip) * PHASES + 0.5);
+			int c = phase * taps;
+			int first = ip - half + 1;
+			float sum = 0.0f;
+			if (first >= 0 && first + taps <= frames) {
+				int b = first << 1;
+				for (int k = 0; k < taps; k++) {
+					sum += table[c + k]
+							* (short) ((data[b] & 0xFF) | (data[b + 1] << 8));
+					b += 2;
+				}
+			} else {
+				for (int k = 0; k < taps; k++) {
+					sum += table[c + k] * get16Clamped(data, first + k);
+				}
+			}
+			out[i] = sum * SCALE_16;
+			pos += delta;
+		}
+	}
+
+	/**
+	 * Get the polyphase table of a sinc tier for the given read position
+	 * increment.
+	 */
+	private static float[] getTable(int tier, double delta) {
+		int bw = 0;
+		if (delta > 1.0) {
+			// one table per half octave of pitching up. The 8 tap table
+			// has a wide transition band, so rounding down keeps it from
+			// attenuating the audible range too much. The longer tables
+			// round up to remove all aliasing.
+			double halfOctaves = 2.0 * Math.log(delta) / Math.log(2.0);
+			if (tier == SINC_8) {
+				bw = (int) halfOctaves;
+			} else {
+				bw = (int) Math.ceil(halfOctaves - 0.001);
+			}
+			if (bw >= BANDWIDTHS) {
+				bw = BANDWIDTHS - 1;
+			}
+		}
+		// the oscillators only use prepared tiers, see isPrepared()
+		return tables[tier][bw];
+	}
+
+	/**
+	 * @return true if the tier can be used for rendering: the tables of a
+	 *         sinc tier are calculated by prepare(), the other tiers do not
+	 *         need tables
+	 */
+	public static boolean isPrepared(int tier) {
+		return getTaps(tier) == 0 || tables[tier] != null;
+	}
+
+	/**
+	 * Calculate the polyphase tables of a sinc tier, if not done yet. This
+	 * must be called when a tier is selected, because calculating the
+	 * tables takes too long for a rendering thread.
+	 * 
+	 * @param tier the interpolation tier
+	 */
+	public static void prepare(int tier) {
+		if (getTaps(tier) > 0) {
+			createTables(tier);
+		}
+	}
+
+	/**
+	 * @return the tables of all bandwidths of a sinc tier
+	 */
+	private static synchronized float[][] createTables(int tier) {
+		int taps = getTaps(tier);
+		float[][] tierTables = tables[tier];
+		if (tierTables == null) {
+			tierTables = new float[BANDWIDTHS][];
+			for (int bw = 0; bw < BANDWIDTHS; bw++) {
+				tierTables[bw] = calcTable(taps, Math.pow(2.0, -bw / 2.0));
+			}
+			float[][][] newTables = tables.clone();
+			newTables[tier] = tierTables;
+			tables = newTables;
+		}
+		return tierTables;
+	}
+
+	/**
+	 * Calculate a Kaiser windowed sinc polyphase table. Phase p contains the
+	 * taps for a fractional position of p/PHASES. Every phase is normalized
+	 * to unity gain at DC.
+	 * 
+	 * @param taps the number of taps
+	 * @param bandwidth the cutoff relative to the Nyquist frequency
+	 * @return the table with (PHASES + 1) * taps coefficients
+	 */
+	private static float[] calcTable(int taps, double bandwidth) {
+		// a larger window for more taps gives a better stop band
+		double beta = 3.0 + taps / 4.0;
+		double i0Beta = besselI0(beta);
+		int half = taps / 2;
+		float[] table = new float[(PHASES + 1) * taps];
+		double[] h = new double[taps];
+		for (int p = 0; p <= PHASES; p++) {
+			double frac = ((double) p) / PHASES;
+			double sum = 0.0;
+			for (int k = 0; k < taps; k++) {
+				double x = (k - half + 1) - frac;
+				double w = x / half;
+				double v = 0.0;
+				if (w > -1.0 && w < 1.0) {
+					v = bandwidth * sinc(bandwidth * x)
+							* besselI0(beta * Math.sqrt(1.0 - w * w)) / i0Beta;
+				}
+				h[k] = v;
+				sum += v;
+			}
+			for (int k = 0; k < taps; k++) {
+				table[p * taps + k] = (float) (h[k] / sum);
+			}
+		}
+		return table;
+	}
+
+	private static double sinc(double x) {
+		if (x == 0.0) {
+			return 1.0;
+		}
+		return Math.sin(Math.PI * x) / (Math.PI * x);
+	}
+
+	/**
+	 * The zeroth order modified Bessel function of the first kind
+	 */
+	private static double besselI0(double x) {
+		double sum = 1.0;
+		double term = 1.0;
+		double q = x * x / 4.0;
+		for (int k = 1; k < 50; k++) {
+			term *= q / (k * k);
+			sum += term;
+			if (term < sum * 1.0E-12) {
+				break;
+			}
+		}
+		return sum;
+	}
+
+	// BENCHMARK
+
+	/**
+	 * Measure the cost per sample and the SNR of every tier. The SNR is
+	 * measured by resampling a 16-bit sine wave and comparing to the exact
+	 * sine wave. The alias rejection is measured by pitching up a sine wave
+	 * above the Nyquist frequency of the output: the ideal output is
+	 * silence.
+	 */
+	public static void main(String[] args) {
+		int frames = 1 << 16;
+		int count = 4096;
+		// native frequency relative to the sample rate, increment
+		double[][] snrTests = {
+				{ 0.01, 0.75 },
+				{ 0.1, 0.75 },
+				{ 0.1, 1.5 },
+				{ 0.2, 1.3 }
+		};
+		double[] aliasTest = { 0.35, 1.8 };
+		float[] out = new float[count];
+		System.out.println("          ns/sample");
+		System.out.println("tier      bytes      short   float   "
+				+ "SNR(f=.01,x.75) SNR(.1,x.75) SNR(.1,x1.5) SNR(.2,x1.3) "
+				+ "alias(.35,x1.8)");
+		for (int tier = 0; tier < TIER_COUNT; tier++) {
+			prepare(tier);
+			StringBuffer sb = new StringBuffer();
+			sb.append(pad(getName(tier), 10));
+			// timing
+			byte[] data = createSine(frames, 0.1);
+			long best = Long.MAX_VALUE;
+			for (int run = 0; run < 50; run++) {
+				long start = System.nanoTime();
+				double pos = 100.0;
+				for (int n = 0; n < 10; n++) {
+					interpolate16(tier, data, pos, 1.2345, out, 0, count);
+					pos += count * 1.2345;
+				}
+				long t = System.nanoTime() - start;
+				if (t > 0 && t < best) {
+					best = t;
+				}
+			}
+			sb.append(pad(format1(((double) best) / (10 * count)), 11));
+			// the same with decoded short and float data
+			short[] shorts = new short[frames];
+			float[] floats = new float[frames];
+			for (int i = 0; i < frames; i++) {
+				shorts[i] = (short) ((data[2 * i] & 0xFF) | (data[2 * i + 1] << 8));
+				floats[i] = shorts[i] * SCALE_16;
+			}
+			long bestShort = Long.MAX_VALUE;
+			long bestFloat = Long.MAX_VALUE;
+			for (int run = 0; run < 50; run++) {
+				long start = System.nanoTime();
+				double pos = 100.0;
+				for (int n = 0; n < 10; n++) {
+					interpolate(tier, shorts, 0, pos, 1.2345, out, 0, count);
+					pos += count * 1.2345;
+				}
+				long t = System.nanoTime() - start;
+				if (t > 0 && t < bestShort) {
+					bestShort = t;
+				}
+				start = System.nanoTime();
+				pos = 100.0;
+				for (int n = 0; n < 10; n++) {
+					interpolate(tier, floats, 0, pos, 1.2345, out, 0, count);
+					pos += count * 1.2345;
+				}
+				t = System.nanoTime() - start;
+				if (t > 0 && t < bestFloat) {
+					bestFloat = t;
+				}
+			}
+			sb.append(pad(format1(((double) bestShort) / (10 * count)), 8));
+			sb.append(pad(format1(((double) bestFloat) / (10 * count)), 8));
+			for (int t = 0; t < snrTests.length; t++) {
+				double freq = snrTests[t][0];
+				double delta = snrTests[t][1];
+				data = createSine(frames, freq);
+				double pos = 1000.25;
+				interpolate16(tier, data, pos, delta, out, 0, count);
+				double signal = 0.0;
+				double noise = 0.0;
+				for (int i = 0; i < count; i++) {
+					double exact = 0.5 * Math.sin(2.0 * Math.PI * freq
+							* (pos + i * delta));
+					signal += exact * exact;
+					noise += (out[i] - exact) * (out[i] - exact);
+				}
+				sb.append(pad(format1(10.0 * Math.log10(signal / noise))
+						+ "dB", 13));
+			}
+			data = createSine(frames, aliasTest[0]);
+			interpolate16(tier, data, 1000.25, aliasTest[1], out, 0, count);
+			double alias = 0.0;
+			for (int i = 0; i < count; i++) {
+				alias += out[i] * out[i];
+			}
+			// relative to the power of the sine wave
+			sb.append(format1(10.0 * Math.log10(alias / count / 0.125))
+					+ "dB");
+			System.out.println(sb.toString());
+		}
+	}
+
+	private static byte[] createSine(int frames, double freq) {
+		byte[] data = new byte[frames * 2];
+		for (int i = 0; i < frames; i++) {
+			int s = (int) Math.round(16384.0 * Math.sin(2.0 * Math.PI * freq
+					* i));
+			data[2 * i] = (byte) s;
+			data[2 * i + 1] = (byte) (s >> 8);
+		}
+		return data;
+	}
+
+	private static String format1(double d) {
+		return Double.toString(Math.round(d * 10.0) / 10.0);
+	}
+
+	private static String pad(String s, int len) {
+		StringBuffer sb = new StringBuffer(s);
+		while (sb.length() < len) {
+			sb.append(' ');
+		}
+		return sb.toString();
+	}
+}
@@ -45,9 +45,27 @@ public class MaintenanceThread implements Runnable {
 	private volatile boolean stopped;
 
 	/**
-	 * The thread instance
+	 * The object to wait on between services. This may not be the thread
+	 * instance: with an executor backend, there is no dedicated thread.
 	 */
-	private Thread thread;
+	private final Object lock = new Object();
+
+	/**
+	 * flag that is true while the thread is running
+	 */
+	private volatile boolean running = false;
+
+	/**
+	 * If true, start() was called while the previous loop did not exit yet.
+	 * The previous loop then starts the new one when it exits. Guarded by
+	 * lock.
+	 */
+	private boolean restartPending = false;
+
+	/**
+	 * The thread executing run(), or null
+	 */
+	private volatile Thread runThread = null;
 
 	/**
 	 * The instance of the master clock that will be used to synchronize other
@@ -89,10 +107,14 @@ public class MaintenanceThread implements Runnable {
 
 	public synchronized void start() {
 		stop();
-		thread = new Thread(this, "Synth Maintenance Thread");
-		thread.setDaemon(true);
-		thread.start();
-		stopped = false;
+		synchronized (lock) {
+			if (running) {
+				// stop() timed out: do not run two loops at once
+				restartPending = true;
+			} else {
+				startLoop();
+			}
+		}
 		if (DEBUG_MASTER_SWITCH) {
 			if (masterClock == null) {
 				if (adjustableClocks.size() > 0) {
@@ -103,21 +125,42 @@ public class MaintenanceThread implements Runnable {
 		}
 	}
 
+	/**
+	 * Start a new service loop. Must be called with the lock held.
+	 */
+	private void startLoop() {
+		stopped = false;
+		running = true;
+		ThreadFactory.createThread(this, "Synth Maintenance Thread",
+				ThreadFactory.NORMAL_PRIORITY, ThreadFactory.ROLE_BACKGROUND);
+	}
+
 	public boolean isStarted() {
-		return thread != null && thread.isAlive();
+		return running;
 	}
 
 	public synchronized void stop() {
-		if (thread != null) {
+		synchronized (lock) {
+			restartPending = false;
+		}
+		if (running) {
 			stopped = true;
-			synchronized (thread) {
-				thread.notifyAll();
-//				try {
-//					thread.join();
-//				} catch (InterruptedException ie) {
-//				}
+			synchronized (lock) {
+				lock.notifyAll();
+				// wait for the loop to exit, unless called from the loop
+				if (runThread != Thread.currentThread()) {
+					try {
+						long end = System.currentTimeMillis() + 2000;
+						long wait;
+						while (running
+								&& (wait = end - System.currentTimeMillis()) > 0) {
+							lock.wait(wait);
+						}
+					} catch (InterruptedException ie) {
+						// nothing
+					}
+				}
 			}
-			thread = null;
 		}
 	}
 
@@ -243,37 +286,50 @@ public class MaintenanceThread implements Runnable {
 	 * @see java.lang.Runnable#run()
 	 */
 	public void run() {
-		int waitService = serviceIntervalMillis;
-		int waitSynchro = synchronizeIntervalMillis;
-		while (!stopped) {
-			int waitTime = Math.min(waitService, waitSynchro);
-			synchronized (thread) {
-				try {
-					thread.wait(waitTime);
-				} catch (InterruptedException ie) {
+		runThread = Thread.currentThread();
+		try {
+			int waitService = serviceIntervalMillis;
+			int waitSynchro = synchronizeIntervalMillis;
+			while (!stopped) {
+				int waitTime = Math.min(waitService, waitSynchro);
+				synchronized (lock) {
+					try {
+						lock.wait(waitTime);
+					} catch (InterruptedException ie) {
+						break;
+					}
+				}
+				if (stopped) {
 					break;
 				}
-			}
-			if (stopped) {
-				break;
-			}
-			waitService -= waitTime;
-			waitSynchro -= waitTime;
-			if (waitService <= 0) {
-				try {
-					doServices();
-					waitService = serviceIntervalMillis;
-				} catch (Exception e) {
-					debug(e);
+				waitService -= waitTime;
+				waitSynchro -= waitTime;
+				if (waitService <= 0) {
+					try {
+						doServices();
+						waitService = serviceIntervalMillis;
+					} catch (Exception e) {
+						debug(e);
+					}
+				}
+				if (waitSynchro <= 0) {
+					waitSynchro = synchronizeIntervalMillis;
+					try {
+						synchronizeClocks(false);
+					} catch (Exception e) {
+						debug(e);
+					}
 				}
 			}
-			if (waitSynchro <= 0) {
-				waitSynchro = synchronizeIntervalMillis;
-				try {
-					synchronizeClocks(false);
-				} catch (Exception e) {
-					debug(e);
+		} finally {
+			synchronized (lock) {
+				runThread = null;
+				running = false;
+				if (restartPending) {
+					restartPending = false;
+					startLoop();
 				}
+				lock.notifyAll();
 			}
 		}
 		System.out.println("MaintenanceThread exit.");
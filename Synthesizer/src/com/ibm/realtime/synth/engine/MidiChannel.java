@@ -137,6 +137,19 @@ public class MidiChannel {
 	 */
 	private int program;
 
+	/**
+	 * The maximum number of voices playing on this channel, or 0 for no
+	 * limit. This is not changed by init() or reset().
+	 */
+	private int voiceLimit = 0;
+
+	/**
+	 * The priority of this channel for voice stealing. Voices of channels
+	 * with a lower priority are stolen first. This is not changed by init()
+	 * or reset().
+	 */
+	private int priority = 0;
+
 	/**
 	 * Create a MidiChannel instance with some default values.
 	 *
@@ -367,6 +380,42 @@ public class MidiChannel {
 		return channelNum;
 	}
 
+	/**
+	 * @return the maximum number of voices on this channel, or 0 for no limit
+	 */
+	public int getVoiceLimit() {
+		return voiceLimit;
+	}
+
+	/**
+	 * Set the maximum number of voices on this channel. If a new note would
+	 * exceed the limit, voices of this channel are stolen.
+	 * 
+	 * @param voiceLimit the maximum number of voices, or 0 for no limit
+	 */
+	public void setVoiceLimit(int voiceLimit) {
+		if (voiceLimit < 0) {
+			throw new IllegalArgumentException("Illegal voice limit: "
+					+ voiceLimit);
+		}
+		this.voiceLimit = voiceLimit;
+	}
+
+	/**
+	 * @return the priority of this channel for voice stealing
+	 */
+	public int getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Set the priority of this channel for voice stealing. Voices on channels
+	 * with a lower priority are stolen first. The default is 0.
+	 */
+	public void setPriority(int priority) {
+		this.priority = priority;
+	}
+
 	public String toString() {
 		return "MidiChannel " + (channelNum+1);
 	}
@@ -43,6 +43,11 @@ public class MidiEvent implements Comparable<MidiEvent> {
 	private boolean isLong;
 	private byte[] longData;
 	private MidiIn source;
+	/**
+	 * The System.nanoTime() when a live event was received by the
+	 * synthesizer, or 0.
+	 */
+	private long arrivalNanos;
 
 	/**
 	 * Creates a new short MIDI event object.
@@ -192,6 +197,21 @@ public class MidiEvent implements Comparable<MidiEvent> {
 		return source;
 	}
 
+	/**
+	 * @return the System.nanoTime() when this live event was received by the
+	 *         synthesizer, or 0 if not a live event
+	 */
+	public long getArrivalNanos() {
+		return arrivalNanos;
+	}
+
+	/**
+	 * Set the System.nanoTime() when this live event was received.
+	 */
+	void setArrivalNanos(long arrivalNanos) {
+		this.arrivalNanos = arrivalNanos;
+	}
+
 	/**
 	 * Compares the time of this event to the time of another event.
 	 * 
@@ -0,0 +1,576 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ibm.realtime.synth.engine;
+
+import org.tritonus.share.sampled.AudioBuffer;
+
+/**
+ * The fused render kernel of a voice: reads the native samples, interpolates
+ * them, runs the low pass filter, and adds the result with the volume ramps
+ * of the left and right channel directly to the output buffer (or a mix bus).
+ * The rendered samples are never stored in an intermediate buffer.
+ * <p>
+ * The oscillator calls one of the mix methods for every part of the waveform
+ * that can be read without looping, so the inner loops do not need to check
+ * for the loop end. There is a specialized loop for every combination of
+ * sample format (raw 16-bit, decoded short or float, or float already at
+ * the output sample rate) and filter (on or off).
+ * <p>
+ * The kernel keeps the volume ramp and the filter state between the calls,
+ * so that the parts of one block can be mixed one after another. The
+ * articulation loads and stores its filter state with setFilter() and
+ * getFilterLowPass()/getFilterBandPass().
+ * <p>
+ * The peak of the mixed samples is only needed to retire inaudible released
+ * notes, so it is only tracked if switched on with setPeakTracking(). Every
+ * loop has a variant without peak tracking, so that the loops of the other
+ * notes do not check it for every sample.
+ */
+public final class MixKernel {
+
+	/**
+	 * Scale factor for 16-bit samples
+	 */
+	private static final float SCALE_16 = 1.0f / 32768.0f;
+
+	// volume ramp
+	private float vol0;
+	private float volInc0;
+	private float vol1;
+	private float volInc1;
+
+	// state variable low pass filter
+	private boolean filter;
+	private float filterF;
+	private float filterQ;
+	private float filterLP;
+	private float filterBP;
+
+	/**
+	 * The peak of the mixed samples before applying the volume
+	 */
+	private float peak;
+
+	/**
+	 * If true, the peak is tracked
+	 */
+	private boolean trackPeak;
+
+	/**
+	 * Buffer for oscillators that cannot read their native format directly,
+	 * allocated on demand.
+	 */
+	private AudioBuffer scratch;
+
+	/**
+	 * Set the volume ramp for the next count samples.
+	 * 
+	 * @param start0 the start volume of the left channel
+	 * @param end0 the volume of the left channel after count samples
+	 * @param start1 the start volume of the right channel
+	 * @param end1 the volume of the right channel after count samples
+	 * @param count the length of the ramp in samples
+	 */
+	public void setRamp(float start0, float end0, float start1, float end1,
+			int count) {
+		vol0 = start0;
+		vol1 = start1;
+		if (count > 0) {
+			volInc0 = (end0 - start0) / count;
+			volInc1 = (end1 - start1) / count;
+		} else {
+			volInc0 = 0.0f;
+			volInc1 = 0.0f;
+		}
+	}
+
+	/**
+	 * Set the coefficients and the state of the low pass filter.
+	 */
+	public void setFilter(float f, float q, float lowPass, float bandPass) {
+		filter = true;
+		filterF = f;
+		filterQ = q;
+		filterLP = lowPass;
+		filterBP = bandPass;
+	}
+
+	/**
+	 * Do not filter the samples.
+	 */
+	public void setFilterOff() {
+		filter = false;
+	}
+
+	/**
+	 * @return the low pass state of the filter after mixing
+	 */
+	public float getFilterLowPass() {
+		return filterLP;
+	}
+
+	/**
+	 * @return the band pass state of the filter after mixing
+	 */
+	public float getFilterBandPass() {
+		return filterBP;
+	}
+
+	/**
+	 * Reset the peak value.
+	 */
+	public void resetPeak() {
+		peak = 0.0f;
+	}
+
+	/**
+	 * Switch the tracking of the peak on or off.
+	 */
+	public void setPeakTracking(boolean track) {
+		trackPeak = track;
+	}
+
+	/**
+	 * @return true if the peak is tracked
+	 */
+	public boolean isPeakTracking() {
+		return trackPeak;
+	}
+
+	/**
+	 * @return the absolute peak of the samples mixed since resetPeak(),
+	 *         before applying the volume, if the peak is tracked
+	 */
+	public float getPeak() {
+		return peak;
+	}
+
+	/**
+	 * @return a mono buffer with the given sample count, for oscillators that
+	 *         need to convert to float first
+	 */
+	public AudioBuffer getScratchBuffer(int count, float sampleRate) {
+		if (scratch == null) {
+			scratch = new AudioBuffer(1, count, sampleRate);
+		} else {
+			scratch.setSampleRate(sampleRate);
+			scratch.changeSampleCount(count, false);
+		}
+		return scratch;
+	}
+
+	/**
+	 * Mix 16-bit signed little endian mono samples with linear
+	 * interpolation.
+	 * 
+	 * @param data the native samples
+	 * @param pos the read position in samples
+	 * @param delta the increment of the read position per output sample
+	 * @param left the left output channel
+	 * @param right the right output channel
+	 * @param offset the first output sample
+	 * @param count the number of samples to mix
+	 */
+	public void mix16(byte[] data, double pos, double delta, float[] left,
+			float[] right, int offset, int count) {
+		if (filter) {
+			mix16Filtered(data, pos, delta, left, right, offset, count);
+		} else {
+			mix16Direct(data, pos, delta, left, right, offset, count);
+		}
+	}
+
+	private final void mix16Direct(byte[] data, double pos, double delta,
+			float[] left, float[] right, int offset, int count) {
+		float v0 = vol0;
+		float v1 = vol1;
+		float inc0 = volInc0;
+		float inc1 = volInc1;
+		float pk = peak;
+		int last = data.length - 2;
+		int end = offset + count;
+		if (trackPeak) {
+			for (int i = offset; i < end; i++) {
+				int ip = (int) pos;
+				float frac = (float) (pos - ip);
+				int b0 = ip << 1;
+				int b1 = b0 + 2;
+				if (b1 > last) {
+					b1 = b0;
+				}
+				float s0 = (short) ((data[b0] & 0xFF) | (data[b0 + 1] << 8));
+				float s1 = (short) ((data[b1] & 0xFF) | (data[b1 + 1] << 8));
+				float sample = (s0 + frac * (s1 - s0)) * SCALE_16;
+				pk = Math.max(pk, Math.abs(sample));
+				left[i] += v0 * sample;
+				right[i] += v1 * sample;
+				v0 += inc0;
+				v1 += inc1;
+				pos += delta;
+			}
+		} else {
+			for (int i = offset; i < end; i++) {
+				int ip = (int) pos;
+				float frac = (float) (pos - ip);
+				int b0 = ip << 1;
+				int b1 = b0 + 2;
+				if (b1 > last) {
+					b1 = b0;
+				}
+				float s0 = (short) ((data[b0] & 0xFF) | (data[b0 + 1] << 8));
+				float s1 = (short) ((data[b1] & 0xFF) | (data[b1 + 1] << 8));
+				float sample = (s0 + frac * (s1 - s0)) * SCALE_16;
+				left[i] += v0 * sample;
+				right[i] += v1 * sample;
+				v0 += inc0;
+				v1 += inc1;
+				pos += delta;
+			}
+		}
+		vol0 = v0;
+		vol1 = v1;
+		peak = pk;
+	}
+
+	private final void mix16Filtered(byte[] data, double pos, double delta,
+			float[] left, float[] right, int offset, int count) {
+		float v0 = vol0;
+		float v1 = vol1;
+		float inc0 = volInc0;
+		float inc1 = volInc1;
+		float pk = peak;
+		float f = filterF;
+		float q = filterQ;
+		float lp = filterLP;
+		float bp = filterBP;
+		int last = data.length - 2;
+		int end = offset + count;
+		if (trackPeak) {
+			for (int i = offset; i < end; i++) {
+				int ip = (int) pos;
+				float frac = (float) (pos - ip);
+				int b0 = ip << 1;
+				int b1 = b0 + 2;
+				if (b1 > last) {
+					b1 = b0;
+				}
+				float s0 = (short) ((data[b0] & 0xFF) | (data[b0 + 1] << 8));
+				float s1 = (short) ((data[b1] & 0xFF) | (data[b1 + 1] << 8));
+				float sample = (s0 + frac * (s1 - s0)) * SCALE_16;
+				bp += f * (sample - lp - q * bp);
+				lp += f * bp;
+				pk = Math.max(pk, Math.abs(lp));
+				left[i] += v0 * lp;
+				right[i] += v1 * lp;
+				v0 += inc0;
+				v1 += inc1;
+				pos += delta;
+			}
+		} else {
+			for (int i = offset; i < end; i++) {
+				int ip = (int) pos;
+				float frac = (float) (pos - ip);
+				int b0 = ip << 1;
+				int b1 = b0 + 2;
+				if (b1 > last) {
+					b1 = b0;
+				}
+				float s0 = (short) ((data[b0] & 0xFF) | (data[b0 + 1] << 8));
+				float s1 = (short) ((data[b1] & 0xFF) | (data[b1 + 1] << 8));
+				float sample = (s0 + frac * (s1 - s0)) * SCALE_16;
+				bp += f * (sample - lp - q * bp);
+				lp += f * bp;
+				left[i] += v0 * lp;
+				right[i] += v1 * lp;
+				v0 += inc0;
+				v1 += inc1;
+				pos += delta;
+			}
+		}
+		vol0 = v0;
+		vol1 = v1;
+		peak = pk;
+		filterLP = lp;
+		filterBP = bp;
+	}
+
+	/**
+	 * Mix decoded 16-bit samples with linear interpolation. The data must
+	 * have guard samples after the read positions.
+	 * 
+	 * @param data the decoded samples
+	 * @param indexOffset the value to add to a read position to get the
+	 *            index in data
+	 * @param pos the read position in samples
+	 * @param delta the increment of the read position per output sample
+	 * @param left the left output channel
+	 * @param right the right output channel
+	 * @param offset the first output sample
+	 * @param count the number of samples to mix
+	 */
+	public void mixLinear(short[] data, int indexOffset, double pos,
+			double delta, float[] left, float[] right, int offset, int count) {
+		float v0 = vol0;
+		float v1 = vol1;
+		float inc0 = volInc0;
+		float inc1 = volInc1;
+		float pk = peak;
+		int end = offset + count;
+		if (filter) {
+			float f = filterF;
+			float q = filterQ;
+			float lp = filterLP;
+			float bp = filterBP;
+			if (trackPeak) {
+				for (int i = offset; i < end; i++) {
+					int ip = (int) pos;
+					float frac = (float) (pos - ip);
+					int x = ip + indexOffset;
+					float s0 = data[x];
+					float sample = (s0 + frac * (data[x + 1] - s0)) * SCALE_16;
+					bp += f * (sample - lp - q * bp);
+					lp += f * bp;
+					pk = Math.max(pk, Math.abs(lp));
+					left[i] += v0 * lp;
+					right[i] += v1 * lp;
+					v0 += inc0;
+					v1 += inc1;
+					pos += delta;
+				}
+			} else {
+				for (int i = offset; i < end; i++) {
+					int ip = (int) pos;
+					float frac = (float) (pos - ip);
+					int x = ip + indexOffset;
+					float s0 = data[x];
+					float sample = (s0 + frac * (data[x + 1] - s0)) * SCALE_16;
+					bp += f * (sample - lp - q * bp);
+					lp += f * bp;
+					left[i] += v0 * lp;
+					right[i] += v1 * lp;
+					v0 += inc0;
+					v1 += inc1;
+					pos += delta;
+				}
+			}
+			filterLP = lp;
+			filterBP = bp;
+		} else {
+			if (trackPeak) {
+				for (int i = offset; i < end; i++) {
+					int ip = (int) pos;
+					float frac = (float) (pos - ip);
+					int x = ip + indexOffset;
+					float s0 = data[x];
+					float sample = (s0 + frac * (data[x + 1] - s0)) * SCALE_16;
+					pk = Math.max(pk, Math.abs(sample));
+					left[i] += v0 * sample;
+					right[i] += v1 * sample;
+					v0 += inc0;
+					v1 += inc1;
+					pos += delta;
+				}
+			} else {
+				for (int i = offset; i < end; i++) {
+					int ip = (int) pos;
+					float frac = (float) (pos - ip);
+					int x = ip + indexOffset;
+					float s0 = data[x];
+					float sample = (s0 + frac * (data[x + 1] - s0)) * SCALE_16;
+					left[i] += v0 * sample;
+					right[i] += v1 * sample;
+					v0 += inc0;
+					v1 += inc1;
+					pos += delta;
+				}
+			}
+		}
+		vol0 = v0;
+		vol1 = v1;
+		peak = pk;
+	}
+
+	/**
+	 * Mix decoded float samples with linear interpolation. The data must
+	 * have guard samples after the read positions.
+	 * 
+	 * @see #mixLinear(short[], int, double, double, float[], float[], int,
+	 *      int)
+	 */
+	public void mixLinear(float[] data, int indexOffset, double pos,
+			double delta, float[] left, float[] right, int offset, int count) {
+		float v0 = vol0;
+		float v1 = vol1;
+		float inc0 = volInc0;
+		float inc1 = volInc1;
+		float pk = peak;
+		int end = offset + count;
+		if (filter) {
+			float f = filterF;
+			float q = filterQ;
+			float lp = filterLP;
+			float bp = filterBP;
+			if (trackPeak) {
+				for (int i = offset; i < end; i++) {
+					int ip = (int) pos;
+					float frac = (float) (pos - ip);
+					int x = ip + indexOffset;
+					float s0 = data[x];
+					float sample = s0 + frac * (data[x + 1] - s0);
+					bp += f * (sample - lp - q * bp);
+					lp += f * bp;
+					pk = Math.max(pk, Math.abs(lp));
+					left[i] += v0 * lp;
+					right[i] += v1 * lp;
+					v0 += inc0;
+					v1 += inc1;
+					pos += delta;
+				}
+			} else {
+				for (int i = offset; i < end; i++) {
+					int ip = (int) pos;
+					float frac = (float) (pos - ip);
+					int x = ip + indexOffset;
+					float s0 = data[x];
+					float sample = s0 + frac * (data[x + 1] - s0);
+					bp += f * (sample - lp - q * bp);
+					lp += f * bp;
+					left[i] += v0 * lp;
+					right[i] += v1 * lp;
+					v0 += inc0;
+					v1 += inc1;
+					pos += delta;
+				}
+			}
+			filterLP = lp;
+			filterBP = bp;
+		} else {
+			if (trackPeak) {
+				for (int i = offset; i < end; i++) {
+					int ip = (int) pos;
+					float frac = (float) (pos - ip);
+					int x = ip + indexOffset;
+					float s0 = data[x];
+					float sample = s0 + frac * (data[x + 1] - s0);
+					pk = Math.max(pk, Math.abs(sample));
+					left[i] += v0 * sample;
+					right[i] += v1 * sample;
+					v0 += inc0;
+					v1 += inc1;
+					pos += delta;
+				}
+			} else {
+				for (int i = offset; i < end; i++) {
+					int ip = (int) pos;
+					float frac = (float) (pos - ip);
+					int x = ip + indexOffset;
+					float s0 = data[x];
+					float sample = s0 + frac * (data[x + 1] - s0);
+					left[i] += v0 * sample;
+					right[i] += v1 * sample;
+					v0 += inc0;
+					v1 += inc1;
+					pos += delta;
+				}
+			}
+		}
+		vol0 = v0;
+		vol1 = v1;
+		peak = pk;
+	}
+
+	/**
+	 * Mix float samples that are already converted to the output sample
+	 * rate.
+	 * 
+	 * @param samples the samples to mix
+	 * @param sampleOffset the index of the first sample in samples
+	 * @param left the left output channel
+	 * @param right the right output channel
+	 * @param offset the first output sample
+	 * @param count the number of samples to mix
+	 */
+	public void mixFloat(float[] samples, int sampleOffset, float[] left,
+			float[] right, int offset, int count) {
+		float v0 = vol0;
+		float v1 = vol1;
+		float inc0 = volInc0;
+		float inc1 = volInc1;
+		float pk = peak;
+		int end = offset + count;
+		int s = sampleOffset;
+		if (filter) {
+			float f = filterF;
+			float q = filterQ;
+			float lp = filterLP;
+			float bp = filterBP;
+			if (trackPeak) {
+				for (int i = offset; i < end; i++) {
+					bp += f * (samples[s++] - lp - q * bp);
+					lp += f * bp;
+					pk = Math.max(pk, Math.abs(lp));
+					left[i] += v0 * lp;
+					right[i] += v1 * lp;
+					v0 += inc0;
+					v1 += inc1;
+				}
+			} else {
+				for (int i = offset; i < end; i++) {
+					bp += f * (samples[s++] - lp - q * bp);
+					lp += f * bp;
+					left[i] += v0 * lp;
+					right[i] += v1 * lp;
+					v0 += inc0;
+					v1 += inc1;
+				}
+			}
+			filterLP = lp;
+			filterBP = bp;
+		} else {
+			if (trackPeak) {
+				for (int i = offset; i < end; i++) {
+					float sample = samples[s++];
+					pk = Math.max(pk, Math.abs(sample));
+					left[i] += v0 * sample;
+					right[i] += v1 * sample;
+					v0 += inc0;
+					v1 += inc1;
+				}
+			} else {
+				for (int i = offset; i < end; i++) {
+					float sample = samples[s++];
+					left[i] += v0 * sample;
+					right[i] += v1 * sample;
+					v0 += inc0;
+					v1 += inc1;
+				}
+			}
+		}
+		vol0 = v0;
+		vol1 = v1;
+		peak = pk;
+	}
+}
@@ -28,7 +28,10 @@ package com.ibm.realtime.synth.engine;
 import static org.jsresources.utils.audio.AudioUtils.*;
 import static com.ibm.realtime.synth.utils.Debug.*;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import com.ibm.realtime.synth.engine.Synthesizer.Params;
+import com.ibm.realtime.synth.utils.FastMath;
 
 import org.tritonus.share.sampled.AudioBuffer;
 
@@ -75,6 +78,20 @@ public class NoteInput implements AudioInput, Renderable {
 	 */
 	private final static int PITCH_CHANGE_INTERVAL = 10000000;
 
+	/**
+	 * The tolerance, in nanoseconds, when comparing the time of a block with
+	 * the time of the last rendered or mixed block: 125 microseconds (1
+	 * sample at 8000Hz) to account for rounding errors. Also used by the
+	 * AsynchronousRenderer to match its mix buses to the slice.
+	 */
+	static final long BLOCK_TIME_TOLERANCE_NANOS = 125000L;
+
+	/**
+	 * The number of busy loops of a thread waiting for the ownership of this
+	 * note before it starts to yield.
+	 */
+	private final static int OWNER_SPIN_COUNT = 100;
+
 	/**
 	 * The note that this NoteInput object plays.
 	 */
@@ -108,9 +125,20 @@ public class NoteInput implements AudioInput, Renderable {
 	private Patch patch;
 
 	/**
-	 * The temporary rendering buffer
+	 * The temporary rendering buffer, only used if rendering and mixing are
+	 * done in separate passes. Allocated on demand.
+	 */
+	private AudioBuffer tempBuffer;
+
+	/**
+	 * The kernel for rendering and mixing in one pass
 	 */
-	private AudioBuffer tempBuffer = new AudioBuffer(1, 0, 44100.0f);
+	private final MixKernel kernel = new MixKernel();
+
+	/**
+	 * The sample rate of the rendered blocks
+	 */
+	private float sampleRate = 44100.0f;
 
 	/**
 	 * The oscillator for rendering
@@ -128,17 +156,45 @@ public class NoteInput implements AudioInput, Renderable {
 	private volatile long lastRenderTime = -1;
 
 	/**
-	 * flag that is set in the rendering method to notify when this line is done
-	 * with playback
+	 * The time of the last block that was mixed by a rendering thread into a
+	 * mix bus. A block that is mixed already is skipped by read() if the mix
+	 * bus is reduced. Written after mixBus and mixGeneration.
+	 */
+	private volatile long lastMixTime = -1;
+
+	/**
+	 * The mix bus that the block at lastMixTime was mixed into, and the
+	 * generation of that bus at the time.
+	 */
+	private AsynchronousRenderer.MixBus mixBus = null;
+	private int mixGeneration = 0;
+
+	/**
+	 * flag that is set when the last block is mixed to notify when this line
+	 * is done with playback
 	 */
 	private boolean eofReached = false;
 
 	/**
 	 * flag to signal the renderer to fade out the note in the next rendering
-	 * block. After that block is rendered, eofReached will be set to true.
+	 * block. After that block is mixed, eofReached will be set to true.
 	 */
 	private boolean doFadeOut = false;
 
+	/**
+	 * flag that is set by the renderer if the rendered block is the last one,
+	 * because it fades out or the note is inaudible. It is turned into
+	 * eofReached once the block is mixed, so that read() does not skip a
+	 * block rendered by a rendering thread.
+	 */
+	private boolean lastBlockRendered = false;
+
+	/**
+	 * How long this released note has been below the inaudible threshold, in
+	 * nanoseconds.
+	 */
+	private long inaudibleNanos = 0;
+
 	/**
 	 * when to start playing this note, in nanoseconds
 	 */
@@ -158,6 +214,31 @@ public class NoteInput implements AudioInput, Renderable {
 	 */
 	private float[] finalVolFactor = new float[MAX_OUTPUT_CHANNELS];
 
+	/**
+	 * With a fixed control rate: the volume at the end of each control block,
+	 * for the left and the right channel. The mixer ramps linearly from
+	 * block to block. Only the first rampCount values are used.
+	 */
+	private float[] rampVol0 = new float[8];
+	private float[] rampVol1 = new float[8];
+
+	/**
+	 * With a fixed control rate: the start time of the current control
+	 * block, preallocated for renderControlBlocks().
+	 */
+	private final AudioTime controlTime = new AudioTime(0);
+
+	/**
+	 * The number of control blocks in the rendered block, or 0 if the volume
+	 * is ramped from initialVolFactor to finalVolFactor in one go.
+	 */
+	private int rampCount = 0;
+
+	/**
+	 * The size of the control blocks in samples.
+	 */
+	private int rampBlockSize = 0;
+
 	/**
 	 * The linked instance (see class description for more details).
 	 */
@@ -197,6 +278,45 @@ public class NoteInput implements AudioInput, Renderable {
 	 */
 	private int renderSampleCount = 0;
 
+	/**
+	 * The interpolation tier of this voice, or -1 to use the synthesizer's
+	 * global tier.
+	 */
+	private int interpolation = -1;
+
+	/**
+	 * The identification of the note on event that started this NoteInput.
+	 * All linked instances share the same id, and a later note on has a
+	 * higher id.
+	 */
+	private long noteId = 0;
+
+	/**
+	 * True while a thread renders or mixes this note. The mixer and the
+	 * rendering threads take over the note with a compare-and-set and hand
+	 * it back by resetting the flag, so that no monitor is needed on the
+	 * render path. A rendering thread that cannot take over the note skips
+	 * it, the mixer waits for the owner to finish the block.
+	 */
+	private final AtomicBoolean owned = new AtomicBoolean(false);
+
+	/**
+	 * The pool that owns this instance, or null if not pooled.
+	 */
+	private VoicePool pool;
+
+	/**
+	 * The epoch of the AsynchronousRenderer when the mixer retired this
+	 * instance, see AudioMixer.
+	 */
+	private long retireEpoch = 0;
+
+	/**
+	 * Flag if this instance is currently in the pool's list of free voices.
+	 * Only accessed by the pool.
+	 */
+	private final AtomicBoolean pooled = new AtomicBoolean(false);
+
 	/**
 	 * Create a NoteInput stream.
 	 * 
@@ -211,13 +331,78 @@ public class NoteInput implements AudioInput, Renderable {
 	public NoteInput(Synthesizer.Params params, AudioTime time,
 			MidiChannel channel, Patch patch, Oscillator osc, Articulation art,
 			int note, int vel) {
+		reset(params, time, channel, patch, osc, art, note, vel);
+	}
+
+	/**
+	 * Create an unused NoteInput instance for the given voice pool. The patch,
+	 * oscillator, and articulation instances are kept with this instance for
+	 * reuse. Before playback, the instance must be set up with reset().
+	 */
+	public NoteInput(VoicePool pool, Patch patch, Oscillator osc,
+			Articulation art) {
+		this.pool = pool;
+		this.patch = patch;
+		this.osc = osc;
+		this.art = art;
+		// an unused voice is done
+		this.eofReached = true;
+	}
+
+	/**
+	 * (Re-)initialize this NoteInput for playing a new note. All runtime
+	 * state of a previous note is discarded. The patch, oscillator, and
+	 * articulation must already be set up for the new note.
+	 * 
+	 * @param params
+	 * @param channel
+	 * @param patch
+	 * @param osc
+	 * @param art
+	 * @param note -- the effective note playing (not necessarily the note that
+	 *            triggered this instrument)
+	 */
+	public void reset(Synthesizer.Params params, AudioTime time,
+			MidiChannel channel, Patch patch, Oscillator osc, Articulation art,
+			int note, int vel) {
 		this.synthParams = params;
 		this.channel = channel;
 		this.patch = patch;
 		this.osc = osc;
 		this.art = art;
 		this.note = note;
+		this.triggerNote = 0;
+		this.noteId = 0;
 		this.insertionTime = time.getNanoTime();
+		this.outSampleOffset = 0;
+		this.lastRenderTime = -1;
+		this.lastMixTime = -1;
+		this.mixBus = null;
+		this.eofReached = false;
+		this.doFadeOut = false;
+		this.lastBlockRendered = false;
+		this.inaudibleNanos = 0;
+		this.linkedNoteInput = null;
+		this.inhibitedRelease = false;
+		this.sostenuto = false;
+		this.lastRelativePitch = -100000.0f;
+		this.lastSampleRateFactor = 0.0f;
+		this.nextPitchChange = 0;
+		this.renderSampleCount = 0;
+		this.rampCount = 0;
+		this.interpolation = -1;
+		int blocks = params.getControlBlockCount();
+		if (blocks > rampVol0.length) {
+			rampVol0 = new float[blocks];
+			rampVol1 = new float[blocks];
+		}
+		for (int i = 0; i < MAX_OUTPUT_CHANNELS; i++) {
+			initialVolFactor[i] = 0.0f;
+			finalVolFactor[i] = 0.0f;
+		}
+		if (tempBuffer != null) {
+			tempBuffer.changeSampleCount(0, false);
+		}
 		art.setup(note, vel);
 		// setup initial volume. Use the "finalVolFactor" values
 		// because that will become the initialVolFactor after rendering
@@ -290,6 +475,69 @@ public class NoteInput implements AudioInput, Renderable {
 		this.triggerNote = triggerNote;
 	}
 
+	/**
+	 * @return the id of the note on event that started this instance. Higher
+	 *         values are more recent notes.
+	 */
+	public long getNoteId() {
+		return noteId;
+	}
+
+	/**
+	 * Estimate the relative cost of rendering one block of this note. This is
+	 * used by the AsynchronousRenderer to split the voices into chunks of
+	 * approximately the same rendering time. The base cost of a voice is 2
+	 * (oscillator and mixing), resampled voices and the articulation's
+	 * processing add to it. Finished voices have a cost of 0.
+	 * 
+	 * @return the estimated cost of rendering this note
+	 */
+	public int getRenderCost() {
+		if (eofReached) {
+			return 0;
+		}
+		int cost = 2;
+		if (osc.isResampling()) {
+			cost += 1 + Interpolator.getCost(osc.getInterpolation()) / 8;
+		}
+		return cost + art.getProcessingCost();
+	}
+
+	/**
+	 * @return the interpolation tier of this voice, or -1 if it uses the
+	 *         synthesizer's global tier
+	 */
+	public int getInterpolation() {
+		return interpolation;
+	}
+
+	/**
+	 * Set the interpolation tier of this voice. Under overload, the
+	 * synthesizer may still use a cheaper tier. The tables of the tier are
+	 * calculated now, so this should not be called on a rendering thread.
+	 * 
+	 * @param interpolation one of the Interpolator constants, or -1 to use
+	 *            the global tier
+	 */
+	public void setInterpolation(int interpolation) {
+		if (interpolation < -1 || interpolation >= Interpolator.TIER_COUNT) {
+			throw new IllegalArgumentException("illegal interpolation tier: "
+					+ interpolation);
+		}
+		if (interpolation >= 0) {
+			Interpolator.prepare(interpolation);
+		}
+		this.interpolation = interpolation;
+	}
+
+	/**
+	 * package private method to set the note id, used by the synthesizer
+	 * to identify the linked instances of one note, and the age of a note.
+	 */
+	void setNoteId(long noteId) {
+		this.noteId = noteId;
+	}
+
 	/**
 	 * @return Returns the linkedNoteInput.
 	 */
@@ -307,20 +555,162 @@ public class NoteInput implements AudioInput, Renderable {
 	/**
 	 * Read a rendered buffer (type 1).
 	 */
-	public synchronized final void read(AudioTime time, AudioBuffer buffer,
+	public final void read(AudioTime time, AudioBuffer buffer,
 			int offset, int count) {
+		acquire();
+		try {
+			readImpl(time, buffer, offset, count);
+		} finally {
+			release();
+		}
+	}
 
+	private final void readImpl(AudioTime time, AudioBuffer buffer,
+			int offset, int count) {
 		if (done()) return;
 
 		// store current sample rate and sample count for the render() method
-		tempBuffer.setSampleRate(buffer.getSampleRate());
+		this.sampleRate = buffer.getSampleRate();
 		this.renderSampleCount = count;
 
+		if (alreadyMixed(time)) {
+			blockMixed();
+			return;
+		}
+
 		// on-demand rendering
-		if (lastRenderTime + 125000 < time.getNanoTime()) {
-			renderImpl(time, count);
+		if (lastRenderTime + BLOCK_TIME_TOLERANCE_NANOS < time.getNanoTime()) {
+			if (canMixDirectly(buffer)) {
+				renderImpl(time, count, buffer, offset);
+				blockMixed();
+				return;
+			}
+			renderImpl(time, count, null, 0);
+		}
+		mix(buffer, offset, count);
+		blockMixed();
+	}
+
+	/**
+	 * Like read(), but do not wait if a rendering thread renders this note.
+	 * Used by the mixer, so that the audio thread never waits for a
+	 * rendering thread.
+	 * 
+	 * @return false if the note was not read because another thread owns it
+	 */
+	final boolean tryRead(AudioTime time, AudioBuffer buffer, int offset,
+			int count) {
+		if (!tryAcquire()) {
+			return false;
+		}
+		try {
+			readImpl(time, buffer, offset, count);
+		} finally {
+			release();
+		}
+		return true;
+	}
+
+	/**
+	 * Render and mix a part of a slice. Other than read(), the block is always
+	 * rendered, even if the previous block started less than a sample period
+	 * before. The render sample count for the rendering threads is not
+	 * changed. Like tryRead(), this does not wait for a rendering thread.
+	 * 
+	 * @return false if the note was not read because another thread owns it
+	 */
+	final boolean tryReadRange(AudioTime time, AudioBuffer buffer,
+			int offset, int count) {
+		if (!tryAcquire()) {
+			return false;
+		}
+		try {
+			if (done()) return true;
+			this.sampleRate = buffer.getSampleRate();
+			if (canMixDirectly(buffer)) {
+				renderImpl(time, count, buffer, offset);
+			} else {
+				renderImpl(time, count, null, 0);
+				mix(buffer, offset, count);
+			}
+			blockMixed();
+		} finally {
+			release();
+		}
+		return true;
+	}
+
+	/**
+	 * Take over this note, waiting for the current owner to finish its
+	 * block. Used by read() for callers that must mix every note, and by
+	 * recycle(). The mixer uses tryRead() instead.
+	 */
+	private final void acquire() {
+		int loop = 0;
+		while (!owned.compareAndSet(false, true)) {
+			if (loop < OWNER_SPIN_COUNT) {
+				loop++;
+			} else {
+				Thread.yield();
+			}
+		}
+	}
+
+	/**
+	 * Take over this note if no other thread renders or mixes it. Used by the
+	 * rendering threads.
+	 * 
+	 * @return true if the calling thread owns this note now
+	 */
+	private final boolean tryAcquire() {
+		return owned.compareAndSet(false, true);
+	}
+
+	/**
+	 * Hand back this note after acquire() or a successful tryAcquire().
+	 */
+	private final void release() {
+		owned.set(false);
+	}
+
+	/**
+	 * Set eofReached if the block that was just mixed is the last one.
+	 */
+	private final void blockMixed() {
+		if (lastBlockRendered) {
+			eofReached = true;
 		}
+	}
+
+	/**
+	 * Check if the next block can be rendered and mixed to the buffer in one
+	 * pass with the kernel: this is possible for stereo output if the
+	 * articulation supports the kernel. The kernel is loaded by the render
+	 * step.
+	 */
+	private final boolean canMixDirectly(AudioBuffer buffer) {
+		return buffer.getChannelCount() == 2
+				&& synthParams.isUsingFusedRendering()
+				&& art.supportsKernel();
+	}
+
+	/**
+	 * @return the temporary buffer for rendering in separate passes
+	 */
+	private final AudioBuffer getTempBuffer() {
+		if (tempBuffer == null) {
+			tempBuffer = new AudioBuffer(1, 0, sampleRate);
+		} else {
+			tempBuffer.setSampleRate(sampleRate);
+		}
+		return tempBuffer;
+	}
 
+	/**
+	 * Add the rendered block to the buffer, applying the volume ramp.
+	 */
+	private final void mix(AudioBuffer buffer, int offset, int count) {
+		if (tempBuffer == null) return;
 		// use the temp buffer's sample count, in case it rendered fewer samples
 		int thisCount = tempBuffer.getSampleCount();
 		offset += outSampleOffset;
@@ -350,30 +740,72 @@ public class NoteInput implements AudioInput, Renderable {
 			if (thisCount > samples1.length - offset) {
 				thisCount = samples1.length - offset;
 			}
-			for (int i = 0; i < thisCount; i++) {
-				float sample = tempSamples[i];
-				samples1[index] += (volFactor1 * sample);
-				samples2[index++] += (volFactor2 * sample);
-				volFactor1 += volFactorInc1;
-				volFactor2 += volFactorInc2;
+			if (rampCount == 0) {
+				for (int i = 0; i < thisCount; i++) {
+					float sample = tempSamples[i];
+					samples1[index] += (volFactor1 * sample);
+					samples2[index++] += (volFactor2 * sample);
+					volFactor1 += volFactorInc1;
+					volFactor2 += volFactorInc2;
+				}
+			} else {
+				// ramp from control block to control block
+				int pos = 0;
+				int block = 0;
+				while (pos < thisCount) {
+					int n = Math.min(rampBlockSize, thisCount - pos);
+					int b = Math.min(block, rampCount - 1);
+					volFactorInc1 = (rampVol0[b] - volFactor1) / n;
+					volFactorInc2 = (rampVol1[b] - volFactor2) / n;
+					int end = pos + n;
+					for (int i = pos; i < end; i++) {
+						float sample = tempSamples[i];
+						samples1[index] += (volFactor1 * sample);
+						samples2[index++] += (volFactor2 * sample);
+						volFactor1 += volFactorInc1;
+						volFactor2 += volFactorInc2;
+					}
+					volFactor1 = rampVol0[b];
+					volFactor2 = rampVol1[b];
+					pos = end;
+					block++;
+				}
 			}
 		} else {
 			// ... or the generic version
+			if (thisCount > buffer.getSampleCount() - offset) {
+				thisCount = buffer.getSampleCount() - offset;
+			}
 			for (int c = 0; c < buffer.getChannelCount(); c++) {
 				float[] samples = buffer.getChannel(c);
 				float volFactor = initialVolFactor[c];
-				float volFactorInc =
-						(finalVolFactor[c] - volFactor) / thisCount;
-				for (int i = 0; i < thisCount; i++) {
-					samples[i + offset] += (volFactor * tempSamples[i]);
-					volFactor += volFactorInc;
+				if (rampCount == 0 || c > 1) {
+					float volFactorInc =
+							(finalVolFactor[c] - volFactor) / thisCount;
+					for (int i = 0; i < thisCount; i++) {
+						samples[i + offset] += (volFactor * tempSamples[i]);
+						volFactor += volFactorInc;
+					}
+				} else {
+					float[] ramp = (c == 0) ? rampVol0 : rampVol1;
+					int pos = 0;
+					int block = 0;
+					while (pos < thisCount) {
+						int n = Math.min(rampBlockSize, thisCount - pos);
+						int b = Math.min(block, rampCount - 1);
+						float volFactorInc = (ramp[b] - volFactor) / n;
+						int end = pos + n;
+						for (int i = pos; i < end; i++) {
+							samples[i + offset] += (volFactor * tempSamples[i]);
+							volFactor += volFactorInc;
+						}
+						volFactor = ramp[b];
+						pos = end;
+						block++;
+					}
 				}
 			}
 		}
-		// stop note generation if this last slice was a fade out
-		if (doFadeOut) {
-			eofReached = true;
-		}
 	}
 
 	/**
@@ -393,9 +825,7 @@ public class NoteInput implements AudioInput, Renderable {
 	 *         rendered
 	 */
 	public final boolean alreadyRendered(AudioTime currTime) {
-		// add 125 microseconds (1 sample at 8000Hz) to account for rounding
-		// errors
-		return lastRenderTime + 125000 >= currTime.getNanoTime();
+		return lastRenderTime + BLOCK_TIME_TOLERANCE_NANOS >= currTime.getNanoTime();
 	}
 
 	/**
@@ -404,34 +834,144 @@ public class NoteInput implements AudioInput, Renderable {
 	 * from a separate rendering thread for asynchronous rendering.
 	 * <p>
 	 * This method will not (and must not) set the eofReached flag. Instead, it
-	 * can set the doFadeOut flag to cause the read() method to set eofReached.
+	 * can set the lastBlockRendered flag to cause the read() method to set
+	 * eofReached after mixing the block.
+	 * <p>
+	 * If the mixer or another thread is rendering this note, this method
+	 * returns false without waiting.
 	 * 
 	 * @param time the start time of the next buffer to be filled
 	 */
-	public synchronized final boolean render(AudioTime time) {
+	public final boolean render(AudioTime time) {
+		if (!tryAcquire()) {
+			return false;
+		}
+		try {
+			return renderOwned(time);
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * The implementation of render() for the owner of this note.
+	 */
+	private final boolean renderOwned(AudioTime time) {
 		// do not render if already done or if no render sample count is set
 		if (done() || renderSampleCount <= 0) {
-			tempBuffer.changeSampleCount(0, false);
+			if (tempBuffer != null) {
+				tempBuffer.changeSampleCount(0, false);
+			}
 			return false;
 		}
 
 		// account for race conditions (when a render thread blocks because
 		// the read() method is calling this render instance)
-		if (lastRenderTime + 125000 >= time.getNanoTime()) {
+		if (lastRenderTime + BLOCK_TIME_TOLERANCE_NANOS >= time.getNanoTime()) {
 			// buffer is already rendered
 			return false;
 		}
-		return renderImpl(time, renderSampleCount);
+		return renderImpl(time, renderSampleCount, null, 0);
+	}
+
+	/**
+	 * Render a block of audio data for the given time like render(), and add
+	 * it to the mix bus. The mix bus has the format of the buffers passed to
+	 * read(). Once the bus is reduced by the AsynchronousRenderer, read()
+	 * skips this block.
+	 * <p>
+	 * If possible, the kernel renders the block directly into the bus.
+	 * Otherwise, it is rendered to the temporary buffer and added to the bus.
+	 * If the renderer has dropped the bus because its thread did not finish
+	 * in time, the block is not rendered, and read() renders it.
+	 * 
+	 * @param time the start time of the next buffer to be filled
+	 * @param bus the mix bus to add the rendered block to
+	 * @return true if the block was rendered and mixed
+	 */
+	final boolean renderAndMix(AudioTime time, AsynchronousRenderer.MixBus bus) {
+		if (!tryAcquire()) {
+			// the mixer renders it
+			return false;
+		}
+		try {
+			if (bus.isDropped(bus.getGeneration())) {
+				// the mixer renders it
+				return false;
+			}
+			AudioBuffer out = bus.getBuffer();
+			// the mix bus has the format of the mixer's buffer
+			this.sampleRate = out.getSampleRate();
+			this.renderSampleCount = out.getSampleCount();
+			if (!canMixDirectly(out)) {
+				if (!renderOwned(time)) {
+					// not rendered, read() will do it
+					return false;
+				}
+				mix(out, 0, renderSampleCount);
+			} else if (done() || renderSampleCount <= 0
+					|| lastRenderTime + BLOCK_TIME_TOLERANCE_NANOS >= time.getNanoTime()) {
+				// nothing to render, or already rendered by read()
+				return false;
+			} else {
+				renderImpl(time, renderSampleCount, out, 0);
+			}
+			mixBus = bus;
+			mixGeneration = bus.getGeneration();
+			lastMixTime = time.getNanoTime();
+			return true;
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * This method must not be synchronized!
+	 * 
+	 * @param currTime the time to be tested
+	 * @return true if the block starting at time currTime was already mixed
+	 *         into a mix bus by renderAndMix(), and the mix bus is reduced
+	 *         or dropped
+	 */
+	public final boolean alreadyMixed(AudioTime currTime) {
+		if (lastMixTime + BLOCK_TIME_TOLERANCE_NANOS < currTime.getNanoTime()) {
+			return false;
+		}
+		AsynchronousRenderer.MixBus bus = mixBus;
+		return bus != null
+				&& (bus.isReduced(mixGeneration) || bus.isDropped(mixGeneration));
+	}
+
+	/**
+	 * Called by the mixer instead of read() if the block starting at
+	 * currTime is contained in a mix bus: set eofReached if it was the last
+	 * block. A block in a dropped bus is not heard: it is not kept in the
+	 * temporary buffer, so it cannot be mixed again.
+	 * 
+	 * @return true if the block was mixed into a reduced or dropped mix bus
+	 */
+	final boolean skipIfMixed(AudioTime currTime) {
+		if (!alreadyMixed(currTime)) {
+			return false;
+		}
+		blockMixed();
+		return true;
 	}
 
 	/**
 	 * Private implementation of render() which does not check if this buffer is
-	 * already rendered.
+	 * already rendered. If out is null, the block is rendered to the
+	 * temporary buffer for a later call to mix(). Otherwise, it is rendered
+	 * and mixed to out in one pass.
 	 * 
-	 * @param time
+	 * @param time the start time of the block
+	 * @param count the number of samples to render
+	 * @param out the stereo buffer to mix to, or null
+	 * @param outOffset the offset in out of the block
 	 * @return
 	 */
-	private final boolean renderImpl(AudioTime time, int count) {
+	private final boolean renderImpl(AudioTime time, int count,
+			AudioBuffer out, int outOffset) {
 		long nanoTime = time.getNanoTime();
 		// set the lastRenderTime as fast as possible:
 		// method read() will block anyway until termination of this method,
@@ -446,7 +986,7 @@ public class NoteInput implements AudioInput, Renderable {
 			// calculate the sample position
 			long nanoOffset = (insertionTime - nanoTime);
 			outSampleOffset =
-					(int) nanos2samples(nanoOffset, tempBuffer.getSampleRate());
+					(int) nanos2samples(nanoOffset, sampleRate);
 			if (outSampleOffset < count) {
 				// OK, we can (and should) start inserting the instrument in
 				// *this* buffer
@@ -487,9 +1027,40 @@ public class NoteInput implements AudioInput, Renderable {
 			}
 		}
 
-		// initialize the temporary render buffer
-		tempBuffer.changeSampleCount(count, false);
-		if (count > 0) {
+		if (out != null) {
+			// a block rendered in separate passes is now obsolete
+			if (tempBuffer != null) {
+				tempBuffer.changeSampleCount(0, false);
+			}
+			int room = out.getSampleCount() - outOffset - outSampleOffset;
+			if (count > room) {
+				count = room;
+			}
+			kernel.resetPeak();
+			// the peak is only needed to retire released notes
+			kernel.setPeakTracking(art.isReleased()
+					&& synthParams.getInaudibleLevel() > 0.0);
+		} else {
+			// initialize the temporary render buffer
+			getTempBuffer().changeSampleCount(count, false);
+		}
+		rampCount = 0;
+		int tier = synthParams.getEffectiveInterpolation(interpolation);
+		if (tier != osc.getInterpolation()) {
+			osc.setInterpolation(tier);
+		}
+		int controlBlockSize = synthParams.getControlBlockSize();
+		if (count > 0 && controlBlockSize > 0) {
+			renderControlBlocks(time, count, controlBlockSize, out, outOffset);
+			if (doFadeOut) {
+				// fade out in one ramp
+				rampCount = 0;
+				finalVolFactor[0] = 0.0f;
+				finalVolFactor[1] = 0.0f;
+			} else {
+				checkAudibility(count, out != null);
+			}
+		} else if (count > 0) {
 			// calculate articulation data
 			// calculate volume level
 			// calculate sample rate factor
@@ -506,7 +1077,7 @@ public class NoteInput implements AudioInput, Renderable {
 				if (relativePitch != lastRelativePitch) {
 					lastRelativePitch = relativePitch;
 					sampleRateFactor = (float)
-							getSamplerateFactorFromRelativeNote(relativePitch);
+							FastMath.semitones2factor(relativePitch);
 					lastSampleRateFactor = sampleRateFactor;
 				} else {
 					sampleRateFactor = lastSampleRateFactor;
@@ -516,21 +1087,6 @@ public class NoteInput implements AudioInput, Renderable {
 				sampleRateFactor = lastSampleRateFactor;
 			}
 
-			// convert from native applying these things at once:
-			// - convert from native format
-			// - convert sample-rate (if necessary)
-			// - apply any further processing like filters
-			int newCount =
-					osc.convert(tempBuffer, 0, count, (float)(sampleRateFactor
-							* synthParams.getMasterTuningFactor()));
-			if (newCount < count) {
-				tempBuffer.changeSampleCount(count, true);
-			}
-
-			// let the articulation block further process this buffer (filters,
-			// ...).
-			art.process(tempBuffer);
-
 			// take care of volume changes.
 			// for now: just stereo
 			float masterVolume = (float)synthParams.getMasterVolumeInternal();
@@ -543,10 +1099,192 @@ public class NoteInput implements AudioInput, Renderable {
 				finalVolFactor[0] = 0.0f;
 				finalVolFactor[1] = 0.0f;
 			}
+
+			float effectiveFactor = (float)(sampleRateFactor
+					* synthParams.getMasterTuningFactor());
+			if (out != null) {
+				// render and mix in one pass
+				mixDirectly(out, outOffset, 0, count, effectiveFactor,
+						initialVolFactor[0], finalVolFactor[0],
+						initialVolFactor[1], finalVolFactor[1]);
+			} else {
+				// convert from native applying these things at once:
+				// - convert from native format
+				// - convert sample-rate (if necessary)
+				// - apply any further processing like filters
+				int newCount = osc.convert(tempBuffer, 0, count, effectiveFactor);
+				if (newCount < count) {
+					tempBuffer.changeSampleCount(count, true);
+				}
+
+				// let the articulation block further process this buffer
+				// (filters, ...).
+				art.process(tempBuffer);
+			}
+			if (!doFadeOut) {
+				checkAudibility(count, out != null);
+			}
+		}
+		if (doFadeOut) {
+			// this block fades out
+			lastBlockRendered = true;
 		}
 		return true;
 	}
 
+	/**
+	 * Render count samples and mix them to out with the kernel, applying
+	 * the articulation's filter and the given volume ramps.
+	 * 
+	 * @param out the stereo buffer to mix to
+	 * @param outOffset the offset of the block in out
+	 * @param pos the position in the block
+	 * @param count the number of samples to render
+	 * @param sampleRateFactor the sample rate factor for the oscillator
+	 * @return the number of rendered samples, less than count at the end of
+	 *         the sample
+	 */
+	private final int mixDirectly(AudioBuffer out, int outOffset, int pos,
+			int count, float sampleRateFactor, float startVol0, float endVol0,
+			float startVol1, float endVol1) {
+		kernel.setRamp(startVol0, endVol0, startVol1, endVol1, count);
+		art.loadKernel(kernel, sampleRate);
+		int newCount = osc.mix(out.getChannel(0), out.getChannel(1),
+				outOffset + outSampleOffset + pos, count, sampleRate,
+				sampleRateFactor, kernel);
+		art.storeKernel(kernel);
+		return newCount;
+	}
+
+	/**
+	 * Render count samples to tempBuffer with a fixed control rate: for every
+	 * control block, calculate the articulation, pitch and filter, and the
+	 * volume at the end of the block. If out is not null, mix every control
+	 * block directly to out. If the block does not fit into the control
+	 * blocks reserved in reset(), e.g. because the control block size was
+	 * decreased while this note plays, larger control blocks are used.
+	 */
+	private final void renderControlBlocks(AudioTime time, int count,
+			int blockSize, AudioBuffer out, int outOffset) {
+		int capacity = rampVol0.length;
+		if (count > capacity * blockSize) {
+			blockSize = (count + capacity - 1) / capacity;
+		}
+		float masterVolume = (float) synthParams.getMasterVolumeInternal();
+		double masterTuning = synthParams.getMasterTuningFactor();
+		initialVolFactor[0] = finalVolFactor[0];
+		initialVolFactor[1] = finalVolFactor[1];
+		int pos = 0;
+		int block = 0;
+		while (pos < count) {
+			int n = Math.min(blockSize, count - pos);
+			AudioTime blockTime = time;
+			if (pos > 0) {
+				controlTime.setNanoTime(time.getNanoTime()
+						+ samples2nanos(pos, sampleRate));
+				blockTime = controlTime;
+			}
+			art.calculateControl(blockTime);
+			float relativePitch = (float)
+					art.getEffectivePitchOffset(note - patch.getRootKey());
+			if (relativePitch != lastRelativePitch) {
+				lastRelativePitch = relativePitch;
+				lastSampleRateFactor = (float)
+						FastMath.semitones2factor(relativePitch);
+			}
+			rampVol0[block] = (float) (masterVolume * art.getEffectiveVolumeFactor(0));
+			rampVol1[block] = (float) (masterVolume * art.getEffectiveVolumeFactor(1));
+			int newCount;
+			if (out != null) {
+				float start0 = (block == 0) ? initialVolFactor[0] : rampVol0[block - 1];
+				float start1 = (block == 0) ? initialVolFactor[1] : rampVol1[block - 1];
+				float end0 = rampVol0[block];
+				float end1 = rampVol1[block];
+				if (doFadeOut) {
+					// one linear ramp from the initial volume to 0
+					start0 = initialVolFactor[0] * (count - pos) / count;
+					start1 = initialVolFactor[1] * (count - pos) / count;
+					end0 = initialVolFactor[0] * (count - pos - n) / count;
+					end1 = initialVolFactor[1] * (count - pos - n) / count;
+				}
+				newCount = mixDirectly(out, outOffset, pos, n,
+						(float) (lastSampleRateFactor * masterTuning), start0,
+						end0, start1, end1);
+			} else {
+				newCount = osc.convert(tempBuffer, pos, n,
+						(float) (lastSampleRateFactor * masterTuning));
+				art.process(tempBuffer, pos, n);
+			}
+			block++;
+			pos += n;
+			if (newCount < n) {
+				// end of the sample
+				break;
+			}
+		}
+		// the pitch of the per-slice rendering is recalculated when switching
+		nextPitchChange = 0;
+		rampCount = block;
+		rampBlockSize = blockSize;
+		finalVolFactor[0] = rampVol0[block - 1];
+		finalVolFactor[1] = rampVol1[block - 1];
+	}
+
+	/**
+	 * Retire a released note once its output stays below the inaudible
+	 * threshold for the hold time. The output level is the peak of the
+	 * rendered block multiplied with the larger gain of the volume ramp.
+	 * The peak is only calculated for released notes.
+	 * 
+	 * @param count the number of samples rendered
+	 * @param mixed true if the block was mixed directly by the kernel, which
+	 *            tracks the peak of released notes
+	 */
+	private final void checkAudibility(int count, boolean mixed) {
+		double threshold = synthParams.getInaudibleLevel();
+		if (threshold <= 0.0 || !art.isReleased()) {
+			inaudibleNanos = 0;
+			return;
+		}
+		float gain = Math.max(Math.max(initialVolFactor[0], finalVolFactor[0]),
+				Math.max(initialVolFactor[1], finalVolFactor[1]));
+		if (gain > threshold) {
+			// need the peak of the block
+			float peak = 0.0f;
+			if (mixed) {
+				if (!kernel.isPeakTracking()) {
+					// released during this block: no peak yet
+					inaudibleNanos = 0;
+					return;
+				}
+				peak = kernel.getPeak();
+			} else {
+				float[] tempSamples = tempBuffer.getChannel(0);
+				int thisCount = tempBuffer.getSampleCount();
+				for (int i = 0; i < thisCount; i++) {
+					float sample = tempSamples[i];
+					if (sample > peak) {
+						peak = sample;
+					} else if (-sample > peak) {
+						peak = -sample;
+					}
+				}
+			}
+			if (gain * peak > threshold) {
+				inaudibleNanos = 0;
+				return;
+			}
+		}
+		inaudibleNanos += samples2nanos(count, sampleRate);
+		if (inaudibleNanos >= synthParams.getInaudibleHoldNanos()) {
+			if (DEBUG_NOTEINPUT) {
+				debug("NoteInput: retire inaudible note " + toString());
+			}
+			// the mixer will remove this note after this block is mixed
+			lastBlockRendered = true;
+		}
+	}
+
 	/**
 	 * Enters the release segment of this note. Time is the current time, equal
 	 * to the time when the release segment is being entered.
@@ -617,6 +1355,76 @@ public class NoteInput implements AudioInput, Renderable {
 		return eofReached;
 	}
 
+	/**
+	 * Return this instance to its voice pool. This is called by the mixer when
+	 * it removes this stream. The instance is marked as done, its oscillator
+	 * frees cached data, and it must not be used anymore by the caller. If
+	 * this instance is not pooled, this method only marks it as done.
+	 */
+	public void recycle() {
+		acquire();
+		try {
+			eofReached = true;
+			osc.free();
+		} finally {
+			release();
+		}
+		if (pool != null) {
+			pool.recycle(this);
+		}
+	}
+
+	/**
+	 * package private methods for the mixer to stamp this instance with the
+	 * renderer's epoch when retiring it.
+	 */
+	void setRetireEpoch(long epoch) {
+		this.retireEpoch = epoch;
+	}
+
+	long getRetireEpoch() {
+		return retireEpoch;
+	}
+
+	/**
+	 * @return the voice pool owning this instance, or null
+	 */
+	public VoicePool getVoicePool() {
+		return pool;
+	}
+
+	/**
+	 * package private method for the VoicePool to flag this instance as
+	 * free.
+	 */
+	void setPooled(boolean pooled) {
+		this.pooled.set(pooled);
+	}
+
+	/**
+	 * package private method for the VoicePool to flag this instance as
+	 * free, unless it is flagged already.
+	 * 
+	 * @return false if this instance was flagged as free already
+	 */
+	boolean markPooled() {
+		return pooled.compareAndSet(false, true);
+	}
+
+	/**
+	 * @return true if this instance is in the free list of its pool.
+	 */
+	boolean isPooled() {
+		return pooled.get();
+	}
+
+	/**
+	 * @return true if a thread renders or mixes this instance right now
+	 */
+	boolean isOwned() {
+		return owned.get();
+	}
+
 	public String toString() {
 		return "NoteInput: Ch." + getMidiChannel().getChannelNum() + " note " + getNote();
 	}
@@ -152,6 +152,11 @@ public abstract class Oscillator {
 	 */
 	protected float loopEnd;
 
+	/**
+	 * The interpolation tier, one of the Interpolator constants
+	 */
+	protected int interpolation = Interpolator.LINEAR;
+
 	/**
 	 * Protected default constructor so that descending classes can instantiate
 	 * an instance without using the public simple constructor below.
@@ -160,6 +165,26 @@ public abstract class Oscillator {
 		// nothing
 	}
 
+	/**
+	 * Reset the playback state to the state of a newly created instance, so
+	 * that this instance can be reused for a new note. The native audio
+	 * format and data must be set again after calling this method.
+	 */
+	protected void reset() {
+		nativePos = 0.0;
+		nativePosDelta = 0.0;
+		nativeSamples = null;
+		nativeSamplesStartPos = 0;
+		nativeSamplesEndPos = 0;
+		outSampleRate = 0.0f;
+		sampleRateFactor = 0.0f;
+		effectiveSampleRateFactor = 0.0f;
+		loopMode = LOOPMODE_NONE;
+		loopStart = 0.0f;
+		loopEnd = 0.0f;
+		interpolation = Interpolator.LINEAR;
+	}
+
 	protected void setNativeAudioFormat(AudioFormat format) {
 		this.nativeSampleRate = format.getSampleRate();
 		this.nativeFormatCode = ConversionTool.getFormatType(format);
@@ -199,10 +224,43 @@ public abstract class Oscillator {
 	 */
 	public int convert(AudioBuffer buffer, int offset, int count,
 					   float sampleRateFactor) {
+		return convertImpl(buffer, null, null, offset, count,
+				buffer.getSampleRate(), sampleRateFactor, null);
+	}
+
+	/**
+	 * Renders count samples and adds them to the left and right channel with
+	 * the given kernel, without writing them to an intermediate buffer.
+	 * Otherwise the same as convert().
+	 * 
+	 * @param left the left output channel
+	 * @param right the right output channel
+	 * @param offset the first sample to mix to left and right
+	 * @param count the number of samples to mix
+	 * @param sampleRate the sample rate of the output
+	 * @param sampleRateFactor the factor to be applied in addition to the
+	 *            conversion from nativeSampleRate to sampleRate.
+	 * @param kernel the kernel with volume ramp and filter
+	 * @return the number of samples mixed
+	 */
+	public int mix(float[] left, float[] right, int offset, int count,
+			float sampleRate, float sampleRateFactor, MixKernel kernel) {
+		return convertImpl(null, left, right, offset, count, sampleRate,
+				sampleRateFactor, kernel);
+	}
+
+	/**
+	 * The implementation of convert() and mix(): split the requested
+	 * samples into parts that can be read without looping, and convert or
+	 * mix each part.
+	 */
+	private final int convertImpl(AudioBuffer buffer, float[] left,
+			float[] right, int offset, int count, float sampleRate,
+			float sampleRateFactor, MixKernel kernel) {
 		// first check if the output sample rate has changed. If so, init
-		if (buffer.getSampleRate() != outSampleRate
+		if (sampleRate != outSampleRate
 				|| sampleRateFactor != this.sampleRateFactor) {
-			initSampleRate(buffer.getSampleRate(), sampleRateFactor);
+			initSampleRate(sampleRate, sampleRateFactor);
 		}
 		if (sampleRateFactor == 0.0 || count == 0) {
 			return 0;
@@ -238,7 +296,12 @@ public abstract class Oscillator {
 						return 0;
 					}
 				} else {
-					// looping back
+					// looping back: render the positions before the loop end,
+					// so that the next position is not before the loop start,
+					// where the sinc tiers read before the sample data
+					thisCount =
+							(int) Math.ceil((((double) endPos) - nativePos)
+									/ nativePosDelta);
 					nextBufferNativePos =
 							nativePos + (thisCount * nativePosDelta)
 									- (loopEnd - loopStart);
@@ -270,10 +333,14 @@ public abstract class Oscillator {
 			}
 
 			// do the actual conversion
-			convertOneBlock(buffer, offset, thisCount);
+			if (kernel == null) {
+				convertOneBlock(buffer, offset, thisCount);
+			} else {
+				mixOneBlock(left, right, offset, thisCount, kernel);
+			}
 			converted += thisCount;
 			offset += thisCount;
-			if (DEBUG_OSC) {
+			if (DEBUG_OSC && kernel == null) {
 				float sample1 =
 						(float) ((int) (buffer.getChannel(0)[0] * 1000.0)) / 1000.0f;
 				float sample2 =
@@ -302,6 +369,26 @@ public abstract class Oscillator {
 	protected abstract void convertOneBlock(AudioBuffer buffer, int offset,
 			int count);
 
+	/**
+	 * Mix <code>count</code> output samples with the kernel. Like
+	 * convertOneBlock(), no checks regarding <code>count</code> are
+	 * necessary. This default implementation converts the samples to the
+	 * kernel's scratch buffer first. Descendants should override it to mix
+	 * their native format directly.
+	 * 
+	 * @param left the left output channel
+	 * @param right the right output channel
+	 * @param offset at which sample position to mix the samples
+	 * @param count how many samples to mix
+	 * @param kernel the kernel to use for mixing
+	 */
+	protected void mixOneBlock(float[] left, float[] right, int offset,
+			int count, MixKernel kernel) {
+		AudioBuffer scratch = kernel.getScratchBuffer(count, outSampleRate);
+		convertOneBlock(scratch, 0, count);
+		kernel.mixFloat(scratch.getChannel(0), 0, left, right, offset, count);
+	}
+
 	private void initSampleRate(float newSampleRate, float newSampleRateFactor) {
 		if (isAlmost(newSampleRate, 0.0) || isAlmost(newSampleRateFactor, 0.0)) {
 			sampleRateFactor = 0.0f;
@@ -318,6 +405,36 @@ public abstract class Oscillator {
 		}
 	}
 
+	/**
+	 * @return true if the native sample rate and the rendered sample rate
+	 *         differ, i.e. if this oscillator needs to interpolate
+	 */
+	public boolean isResampling() {
+		return effectiveSampleRateFactor != 1.0f
+				&& effectiveSampleRateFactor != 0.0f;
+	}
+
+	/**
+	 * @return the interpolation tier, one of the Interpolator constants
+	 */
+	public int getInterpolation() {
+		return interpolation;
+	}
+
+	/**
+	 * Set the interpolation tier for resampling. Oscillators that do not
+	 * support a tier use linear interpolation, and so does a sinc tier that
+	 * is not prepared with Interpolator.prepare().
+	 * 
+	 * @param interpolation one of the Interpolator constants
+	 */
+	public void setInterpolation(int interpolation) {
+		if (!Interpolator.isPrepared(interpolation)) {
+			interpolation = Interpolator.LINEAR;
+		}
+		this.interpolation = interpolation;
+	}
+
 	public void release(AudioTime time) {
 		if (loopMode == LOOPMODE_UNTIL_RELEASE) {
 			loopMode = LOOPMODE_NONE;
@@ -328,4 +445,13 @@ public abstract class Oscillator {
 		return (nativePos >= nativeSamplesEndPos);
 	}
 
+	/**
+	 * Called when the voice using this oscillator is done, to return
+	 * resources like cached sample data. The default implementation does
+	 * nothing.
+	 */
+	public void free() {
+		// nothing
+	}
+
 }
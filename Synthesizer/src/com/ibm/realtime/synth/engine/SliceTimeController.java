@@ -0,0 +1,265 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ibm.realtime.synth.engine;
+
+import static com.ibm.realtime.synth.utils.Debug.*;
+
+/**
+ * A controller for the AudioPullThread that adapts the size of each slice to
+ * the current situation. The slice size is always a multiple of the pull
+ * thread's slice time (the base slice), and a slice never crosses the end of
+ * the sink's buffer.
+ * <p>
+ * Per-slice overhead (slice listeners, event polling, calculation of the
+ * articulation of every voice) is paid once per slice, so large slices are
+ * more efficient. On the other hand, events are dispatched at slice
+ * boundaries, so live input needs small slices for a low and constant
+ * latency. The controller chooses:
+ * <ul>
+ * <li>If live (i.e. unscheduled) events arrived recently, the smallest
+ * slice, unless the measured DSP load is high: then the slice size is
+ * doubled until the load is acceptable. Many voices make it grow earlier.</li>
+ * <li>Otherwise (sequenced or idle passages), the largest slice up to
+ * maxSliceTime.</li>
+ * <li>In any case, the slice ends at the next scheduled event, so that the
+ * event is dispatched at the start of the following slice.</li>
+ * </ul>
+ */
+public class SliceTimeController {
+
+	public static boolean DEBUG_SLICE_CONTROLLER = false;
+
+	/**
+	 * The information about the synthesizer's state that the controller
+	 * bases its decision on.
+	 */
+	public interface LoadSource {
+		/**
+		 * @return the number of currently playing voices
+		 */
+		public int getActiveVoiceCount();
+
+		/**
+		 * @return the time of the next scheduled event in nanoseconds, in the
+		 *         time base of the AudioPullThread, or Long.MAX_VALUE if no
+		 *         event is scheduled
+		 */
+		public long getNextEventNanos();
+
+		/**
+		 * @return the System.nanoTime() when the last live event arrived, or 0
+		 *         if none arrived yet
+		 */
+		public long getLastLiveEventNanos();
+	}
+
+	/**
+	 * How long small slices are kept after the last live event.
+	 */
+	private static final long LIVE_HOLD_NANOS = 500000000L;
+
+	/**
+	 * Above this DSP load, slices grow in live mode.
+	 */
+	private static final double HIGH_LOAD = 0.7;
+
+	/**
+	 * Below this DSP load, slices shrink in live mode.
+	 */
+	private static final double LOW_LOAD = 0.3;
+
+	/**
+	 * With more voices than this, slices already grow in live mode if the DSP
+	 * load is above LOW_LOAD.
+	 */
+	private static final int VOICE_THRESHOLD = 32;
+
+	/**
+	 * The weight of a new measurement in the smoothed DSP load.
+	 */
+	private static final double LOAD_SMOOTHING = 0.1;
+
+	/**
+	 * The default maximum slice time in seconds.
+	 */
+	private static final double DEFAULT_MAX_SLICE_TIME = 0.01;
+
+	private volatile LoadSource loadSource;
+
+	private volatile double maxSliceTime = DEFAULT_MAX_SLICE_TIME;
+
+	/**
+	 * The smoothed DSP load, i.e. render time divided by slice duration.
+	 */
+	private volatile double load = 0.0;
+
+	/**
+	 * The current slice multiple in live mode.
+	 */
+	private int liveMultiple = 1;
+
+	/**
+	 * The last returned slice multiple.
+	 */
+	private volatile int lastMultiple = 1;
+
+	/**
+	 * Create a slice time controller without a load source: slices only adapt
+	 * to the measured DSP load.
+	 */
+	public SliceTimeController() {
+		// nothing
+	}
+
+	/**
+	 * Create a slice time controller with the given load source, usually the
+	 * Synthesizer.
+	 */
+	public SliceTimeController(LoadSource loadSource) {
+		this.loadSource = loadSource;
+	}
+
+	/**
+	 * @return the loadSource
+	 */
+	public LoadSource getLoadSource() {
+		return loadSource;
+	}
+
+	/**
+	 * @param loadSource the loadSource to set
+	 */
+	public void setLoadSource(LoadSource loadSource) {
+		this.loadSource = loadSource;
+	}
+
+	/**
+	 * @return the maximum slice time in seconds
+	 */
+	public double getMaxSliceTime() {
+		return maxSliceTime;
+	}
+
+	/**
+	 * Set the maximum slice time. The slices are also limited by the sink's
+	 * buffer size.
+	 * 
+	 * @param seconds the maximum slice time in seconds
+	 */
+	public void setMaxSliceTime(double seconds) {
+		this.maxSliceTime = seconds;
+	}
+
+	/**
+	 * @return the smoothed DSP load: 1.0 means that rendering takes as long
+	 *         as playing the slice
+	 */
+	public double getLoad() {
+		return load;
+	}
+
+	/**
+	 * @return the number of base slices of the last slice
+	 */
+	public int getLastMultiple() {
+		return lastMultiple;
+	}
+
+	/**
+	 * Called by the pull thread before each slice to get its size.
+	 * 
+	 * @param startNanos the start time of the slice
+	 * @param baseSliceNanos the duration of the base slice
+	 * @param maxMultiple the maximum number of base slices that fit into the
+	 *            remainder of the sink's buffer
+	 * @return the number of base slices, at least 1
+	 */
+	public int nextSliceMultiple(long startNanos, long baseSliceNanos,
+			int maxMultiple) {
+		if (baseSliceNanos <= 0) {
+			return 1;
+		}
+		int limit = (int) (((long) (maxSliceTime * 1000000000.0)) / baseSliceNanos);
+		if (limit > maxMultiple) {
+			limit = maxMultiple;
+		}
+		if (limit < 1) {
+			limit = 1;
+		}
+		LoadSource source = loadSource;
+		long lastLive = (source == null) ? 0 : source.getLastLiveEventNanos();
+		int multiple;
+		if (source == null
+				|| (lastLive != 0 && System.nanoTime() - lastLive < LIVE_HOLD_NANOS)) {
+			double currLoad = load;
+			if (currLoad > HIGH_LOAD
+					|| (currLoad > LOW_LOAD && source != null && source.getActiveVoiceCount() > VOICE_THRESHOLD)) {
+				liveMultiple <<= 1;
+			} else if (currLoad < LOW_LOAD) {
+				liveMultiple >>= 1;
+			}
+			if (liveMultiple < 1) {
+				liveMultiple = 1;
+			}
+			if (liveMultiple > limit) {
+				liveMultiple = limit;
+			}
+			multiple = liveMultiple;
+		} else {
+			multiple = limit;
+		}
+		// end the slice at the next scheduled event
+		if (source != null && multiple > 1) {
+			long next = source.getNextEventNanos();
+			if (next != Long.MAX_VALUE) {
+				long eventMultiple = (next - startNanos) / baseSliceNanos;
+				if (eventMultiple < multiple) {
+					multiple = (eventMultiple < 1) ? 1 : (int) eventMultiple;
+				}
+			}
+		}
+		if (DEBUG_SLICE_CONTROLLER && multiple != lastMultiple) {
+			debug("SliceTimeController: slice multiple " + lastMultiple
+					+ " -> " + multiple + ", load="
+					+ ((int) (load * 100.0)) + "%");
+		}
+		lastMultiple = multiple;
+		return multiple;
+	}
+
+	/**
+	 * Called by the pull thread after each slice with the measured time.
+	 * 
+	 * @param renderNanos the time it took to render the slice
+	 * @param sliceNanos the duration of the slice
+	 */
+	public void sliceRendered(long renderNanos, long sliceNanos) {
+		if (sliceNanos > 0) {
+			double sliceLoad = ((double) renderNanos) / sliceNanos;
+			load += (sliceLoad - load) * LOAD_SMOOTHING;
+		}
+	}
+}
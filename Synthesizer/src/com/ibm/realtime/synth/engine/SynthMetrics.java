@@ -0,0 +1,394 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ibm.realtime.synth.engine;
+
+import static com.ibm.realtime.synth.utils.Debug.*;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Run time metrics of the synthesizer: render time per slice, DSP load,
+ * deadline misses, xruns, voice counts, event queue depth, event latency, and
+ * utilization of the render threads.
+ * <p>
+ * The record methods are called from the audio threads. They do not lock and
+ * do not allocate. Each value has one writer at a time, so the values are
+ * kept in volatile fields. The query methods may be called from any thread;
+ * a query may see values of different slices. resetStatistics() is
+ * not atomic with respect to concurrent recording.
+ * <p>
+ * If the VM has JMX, the metrics can be exported as a standard MBean with
+ * registerMBean(). JMX is accessed by reflection, so that this class also
+ * loads on platforms without JMX.
+ */
+public class SynthMetrics implements SynthMetricsMBean {
+
+	public static boolean DEBUG_METRICS = false;
+
+	/**
+	 * The number of buckets of the render time histogram. Bucket 0 counts
+	 * render times below 1 microsecond, bucket i (i > 0) counts render times
+	 * from 2^(i-1) to 2^i microseconds (exclusive), the last bucket counts
+	 * all longer render times.
+	 */
+	public static final int HISTOGRAM_BUCKETS = 20;
+
+	/**
+	 * The weight of a new slice in the smoothed DSP load.
+	 */
+	private static final double LOAD_SMOOTHING = 0.05;
+
+	private final Synthesizer synth;
+
+	private final AtomicLongArray renderTimeHistogram = new AtomicLongArray(
+			HISTOGRAM_BUCKETS);
+
+	private volatile long sliceCount = 0;
+	private volatile long deadlineMissCount = 0;
+	private volatile long xrunCount = 0;
+	private volatile long lastRenderNanos = 0;
+	private volatile long maxRenderNanos = 0;
+	private volatile long totalRenderNanos = 0;
+
+	/**
+	 * The smoothed DSP load: 1.0 means that rendering takes as long as the
+	 * slice's duration.
+	 */
+	private volatile double dspLoad = 0.0;
+	private volatile double peakDspLoad = 0.0;
+
+	private volatile int activeVoiceCount = 0;
+	private volatile int peakVoiceCount = 0;
+	private volatile int eventQueueDepth = 0;
+	private volatile int peakEventQueueDepth = 0;
+
+	private volatile long eventCount = 0;
+	private volatile long totalEventLatencyNanos = 0;
+	private volatile long maxEventLatencyNanos = 0;
+
+	/**
+	 * The object name of the registered MBean, or null.
+	 */
+	private Object mbeanName = null;
+
+	/**
+	 * Create a metrics instance for the given synthesizer.
+	 */
+	public SynthMetrics(Synthesizer synth) {
+		this.synth = synth;
+	}
+
+	// record methods, called from the audio threads
+
+	/**
+	 * Record the time it took to render a slice.
+	 * 
+	 * @param renderNanos the time for event dispatching, rendering and mixing
+	 * @param sliceNanos the duration of the slice
+	 */
+	public void sliceRendered(long renderNanos, long sliceNanos) {
+		sliceCount++;
+		lastRenderNanos = renderNanos;
+		totalRenderNanos += renderNanos;
+		if (renderNanos > maxRenderNanos) {
+			maxRenderNanos = renderNanos;
+		}
+		if (renderNanos > sliceNanos) {
+			deadlineMissCount++;
+		}
+		renderTimeHistogram.incrementAndGet(getHistogramBucket(renderNanos));
+		if (sliceNanos > 0) {
+			double load = ((double) renderNanos) / sliceNanos;
+			if (load > peakDspLoad) {
+				peakDspLoad = load;
+			}
+			dspLoad += (load - dspLoad) * LOAD_SMOOTHING;
+		}
+	}
+
+	/**
+	 * Record a resynchronization of the audio sink, usually caused by a buffer
+	 * underrun or overrun.
+	 */
+	public void xrun() {
+		xrunCount++;
+	}
+
+	/**
+	 * Record the number of voices at the start of a slice.
+	 */
+	public void voicesSampled(int count) {
+		activeVoiceCount = count;
+		if (count > peakVoiceCount) {
+			peakVoiceCount = count;
+		}
+	}
+
+	/**
+	 * Record the number of scheduled events at the start of a slice.
+	 */
+	public void eventQueueSampled(int depth) {
+		eventQueueDepth = depth;
+		if (depth > peakEventQueueDepth) {
+			peakEventQueueDepth = depth;
+		}
+	}
+
+	/**
+	 * Record the time from reception to dispatching of an event.
+	 */
+	public void eventDispatched(long latencyNanos) {
+		eventCount++;
+		totalEventLatencyNanos += latencyNanos;
+		if (latencyNanos > maxEventLatencyNanos) {
+			maxEventLatencyNanos = latencyNanos;
+		}
+	}
+
+	private static int getHistogramBucket(long nanos) {
+		long micros = nanos / 1000L;
+		int bucket = 64 - Long.numberOfLeadingZeros(micros);
+		return (bucket < HISTOGRAM_BUCKETS) ? bucket : HISTOGRAM_BUCKETS - 1;
+	}
+
+	// queries
+
+	public long getSliceCount() {
+		return sliceCount;
+	}
+
+	public long getDeadlineMissCount() {
+		return deadlineMissCount;
+	}
+
+	public long getXrunCount() {
+		return xrunCount;
+	}
+
+	public double getDspLoadPercent() {
+		return dspLoad * 100.0;
+	}
+
+	public double getPeakDspLoadPercent() {
+		return peakDspLoad * 100.0;
+	}
+
+	public long getLastRenderMicros() {
+		return lastRenderNanos / 1000L;
+	}
+
+	public long getMaxRenderMicros() {
+		return maxRenderNanos / 1000L;
+	}
+
+	public long getAverageRenderMicros() {
+		long count = sliceCount;
+		return (count == 0) ? 0 : totalRenderNanos / count / 1000L;
+	}
+
+	/**
+	 * @return a copy of the render time histogram
+	 * @see #HISTOGRAM_BUCKETS
+	 */
+	public long[] getRenderTimeHistogram() {
+		long[] result = new long[HISTOGRAM_BUCKETS];
+		for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+			result[i] = renderTimeHistogram.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the exclusive upper bound of the histogram bucket in
+	 *         microseconds, or Long.MAX_VALUE for the last bucket
+	 */
+	public static long getHistogramBucketLimitMicros(int bucket) {
+		if (bucket >= HISTOGRAM_BUCKETS - 1) {
+			return Long.MAX_VALUE;
+		}
+		return 1L << bucket;
+	}
+
+	public int getActiveVoiceCount() {
+		return activeVoiceCount;
+	}
+
+	public int getPeakVoiceCount() {
+		return peakVoiceCount;
+	}
+
+	/**
+	 * @return the number of voices stolen because of the polyphony limits
+	 */
+	public long getStolenVoiceCount() {
+		return synth.getStolenVoiceCount() + synth.getStolenChannelVoiceCount();
+	}
+
+	public int getEventQueueDepth() {
+		return eventQueueDepth;
+	}
+
+	public int getPeakEventQueueDepth() {
+		return peakEventQueueDepth;
+	}
+
+	public long getEventCount() {
+		return eventCount;
+	}
+
+	public long getAverageEventLatencyMicros() {
+		long count = eventCount;
+		return (count == 0) ? 0 : totalEventLatencyNanos / count / 1000L;
+	}
+
+	public long getMaxEventLatencyMicros() {
+		return maxEventLatencyNanos / 1000L;
+	}
+
+	/**
+	 * @return for each render thread the percentage of time spent rendering
+	 *         since the thread was started, or an empty array if no render
+	 *         threads are running
+	 */
+	public double[] getRenderThreadUtilizationPercent() {
+		AsynchronousRenderer renderer = synth.getAsynchronousRenderer();
+		if (renderer == null || !renderer.isStarted()) {
+			return new double[0];
+		}
+		double[] result = renderer.getThreadUtilization();
+		for (int i = 0; i < result.length; i++) {
+			result[i] *= 100.0;
+		}
+		return result;
+	}
+
+	/**
+	 * Reset all counters, peaks and the histogram.
+	 */
+	public void resetStatistics() {
+		sliceCount = 0;
+		deadlineMissCount = 0;
+		xrunCount = 0;
+		lastRenderNanos = 0;
+		maxRenderNanos = 0;
+		totalRenderNanos = 0;
+		peakDspLoad = dspLoad;
+		peakVoiceCount = activeVoiceCount;
+		peakEventQueueDepth = eventQueueDepth;
+		eventCount = 0;
+		totalEventLatencyNanos = 0;
+		maxEventLatencyNanos = 0;
+		for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+			renderTimeHistogram.set(i, 0);
+		}
+	}
+
+	// JMX
+
+	/**
+	 * Register this instance with the platform MBean server.
+	 * 
+	 * @param objectName the JMX object name, e.g.
+	 *            "com.ibm.realtime.synth:type=SynthMetrics,name=synth1"
+	 * @return true if registered, false if JMX is not available or
+	 *         registration failed
+	 */
+	public synchronized boolean registerMBean(String objectName) {
+		if (mbeanName != null) {
+			unregisterMBean();
+		}
+		try {
+			Object server = getMBeanServer();
+			Class<?> cObjectName = Class.forName("javax.management.ObjectName");
+			Object name = cObjectName.getConstructor(new Class<?>[] {
+				String.class
+			}).newInstance(new Object[] {
+				objectName
+			});
+			Method register = getMBeanServerClass().getMethod("registerMBean",
+					new Class<?>[] {
+							Object.class, cObjectName
+					});
+			register.invoke(server, new Object[] {
+					this, name
+			});
+			mbeanName = name;
+			if (DEBUG_METRICS) {
+				debug("SynthMetrics: registered MBean " + objectName);
+			}
+			return true;
+		} catch (Throwable t) {
+			if (DEBUG_METRICS) {
+				error("SynthMetrics: cannot register MBean: " + t);
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Unregister this instance from the platform MBean server, if registered.
+	 */
+	public synchronized void unregisterMBean() {
+		if (mbeanName == null) {
+			return;
+		}
+		try {
+			Object server = getMBeanServer();
+			Class<?> cObjectName = Class.forName("javax.management.ObjectName");
+			Method unregister = getMBeanServerClass().getMethod(
+					"unregisterMBean", new Class<?>[] {
+						cObjectName
+					});
+			unregister.invoke(server, new Object[] {
+				mbeanName
+			});
+		} catch (Throwable t) {
+			if (DEBUG_METRICS) {
+				error("SynthMetrics: cannot unregister MBean: " + t);
+			}
+		}
+		mbeanName = null;
+	}
+
+	private static Class<?> getMBeanServerClass() throws Exception {
+		return Class.forName("javax.management.MBeanServer");
+	}
+
+	private static Object getMBeanServer() throws Exception {
+		Class<?> cFactory = Class.forName("java.lang.management.ManagementFactory");
+		return cFactory.getMethod("getPlatformMBeanServer", new Class<?>[0]).invoke(
+				null, new Object[0]);
+	}
+
+	public String toString() {
+		return "SynthMetrics: slices=" + sliceCount + ", load="
+				+ ((int) getDspLoadPercent()) + "% (peak "
+				+ ((int) getPeakDspLoadPercent()) + "%), deadline misses="
+				+ deadlineMissCount + ", xruns=" + xrunCount + ", voices="
+				+ activeVoiceCount + " (peak " + peakVoiceCount + ")";
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ibm.realtime.synth.engine;
+
+/**
+ * The management interface of SynthMetrics, for export as a standard MBean.
+ */
+public interface SynthMetricsMBean {
+
+	public long getSliceCount();
+
+	public long getDeadlineMissCount();
+
+	public long getXrunCount();
+
+	public double getDspLoadPercent();
+
+	public double getPeakDspLoadPercent();
+
+	public long getLastRenderMicros();
+
+	public long getMaxRenderMicros();
+
+	public long getAverageRenderMicros();
+
+	public long[] getRenderTimeHistogram();
+
+	public int getActiveVoiceCount();
+
+	public int getPeakVoiceCount();
+
+	public long getStolenVoiceCount();
+
+	public int getEventQueueDepth();
+
+	public int getPeakEventQueueDepth();
+
+	public long getEventCount();
+
+	public long getAverageEventLatencyMicros();
+
+	public long getMaxEventLatencyMicros();
+
+	public double[] getRenderThreadUtilizationPercent();
+
+	public void resetStatistics();
+}
@@ -113,7 +113,8 @@ import java.util.*;
  * @author florian
  */
 public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioRendererListener,
-		AsynchExec.Listener<MidiEvent> {
+		AsynchExec.Listener<MidiEvent>, SliceTimeController.LoadSource,
+		SliceSplitter {
 
 	public static boolean DEBUG_SYNTH = false;
 	public static boolean DEBUG_SYNTH_IO = false;
@@ -179,6 +180,12 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 	 */
 	private long fixedDelayNanos;
 
+	/**
+	 * The latency of the pipeline of the pull thread, added to the fixed delay
+	 * of input events.
+	 */
+	private volatile long pipelineLatencyNanos;
+
 	private Params params;
 
 	/**
@@ -204,6 +211,12 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 	/** an offset applied to the master clock, and the render time of the audio engine, whenever accessed. By default 0. */
 	private long masterClockOffsetNanos;
 
+	/**
+	 * The System.nanoTime() of the last live, i.e. not time stamped, MIDI
+	 * event, or 0.
+	 */
+	private volatile long lastLiveEventNanos = 0;
+
 	/**
 	 * The list of listeners
 	 */
@@ -220,6 +233,35 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 	 */
 	private AsynchronousRenderer asynchRenderer = null;
 
+	/**
+	 * The run time metrics of this synthesizer.
+	 */
+	private SynthMetrics metrics;
+
+	/**
+	 * The scheduling mode of the AsynchronousRenderer, one of the
+	 * AsynchronousRenderer.SCHEDULING_* constants.
+	 */
+	private int renderSchedulingMode = AsynchronousRenderer.SCHEDULING_PARTITIONED;
+
+	/**
+	 * If the render threads should mix the notes into mix buses.
+	 */
+	private boolean renderMixBuses = false;
+
+	/**
+	 * If events are dispatched at their exact sample position inside of the
+	 * slice, by splitting the slice in the mixer.
+	 */
+	private boolean sampleAccurateEvents = false;
+
+	/**
+	 * In sample accurate mode: the end of the slice that was dispatched to the
+	 * render threads, in the time base of the mixer. Such a slice is not
+	 * split, its events are dispatched at the beginning of the next slice.
+	 */
+	private volatile long noSplitUntilNanos = 0;
+
 	/**
 	 * if yes, asynchronous dispatching is requested
 	 */
@@ -254,6 +296,53 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 
 	private boolean overlappingNotesAreStopped = false;
 
+	/**
+	 * The maximum number of voices playing at once, or 0 for no limit.
+	 */
+	private int maxVoices = 0;
+
+	/**
+	 * The policy to select the voices to be stopped when the global or a
+	 * channel's voice limit is reached.
+	 */
+	private VoiceStealingPolicy stealingPolicy = VoiceStealingPolicy.RELEASED_FIRST;
+
+	/**
+	 * Statistics: the number of voices stopped because of the global voice
+	 * limit or the mixer's capacity.
+	 */
+	private volatile long stolenVoiceCount = 0;
+
+	/**
+	 * Statistics: the number of voices stopped because of a channel's voice
+	 * limit.
+	 */
+	private volatile long stolenChannelVoiceCount = 0;
+
+	/**
+	 * Statistics: the number of voices not played because all slots of the
+	 * mixer were in use, also by the voices fading out after being stolen.
+	 */
+	private volatile long droppedVoiceCount = 0;
+
+	/**
+	 * The id of the last note on, used for identifying the linked voices of
+	 * a note and the age of a voice.
+	 */
+	private long lastNoteId = 0;
+
+	/**
+	 * The index of the voices started by this synthesizer, for fast lookup
+	 * of the voices affected by an event. Only accessed in dispatchEvent().
+	 */
+	private VoiceIndex voiceIndex;
+
+	/**
+	 * Set by setMixer(): the voice index is cleared by the thread that
+	 * dispatches the next event
+	 */
+	private volatile boolean voiceIndexCleared = false;
+
 	/**
 	 * Constructor without parameters. This will create a default mixer to be
 	 * used.
@@ -291,7 +380,9 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 			channels[i] = new MidiChannel(i);
 		}
 		params = new Params();
+		voiceIndex = new VoiceIndex(channels.length);
 		eventQueue = new EventQueue();
+		metrics = new SynthMetrics(this);
 		listeners = new ArrayList<SynthesizerListener>(1);
 		listenerHandler = new AsynchExec<MidiEvent>(this,
 				"Synthesizer listener handler");
@@ -301,6 +392,8 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 			threadCount = 0;
 		}
 		asynchRenderer = new AsynchronousRenderer(0);
+		asynchRenderer.setSchedulingMode(renderSchedulingMode);
+		asynchRenderer.setUseMixBuses(renderMixBuses);
 	}
 
 	/**
@@ -354,7 +447,14 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 			throw new IllegalArgumentException(
 					"may not set the synth's mixer to null");
 		}
+		if (this.aMixer != null && this.aMixer != mixer) {
+			this.aMixer.setSliceSplitter(null);
+		}
 		this.aMixer = mixer;
+		mixer.setSliceSplitter(sampleAccurateEvents ? this : null);
+		// an event may be dispatched right now: the dispatching thread
+		// clears the index before the next event
+		voiceIndexCleared = true;
 	}
 
 	/**
@@ -392,6 +492,8 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 		} else {
 			if (asynchRenderer == null) {
 				asynchRenderer = new AsynchronousRenderer(count);
+				asynchRenderer.setSchedulingMode(renderSchedulingMode);
+				asynchRenderer.setUseMixBuses(renderMixBuses);
 			} else {
 				asynchRenderer.setThreadCount(count);
 			}
@@ -404,6 +506,91 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 		}
 	}
 
+	/**
+	 * Set how the render threads share the work of rendering the notes.
+	 * 
+	 * @param mode one of the AsynchronousRenderer.SCHEDULING_* constants
+	 * @see AsynchronousRenderer#SCHEDULING_WORK_STEALING
+	 */
+	public synchronized void setRenderSchedulingMode(int mode) {
+		if (asynchRenderer != null) {
+			asynchRenderer.setSchedulingMode(mode);
+		}
+		renderSchedulingMode = mode;
+	}
+
+	/**
+	 * @return the scheduling mode of the render threads, one of the
+	 *         AsynchronousRenderer.SCHEDULING_* constants
+	 */
+	public synchronized int getRenderSchedulingMode() {
+		return renderSchedulingMode;
+	}
+
+	/**
+	 * Enable or disable per-thread mix buses. If enabled, and if the render
+	 * scheduling mode is AsynchronousRenderer.SCHEDULING_WORK_STEALING, the
+	 * render threads mix the notes into their own mix bus, and the mixer only
+	 * adds the sum of the mix buses.
+	 * 
+	 * @see AsynchronousRenderer#setUseMixBuses(boolean)
+	 */
+	public synchronized void setRenderMixBuses(boolean value) {
+		if (asynchRenderer != null) {
+			asynchRenderer.setUseMixBuses(value);
+		}
+		renderMixBuses = value;
+	}
+
+	/**
+	 * @return true if the render threads mix the notes into mix buses
+	 */
+	public synchronized boolean isRenderMixBuses() {
+		return renderMixBuses;
+	}
+
+	/**
+	 * Enable or disable sample accurate events. If enabled, the mixer splits
+	 * each slice at the times of the events, so that control changes, pitch
+	 * wheel and note offs take effect at the exact sample, independent of the
+	 * slice size. Slices that contain events are not rendered by the render
+	 * threads. Sample accurate events are not available with the asynchronous
+	 * note dispatcher.
+	 * 
+	 * @param value true to enable sample accurate events
+	 */
+	public synchronized void setSampleAccurateEvents(boolean value) {
+		sampleAccurateEvents = value;
+		if (aMixer != null) {
+			aMixer.setSliceSplitter(value ? this : null);
+		}
+	}
+
+	/**
+	 * @return true if events are dispatched at their exact sample position
+	 */
+	public synchronized boolean isSampleAccurateEvents() {
+		return sampleAccurateEvents;
+	}
+
+	/**
+	 * @return the asynchronous renderer, or null
+	 */
+	synchronized AsynchronousRenderer getAsynchronousRenderer() {
+		return asynchRenderer;
+	}
+
+	/**
+	 * Get the run time metrics of this synthesizer. The AudioPullThread
+	 * that this synthesizer is added to as listener records the render
+	 * times and xruns in these metrics.
+	 * 
+	 * @return the metrics instance of this synthesizer
+	 */
+	public SynthMetrics getMetrics() {
+		return metrics;
+	}
+
 	/**
 	 * Get the number of currently running render threads
 	 * 
@@ -526,6 +713,33 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 		setFixedDelayNanos(fixedDelayMillis * 1000000L);
 	}
 
+	/**
+	 * @return the latency of the audio pipeline that is added to the fixed
+	 *         delay
+	 */
+	public long getPipelineLatencyNanos() {
+		return pipelineLatencyNanos;
+	}
+
+	/**
+	 * Set the latency of the audio pipeline. It is added to the fixed delay of
+	 * all input events. This is called by the AudioPullThread when the
+	 * synthesizer is added as listener, and when its pipeline changes.
+	 * 
+	 * @param pipelineLatencyNanos the pipeline latency in nanoseconds
+	 */
+	public void setPipelineLatencyNanos(long pipelineLatencyNanos) {
+		this.pipelineLatencyNanos = pipelineLatencyNanos;
+	}
+
+	/**
+	 * @return the delay imposed on input events: the fixed delay plus the
+	 *         pipeline latency
+	 */
+	public long getEffectiveDelayNanos() {
+		return fixedDelayNanos + pipelineLatencyNanos;
+	}
+
 	public boolean areOverlappingNotesStopped() {
 		return overlappingNotesAreStopped;
 	}
@@ -534,6 +748,81 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 		this.overlappingNotesAreStopped = overlappingNotesAreStopped;
 	}
 
+	/**
+	 * @return the maximum number of voices playing at once, or 0 for no limit
+	 */
+	public int getMaxVoices() {
+		return maxVoices;
+	}
+
+	/**
+	 * Set the maximum number of voices (polyphony). If a new note would exceed
+	 * this limit, playing voices are faded out as selected by the voice
+	 * stealing policy. A limit per channel can be set with
+	 * MidiChannel.setVoiceLimit().
+	 * 
+	 * @param maxVoices the maximum number of voices, or 0 for no limit
+	 */
+	public void setMaxVoices(int maxVoices) {
+		if (maxVoices < 0) {
+			throw new IllegalArgumentException("Illegal voice limit: "
+					+ maxVoices);
+		}
+		this.maxVoices = maxVoices;
+	}
+
+	/**
+	 * @return the policy used for selecting the voices to be stolen
+	 */
+	public VoiceStealingPolicy getVoiceStealingPolicy() {
+		return stealingPolicy;
+	}
+
+	/**
+	 * Set the policy used for selecting the voices to be stolen when the
+	 * global or a channel's voice limit is reached.
+	 * 
+	 * @param policy the new policy, e.g. VoiceStealingPolicy.OLDEST
+	 */
+	public void setVoiceStealingPolicy(VoiceStealingPolicy policy) {
+		if (policy == null) {
+			throw new IllegalArgumentException(
+					"may not set the voice stealing policy to null");
+		}
+		this.stealingPolicy = policy;
+	}
+
+	/**
+	 * @return the number of voices stopped because of the global voice limit
+	 *         or the mixer's capacity
+	 */
+	public long getStolenVoiceCount() {
+		return stolenVoiceCount;
+	}
+
+	/**
+	 * @return the number of voices stopped because of a channel's voice limit
+	 */
+	public long getStolenChannelVoiceCount() {
+		return stolenChannelVoiceCount;
+	}
+
+	/**
+	 * @return the number of voices not played because the mixer was full
+	 */
+	public long getDroppedVoiceCount() {
+		return droppedVoiceCount;
+	}
+
+	/**
+	 * Reset the counters of stolen and dropped voices.
+	 */
+	public void resetStolenVoiceCounts() {
+		stolenVoiceCount = 0;
+		stolenChannelVoiceCount = 0;
+		droppedVoiceCount = 0;
+	}
+
 	/**
 	 * @return Returns the synthesizer params.
 	 */
@@ -659,20 +948,13 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 	}
 
 	/**
-	 * pre-conditions:
-	 * <li>localMixer!=null
+	 * @return a playing voice on the channel triggered by note, or null
 	 */
-	private NoteInput getNoteFromMixer(AudioMixer localMixer,
-			MidiChannel channel, int note) {
-		AudioInput[] lines = localMixer.getAudioStreamsArray();
-		for (AudioInput ai : lines) {
-			if (ai instanceof NoteInput) {
-				NoteInput ni = (NoteInput) ai;
-				if (ni.getMidiChannel() == channel
-						&& ni.getTriggerNote() == note && !ni.done()) {
-					return ni;
-				}
-			}
+	private NoteInput getPlayingNote(MidiChannel channel, int note) {
+		VoiceIndex.VoiceList voices = voiceIndex.getKeyVoices(channel, note);
+		if (voices.size() > 0) {
+			// the purged list only contains voices that are not done
+			return voices.get(0);
 		}
 		return null;
 	}
@@ -680,133 +962,98 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 	/**
 	 * pre-conditions:
 	 * <li>exclusiveLevel != 0
-	 * <li>localMixer!=null
 	 * 
 	 * @param exclusiveLevel
 	 * @param program
 	 * @param bank
-	 * @return
 	 */
-	private NoteInput stopExclusiveNotes(AudioMixer localMixer,
-			int exclusiveLevel, int program, int bank) {
-		AudioInput[] lines = localMixer.getAudioStreamsArray();
-		for (AudioInput ai : lines) {
-			if (ai instanceof NoteInput) {
-				NoteInput ni = (NoteInput) ai;
-				Patch patch = ni.getPatch();
-				if (patch.getExclusiveLevel() == exclusiveLevel
-						&& patch.getBank() == bank
-						&& patch.getProgram() == program && !ni.done()) {
-					if (DEBUG_SYNTH) {
-						debug("Synth " + nextAudioSliceTime.getMillisTime()
-								+ ": stopping exclusive note, level="
-								+ patch.getExclusiveLevel() + " note:" + ni);
-					}
-					stopAsap(ni);
+	private void stopExclusiveNotes(int exclusiveLevel, int program, int bank) {
+		VoiceIndex.VoiceList voices = voiceIndex.getExclusiveVoices(exclusiveLevel);
+		int size = voices.size();
+		for (int i = 0; i < size; i++) {
+			NoteInput ni = voices.get(i);
+			Patch patch = ni.getPatch();
+			if (patch.getBank() == bank && patch.getProgram() == program) {
+				if (DEBUG_SYNTH) {
+					debug("Synth " + nextAudioSliceTime.getMillisTime()
+							+ ": stopping exclusive note, level="
+							+ patch.getExclusiveLevel() + " note:" + ni);
 				}
+				stopAsap(ni);
 			}
 		}
-		return null;
 	}
 
 	/**
-	 * pre-conditions:
-	 * <li>localMixer!=null
-	 * 
 	 * @param channel
 	 * @param time
 	 */
-	private void releaseSustainedNotes(AudioMixer localMixer,
-			MidiChannel channel, AudioTime time) {
-		AudioInput[] lines = localMixer.getAudioStreamsArray();
-		for (AudioInput ai : lines) {
-			if (ai instanceof NoteInput) {
-				NoteInput ni = (NoteInput) ai;
-				if (ni.getMidiChannel() == channel && ni.isReleaseInhibited()
-						&& !ni.done()) {
-					// no need to check linked notes
-					ni.release(time);
-					if (DEBUG_SYNTH) {
-						debug("Synth " + nextAudioSliceTime.getMillisTime()
-								+ ": releasing sustained note:" + ni);
-					}
+	private void releaseSustainedNotes(MidiChannel channel, AudioTime time) {
+		VoiceIndex.VoiceList voices = voiceIndex.getChannelVoices(channel);
+		int size = voices.size();
+		for (int i = 0; i < size; i++) {
+			NoteInput ni = voices.get(i);
+			if (ni.isReleaseInhibited()) {
+				// no need to check linked notes
+				ni.release(time);
+				if (DEBUG_SYNTH) {
+					debug("Synth " + nextAudioSliceTime.getMillisTime()
+							+ ": releasing sustained note:" + ni);
 				}
 			}
 		}
 	}
 
 	/**
-	 * pre-conditions:
-	 * <li>localMixer!=null
-	 * 
 	 * @param channel
 	 * @param time
 	 * @param active
 	 */
-	private void handleSostenuto(AudioMixer localMixer, MidiChannel channel,
-			AudioTime time, boolean active) {
-		AudioInput[] lines = localMixer.getAudioStreamsArray();
-		for (AudioInput ai : lines) {
-			if (ai instanceof NoteInput) {
-				NoteInput ni = (NoteInput) ai;
-				if (ni.getMidiChannel() == channel && !ni.done()) {
-					// no need to check linked notes
-					ni.setSostenuto(time, active);
-					if (DEBUG_SYNTH) {
-						debug("Synth " + nextAudioSliceTime.getMillisTime()
-								+ ": " + "setting sostenuto to " + active
-								+ ": note:" + ni);
-					}
-				}
+	private void handleSostenuto(MidiChannel channel, AudioTime time,
+			boolean active) {
+		VoiceIndex.VoiceList voices = voiceIndex.getChannelVoices(channel);
+		int size = voices.size();
+		for (int i = 0; i < size; i++) {
+			NoteInput ni = voices.get(i);
+			// no need to check linked notes
+			ni.setSostenuto(time, active);
+			if (DEBUG_SYNTH) {
+				debug("Synth " + nextAudioSliceTime.getMillisTime() + ": "
+						+ "setting sostenuto to " + active + ": note:" + ni);
 			}
 		}
 	}
 
 	/**
-	 * pre-conditions:
-	 * <li>localMixer!=null
-	 * 
 	 * @param channel
 	 */
-	private void handleAllSoundOff(AudioMixer localMixer, MidiChannel channel) {
+	private void handleAllSoundOff(MidiChannel channel) {
 		if (DEBUG_SYNTH) {
 			debug("Synth " + nextAudioSliceTime.getMillisTime()
 					+ ": all sound off channel " + channel);
 		}
-		AudioInput[] lines = localMixer.getAudioStreamsArray();
-		for (AudioInput ai : lines) {
-			if (ai instanceof NoteInput) {
-				NoteInput ni = (NoteInput) ai;
-				if (ni.getMidiChannel() == channel) {
-					// no need to check linked notes
-					ni.stopAsap();
-				}
-			}
+		VoiceIndex.VoiceList voices = voiceIndex.getChannelVoices(channel);
+		int size = voices.size();
+		for (int i = 0; i < size; i++) {
+			// no need to check linked notes
+			voices.get(i).stopAsap();
 		}
 	}
 
 	/**
-	 * pre-conditions:
-	 * <li>localMixer!=null
-	 * 
 	 * @param channel
 	 * @param time
 	 */
-	private void handleAllNotesOff(AudioMixer localMixer, MidiChannel channel,
-			AudioTime time) {
+	private void handleAllNotesOff(MidiChannel channel, AudioTime time) {
 		if (DEBUG_SYNTH) {
 			debug("Synth " + nextAudioSliceTime.getMillisTime()
 					+ ": all notes off channel " + channel);
 		}
-		AudioInput[] lines = localMixer.getAudioStreamsArray();
-		for (AudioInput ai : lines) {
-			if (ai instanceof NoteInput) {
-				NoteInput ni = (NoteInput) ai;
-				if (ni.getMidiChannel() == channel && !ni.done()) {
-					// no need to check linked notes
-					ni.release(time);
-				}
-			}
+		VoiceIndex.VoiceList voices = voiceIndex.getChannelVoices(channel);
+		int size = voices.size();
+		for (int i = 0; i < size; i++) {
+			// no need to check linked notes
+			voices.get(i).release(time);
 		}
 	}
 
@@ -824,24 +1071,139 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 		debug("Notes channel 2: " + playing);
 	}
 
-	private void stopAsap(NoteInput ni) {
+	/**
+	 * Stop the note and all its linked instances.
+	 * 
+	 * @return the number of instances that were not stopping already
+	 */
+	private int stopAsap(NoteInput ni) {
 		NoteInput firstNI = ni;
+		long noteId = ni.getNoteId();
+		int stopped = 0;
 		do {
+			if (!ni.isStoppingAsap() && !ni.done()) {
+				stopped++;
+			}
 			ni.stopAsap();
 			ni = ni.getLinkedNoteInput();
-		} while (ni != null && ni != firstNI);
+			// a linked instance may already be reused for another note
+		} while (ni != null && ni != firstNI && ni.getNoteId() == noteId);
+		return stopped;
 	}
 
-	private void stopAsap(AudioMixer localMixer, MidiChannel channel, int triggerNote) {
-		AudioInput[] lines = localMixer.getAudioStreamsArray();
-		for (AudioInput ai : lines) {
-			if (ai instanceof NoteInput) {
-				NoteInput ni = (NoteInput) ai;
-				if (!ni.done() && ni.getMidiChannel() == channel && ni.getTriggerNote() == triggerNote) {
-					// no need to check linked notes
-					stopAsap(ni);
-				}
+	/**
+	 * @param channel if non-null, only count the voices on this channel
+	 * @return the number of voices in the voice index that are neither done
+	 *         nor stopping
+	 */
+	private int getIndexedVoiceCount(MidiChannel channel) {
+		if (channel != null) {
+			return countActiveVoices(voiceIndex.getChannelVoices(channel));
+		}
+		int count = 0;
+		int channelCount = voiceIndex.getChannelCount();
+		for (int ch = 0; ch < channelCount; ch++) {
+			count += countActiveVoices(voiceIndex.getChannelVoices(ch));
+		}
+		return count;
+	}
+
+	private static int countActiveVoices(VoiceIndex.VoiceList voices) {
+		int count = 0;
+		int size = voices.size();
+		for (int i = 0; i < size; i++) {
+			if (!voices.get(i).isStoppingAsap()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Select the voice to be stolen with the stealing policy from the voice
+	 * index.
+	 * 
+	 * @param channel if non-null, only voices on this channel are considered
+	 * @return the voice to be stolen, or null if there is no voice to steal
+	 */
+	private NoteInput selectVictim(MidiChannel channel) {
+		if (channel != null) {
+			return stealingPolicy.selectVictim(
+					voiceIndex.getChannelVoices(channel), null);
+		}
+		NoteInput victim = null;
+		int channelCount = voiceIndex.getChannelCount();
+		for (int ch = 0; ch < channelCount; ch++) {
+			victim = stealingPolicy.selectVictim(
+					voiceIndex.getChannelVoices(ch), victim);
+		}
+		return victim;
+	}
+
+	/**
+	 * Steal voices until newVoices voices can be added without exceeding the
+	 * limit.
+	 * 
+	 * @param channel if non-null, the channel's limit is enforced
+	 * @param limit the maximum number of voices
+	 * @param newVoices the number of voices to be added
+	 * @return the number of stolen voices
+	 */
+	private int stealVoices(MidiChannel channel, int limit, int newVoices) {
+		int active = getIndexedVoiceCount(channel);
+		int stolen = 0;
+		while (active + newVoices > limit) {
+			NoteInput victim = selectVictim(channel);
+			if (victim == null) {
+				break;
 			}
+			if (DEBUG_SYNTH) {
+				debug("Synth " + nextAudioSliceTime.getMillisTime() + ": "
+						+ "stealing voice " + victim + " (policy: "
+						+ stealingPolicy + ")");
+			}
+			int count = stopAsap(victim);
+			if (count == 0) {
+				// should not happen, but prevent an endless loop
+				victim.stopAsap();
+				count = 1;
+			}
+			active -= count;
+			stolen += count;
+		}
+		return stolen;
+	}
+
+	/**
+	 * Enforce the channel's and the global polyphony limit, and the
+	 * capacity of the mixer, for newVoices new voices.
+	 */
+	private void enforceVoiceLimits(AudioMixer mixer, MidiChannel channel,
+			int newVoices) {
+		int channelLimit = channel.getVoiceLimit();
+		if (channelLimit > 0) {
+			stolenChannelVoiceCount += stealVoices(channel, channelLimit,
+					newVoices);
+		}
+		if (maxVoices > 0) {
+			stolenVoiceCount += stealVoices(null, maxVoices, newVoices);
+		}
+		int capacity = mixer.getCapacity();
+		int occupied = mixer.getCount();
+		if (occupied + newVoices > capacity) {
+			// the voices fading out and other streams keep their slots for
+			// now: steal at most one voice for every new voice
+			int active = getIndexedVoiceCount(null);
+			stolenVoiceCount += stealVoices(null, Math.max(capacity
+					- (occupied - active), active), newVoices);
+		}
+	}
+
+	private void stopAsap(MidiChannel channel, int triggerNote) {
+		VoiceIndex.VoiceList voices = voiceIndex.getKeyVoices(channel, triggerNote);
+		int size = voices.size();
+		for (int i = 0; i < size; i++) {
+			stopAsap(voices.get(i));
 		}
 	}
 
@@ -851,7 +1213,7 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 		if (localSoundbank == null || localMixer == null) return;
 
 		if (overlappingNotesAreStopped) {
-			stopAsap(localMixer, channel, note);
+			stopAsap(channel, note);
 		}
 
 		NoteInput firstNoteStream = localSoundbank.createNoteInput(params,
@@ -868,7 +1230,7 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 		} else {
 			Patch patch = thisNoteStream.getPatch();
 			if (patch.isSelfExclusive()) {
-				NoteInput ni = getNoteFromMixer(localMixer, channel, note);
+				NoteInput ni = getPlayingNote(channel, note);
 				if (ni != null) {
 					if (DEBUG_SYNTH) {
 						debug("Synth " + nextAudioSliceTime.getMillisTime()
@@ -884,16 +1246,37 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 							+ "playing exclusive note, level="
 							+ patch.getExclusiveLevel());
 				}
-				stopExclusiveNotes(localMixer, patch.getExclusiveLevel(),
+				stopExclusiveNotes(patch.getExclusiveLevel(),
 						channel.getProgram(), channel.getBank());
 			}
+
+			// enforce the polyphony limits for the created voices, so that
+			// no voice is stolen for a note that does not play
+			int newVoices = 0;
+			do {
+				newVoices++;
+				thisNoteStream = thisNoteStream.getLinkedNoteInput();
+			} while (thisNoteStream != null
+					&& thisNoteStream != firstNoteStream);
+			thisNoteStream = firstNoteStream;
+			enforceVoiceLimits(localMixer, channel, newVoices);
+
+			long noteId = ++lastNoteId;
 			// loop through all linked streams
 			do {
 				// allow identification of this NoteInput with the corresponding
 				// NoteOff message (NoteInput may internally store a different
 				// note number):
 				thisNoteStream.setTriggerNote(note);
-				localMixer.addAudioStream(thisNoteStream);
+				thisNoteStream.setNoteId(noteId);
+				if (localMixer.addAudioStream(thisNoteStream)) {
+					voiceIndex.add(thisNoteStream);
+				} else {
+					// the mixer is full of voices fading out: the stolen
+					// voices free their slots for the following notes
+					droppedVoiceCount++;
+					thisNoteStream.recycle();
+				}
 				if (DEBUG_SYNTH_TIMING) {
 					if (thisNoteStream != firstNoteStream) {
 						debug("Synth NoteOn: nextAudioSlice="
@@ -924,30 +1307,20 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 		if (localMixer == null) return;
 
 		// Note: there may be several NoteInput's for one key, so we need to
-		// iterate through all lines
+		// iterate through all voices of this key
         // or require overlapping Note On's to have a matching Note Off, too!
-		AudioInput[] lines = localMixer.getAudioStreamsArray();
+		VoiceIndex.VoiceList voices = voiceIndex.getKeyVoices(channel, note);
+		int size = voices.size();
 		//int released = 0;
-		for (AudioInput ai : lines) {
-			if (ai instanceof NoteInput) {
-				NoteInput ni = (NoteInput) ai;
-				if (ni.getMidiChannel() == channel
-						&& ni.getTriggerNote() == note) {
-					if (DEBUG_SYNTH) {
-						if (!ni.done()) {
-							debug("Synth: Note Off: releasing note " + ni);
-						} else {
-							debug("Synth: Note Off: note " + ni
-									+ " already done playing.");
-						}
-					}
-					if (!ni.done()) {
-						ni.release(time);
-					}
-					//return;
-					//released++;
-				}
+		for (int i = 0; i < size; i++) {
+			// the index only contains voices which are not done
+			NoteInput ni = voices.get(i);
+			if (DEBUG_SYNTH) {
+				debug("Synth: Note Off: releasing note " + ni);
 			}
+			ni.release(time);
+			//return;
+			//released++;
 		}
 		//if (released == 0) {
 		//    debug("Synth: Note Off: channel " + channel.getChannelNum() + ": cannot find sounding note " + note + " (0x" + Integer.toHexString(note) + ")");
@@ -964,6 +1337,13 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 		if (DEBUG_SYNTH_IO) {
 			debug("Synth: Dispatching MIDI event " + event);
 		}
+		if (event.getArrivalNanos() != 0) {
+			metrics.eventDispatched(System.nanoTime() - event.getArrivalNanos());
+		}
+		if (voiceIndexCleared) {
+			voiceIndexCleared = false;
+			voiceIndex.clear();
+		}
 		MidiChannel channel = getChannel(event.getChannel());
 		switch (event.getStatus()) {
 		case 0x80: // NOTE OFF
@@ -1008,33 +1388,29 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 		switch (num) {
 		case MidiChannel.SUSTAIN_PEDAL:
 			if (data < 64) {
-				releaseSustainedNotes(localMixer, channel, time);
+				releaseSustainedNotes(channel, time);
 			}
 			break;
 		case MidiChannel.SOSTENUTO_PEDAL:
-			handleSostenuto(localMixer, channel, time, data >= 64);
+			handleSostenuto(channel, time, data >= 64);
 			break;
 		case MidiChannel.ALL_SOUND_OFF:
-			handleAllSoundOff(localMixer, channel);
+			handleAllSoundOff(channel);
 			break;
 		case MidiChannel.RESET_ALL_CONTROLLERS:
 			// TODO: notify the articulation objects individually of the changed
 			// controllers?
 			break;
 		case MidiChannel.ALL_NOTES_OFF:
-			handleAllNotesOff(localMixer, channel, time);
+			handleAllNotesOff(channel, time);
 			break;
 		}
 		// notify the articulation modules of all playing notes on this channel
-		AudioInput[] lines = localMixer.getAudioStreamsArray();
-		for (AudioInput ai : lines) {
-			if (ai instanceof NoteInput) {
-				NoteInput ni = (NoteInput) ai;
-				if (ni.getMidiChannel() == channel && !ni.done()) {
-					// no need to check linked notes
-					ni.getArticulation().controlChange(num, data);
-				}
-			}
+		VoiceIndex.VoiceList voices = voiceIndex.getChannelVoices(channel);
+		int size = voices.size();
+		for (int i = 0; i < size; i++) {
+			// no need to check linked notes
+			voices.get(i).getArticulation().controlChange(num, data);
 		}
 	}
 
@@ -1044,15 +1420,11 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 	private void handlePitchWheel(MidiChannel channel) {
 		AudioMixer localMixer = getMixer();
 		if (localMixer == null) return;
-		AudioInput[] lines = localMixer.getAudioStreamsArray();
-		for (AudioInput ai : lines) {
-			if (ai instanceof NoteInput) {
-				NoteInput ni = (NoteInput) ai;
-				if (ni.getMidiChannel() == channel && !ni.done()) {
-					// no need to check linked notes
-					ni.getArticulation().pitchWheelChange();
-				}
-			}
+		VoiceIndex.VoiceList voices = voiceIndex.getChannelVoices(channel);
+		int size = voices.size();
+		for (int i = 0; i < size; i++) {
+			// no need to check linked notes
+			voices.get(i).getArticulation().pitchWheelChange();
 		}
 	}
 
@@ -1072,18 +1444,22 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 	// newAudioSlice()!
 	public void midiInReceived(MidiEvent event) {
 
-		// add the fixed delay to the event's time
+		// add the fixed delay and the pipeline latency to the event's time
+		long delayNanos = getEffectiveDelayNanos();
 		AudioTime eventTime;
+		long arrivalNanos = 0;
 		if (event.getTime().getNanoTime() == 0) {
+			arrivalNanos = System.nanoTime();
+			lastLiveEventNanos = arrivalNanos;
 			// time==0 means to schedule immediately
 			if (masterClock != null && schedulingOfRealtimeEvents) {
-				eventTime = masterClock.getAudioTime().add(fixedDelayNanos + masterClockOffsetNanos);
+				eventTime = masterClock.getAudioTime().add(delayNanos + masterClockOffsetNanos);
 			} else {
 				// just insert it at the beginning of the next buffer
 				eventTime = event.getTime();
 			}
 		} else {
-			eventTime = event.getTime().add(fixedDelayNanos);
+			eventTime = event.getTime().add(delayNanos);
 		}
 		if (DEBUG_SYNTH_IO) {
 			// if (event.getStatus() == 0x90 && startDebugTime == 0) {
@@ -1109,6 +1485,7 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 		} else {
 			event = event.clone(eventTime);
 		}
+		event.setArrivalNanos(arrivalNanos);
 		if (DEBUG_SYNTH_TIMING) {
 			String add = "";
 			if (masterClock != null) {
@@ -1117,8 +1494,8 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 						- master;
 				add = " | master=" + master + "ms, masterSliceDiff="
 						+ masterSliceDiff + "ms";
-				if (masterSliceDiff > (fixedDelayNanos / 1000000L)) {
-					add += " ## > fixedDelay=" + (fixedDelayNanos / 1000000L)
+				if (masterSliceDiff > (delayNanos / 1000000L)) {
+					add += " ## > fixedDelay=" + (delayNanos / 1000000L)
 							+ "ms!";
 				}
 			}
@@ -1192,6 +1569,9 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 			time = time.add(masterClockOffsetNanos);
 		}
 		AudioTime nextNextAudioSliceTime = time.add(duration);
+		// the render threads render the sample count of the previous read, so
+		// they can only be used if the slice size did not change
+		boolean sameSliceSize = (nextAudioSliceDuration.getNanoTime() == duration.getNanoTime());
 		nextAudioSliceDuration = duration;
 
 		if (DEBUG_SYNTH_TIMING) {
@@ -1213,18 +1593,34 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 			}
 		}
 
+		metrics.eventQueueSampled(eventQueue.size());
+		metrics.voicesSampled(getActiveVoiceCount());
+		params.updateLoad(metrics.getDspLoadPercent());
+
+		// in sample accurate mode, the mixer dispatches the events of this
+		// slice while reading
+		boolean split = sampleAccurateEvents && !isNoteDispatcherRunning();
+		boolean hasEvents = false;
 		if (!isNoteDispatcherRunning()) {
 			synchronized (eventQueue) {
-				while (eventQueue.lastIsEarlier(nextNextAudioSliceTime)) {
+				AudioTime dispatchTime = split ? time : nextNextAudioSliceTime;
+				while (eventQueue.lastIsEarlier(dispatchTime)) {
 					dispatchEvent(eventQueue.poll());
 				}
+				hasEvents = split
+						&& eventQueue.lastIsEarlier(nextNextAudioSliceTime);
 			}
 		}
 
-		if (asynchRenderer != null) {
+		// a split slice cannot be rendered in advance
+		if (asynchRenderer != null && sameSliceSize && !hasEvents) {
 			AudioMixer localMixer = getMixer();
 			if (localMixer.getCount() > ASYNCH_RENDER_STREAM_THRESHOLD) {
-				asynchRenderer.dispatch(time, localMixer.getRenderables());
+				asynchRenderer.dispatch(time, duration, localMixer);
+				if (split) {
+					noSplitUntilNanos = nextNextAudioSliceTime.getNanoTime()
+							- masterClockOffsetNanos;
+				}
 			}
 		}
 
@@ -1232,6 +1628,56 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 		nextAudioSliceTime = nextNextAudioSliceTime;
 	}
 
+	// interface SliceTimeController.LoadSource
+
+	/**
+	 * @return the number of streams in the mixer, including voices that are
+	 *         about to finish
+	 */
+	public int getActiveVoiceCount() {
+		AudioMixer localMixer = aMixer;
+		return (localMixer == null) ? 0 : localMixer.getCount();
+	}
+
+	/**
+	 * @return the time of the earliest queued event, without the master clock
+	 *         offset, or Long.MAX_VALUE if the queue is empty
+	 */
+	public long getNextEventNanos() {
+		long next = eventQueue.getNextNanos();
+		if (next == Long.MAX_VALUE) {
+			return next;
+		}
+		return next - masterClockOffsetNanos;
+	}
+
+	public long getLastLiveEventNanos() {
+		return lastLiveEventNanos;
+	}
+
+	// interface SliceSplitter
+
+	/**
+	 * Dispatch the queued events earlier than nanoTime. Called by the mixer
+	 * in sample accurate mode.
+	 */
+	public long dispatchEventsBefore(long nanoTime) {
+		if (nanoTime <= noSplitUntilNanos || isNoteDispatcherRunning()) {
+			// the events are dispatched in the next newAudioSlice()
+			return Long.MAX_VALUE;
+		}
+		long offset = masterClockOffsetNanos;
+		MidiEvent event;
+		while ((event = eventQueue.pollIfEarlier(nanoTime + offset)) != null) {
+			dispatchEvent(event);
+		}
+		long next = eventQueue.getNextNanos();
+		if (next == Long.MAX_VALUE) {
+			return next;
+		}
+		return next - offset;
+	}
+
 	// listener EventDispatcher
 	public void onAsynchronousExecution(MidiEvent me) {
 		int size = listeners.size();
@@ -1307,6 +1753,65 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 
 		private boolean useLowpassFilter = true;
 
+		private volatile boolean useFusedRendering = true;
+
+		/**
+		 * Default DSP load in percent above which the overload
+		 * interpolation tier is used
+		 */
+		public static final double DEFAULT_OVERLOAD_THRESHOLD = 85.0;
+
+		private volatile int interpolation = Interpolator.LINEAR;
+
+		private volatile int overloadInterpolation = Interpolator.LINEAR;
+
+		private volatile double overloadThreshold = DEFAULT_OVERLOAD_THRESHOLD;
+
+		/**
+		 * Set while the DSP load is above the overload threshold
+		 */
+		private volatile boolean overloaded = false;
+
+		/**
+		 * Default level in dBFS below which released voices are retired:
+		 * culling is off by default, so that every voice plays its release
+		 * envelope to the end. A typical value to switch it on is -96 dB.
+		 */
+		public static final double DEFAULT_INAUDIBLE_THRESHOLD = Double.NEGATIVE_INFINITY;
+
+		/**
+		 * Default time in milliseconds that a released voice must stay below
+		 * the inaudible threshold before it is retired
+		 */
+		public static final double DEFAULT_INAUDIBLE_HOLD_TIME = 100.0;
+
+		private double inaudibleThreshold = DEFAULT_INAUDIBLE_THRESHOLD;
+
+		/**
+		 * The inaudible threshold as linear factor, or 0 if disabled
+		 */
+		private volatile double inaudibleLevel = 0.0;
+
+		private volatile long inaudibleHoldNanos = (long) (DEFAULT_INAUDIBLE_HOLD_TIME * 1000000.0);
+
+		/**
+		 * The number of samples of a control block, or 0 to calculate the
+		 * control values once per slice.
+		 */
+		private volatile int controlBlockSize = 0;
+
+		/**
+		 * The number of control blocks that a voice reserves in reset():
+		 * enough for a slice of MAX_CONTROL_SLICE_SAMPLES samples.
+		 */
+		private volatile int controlBlockCount = 0;
+
+		/**
+		 * The slice size for which voices reserve the control blocks. Longer
+		 * slices are rendered with larger control blocks.
+		 */
+		static final int MAX_CONTROL_SLICE_SAMPLES = 8192;
+
 		double getMasterVolumeInternal() {
 			return masterVolume;
 		}
@@ -1363,6 +1868,223 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 		public void setUseLowpassFilter(boolean useLowpassFilter) {
 			this.useLowpassFilter = useLowpassFilter;
 		}
+
+		/**
+		 * @return the global interpolation tier, one of the Interpolator
+		 *         constants
+		 */
+		public int getInterpolation() {
+			return interpolation;
+		}
+
+		/**
+		 * Set the global interpolation tier for resampling the samples. The
+		 * default is linear interpolation. A voice can override it with
+		 * NoteInput.setInterpolation().
+		 * 
+		 * @param interpolation one of the Interpolator constants
+		 */
+		public void setInterpolation(int interpolation) {
+			if (interpolation < 0 || interpolation >= Interpolator.TIER_COUNT) {
+				throw new IllegalArgumentException("illegal interpolation tier: "
+						+ interpolation);
+			}
+			Interpolator.prepare(interpolation);
+			this.interpolation = interpolation;
+		}
+
+		/**
+		 * @return the most expensive interpolation tier used while the
+		 *         synthesizer is overloaded
+		 */
+		public int getOverloadInterpolation() {
+			return overloadInterpolation;
+		}
+
+		/**
+		 * Set the interpolation tier to drop to while the DSP load is above
+		 * the overload threshold. Voices with a cheaper tier are not
+		 * changed. The default is linear interpolation.
+		 * 
+		 * @param interpolation one of the Interpolator constants
+		 */
+		public void setOverloadInterpolation(int interpolation) {
+			if (interpolation < 0 || interpolation >= Interpolator.TIER_COUNT) {
+				throw new IllegalArgumentException("illegal interpolation tier: "
+						+ interpolation);
+			}
+			Interpolator.prepare(interpolation);
+			this.overloadInterpolation = interpolation;
+		}
+
+		/**
+		 * @return the DSP load in percent above which the overload
+		 *         interpolation tier is used
+		 */
+		public double getOverloadThreshold() {
+			return overloadThreshold;
+		}
+
+		/**
+		 * Set the DSP load in percent above which the overload interpolation
+		 * tier is used. The normal tiers are used again once the load drops
+		 * below 80% of the threshold.
+		 * 
+		 * @param percent the threshold in percent of the slice time
+		 */
+		public void setOverloadThreshold(double percent) {
+			this.overloadThreshold = percent;
+		}
+
+		/**
+		 * @return true if the DSP load is currently above the overload
+		 *         threshold
+		 */
+		public boolean isOverloaded() {
+			return overloaded;
+		}
+
+		/**
+		 * Update the overload state from the current DSP load.
+		 */
+		void updateLoad(double loadPercent) {
+			if (overloaded) {
+				if (loadPercent < overloadThreshold * 0.8) {
+					overloaded = false;
+				}
+			} else if (loadPercent > overloadThreshold) {
+				overloaded = true;
+			}
+		}
+
+		/**
+		 * Get the tier to use for a voice.
+		 * 
+		 * @param requested the tier of the voice, or -1 for the global tier
+		 * @return the tier to use, considering the overload state
+		 */
+		int getEffectiveInterpolation(int requested) {
+			int tier = (requested < 0) ? interpolation : requested;
+			if (overloaded && tier > overloadInterpolation) {
+				tier = overloadInterpolation;
+			}
+			return tier;
+		}
+
+		/**
+		 * @return true if voices are rendered and mixed in one pass
+		 */
+		public boolean isUsingFusedRendering() {
+			return useFusedRendering;
+		}
+
+		/**
+		 * If enabled (the default), a voice reads the native samples,
+		 * interpolates, filters, and adds them to the stereo output in one
+		 * pass, without an intermediate buffer. Otherwise, the voice is
+		 * rendered to a temporary buffer first.
+		 * 
+		 * @param useFusedRendering true to render and mix in one pass
+		 */
+		public void setUseFusedRendering(boolean useFusedRendering) {
+			this.useFusedRendering = useFusedRendering;
+		}
+
+		/**
+		 * @return the level in dBFS below which released voices are retired,
+		 *         or Double.NEGATIVE_INFINITY if disabled
+		 */
+		public double getInaudibleThreshold() {
+			return inaudibleThreshold;
+		}
+
+		/**
+		 * Set the output level in dBFS below which a released voice is
+		 * considered inaudible. Once a released voice stays below this level
+		 * for the hold time, it is stopped, even if its release envelope has
+		 * not finished yet. Set to Double.NEGATIVE_INFINITY, the default, to
+		 * only stop voices at the end of the release envelope.
+		 * 
+		 * @param dB the threshold in dBFS, e.g. -96.0
+		 */
+		public void setInaudibleThreshold(double dB) {
+			if (dB > 0.0) {
+				dB = 0.0;
+			}
+			inaudibleThreshold = dB;
+			if (Double.isInfinite(dB) || Double.isNaN(dB)) {
+				inaudibleThreshold = Double.NEGATIVE_INFINITY;
+				inaudibleLevel = 0.0;
+			} else {
+				inaudibleLevel = Math.pow(10.0, dB / 20.0);
+			}
+		}
+
+		/**
+		 * @return the inaudible threshold as a linear factor, or 0 if
+		 *         disabled
+		 */
+		double getInaudibleLevel() {
+			return inaudibleLevel;
+		}
+
+		/**
+		 * @return the hold time in milliseconds
+		 */
+		public double getInaudibleHoldTime() {
+			return inaudibleHoldNanos / 1000000.0;
+		}
+
+		/**
+		 * Set the time that a released voice must stay below the inaudible
+		 * threshold before it is stopped.
+		 * 
+		 * @param millis the hold time in milliseconds
+		 */
+		public void setInaudibleHoldTime(double millis) {
+			if (millis < 0.0) {
+				millis = 0.0;
+			}
+			inaudibleHoldNanos = (long) (millis * 1000000.0);
+		}
+
+		long getInaudibleHoldNanos() {
+			return inaudibleHoldNanos;
+		}
+
+		/**
+		 * @return the number of samples of a control block, or 0 if the
+		 *         control values are calculated once per slice
+		 */
+		public int getControlBlockSize() {
+			return controlBlockSize;
+		}
+
+		/**
+		 * @return the number of control blocks to reserve per voice
+		 */
+		int getControlBlockCount() {
+			return controlBlockCount;
+		}
+
+		/**
+		 * Set a fixed control rate. If set, envelopes, LFOs, pitch and filter
+		 * cutoff are calculated every <code>samples</code> samples, and the
+		 * volume is ramped linearly from one control block to the next. The
+		 * cost of the control calculations then does not depend on the slice
+		 * size, and pitch and volume modulation are smooth with large slices.
+		 * 
+		 * @param samples the size of a control block in samples, e.g. 32, or
+		 *            0 to calculate the control values once per slice
+		 */
+		public void setControlBlockSize(int samples) {
+			if (samples < 0) {
+				samples = 0;
+			}
+			controlBlockCount = (samples == 0) ? 0
+					: (MAX_CONTROL_SLICE_SAMPLES + samples - 1) / samples;
+			controlBlockSize = samples;
+		}
 	}
 
 	/**
@@ -1458,6 +2180,17 @@ public class Synthesizer implements MidiIn.Listener, MidiDevice.Listener, AudioR
 			return ((list.size() > 0) && (list.getLast().getTime().earlierThan(time)));
 		}
 
+		/**
+		 * @return the time of the earliest element in nanoseconds, or
+		 *         Long.MAX_VALUE if the queue is empty
+		 */
+		public synchronized long getNextNanos() {
+			if (list.isEmpty()) {
+				return Long.MAX_VALUE;
+			}
+			return list.getLast().getTime().getNanoTime();
+		}
+
 		/**
 		 * @return Retrieves and removes the head of this queue, or null if this
 		 *         queue is empty.
@@ -26,11 +26,23 @@
 package com.ibm.realtime.synth.engine;
 
 import java.lang.reflect.*;
+import java.util.concurrent.Executor;
+
 import static com.ibm.realtime.synth.utils.Debug.*;
 
 /**
  * A centralized class for creation of threads. If available, real time threads
  * will be used.
+ * <p>
+ * The threads are created by a Backend, which can be set separately for each
+ * role: ROLE_REALTIME threads (pull thread, writer thread, render threads,
+ * note dispatcher) use the REALTIME backend by default, ROLE_STREAMING
+ * threads (the I/O threads of streamed samples) and ROLE_BACKGROUND threads
+ * (listener dispatch, maintenance) use PLATFORM threads by default. Only
+ * background threads can also run on VIRTUAL threads, if the VM supports
+ * them, or on a shared executor, see createExecutorBackend(): the other
+ * roles have deadlines, and block in synchronized code or file I/O, which
+ * pins the carrier of a virtual thread.
  * 
  * @author florian
  */
@@ -44,8 +56,148 @@ public class ThreadFactory {
 
 	private static boolean bHasRealtimeThread = false;
 	private static boolean bCouldSetRealtimeThreadPriority = false;
-	
-	
+
+	/**
+	 * Role of threads with real time requirements. These threads are never
+	 * executed by a shared executor.
+	 */
+	public static final int ROLE_REALTIME = 0;
+
+	/**
+	 * Role of threads without real time requirements, like listener dispatch
+	 * and maintenance. These threads are daemon threads.
+	 */
+	public static final int ROLE_BACKGROUND = 1;
+
+	/**
+	 * Role of the I/O threads that read streamed samples ahead of the
+	 * voices. They are not real time threads, but must meet the voices'
+	 * deadlines, so they are never executed by a shared executor or on
+	 * virtual threads. These threads are daemon threads.
+	 */
+	public static final int ROLE_STREAMING = 2;
+
+	/**
+	 * The logical priority that corresponds to Thread.NORM_PRIORITY.
+	 */
+	public static final int NORMAL_PRIORITY = 14;
+
+	/**
+	 * A way to execute the Runnable of a thread.
+	 */
+	public interface Backend {
+		/**
+		 * Start executing runner.
+		 * 
+		 * @param runner the Runnable to execute
+		 * @param name the name of the thread
+		 * @param priority the priority from 0 (lowest) to 28 (highest)
+		 * @param daemon if true, the thread does not prevent the VM from
+		 *            exiting
+		 * @return the started thread, or null if runner is executed by a
+		 *         shared thread
+		 */
+		public Thread start(Runnable runner, String name, int priority,
+				boolean daemon);
+	}
+
+	/**
+	 * Backend for normal Java threads, with the priority mapped to the Java
+	 * thread priorities.
+	 */
+	public static final Backend PLATFORM = new Backend() {
+		public Thread start(Runnable runner, String name, int priority,
+				boolean daemon) {
+			Thread t = createJavaThread(runner, name, priority);
+			if (daemon) {
+				t.setDaemon(true);
+			}
+			t.start();
+			return t;
+		}
+
+		public String toString() {
+			return "platform";
+		}
+	};
+
+	/**
+	 * Backend for RTSJ real time threads, if available (see setUseRTSJ()).
+	 * Otherwise, normal Java threads are used.
+	 */
+	public static final Backend REALTIME = new Backend() {
+		public Thread start(Runnable runner, String name, int priority,
+				boolean daemon) {
+			Thread t = null;
+			if (useRTSJ) {
+				t = createRealTimeThread(runner, name, priority);
+			}
+			if (t == null) {
+				t = createJavaThread(runner, name, priority);
+			}
+			if (daemon) {
+				t.setDaemon(true);
+			}
+			t.start();
+			return t;
+		}
+
+		public String toString() {
+			return "realtime";
+		}
+	};
+
+	/**
+	 * Backend for virtual threads, if the VM supports them (Java 21 or
+	 * later). Otherwise, normal Java threads are used. Virtual threads
+	 * ignore the priority and are always daemon threads.
+	 */
+	public static final Backend VIRTUAL = new Backend() {
+		public Thread start(Runnable runner, String name, int priority,
+				boolean daemon) {
+			Thread t = createVirtualThread(runner, name);
+			if (t == null) {
+				return PLATFORM.start(runner, name, priority, daemon);
+			}
+			t.start();
+			return t;
+		}
+
+		public String toString() {
+			return "virtual";
+		}
+	};
+
+	/**
+	 * The backends for the roles, indexed by the ROLE_* constants.
+	 */
+	private static final Backend[] backends = new Backend[] {
+			REALTIME, PLATFORM, PLATFORM
+	};
+
+	/**
+	 * Thread.ofVirtual(), Thread.Builder.name(), and
+	 * Thread.Builder.unstarted(), or null if not available.
+	 */
+	private static Method mOfVirtual;
+	private static Method mBuilderName;
+	private static Method mBuilderUnstarted;
+
+	static {
+		try {
+			Class<?> cBuilder = Class.forName("java.lang.Thread$Builder");
+			mOfVirtual = Thread.class.getMethod("ofVirtual", new Class<?>[0]);
+			mBuilderName = cBuilder.getMethod("name", new Class<?>[] {
+				String.class
+			});
+			mBuilderUnstarted = cBuilder.getMethod("unstarted", new Class<?>[] {
+				Runnable.class
+			});
+		} catch (Exception e) {
+			mOfVirtual = null;
+		}
+	}
+
 	/**
 	 * Create a thread that excutes the given runner. If priority is larger than
 	 * 7, a realtime thread is tried to be used. The thread immediately starts
@@ -57,17 +209,134 @@ public class ThreadFactory {
 	 * @return the thread object
 	 */
 	public static Thread createThread(Runnable runner, String name, int priority) {
-		Thread t = null;
+		return createThread(runner, name, priority, ROLE_REALTIME);
+	}
 
-		if (useRTSJ) {
-			t = createRealTimeThread(runner, name, priority);
+	/**
+	 * Create a thread that executes the given runner with the backend of the
+	 * given role. The thread immediately starts execution.
+	 * 
+	 * @param runner the Runnable to run in the new thread
+	 * @param name the name of the thread, usually for debugging purposes only
+	 * @param priority the priority from 0 (lowest) to 28 (highest)
+	 * @param role one of the ROLE_* constants
+	 * @return the thread object, or null if a ROLE_BACKGROUND runner is
+	 *         executed by a shared executor
+	 */
+	public static Thread createThread(Runnable runner, String name,
+			int priority, int role) {
+		Backend backend = getBackend(role);
+		Thread t = backend.start(runner, name, priority,
+				role != ROLE_REALTIME);
+		if (DEBUG_THREAD_FACTORY) {
+			debug("Started '" + name + "' with the " + backend + " backend");
 		}
+		return t;
+	}
 
-		if (t == null) {
-			t = createJavaThread(runner, name, priority);
+	/**
+	 * @param role one of the ROLE_* constants
+	 * @return the backend used for threads of the given role
+	 */
+	public static Backend getBackend(int role) {
+		if (role < 0 || role >= backends.length) {
+			throw new IllegalArgumentException("Illegal thread role: " + role);
+		}
+		synchronized (backends) {
+			return backends[role];
+		}
+	}
+
+	/**
+	 * Set the backend for new threads of the given role. Threads that are
+	 * already running are not affected. The ROLE_REALTIME and ROLE_STREAMING
+	 * roles must use the PLATFORM or the REALTIME backend.
+	 * 
+	 * @param role one of the ROLE_* constants
+	 * @param backend the backend to use
+	 */
+	public static void setBackend(int role, Backend backend) {
+		if (role < 0 || role >= backends.length) {
+			throw new IllegalArgumentException("Illegal thread role: " + role);
+		}
+		if (backend == null) {
+			throw new IllegalArgumentException("backend must not be null");
+		}
+		if (role != ROLE_BACKGROUND && backend != PLATFORM
+				&& backend != REALTIME) {
+			throw new IllegalArgumentException("threads of role " + role
+					+ " cannot use the " + backend + " backend");
+		}
+		synchronized (backends) {
+			backends[role] = backend;
+		}
+	}
+
+	/**
+	 * Create a backend that executes the Runnables on the given executor,
+	 * typically shared by several synthesizer instances. The Runnables of
+	 * this package run until they are stopped, so the executor must provide
+	 * enough threads. The name and priority are ignored.
+	 * 
+	 * @param executor the executor to run the Runnables
+	 * @return the new backend
+	 */
+	public static Backend createExecutorBackend(Executor executor) {
+		return new ExecutorBackend(executor);
+	}
+
+	/**
+	 * @return true if the VM supports virtual threads
+	 */
+	public static boolean hasVirtualThreads() {
+		return mOfVirtual != null;
+	}
+
+	private static class ExecutorBackend implements Backend {
+		private Executor executor;
+
+		public ExecutorBackend(Executor executor) {
+			if (executor == null) {
+				throw new IllegalArgumentException(
+						"executor must not be null");
+			}
+			this.executor = executor;
+		}
+
+		public Thread start(Runnable runner, String name, int priority,
+				boolean daemon) {
+			executor.execute(runner);
+			return null;
+		}
+
+		public String toString() {
+			return "executor";
+		}
+	}
+
+	/**
+	 * Create an unstarted virtual thread.
+	 * 
+	 * @return the virtual thread, or null if not supported
+	 */
+	private static Thread createVirtualThread(Runnable runner, String name) {
+		if (mOfVirtual == null) {
+			return null;
+		}
+		try {
+			Object builder = mOfVirtual.invoke(null, new Object[0]);
+			builder = mBuilderName.invoke(builder, new Object[] {
+				name
+			});
+			return (Thread) mBuilderUnstarted.invoke(builder, new Object[] {
+				runner
+			});
+		} catch (Exception e) {
+			if (DEBUG_THREAD_FACTORY) {
+				error("Unable to create virtual thread: " + e);
+			}
+			return null;
 		}
-		t.start();
-		return t;
 	}
 
 	/**
@@ -121,27 +390,26 @@ public class ThreadFactory {
 	 * @param priority 0..28
 	 * @return the real time thread, or null on error
 	 */
-	@SuppressWarnings("unchecked")
 	private static Thread createRealTimeThread(Runnable runner, String name,
 			int priority) {
 		Thread res = null;
 
 		try {
-			Class cRealtimeThread = Class.forName("javax.realtime.RealtimeThread");
-			Class cSchedulingParameters = Class.forName("javax.realtime.SchedulingParameters");
-			Class cReleaseParameters = Class.forName("javax.realtime.ReleaseParameters");
-			Class cMemoryParameters = Class.forName("javax.realtime.MemoryParameters");
-			Class cMemoryArea = Class.forName("javax.realtime.MemoryArea");
-			Class cProcessingGroupParameters = Class.forName("javax.realtime.ProcessingGroupParameters");
-			Constructor rtCons = cRealtimeThread.getConstructor(new Class[] {
+			Class<?> cRealtimeThread = Class.forName("javax.realtime.RealtimeThread");
+			Class<?> cSchedulingParameters = Class.forName("javax.realtime.SchedulingParameters");
+			Class<?> cReleaseParameters = Class.forName("javax.realtime.ReleaseParameters");
+			Class<?> cMemoryParameters = Class.forName("javax.realtime.MemoryParameters");
+			Class<?> cMemoryArea = Class.forName("javax.realtime.MemoryArea");
+			Class<?> cProcessingGroupParameters = Class.forName("javax.realtime.ProcessingGroupParameters");
+			Constructor<?> rtCons = cRealtimeThread.getConstructor(new Class<?>[] {
 					cSchedulingParameters, cReleaseParameters,
 					cMemoryParameters, cMemoryArea, cProcessingGroupParameters,
 					Runnable.class
 			});
 			// get an instance of PriorityParameters and set the priority
-			Class cPriorityParameters = Class.forName("javax.realtime.PriorityParameters");
+			Class<?> cPriorityParameters = Class.forName("javax.realtime.PriorityParameters");
 			// get the constructor with one int parameter
-			Constructor ppCons = cPriorityParameters.getConstructor(new Class[] {
+			Constructor<?> ppCons = cPriorityParameters.getConstructor(new Class<?>[] {
 				int.class
 			});
 
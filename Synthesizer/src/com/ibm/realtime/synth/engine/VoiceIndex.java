@@ -0,0 +1,269 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ibm.realtime.synth.engine;
+
+/**
+ * An index of the voices started by the synthesizer, by MIDI channel, by
+ * channel and trigger note, and by exclusive class. It allows the event
+ * handlers of the synthesizer to only visit the voices affected by an event,
+ * instead of scanning all streams of the mixer.
+ * <p>
+ * Voices are added when they are started. They are not explicitly removed:
+ * an entry is stale when its voice is done, or when the voice was recycled
+ * and reused for another note (detected by way of the note id). Stale entries
+ * are purged when a list is accessed, or when a list is full.
+ * <p>
+ * This class is not thread safe. It is only accessed while an event is
+ * dispatched: by the thread calling newAudioSlice(), which in sample
+ * accurate mode also dispatches from within the mixer's read(), or by the
+ * note dispatcher thread while it runs. Synthesizer.setMixer() may be
+ * called from any thread, so it does not clear the index itself, but lets
+ * the next dispatched event clear it.
+ */
+class VoiceIndex {
+
+	/**
+	 * The initial capacity of the channel lists
+	 */
+	private static final int CHANNEL_LIST_SIZE = 32;
+
+	/**
+	 * The initial capacity of the key and exclusive class lists
+	 */
+	private static final int KEY_LIST_SIZE = 4;
+
+	/**
+	 * the voices by channel number
+	 */
+	private VoiceList[] channelVoices;
+
+	/**
+	 * the voices by channel number and trigger note, index is
+	 * channelNum*128+note
+	 */
+	private VoiceList[] keyVoices;
+
+	/**
+	 * the voices by exclusive level. Element 0 is not used.
+	 */
+	private VoiceList[] exclusiveVoices = new VoiceList[0];
+
+	/**
+	 * Create an index for the given number of MIDI channels.
+	 */
+	VoiceIndex(int channelCount) {
+		channelVoices = new VoiceList[channelCount];
+		keyVoices = new VoiceList[channelCount * 128];
+		for (int i = 0; i < channelCount; i++) {
+			channelVoices[i] = new VoiceList(CHANNEL_LIST_SIZE);
+		}
+		// the key lists are created on demand
+	}
+
+	/**
+	 * Add a voice to the index. The voice's channel, trigger note, and note
+	 * id must be set.
+	 */
+	void add(NoteInput ni) {
+		int ch = ni.getMidiChannel().getChannelNum();
+		if (ch < 0 || ch >= channelVoices.length) {
+			return;
+		}
+		channelVoices[ch].add(ni);
+		int key = (ch << 7) | (ni.getTriggerNote() & 0x7F);
+		if (keyVoices[key] == null) {
+			keyVoices[key] = new VoiceList(KEY_LIST_SIZE);
+		}
+		keyVoices[key].add(ni);
+		int excl = ni.getPatch().getExclusiveLevel();
+		if (excl > 0) {
+			if (excl >= exclusiveVoices.length) {
+				VoiceList[] newExcl = new VoiceList[excl + 1];
+				System.arraycopy(exclusiveVoices, 0, newExcl, 0,
+						exclusiveVoices.length);
+				exclusiveVoices = newExcl;
+			}
+			if (exclusiveVoices[excl] == null) {
+				exclusiveVoices[excl] = new VoiceList(KEY_LIST_SIZE);
+			}
+			exclusiveVoices[excl].add(ni);
+		}
+	}
+
+	/**
+	 * @return the list of voices on the channel, purged from stale entries
+	 */
+	VoiceList getChannelVoices(MidiChannel channel) {
+		return getChannelVoices(channel.getChannelNum());
+	}
+
+	/**
+	 * @return the list of voices on the channel with the given number,
+	 *         purged from stale entries
+	 */
+	VoiceList getChannelVoices(int ch) {
+		if (ch < 0 || ch >= channelVoices.length) {
+			return VoiceList.EMPTY;
+		}
+		VoiceList list = channelVoices[ch];
+		list.purge();
+		return list;
+	}
+
+	/**
+	 * @return the number of channels, for iterating over all voices with
+	 *         getChannelVoices(int)
+	 */
+	int getChannelCount() {
+		return channelVoices.length;
+	}
+
+	/**
+	 * @return the list of voices on the channel that were triggered by the
+	 *         note, purged from stale entries
+	 */
+	VoiceList getKeyVoices(MidiChannel channel, int note) {
+		int ch = channel.getChannelNum();
+		if (ch < 0 || ch >= channelVoices.length) {
+			return VoiceList.EMPTY;
+		}
+		VoiceList list = keyVoices[(ch << 7) | (note & 0x7F)];
+		if (list == null) {
+			return VoiceList.EMPTY;
+		}
+		list.purge();
+		return list;
+	}
+
+	/**
+	 * @return the list of voices with the exclusive level, purged from stale
+	 *         entries
+	 */
+	VoiceList getExclusiveVoices(int exclusiveLevel) {
+		if (exclusiveLevel <= 0 || exclusiveLevel >= exclusiveVoices.length
+				|| exclusiveVoices[exclusiveLevel] == null) {
+			return VoiceList.EMPTY;
+		}
+		VoiceList list = exclusiveVoices[exclusiveLevel];
+		list.purge();
+		return list;
+	}
+
+	/**
+	 * Remove all voices from the index.
+	 */
+	void clear() {
+		for (VoiceList list : channelVoices) {
+			list.clear();
+		}
+		for (VoiceList list : keyVoices) {
+			if (list != null) {
+				list.clear();
+			}
+		}
+		for (VoiceList list : exclusiveVoices) {
+			if (list != null) {
+				list.clear();
+			}
+		}
+	}
+
+	/**
+	 * A list of voices with the note id of each voice at insertion time.
+	 */
+	static final class VoiceList {
+		static final VoiceList EMPTY = new VoiceList(0);
+
+		private NoteInput[] voices;
+		private long[] noteIds;
+		private int size = 0;
+
+		VoiceList(int capacity) {
+			voices = new NoteInput[capacity];
+			noteIds = new long[capacity];
+		}
+
+		/**
+		 * @return the number of voices in this list
+		 */
+		int size() {
+			return size;
+		}
+
+		/**
+		 * @return the voice at the index [0..size()-1]
+		 */
+		NoteInput get(int index) {
+			return voices[index];
+		}
+
+		void add(NoteInput ni) {
+			if (size == voices.length) {
+				// first try to make room by removing stale entries
+				purge();
+				if (size == voices.length) {
+					int newCapacity = (voices.length < 2) ? 4 : voices.length * 2;
+					NoteInput[] newVoices = new NoteInput[newCapacity];
+					long[] newIds = new long[newCapacity];
+					System.arraycopy(voices, 0, newVoices, 0, size);
+					System.arraycopy(noteIds, 0, newIds, 0, size);
+					voices = newVoices;
+					noteIds = newIds;
+				}
+			}
+			voices[size] = ni;
+			noteIds[size] = ni.getNoteId();
+			size++;
+		}
+
+		/**
+		 * Remove the entries of voices that are done or reused for another
+		 * note. The order of the remaining voices is retained.
+		 */
+		void purge() {
+			int n = 0;
+			for (int i = 0; i < size; i++) {
+				NoteInput ni = voices[i];
+				if (!ni.done() && ni.getNoteId() == noteIds[i]) {
+					voices[n] = ni;
+					noteIds[n] = noteIds[i];
+					n++;
+				}
+			}
+			for (int i = n; i < size; i++) {
+				voices[i] = null;
+			}
+			size = n;
+		}
+
+		void clear() {
+			for (int i = 0; i < size; i++) {
+				voices[i] = null;
+			}
+			size = 0;
+		}
+	}
+}
@@ -0,0 +1,391 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ibm.realtime.synth.engine;
+
+import static com.ibm.realtime.synth.utils.Debug.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A pool of preallocated NoteInput instances (voices) for allocation-free
+ * note on handling. A soundbank takes a voice from the pool with acquire(),
+ * sets it up with NoteInput.reset(), and the mixer returns it to the pool with
+ * NoteInput.recycle() once the voice is removed from the mixer.
+ * <p>
+ * The free voices are kept in a lock-free ring, so that the mixer can
+ * recycle voices on the audio thread without locking. The mixer only
+ * recycles a voice once no rendering thread renders it anymore, see
+ * AudioMixer. In addition, acquire() does not hand out a voice that a thread
+ * still owns for rendering or mixing: it is put back to the end of the ring.
+ * <p>
+ * The Factory attached to the pool creates the voices, including the
+ * soundbank specific Articulation, Oscillator, and Patch objects.
+ */
+public class VoicePool {
+
+	public static boolean DEBUG_VOICE_POOL = false;
+
+	/**
+	 * Value for dryPolicy: if the pool is empty, create a new voice. It will
+	 * be added to the pool when it is recycled, as long as the pool is not
+	 * full.
+	 */
+	public final static int DRY_ALLOCATE = 0;
+
+	/**
+	 * Value for dryPolicy: if the pool is empty, do not play the note.
+	 */
+	public final static int DRY_FAIL = 1;
+
+	/**
+	 * The default number of voices in the pool
+	 */
+	public final static int DEFAULT_SIZE = 256;
+
+	/**
+	 * Interface for the object that creates new voices for this pool.
+	 */
+	public interface Factory {
+		/**
+		 * Create a new, unused voice. The voice must be created with the
+		 * NoteInput(VoicePool, Patch, Oscillator, Articulation) constructor.
+		 * 
+		 * @param pool the pool that will own the new voice
+		 * @return the new voice
+		 */
+		public NoteInput createVoice(VoicePool pool);
+	}
+
+	private Factory factory;
+
+	/**
+	 * The free voices. Replaced by setSize().
+	 */
+	private volatile Ring free;
+
+	/**
+	 * What to do if the pool is empty, one of the DRY_* constants
+	 */
+	private volatile int dryPolicy = DRY_ALLOCATE;
+
+	/**
+	 * Statistics: how many voices were taken from the pool
+	 */
+	private final AtomicLong hits = new AtomicLong();
+
+	/**
+	 * Statistics: how many voices were requested while the pool was empty
+	 */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Statistics: how many recycled voices were discarded because the pool
+	 * was full
+	 */
+	private final AtomicLong discarded = new AtomicLong();
+
+	/**
+	 * Create a voice pool with the default size.
+	 */
+	public VoicePool(Factory factory) {
+		this(factory, DEFAULT_SIZE);
+	}
+
+	/**
+	 * Create a voice pool and preallocate size voices.
+	 */
+	public VoicePool(Factory factory, int size) {
+		this.factory = factory;
+		this.free = new Ring(0);
+		setSize(size);
+	}
+
+	/**
+	 * @return the number of voices this pool can hold
+	 */
+	public int getSize() {
+		return free.size;
+	}
+
+	/**
+	 * Change the size of the pool. If the new size is larger, new voices are
+	 * preallocated. If it is smaller, excess free voices are discarded. Voices
+	 * recycled while the size changes may be discarded, too.
+	 * 
+	 * @param size the new number of voices in the pool
+	 */
+	public synchronized void setSize(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Illegal voice pool size: "
+					+ size);
+		}
+		Ring old = free;
+		Ring ring = new Ring(size);
+		moveVoices(old, ring);
+		// preallocate before publishing the new ring
+		int preallocCount = size - ring.getCount();
+		for (int i = 0; i < preallocCount; i++) {
+			NoteInput ni = factory.createVoice(this);
+			ni.setPooled(true);
+			ring.offer(ni);
+		}
+		free = ring;
+		// the voices recycled to the old ring in the meantime
+		moveVoices(old, ring);
+		if (DEBUG_VOICE_POOL) {
+			debug("VoicePool: size=" + size + ", preallocated "
+					+ preallocCount + " voices.");
+		}
+	}
+
+	/**
+	 * Move the voices from one ring to another one. The voices that do not
+	 * fit are discarded.
+	 */
+	private void moveVoices(Ring from, Ring to) {
+		NoteInput ni;
+		while ((ni = from.poll()) != null) {
+			if (!to.offer(ni)) {
+				ni.setPooled(false);
+			}
+		}
+	}
+
+	/**
+	 * @return the policy when the pool is empty, one of the DRY_* constants
+	 */
+	public int getDryPolicy() {
+		return dryPolicy;
+	}
+
+	/**
+	 * @param dryPolicy the policy when the pool is empty, one of the DRY_*
+	 *            constants
+	 */
+	public void setDryPolicy(int dryPolicy) {
+		if (dryPolicy != DRY_ALLOCATE && dryPolicy != DRY_FAIL) {
+			throw new IllegalArgumentException("Illegal dry policy: "
+					+ dryPolicy);
+		}
+		this.dryPolicy = dryPolicy;
+	}
+
+	/**
+	 * Get an unused voice from the pool. The caller must set it up with
+	 * NoteInput.reset() before adding it to a mixer. A voice that a thread
+	 * still owns is skipped.
+	 * 
+	 * @return a voice, or null if the pool is empty and the dry policy is
+	 *         DRY_FAIL
+	 */
+	public NoteInput acquire() {
+		Ring ring = free;
+		for (int tries = ring.getCount(); tries > 0; tries--) {
+			NoteInput ni = ring.poll();
+			if (ni == null) {
+				break;
+			}
+			if (ni.isOwned()) {
+				// a late thread still renders it: use it later
+				if (!ring.offer(ni)) {
+					ni.setPooled(false);
+				}
+				continue;
+			}
+			ni.setPooled(false);
+			hits.incrementAndGet();
+			return ni;
+		}
+		misses.incrementAndGet();
+		if (DEBUG_VOICE_POOL) {
+			debug("VoicePool: empty, dry policy="
+					+ (dryPolicy == DRY_FAIL ? "fail" : "allocate"));
+		}
+		if (dryPolicy == DRY_FAIL) {
+			return null;
+		}
+		return factory.createVoice(this);
+	}
+
+	/**
+	 * Return the voice to the pool. This is usually called by
+	 * NoteInput.recycle(), on the audio thread: it does not lock. Voices that
+	 * are already in the pool are ignored.
+	 */
+	public void recycle(NoteInput ni) {
+		if (!ni.markPooled()) {
+			return;
+		}
+		if (!free.offer(ni)) {
+			ni.setPooled(false);
+			discarded.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return the number of voices currently available in the pool
+	 */
+	public int getFreeCount() {
+		return free.getCount();
+	}
+
+	/**
+	 * @return how many voices were served from the pool
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return how many voices were requested while the pool was empty
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return how many recycled voices were discarded because the pool was
+	 *         full
+	 */
+	public long getDiscardCount() {
+		return discarded.get();
+	}
+
+	/**
+	 * Reset the hit, miss, and discard counters.
+	 */
+	public void resetStatistics() {
+		hits.set(0);
+		misses.set(0);
+		discarded.set(0);
+	}
+
+	public String toString() {
+		return "VoicePool: " + getFreeCount() + "/" + getSize()
+				+ " free voices, hits=" + getHitCount() + ", misses="
+				+ getMissCount() + ", discarded=" + getDiscardCount();
+	}
+
+	/**
+	 * A bounded lock-free ring of free voices for any number of threads
+	 * offering and polling. Every slot has a sequence number that tells
+	 * whether it can be written or read in the current round.
+	 */
+	private static final class Ring {
+		private final AtomicReferenceArray<NoteInput> slots;
+		private final AtomicLongArray sequences;
+		private final int mask;
+
+		/**
+		 * The maximum number of voices in this ring
+		 */
+		final int size;
+
+		/**
+		 * The number of voices in this ring, reserved before offering
+		 */
+		private final AtomicInteger count = new AtomicInteger();
+
+		/**
+		 * The next position to poll
+		 */
+		private final AtomicLong head = new AtomicLong();
+
+		/**
+		 * The next position to offer
+		 */
+		private final AtomicLong tail = new AtomicLong();
+
+		Ring(int size) {
+			this.size = size;
+			int capacity = 1;
+			while (capacity < size) {
+				capacity <<= 1;
+			}
+			slots = new AtomicReferenceArray<NoteInput>(capacity);
+			sequences = new AtomicLongArray(capacity);
+			for (int i = 0; i < capacity; i++) {
+				sequences.set(i, i);
+			}
+			mask = capacity - 1;
+		}
+
+		int getCount() {
+			return count.get();
+		}
+
+		/**
+		 * @return false if the ring holds size voices already
+		 */
+		boolean offer(NoteInput ni) {
+			if (count.incrementAndGet() > size) {
+				count.decrementAndGet();
+				return false;
+			}
+			while (true) {
+				long pos = tail.get();
+				int index = ((int) pos) & mask;
+				long seq = sequences.get(index);
+				if (seq == pos) {
+					if (tail.compareAndSet(pos, pos + 1)) {
+						slots.set(index, ni);
+						sequences.set(index, pos + 1);
+						return true;
+					}
+				} else if (seq < pos) {
+					// the slot is not polled yet since the last round
+					count.decrementAndGet();
+					return false;
+				}
+			}
+		}
+
+		/**
+		 * @return the oldest voice, or null if the ring is empty
+		 */
+		NoteInput poll() {
+			while (true) {
+				long pos = head.get();
+				int index = ((int) pos) & mask;
+				long seq = sequences.get(index);
+				if (seq == pos + 1) {
+					if (head.compareAndSet(pos, pos + 1)) {
+						NoteInput ni = slots.get(index);
+						slots.set(index, null);
+						sequences.set(index, pos + mask + 1);
+						count.decrementAndGet();
+						return ni;
+					}
+				} else if (seq < pos + 1) {
+					return null;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ibm.realtime.synth.engine;
+
+/**
+ * A strategy for selecting the voice to be stopped when the synthesizer
+ * exceeds its polyphony limit. The selected voice is faded out with
+ * NoteInput.stopAsap().
+ * <p>
+ * Subclasses define an order of the voices by way of isBetterVictim(). The
+ * predefined policies are available as constants.
+ */
+public abstract class VoiceStealingPolicy {
+
+	/**
+	 * Steal the oldest voice.
+	 */
+	public static final VoiceStealingPolicy OLDEST = new VoiceStealingPolicy() {
+		protected boolean isBetterVictim(NoteInput candidate, NoteInput victim) {
+			return isOlder(candidate, victim);
+		}
+
+		public String toString() {
+			return "oldest";
+		}
+	};
+
+	/**
+	 * Steal the oldest voice that is in its release phase. If no voice is
+	 * released, steal the oldest voice.
+	 */
+	public static final VoiceStealingPolicy RELEASED_FIRST = new VoiceStealingPolicy() {
+		protected boolean isBetterVictim(NoteInput candidate, NoteInput victim) {
+			return isReleasedOrOlder(candidate, victim);
+		}
+
+		public String toString() {
+			return "released first";
+		}
+	};
+
+	/**
+	 * Steal the voice with the lowest current volume.
+	 */
+	public static final VoiceStealingPolicy QUIETEST = new VoiceStealingPolicy() {
+		protected boolean isBetterVictim(NoteInput candidate, NoteInput victim) {
+			double cVol = getVolume(candidate);
+			double vVol = getVolume(victim);
+			if (cVol != vVol) {
+				return cVol < vVol;
+			}
+			return isOlder(candidate, victim);
+		}
+
+		public String toString() {
+			return "quietest";
+		}
+	};
+
+	/**
+	 * Steal a voice on the channel with the lowest priority (see
+	 * MidiChannel.setPriority()). Among the voices on that channel, released
+	 * voices and then older voices are preferred.
+	 */
+	public static final VoiceStealingPolicy LOWEST_CHANNEL_PRIORITY = new VoiceStealingPolicy() {
+		protected boolean isBetterVictim(NoteInput candidate, NoteInput victim) {
+			int cPrio = candidate.getMidiChannel().getPriority();
+			int vPrio = victim.getMidiChannel().getPriority();
+			if (cPrio != vPrio) {
+				return cPrio < vPrio;
+			}
+			return isReleasedOrOlder(candidate, victim);
+		}
+
+		public String toString() {
+			return "lowest channel priority";
+		}
+	};
+
+	/**
+	 * Compare two voices.
+	 * 
+	 * @param candidate the voice to be compared
+	 * @param victim the currently selected voice
+	 * @return true if candidate should rather be stolen than victim
+	 */
+	protected abstract boolean isBetterVictim(NoteInput candidate,
+			NoteInput victim);
+
+	/**
+	 * Select the voice to be stolen from a list of the voice index, or keep
+	 * the given victim if it is better. Voices which are already stopping are
+	 * not considered. The list is purged, so it does not contain voices which
+	 * are done.
+	 * 
+	 * @param voices the voices to consider
+	 * @param victim the victim selected from other lists, or null
+	 * @return the voice to be stolen, or null if there is no voice to steal
+	 */
+	NoteInput selectVictim(VoiceIndex.VoiceList voices, NoteInput victim) {
+		int size = voices.size();
+		for (int i = 0; i < size; i++) {
+			NoteInput ni = voices.get(i);
+			if (ni.isStoppingAsap()) continue;
+			if (victim == null || isBetterVictim(ni, victim)) {
+				victim = ni;
+			}
+		}
+		return victim;
+	}
+
+	protected static final boolean isOlder(NoteInput candidate,
+			NoteInput victim) {
+		return candidate.getNoteId() < victim.getNoteId();
+	}
+
+	protected static final boolean isReleasedOrOlder(NoteInput candidate,
+			NoteInput victim) {
+		boolean cReleased = candidate.isReleased();
+		if (cReleased != victim.isReleased()) {
+			return cReleased;
+		}
+		return isOlder(candidate, victim);
+	}
+
+	/**
+	 * @return the current volume of the voice, as the sum of the linear
+	 *         volume factors of the left and right channel
+	 */
+	protected static final double getVolume(NoteInput ni) {
+		Articulation art = ni.getArticulation();
+		return art.getEffectiveVolumeFactor(0)
+				+ art.getEffectiveVolumeFactor(1);
+	}
+
+}
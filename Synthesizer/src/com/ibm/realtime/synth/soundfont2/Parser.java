@@ -25,6 +25,13 @@ package com.ibm.realtime.synth.soundfont2;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import com.ibm.realtime.synth.engine.ThreadFactory;
 
 import static com.ibm.realtime.synth.utils.Debug.*;
 
@@ -45,6 +52,7 @@ public class Parser {
 	public static boolean TRACE_GENERATORS = false;
 	public static boolean TRACE_MODULATORS = false;
 	public static boolean TRACE_SAMPLELINKS = false;
+	public static boolean TRACE_CACHE = false;
 
 	public static boolean DEBUG_SAMPLELINKS = false;
 
@@ -83,16 +91,65 @@ public class Parser {
 	public static final int FOURCC_IGNORED = 0x00000001;
 
 	/**
-	 * The stream to read from. It should be buffered and should not be accessed
-	 * directly -- only through this classes' readXXX methods.
+	 * The size of the read buffer
+	 */
+	private static final int BUFFER_SIZE = 65536;
+
+	/**
+	 * The stream to read from, or null. It is used for skipping, closing,
+	 * and for reading large blocks with readFully(). Otherwise, the data is
+	 * read through channel.
 	 */
 	private InputStream inputStream;
 
 	/**
-	 * The current read position in dis.
+	 * The channel to fill the buffer from, or null if the buffer holds the
+	 * entire SoundFont.
+	 */
+	private ReadableByteChannel channel;
+
+	/**
+	 * The little endian read buffer: a window of the channel, or the entire
+	 * SoundFont. It should not be accessed directly -- only through this
+	 * classes' readXXX methods.
+	 */
+	private ByteBuffer buffer;
+
+	/**
+	 * The current read position in the SoundFont.
 	 */
 	private long readPos = 0;
 
+	/**
+	 * The thread reading the sample data, or null
+	 */
+	private SampleReader sampleReader = null;
+
+	/**
+	 * If non-null, the sample data is memory mapped from this channel instead
+	 * of being read.
+	 */
+	private FileChannel mapChannel = null;
+
+	/**
+	 * If non-null, the sample data is streamed from this file instead of
+	 * being read.
+	 */
+	private File streamFile = null;
+
+	/**
+	 * If non-null, the sample data is read from this channel in a background
+	 * thread. Only set by load(File): the positional reads need readPos to
+	 * be the file position.
+	 */
+	private FileChannel readerChannel = null;
+
+	/**
+	 * The file position and length of the sample data, or -1
+	 */
+	private long sampleDataOffset = -1;
+	private long sampleDataLength = -1;
+
 	/**
 	 * A temporary class used during reading to temporarily store all data as
 	 * found in the file.
@@ -146,27 +203,235 @@ public class Parser {
 	 * Actually read the soundbank from the stream and parse it into the
 	 * infoData, sampleData, and presetData fields.
 	 * 
-	 * @param in the input stream to read from -- preferably a buffered stream.
+	 * @param in the input stream to read from. It is read in large blocks, so
+	 *            it does not need to be buffered.
 	 * @throws IOException on stream read error or premature end of stream
 	 * @throws SoundFont2ParserException if the stream is not a well-structured
 	 *             SoundFont 2 file.
 	 */
 	public void load(InputStream in) throws IOException,
 			SoundFont2ParserException {
+		load(in, Channels.newChannel(in), ByteBuffer.allocate(BUFFER_SIZE));
+	}
+
+	/**
+	 * Read the soundbank from the given buffer, e.g. a memory mapped file,
+	 * from its position to its limit. The preset data is parsed directly from
+	 * the buffer, the sample data is copied.
+	 * 
+	 * @param data the SoundFont 2 data
+	 * @throws IOException on premature end of the data
+	 * @throws SoundFont2ParserException if the data is not a well-structured
+	 *             SoundFont 2 file.
+	 */
+	public void load(ByteBuffer data) throws IOException,
+			SoundFont2ParserException {
+		load(null, null, data.slice());
+	}
+
+	private void load(InputStream in, ReadableByteChannel ch, ByteBuffer buf)
+			throws IOException, SoundFont2ParserException {
 		infoData = null;
 		sampleData = null;
 		banks = null;
 		this.inputStream = in;
+		this.channel = ch;
+		this.buffer = buf;
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if (ch != null) {
+			// the buffer is empty
+			buffer.limit(0);
+		}
+		readPos = 0;
+		sampleDataOffset = -1;
+		sampleDataLength = -1;
 		tempData = new PresetTempData();
-		if (TRACE) debug("Parsing...");
-		readChunks(0xFFFFFFFFFFFFFFFL, FOURCC_OUTERCHUNK);
-		in.close();
-		if (TRACE) debug("Processing...");
-		tempData.process();
-		tempData = null;
+		boolean success = false;
+		try {
+			if (TRACE) debug("Parsing...");
+			readChunks(0xFFFFFFFFFFFFFFFL, FOURCC_OUTERCHUNK);
+			if (TRACE) debug("Processing...");
+			tempData.process();
+			success = true;
+		} finally {
+			// the sample data is read in parallel to the preset data: wait
+			// for it in any case before the file is closed
+			IOException ioe = joinSampleReader();
+			tempData = null;
+			buffer = null;
+			channel = null;
+			inputStream = null;
+			if (success && ioe != null) {
+				throw ioe;
+			}
+		}
+		if (in != null) {
+			in.close();
+		}
 		if (TRACE) debug("end parsing soundfont.");
 	}
 
+	/**
+	 * Read the soundbank from the given file. If memoryMapped is true, the
+	 * sample data is not read: it is memory mapped from the file, and the
+	 * parser only skips it. This makes loading large SoundFonts almost
+	 * instant, and the sample data does not need heap memory.
+	 * 
+	 * @param file the SoundFont 2 file
+	 * @param memoryMapped if true, memory map the sample data
+	 * @throws IOException on read error
+	 * @throws SoundFont2ParserException if the file is not a well-structured
+	 *             SoundFont 2 file.
+	 */
+	public void load(File file, boolean memoryMapped) throws IOException,
+			SoundFont2ParserException {
+		load(file, memoryMapped ? SoundFontSampleData.STORAGE_MAPPED
+				: SoundFontSampleData.STORAGE_MEMORY);
+	}
+
+	/**
+	 * Read the soundbank from the given file. With STORAGE_MAPPED or
+	 * STORAGE_STREAMED, the sample data is not read: the parser only skips
+	 * it, and it is memory mapped or streamed from the file when playing.
+	 * 
+	 * @param file the SoundFont 2 file
+	 * @param storage one of the SoundFontSampleData.STORAGE_* constants
+	 * @throws IOException on read error
+	 * @throws SoundFont2ParserException if the file is not a well-structured
+	 *             SoundFont 2 file.
+	 */
+	public void load(File file, int storage) throws IOException,
+			SoundFont2ParserException {
+		load(file, storage, null);
+	}
+
+	/**
+	 * Read the soundbank from the given file, using a binary cache of the
+	 * parsed presets. If the cache file exists and matches the SoundFont
+	 * file, the presets are read from the cache, and the RIFF structure is
+	 * not parsed at all. Otherwise, the SoundFont file is parsed and the
+	 * cache file is written. A cache that cannot be written is ignored.
+	 * 
+	 * @param file the SoundFont 2 file
+	 * @param storage one of the SoundFontSampleData.STORAGE_* constants
+	 * @param cacheFile the cache file, or null to not use a cache
+	 * @throws IOException on read error
+	 * @throws SoundFont2ParserException if the file is not a well-structured
+	 *             SoundFont 2 file.
+	 */
+	public void load(File file, int storage, File cacheFile)
+			throws IOException, SoundFont2ParserException {
+		if (cacheFile != null) {
+			SoundFontBankCache cache = SoundFontBankCache.read(cacheFile, file);
+			if (cache != null) {
+				if (TRACE) debug("Using soundbank cache " + cacheFile);
+				infoData = cache.getInfo();
+				banks = cache.getBanks();
+				sampleDataOffset = cache.getSampleDataOffset();
+				sampleDataLength = cache.getSampleDataLength();
+				sampleData = new SoundFontSampleData();
+				if (sampleDataLength > 0) {
+					loadSampleData(file, storage);
+				}
+				return;
+			}
+		}
+		loadFile(file, storage);
+		if (cacheFile != null && sampleDataLength > 0) {
+			try {
+				SoundFontBankCache.write(cacheFile, file, infoData, banks,
+						sampleDataOffset, sampleDataLength);
+			} catch (IOException ioe) {
+				debug(ioe);
+			}
+		}
+	}
+
+	/**
+	 * Set up the sample data from the position in the file read from the
+	 * soundbank cache.
+	 */
+	private void loadSampleData(File file, int storage) throws IOException {
+		switch (storage) {
+		case SoundFontSampleData.STORAGE_STREAMED:
+			sampleData.setStreamedData(file, sampleDataOffset, sampleDataLength);
+			break;
+		case SoundFontSampleData.STORAGE_MAPPED:
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				sampleData.setMappedData(raf.getChannel(), sampleDataOffset,
+						sampleDataLength);
+			} finally {
+				raf.close();
+			}
+			break;
+		default:
+			raf = new RandomAccessFile(file, "r");
+			try {
+				byte[] data = new byte[(int) sampleDataLength];
+				raf.seek(sampleDataOffset);
+				raf.readFully(data);
+				sampleData.setData(data);
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	private void loadFile(File file, int storage) throws IOException,
+			SoundFont2ParserException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			// reading from the file channel allows seeking instead of reading
+			// when skipping, and reading the samples in a separate thread
+			FileChannel fc = fis.getChannel();
+			if (storage == SoundFontSampleData.STORAGE_MAPPED) {
+				mapChannel = fc;
+			} else if (storage == SoundFontSampleData.STORAGE_STREAMED) {
+				streamFile = file;
+			} else {
+				readerChannel = fc;
+			}
+			load(fis, fc, ByteBuffer.allocate(BUFFER_SIZE));
+		} finally {
+			mapChannel = null;
+			streamFile = null;
+			readerChannel = null;
+			fis.close();
+		}
+	}
+
+	/**
+	 * Make sure that the buffer has at least count bytes to read. If the
+	 * buffer is a window of the channel, the remaining bytes are moved to the
+	 * beginning of the buffer, and it is filled from the channel.
+	 * 
+	 * @throws EOFException if there are less than count bytes left
+	 */
+	private void require(int count) throws IOException {
+		if (buffer.remaining() >= count) {
+			return;
+		}
+		if (channel == null) {
+			throw new EOFException();
+		}
+		if (buffer.capacity() < count) {
+			ByteBuffer newBuffer = ByteBuffer.allocate(count);
+			newBuffer.order(ByteOrder.LITTLE_ENDIAN);
+			newBuffer.put(buffer);
+			buffer = newBuffer;
+		} else {
+			buffer.compact();
+		}
+		while (buffer.position() < count) {
+			if (channel.read(buffer) < 0) {
+				buffer.flip();
+				throw new EOFException();
+			}
+		}
+		buffer.flip();
+	}
+
 	/**
 	 * Read a little endian 32-bit int from the stream. Advance readPos by 4.
 	 * 
@@ -175,15 +440,9 @@ public class Parser {
 	 */
 	public int readIntLE() throws IOException {
 		assert (scheduledSkip == 0);
-		int b0 = inputStream.read();
-		int b1 = inputStream.read();
-		int b2 = inputStream.read();
-		int b3 = inputStream.read();
-		if ((b0 | b1 | b2 | b3) < 0) {
-			throw new EOFException();
-		}
+		require(4);
 		readPos += 4;
-		return (b3 << 24) + (b2 << 16) + (b1 << 8) + (b0 << 0);
+		return buffer.getInt();
 	}
 
 	/**
@@ -195,13 +454,9 @@ public class Parser {
 	 */
 	public short readShortLE() throws IOException {
 		assert (scheduledSkip == 0);
-		int b0 = inputStream.read();
-		int b1 = inputStream.read();
-		if ((b0 | b1) < 0) {
-			throw new EOFException();
-		}
+		require(2);
 		readPos += 2;
-		return (short) ((b1 << 8) + (b0 << 0));
+		return buffer.getShort();
 	}
 
 	/**
@@ -213,13 +468,9 @@ public class Parser {
 	 */
 	public int readWordLE() throws IOException {
 		assert (scheduledSkip == 0);
-		int b0 = inputStream.read();
-		int b1 = inputStream.read();
-		if ((b0 | b1) < 0) {
-			throw new EOFException();
-		}
+		require(2);
 		readPos += 2;
-		return ((b1 << 8) + (b0 << 0));
+		return buffer.getShort() & 0xFFFF;
 	}
 
 	/**
@@ -230,15 +481,9 @@ public class Parser {
 	 */
 	public int readIntBE() throws IOException {
 		assert (scheduledSkip == 0);
-		int b3 = inputStream.read();
-		int b2 = inputStream.read();
-		int b1 = inputStream.read();
-		int b0 = inputStream.read();
-		if ((b0 | b1 | b2 | b3) < 0) {
-			throw new EOFException();
-		}
+		require(4);
 		readPos += 4;
-		return (b3 << 24) + (b2 << 16) + (b1 << 8) + (b0 << 0);
+		return Integer.reverseBytes(buffer.getInt());
 	}
 
 	/**
@@ -249,37 +494,27 @@ public class Parser {
 	 */
 	public short readShortBE() throws IOException {
 		assert (scheduledSkip == 0);
-		int b1 = inputStream.read();
-		int b0 = inputStream.read();
-		if ((b0 | b1) < 0) {
-			throw new EOFException();
-		}
+		require(2);
 		readPos += 2;
-		return (short) ((b1 << 8) + (b0 << 0));
+		return Short.reverseBytes(buffer.getShort());
 	}
 
 	/**
 	 * Read an unsigned Byte from the stream
 	 */
 	public int readUnsignedByte() throws IOException {
-		int ret = inputStream.read();
-		if (ret < 0) {
-			throw new EOFException();
-		}
+		require(1);
 		readPos++;
-		return ret;
+		return buffer.get() & 0xFF;
 	}
 
 	/**
 	 * Read a signed Byte from the stream
 	 */
 	public byte readSignedByte() throws IOException {
-		int ret = inputStream.read();
-		if (ret < 0) {
-			throw new EOFException();
-		}
+		require(1);
 		readPos++;
-		return (byte) ret;
+		return buffer.get();
 	}
 
 	public void readFully(byte bytes[]) throws IOException {
@@ -289,17 +524,57 @@ public class Parser {
 	public void readFully(byte bytes[], int offset, int length)
 			throws IOException {
 		readPos += length;
-		while (length > 0) {
-			int read = inputStream.read(bytes, offset, length);
-			if (read > 0) {
-				length -= read;
-				offset += read;
-			} else if (read == 0) {
-				Thread.yield();
-			} else {
+		int count = Math.min(length, buffer.remaining());
+		buffer.get(bytes, offset, count);
+		offset += count;
+		length -= count;
+		if (length > 0) {
+			if (channel == null) {
 				throw new EOFException();
 			}
+			// read the rest directly into bytes: from the stream, if there is
+			// one, because a channel wrapping a stream copies in small chunks
+			if (inputStream != null) {
+				while (length > 0) {
+					int read = inputStream.read(bytes, offset, length);
+					if (read < 0) {
+						throw new EOFException();
+					}
+					offset += read;
+					length -= read;
+				}
+			} else {
+				ByteBuffer dest = ByteBuffer.wrap(bytes, offset, length);
+				while (dest.hasRemaining()) {
+					if (channel.read(dest) < 0) {
+						throw new EOFException();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return a little endian view of the next length bytes, and advance
+	 * readPos by length. The view shares the content of the read buffer, so
+	 * it is only valid until the next read.
+	 * 
+	 * @param length the number of bytes
+	 * @return the view, with position 0 and limit length
+	 * @throws IOException
+	 */
+	protected ByteBuffer readSlice(long length) throws IOException {
+		assert (scheduledSkip == 0);
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("chunk too large: " + length + " bytes");
 		}
+		require((int) length);
+		ByteBuffer slice = buffer.slice();
+		slice.order(ByteOrder.LITTLE_ENDIAN);
+		slice.limit((int) length);
+		buffer.position(buffer.position() + (int) length);
+		readPos += length;
+		return slice;
 	}
 
 	public String readString(long chunkLength) throws IOException,
@@ -320,8 +595,15 @@ public class Parser {
 
 	public String readFixedLengthString(int length) throws IOException,
 			SoundFont2ParserException {
+		return readFixedLengthString(readSlice(length), length);
+	}
+
+	/**
+	 * Read a zero terminated string with the given length from slice.
+	 */
+	private static String readFixedLengthString(ByteBuffer slice, int length) {
 		byte[] bytes = new byte[length];
-		readFully(bytes);
+		slice.get(bytes);
 		// find terminator
 		for (int i = 0; i < length; i++) {
 			if (bytes[i] == 0) {
@@ -355,11 +637,123 @@ public class Parser {
 	}
 
 	protected void skip(long bytes) throws IOException {
-		while (bytes > 0) {
-			long skipped = inputStream.skip(bytes);
-			if (skipped > 0) {
-				bytes -= skipped;
-				readPos += skipped;
+		int count = (int) Math.min(bytes, buffer.remaining());
+		buffer.position(buffer.position() + count);
+		readPos += count;
+		bytes -= count;
+		if (bytes <= 0) {
+			return;
+		}
+		if (channel instanceof FileChannel) {
+			// seek instead of reading
+			FileChannel fc = (FileChannel) channel;
+			fc.position(fc.position() + bytes);
+			readPos += bytes;
+		} else if (inputStream != null) {
+			while (bytes > 0) {
+				long skipped = inputStream.skip(bytes);
+				if (skipped > 0) {
+					bytes -= skipped;
+					readPos += skipped;
+				} else {
+					// skip() does not report the end of the stream
+					if (inputStream.read() < 0) {
+						throw new EOFException();
+					}
+					bytes--;
+					readPos++;
+				}
+			}
+		} else {
+			// beyond the end of the buffer: the next read fails
+			readPos += bytes;
+		}
+	}
+
+	/**
+	 * Wait for the thread reading the sample data to finish.
+	 * 
+	 * @return the exception of the thread, or null if the samples were read
+	 *         successfully or no thread was started
+	 */
+	private IOException joinSampleReader() {
+		SampleReader reader = sampleReader;
+		if (reader == null) {
+			return null;
+		}
+		sampleReader = null;
+		try {
+			return reader.await();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return new InterruptedIOException(
+					"interrupted while reading the sample data");
+		}
+	}
+
+	/**
+	 * Reads the sample data from the file in a background thread, while the
+	 * parser continues with the preset data.
+	 */
+	private static class SampleReader implements Runnable {
+		private static final int READ_BLOCK_SIZE = 1 << 20;
+
+		private final FileChannel channel;
+		private final long offset;
+		private final byte[] data;
+		private IOException exception;
+		private boolean done = false;
+
+		public SampleReader(FileChannel channel, long offset, byte[] data) {
+			this.channel = channel;
+			this.offset = offset;
+			this.data = data;
+		}
+
+		/**
+		 * Read the data with the background role of the ThreadFactory.
+		 */
+		public void start() {
+			ThreadFactory.createThread(this, "SoundFont sample reader",
+					ThreadFactory.NORMAL_PRIORITY, ThreadFactory.ROLE_BACKGROUND);
+		}
+
+		/**
+		 * Wait until all data is read.
+		 * 
+		 * @return the exception of reading, or null on success
+		 */
+		public synchronized IOException await() throws InterruptedException {
+			while (!done) {
+				wait();
+			}
+			return exception;
+		}
+
+		public void run() {
+			try {
+				int pos = 0;
+				while (pos < data.length) {
+					// read in blocks: reading into a heap buffer goes through
+					// a temporary direct buffer of the same size
+					ByteBuffer dest = ByteBuffer.wrap(data, pos, Math.min(
+							READ_BLOCK_SIZE, data.length - pos));
+					// positional reads do not interfere with the parser
+					int read = channel.read(dest, offset + pos);
+					if (read < 0) {
+						throw new EOFException();
+					}
+					pos += read;
+				}
+			} catch (IOException ioe) {
+				synchronized (this) {
+					exception = ioe;
+				}
+			} finally {
+				synchronized (this) {
+					done = true;
+					notifyAll();
+				}
 			}
 		}
 	}
@@ -706,16 +1100,38 @@ public class Parser {
 		switch (chunkID) {
 		case FOURCC_smpl:
 			// check consistency
-			if (sampleData.getData() != null) {
+			if (sampleData.getSampleCount() > 0) {
 				throw new SoundFont2ParserException(
 						"corrupt soundfont: multiple smpl chunk");
 			}
 			checkSize(chunkID, chunkLength, 2, 1, -1);
-			// read data
+			sampleDataOffset = readPos;
+			sampleDataLength = chunkLength;
+			if (mapChannel != null) {
+				// readPos is the file position of the chunk data
+				sampleData.setMappedData(mapChannel, readPos, chunkLength);
+				if (TRACE) debug(" mapped " + chunkLength + " bytes of audio data");
+				break;
+			}
+			if (streamFile != null) {
+				sampleData.setStreamedData(streamFile, readPos, chunkLength);
+				if (TRACE) debug(" streaming " + chunkLength + " bytes of audio data");
+				break;
+			}
 			byte[] data = new byte[(int) chunkLength];
-			readFully(data);
+			if (readerChannel != null) {
+				// read the data in the background while parsing the preset
+				// data. load() waits for it before returning.
+				sampleReader = new SampleReader(readerChannel, readPos, data);
+				sampleReader.start();
+				skip(chunkLength);
+				if (TRACE) debug(" reading " + chunkLength + " bytes of audio data");
+			} else {
+				// read data
+				readFully(data);
+				if (TRACE) debug(" read " + chunkLength + " bytes of audio data");
+			}
 			sampleData.setData(data);
-			if (TRACE) debug(" read " + chunkLength + " bytes of audio data");
 			break;
 		default:
 			debug("ignored sdta element " + key2string(chunkID) + " with size "
@@ -834,34 +1250,36 @@ public class Parser {
 		private SoundFontModulator[] instModulators;
 		private SoundFontGenerator[] instGenerators;
 
-		private SoundFontModulator readModulator() throws IOException {
-			int srcOp = readWordLE();
-			int dstOp = readWordLE();
-			short amount = readShortLE();
-			int srcAmount = readWordLE();
-			int transform = readWordLE();
+		// the records are read from a view of the entire chunk in the read
+		// buffer
+
+		private SoundFontModulator readModulator(ByteBuffer chunk) {
+			int srcOp = chunk.getShort() & 0xFFFF;
+			int dstOp = chunk.getShort() & 0xFFFF;
+			short amount = chunk.getShort();
+			int srcAmount = chunk.getShort() & 0xFFFF;
+			int transform = chunk.getShort() & 0xFFFF;
 			return new SoundFontModulator(srcOp, dstOp, amount, srcAmount,
 					transform);
 		}
 
-		private SoundFontGenerator readGenerator() throws IOException {
-			int op = readWordLE();
-			short amount = readShortLE();
+		private SoundFontGenerator readGenerator(ByteBuffer chunk) {
+			int op = chunk.getShort() & 0xFFFF;
+			short amount = chunk.getShort();
 			return new SoundFontGenerator(op, amount);
 		}
 
-		private SoundFontSample readSampleHeader() throws IOException,
-				SoundFont2ParserException {
-			String name = readFixedLengthString(20);
-			int start = readIntLE();
-			int end = readIntLE();
-			int startLoop = readIntLE();
-			int endLoop = readIntLE();
-			float sampleRate = (float) readIntLE();
-			int originalPitch = readUnsignedByte();
-			int pitchCorrection = readSignedByte();
-			int sampleLink = readWordLE();
-			int sampleType = readWordLE();
+		private SoundFontSample readSampleHeader(ByteBuffer chunk) {
+			String name = readFixedLengthString(chunk, 20);
+			int start = chunk.getInt();
+			int end = chunk.getInt();
+			int startLoop = chunk.getInt();
+			int endLoop = chunk.getInt();
+			float sampleRate = (float) chunk.getInt();
+			int originalPitch = chunk.get() & 0xFF;
+			int pitchCorrection = chunk.get();
+			int sampleLink = chunk.getShort() & 0xFFFF;
+			int sampleType = chunk.getShort() & 0xFFFF;
 
 			return new SoundFontSample(name, start, end, startLoop, endLoop,
 					sampleRate, originalPitch, pitchCorrection, sampleLink,
@@ -871,12 +1289,14 @@ public class Parser {
 		private void readPresetHeader(int blockCount) throws IOException,
 				SoundFont2ParserException {
 			presetZoneIndexes = new int[blockCount];
+			ByteBuffer chunk = readSlice(blockCount * 38L);
 			for (int i = 0; i < blockCount; i++) {
-				String name = readFixedLengthString(20);
-				int preset = readWordLE();
-				int bank = readWordLE();
-				int presetZoneIndex = readWordLE();
-				skip(12);
+				String name = readFixedLengthString(chunk, 20);
+				int preset = chunk.getShort() & 0xFFFF;
+				int bank = chunk.getShort() & 0xFFFF;
+				int presetZoneIndex = chunk.getShort() & 0xFFFF;
+				// skip library, genre, morphology
+				chunk.position(chunk.position() + 12);
 
 				if (i > 0) {
 					// check consistency. Using "<" allows the same index to be
@@ -918,9 +1338,10 @@ public class Parser {
 			}
 			presetGeneratorIndexes = new int[blockCount];
 			presetModulatorIndexes = new int[blockCount];
+			ByteBuffer chunk = readSlice(blockCount * 4L);
 			for (int i = 0; i < blockCount; i++) {
-				presetGeneratorIndexes[i] = readWordLE();
-				presetModulatorIndexes[i] = readWordLE();
+				presetGeneratorIndexes[i] = chunk.getShort() & 0xFFFF;
+				presetModulatorIndexes[i] = chunk.getShort() & 0xFFFF;
 			}
 			if (TRACE_PRESET) {
 				debug(" read " + (blockCount - 1)
@@ -938,11 +1359,11 @@ public class Parser {
 								+ "presetModulatorIndex+1 records");
 			}
 			presetModulators = new SoundFontModulator[blockCount - 1];
+			// including the terminating modulator
+			ByteBuffer chunk = readSlice(blockCount * 10L);
 			for (int i = 0; i < blockCount - 1; i++) {
-				presetModulators[i] = readModulator();
+				presetModulators[i] = readModulator(chunk);
 			}
-			// skip the terminating modulator
-			skip(10);
 			if (TRACE_PRESET) {
 				debug(" read " + (blockCount - 1) + " preset modulators");
 			}
@@ -958,11 +1379,11 @@ public class Parser {
 								+ "presetGeneratorIndex+1 records");
 			}
 			presetGenerators = new SoundFontGenerator[blockCount - 1];
+			// including the terminating generator
+			ByteBuffer chunk = readSlice(blockCount * 4L);
 			for (int i = 0; i < blockCount - 1; i++) {
-				presetGenerators[i] = readGenerator();
+				presetGenerators[i] = readGenerator(chunk);
 			}
-			// skip the terminating generator
-			skip(4);
 			if (TRACE_PRESET) {
 				debug(" read " + (blockCount - 1) + " preset generators");
 			}
@@ -972,9 +1393,10 @@ public class Parser {
 				SoundFont2ParserException {
 			instData = new SoundFontInstrument[blockCount - 1];
 			instZoneIndexes = new int[blockCount];
+			ByteBuffer chunk = readSlice(blockCount * 22L);
 			for (int i = 0; i < blockCount; i++) {
-				String name = readFixedLengthString(20);
-				int instZoneIndex = readWordLE();
+				String name = readFixedLengthString(chunk, 20);
+				int instZoneIndex = chunk.getShort() & 0xFFFF;
 				if (i > 0) {
 					// check consistency
 					if (instZoneIndex <= instZoneIndexes[i - 1]) {
@@ -1006,9 +1428,10 @@ public class Parser {
 			}
 			instGeneratorIndexes = new int[blockCount];
 			instModulatorIndexes = new int[blockCount];
+			ByteBuffer chunk = readSlice(blockCount * 4L);
 			for (int i = 0; i < blockCount; i++) {
-				instGeneratorIndexes[i] = readWordLE();
-				instModulatorIndexes[i] = readWordLE();
+				instGeneratorIndexes[i] = chunk.getShort() & 0xFFFF;
+				instModulatorIndexes[i] = chunk.getShort() & 0xFFFF;
 			}
 			if (TRACE_PRESET) {
 				debug(" read " + (blockCount - 1)
@@ -1026,11 +1449,11 @@ public class Parser {
 								+ "instModulatorIndex+1 records");
 			}
 			instModulators = new SoundFontModulator[blockCount - 1];
+			// including the terminating modulator
+			ByteBuffer chunk = readSlice(blockCount * 10L);
 			for (int i = 0; i < blockCount - 1; i++) {
-				instModulators[i] = readModulator();
+				instModulators[i] = readModulator(chunk);
 			}
-			// skip the terminating modulator
-			skip(10);
 			if (TRACE_PRESET) {
 				debug(" read " + (blockCount - 1) + " instrument modulators");
 			}
@@ -1046,11 +1469,11 @@ public class Parser {
 								+ "instGeneratorIndex+1 records");
 			}
 			instGenerators = new SoundFontGenerator[blockCount - 1];
+			// including the terminating generator
+			ByteBuffer chunk = readSlice(blockCount * 4L);
 			for (int i = 0; i < blockCount - 1; i++) {
-				instGenerators[i] = readGenerator();
+				instGenerators[i] = readGenerator(chunk);
 			}
-			// skip the terminating generator
-			skip(4);
 			if (TRACE_PRESET) {
 				debug(" read " + (blockCount - 1) + " instrument generators");
 			}
@@ -1060,8 +1483,10 @@ public class Parser {
 				SoundFont2ParserException {
 			samples = new SoundFontSample[blockCount - 1];
 			SoundFontSample sample;
+			// including the terminating sample header
+			ByteBuffer chunk = readSlice(blockCount * 46L);
 			for (int i = 0; i < blockCount - 1; i++) {
-				sample = readSampleHeader();
+				sample = readSampleHeader(chunk);
 				samples[i] = sample;
 				if (TRACE_PRESET) debug(" read " + i + ": " + sample);
 				if ((sample.getSampleType() & (SoundFontSample.LINKED_SAMPLE | SoundFontSample.ROM_SAMPLE_FLAG)) != 0) {
@@ -1074,8 +1499,6 @@ public class Parser {
 							+ sample.getName() + " not consistent");
 				}
 			}
-			// skip the terminating generator
-			skip(46);
 			if (!TRACE_PRESET && TRACE) {
 				debug(" read " + (blockCount - 1) + " sample headers");
 			}
@@ -1304,4 +1727,100 @@ public class Parser {
 
 	}
 
+
+	private static final String[] BENCHMARK_MODES = {
+			"stream", "memory", "mapped", "streamed", "buffer"
+	};
+
+	/**
+	 * Load benchmark: parse the given SoundFont files with each way of
+	 * loading, and print the best and average time per load. "stream" reads
+	 * from an InputStream, "memory", "mapped", and "streamed" from the file
+	 * with the respective sample storage, and "buffer" from a memory mapping
+	 * of the entire file (only for files up to 2GB).
+	 * <p>
+	 * Usage: Parser [-runs n] file.sf2 [file2.sf2 ...]
+	 */
+	public static void main(String[] args) throws Exception {
+		int runs = 10;
+		int argIndex = 0;
+		if (args.length > 1 && args[0].equals("-runs")) {
+			runs = Integer.parseInt(args[1]);
+			argIndex = 2;
+		}
+		if (argIndex >= args.length) {
+			System.out.println("Usage: Parser [-runs n] file.sf2 [file2.sf2 ...]");
+			return;
+		}
+		for (; argIndex < args.length; argIndex++) {
+			File file = new File(args[argIndex]);
+			System.out.println(file.getName() + ": "
+					+ format2(file.length() / 1048576.0) + "MB, " + runs
+					+ " runs");
+			System.out.println("mode        best ms    avg ms");
+			for (int mode = 0; mode < BENCHMARK_MODES.length; mode++) {
+				if (mode == 4 && file.length() > Integer.MAX_VALUE) {
+					continue;
+				}
+				long best = Long.MAX_VALUE;
+				long total = 0;
+				// the first 2 runs are warm-up
+				for (int run = -2; run < runs; run++) {
+					long time = benchmarkLoad(file, mode);
+					if (run >= 0) {
+						best = Math.min(best, time);
+						total += time;
+					}
+				}
+				String bestMillis = format2(best / 1000000.0);
+				System.out.println(pad(BENCHMARK_MODES[mode], 12)
+						+ pad(bestMillis, 11)
+						+ format2(total / (runs * 1000000.0)));
+			}
+		}
+	}
+
+	private static String pad(String s, int length) {
+		StringBuffer sb = new StringBuffer(s);
+		while (sb.length() < length) {
+			sb.append(' ');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the time in nanoseconds to load file with the given benchmark
+	 *         mode
+	 */
+	private static long benchmarkLoad(File file, int mode) throws Exception {
+		// free the sample data of the previous run
+		System.gc();
+		long start = System.nanoTime();
+		Parser parser = new Parser();
+		switch (mode) {
+		case 0:
+			parser.load(new FileInputStream(file));
+			break;
+		case 1:
+			parser.load(file, SoundFontSampleData.STORAGE_MEMORY);
+			break;
+		case 2:
+			parser.load(file, SoundFontSampleData.STORAGE_MAPPED);
+			break;
+		case 3:
+			parser.load(file, SoundFontSampleData.STORAGE_STREAMED);
+			break;
+		default:
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel fc = raf.getChannel();
+				parser.load(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+			} finally {
+				raf.close();
+			}
+		}
+		long time = System.nanoTime() - start;
+		parser.getSampleData().close();
+		return time;
+	}
 }
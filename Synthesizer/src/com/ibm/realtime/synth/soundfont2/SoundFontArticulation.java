@@ -27,6 +27,7 @@ package com.ibm.realtime.synth.soundfont2;
 
 import com.ibm.realtime.synth.engine.*;
 import org.jsresources.utils.audio.AudioUtils;
+import com.ibm.realtime.synth.utils.FastMath;
 
 import org.tritonus.share.sampled.AudioBuffer;
 
@@ -143,6 +144,11 @@ public class SoundFontArticulation extends Articulation {
 	 */
 	private SoundFontFilter lowPass;
 
+	/**
+	 * The low pass filter instance, kept for reuse while lowPass is null.
+	 */
+	private SoundFontFilter lowPassInstance;
+
 	/**
 	 * For optimization, only compute a new pitch and filter values every
 	 * PITCH_CHANGE_INTERVAL nanoseconds. This is the next audio time at which a
@@ -173,16 +179,60 @@ public class SoundFontArticulation extends Articulation {
 	 */
 	public SoundFontArticulation(AudioTime time, Patch patch,
 			MidiChannel channel, boolean useLowPass) {
-		init(time, patch, channel);
 		lfo1 = new SoundFontLFO(time);
 		lfo2 = new SoundFontLFO(time);
 		eg1 = new SoundFontEnvelope(time);
 		eg2 = new SoundFontEnvelope(time);
+		reset(time, patch, channel, useLowPass);
+	}
+
+	/**
+	 * Create an articulation object for a pooled voice. It must be set up with
+	 * reset() before use.
+	 */
+	SoundFontArticulation() {
+		this(new AudioTime(0), null, null, true);
+	}
+
+	/**
+	 * Reset all parameters and runtime state to the initial values, so that
+	 * this instance can be reused for a new note.
+	 */
+	void reset(AudioTime time, Patch patch, MidiChannel channel,
+			boolean useLowPass) {
+		init(time, patch, channel);
+		name = "";
+		linearPan = 0.0;
+		linearVolume = 1.0;
+		initialAttenuation = 0.0;
+		initialVolumeFactor[0] = 0.0;
+		initialVolumeFactor[1] = 0.0;
+		runtimeVolumeFactor[0] = 0.0;
+		runtimeVolumeFactor[1] = 0.0;
+		fineTune = 0.0;
+		LFO_EG_VolumeFactor = 1.0;
+		modulationToPitchLFO = 0.5;
+		channelPressureToPitchLFO = 0.5;
+		nextPitchChange = 0;
+		chorusSend = 0.0;
+		reverbSend = 0.0;
+		scaleTuning = 1.0;
+		lfo1.reset(time);
+		lfo2.reset(time);
+		eg1.reset(time);
+		eg2.reset(time);
 		if (useLowPass) {
 			// the lowpass filter could also belong to NoteInput, but all
 			// the modifiers for the lowpass are calculated in the Articulation
 			// objects, so it is owned by Articulation.
-			lowPass = new SoundFontFilter(this);
+			if (lowPassInstance == null) {
+				lowPassInstance = new SoundFontFilter(this);
+			} else {
+				lowPassInstance.reset();
+			}
+			lowPass = lowPassInstance;
+		} else {
+			lowPass = null;
 		}
 		lfo1.name = "LFO 1"; // vibrato LFO: only pitch
 		lfo2.name = "LFO 2"; // modulation LFO: pitch, volume, cutoff
@@ -223,8 +273,20 @@ public class SoundFontArticulation extends Articulation {
 	 * Override from super class: calculate envelopes and LFO's.
 	 */
 	public void calculate(AudioTime time) {
+		calculate(time, false);
+	}
+
+	/**
+	 * Override from super class: calculate pitch and filter for every control
+	 * block.
+	 */
+	public void calculateControl(AudioTime time) {
+		calculate(time, true);
+	}
+
+	private final void calculate(AudioTime time, boolean all) {
 		long nanoTime = time.getNanoTime();
-		if (nanoTime >= nextPitchChange) {
+		if (all || nanoTime >= nextPitchChange) {
 			// calculate pitch/filter only
 			lfo1.calculate(time);
 			eg2.calculate(time);
@@ -244,6 +306,44 @@ public class SoundFontArticulation extends Articulation {
 		}
 	}
 
+	public void process(AudioBuffer buffer, int offset, int count) {
+		if (lowPass != null) {
+			lowPass.process(buffer, offset, count);
+		}
+	}
+
+	/**
+	 * Override from super class: the low pass filter is done by the kernel.
+	 */
+	public boolean supportsKernel() {
+		return true;
+	}
+
+	public void loadKernel(MixKernel kernel, float sampleRate) {
+		if (lowPass != null) {
+			lowPass.loadKernel(kernel, sampleRate);
+		} else {
+			kernel.setFilterOff();
+		}
+	}
+
+	public void storeKernel(MixKernel kernel) {
+		if (lowPass != null) {
+			lowPass.storeKernel(kernel);
+		}
+	}
+
+	/**
+	 * Override from super class: an enabled low pass filter is about as
+	 * expensive as the oscillator.
+	 */
+	public int getProcessingCost() {
+		if (lowPass != null && lowPass.isEnabled()) {
+			return 2;
+		}
+		return 0;
+	}
+
 	protected double getRuntimePitchOffset() {
 		return lfo1.getCurrentPitch() + lfo2.getCurrentPitch()
 				+ eg2.getCurrentPitch();
@@ -307,7 +407,7 @@ public class SoundFontArticulation extends Articulation {
 
 		double decibel =
 				SoundFontUtils.transform(vol * expr, true, true, false) * 96.0;
-		double linear = AudioUtils.decibel2linear(-decibel);
+		double linear = FastMath.decibel2linear(-decibel);
 
 		// use new pan "style" with 64 as the middle (=64*128 with 14-bit
 		// controllers)
@@ -330,7 +430,7 @@ public class SoundFontArticulation extends Articulation {
 		double lfoEg = lfo2.getCurrentVolume() + eg1.getCurrentVolume();
 		double newLFO_EG_VolumeFactor;
 		if (lfoEg != 0.0) {
-			newLFO_EG_VolumeFactor = AudioUtils.decibel2linear(lfoEg);
+			newLFO_EG_VolumeFactor = FastMath.decibel2linear(lfoEg);
 		} else {
 			newLFO_EG_VolumeFactor = 1.0;
 		}
@@ -670,6 +770,15 @@ public class SoundFontArticulation extends Articulation {
 		setScaleTuning(scaleTuning + value);
 	}
 
+	/**
+	 * @return true if any of the debug flags is set that display the names
+	 *         set with setName()
+	 */
+	static boolean isDebugNames() {
+		return DEBUG_ART || DEBUG_ART_VOLUME || SoundFontEnvelope.DEBUG_EG
+				|| SoundFontLFO.DEBUG_LFO || SoundFontFilter.DEBUG_LP;
+	}
+
 	/**
 	 * Function for debugging
 	 * 
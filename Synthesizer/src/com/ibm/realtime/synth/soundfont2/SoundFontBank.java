@@ -96,8 +96,21 @@ public class SoundFontBank implements Comparable<SoundFontBank>, Soundbank.Bank
 	 * @return the index of the found SoundFontBank, or -1 if not found
 	 */
 	public static int findBank(List<SoundFontBank> banks, int thisBank) {
-		// TODO: if more than 5 banks, use binary search
-		return banks.indexOf(new SoundFontBank(thisBank));
+		// binary search without creating a key object
+		int low = 0;
+		int high = banks.size() - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int midBank = banks.get(mid).getMidiNumber();
+			if (midBank < thisBank) {
+				low = mid + 1;
+			} else if (midBank > thisBank) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
 	}
 
 	public boolean equals(SoundFontBank sfb) {
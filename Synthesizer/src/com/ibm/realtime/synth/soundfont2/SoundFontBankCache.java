@@ -0,0 +1,519 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ibm.realtime.synth.soundfont2;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import static com.ibm.realtime.synth.utils.Debug.*;
+
+/**
+ * A binary cache of a parsed SoundFont: the info, the presets and
+ * instruments with their zones, generators and modulators, the sample
+ * headers, and the position of the sample data in the SoundFont file. The
+ * state after the parser's processing is stored, including the stereo links
+ * and the disabled zones, so loading the cache does not need to walk the
+ * RIFF structure or process anything.
+ * <p>
+ * The cache is written after the SoundFont is parsed, and memory mapped
+ * when it is loaded. It is only used if its version matches, and if the
+ * SoundFont file has the same size, modification time, and hash as when
+ * the cache was written. The hash is a CRC32 of the first and last 64KB of
+ * the file, where the INFO and preset data are usually located, so that
+ * large files do not need to be read entirely.
+ */
+final class SoundFontBankCache {
+
+	/**
+	 * The magic number at the start of the cache file: "SFBC"
+	 */
+	private static final int MAGIC = 0x53464243;
+
+	/**
+	 * The version of the cache format. Increment with every change of the
+	 * format.
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * The number of bytes at the start and at the end of the SoundFont file
+	 * used for the hash
+	 */
+	private static final int HASH_BYTES = 65536;
+
+	private SoundFontInfo info;
+
+	private List<SoundFontBank> banks;
+
+	private long sampleDataOffset;
+
+	private long sampleDataLength;
+
+	private SoundFontBankCache() {
+		// only created by read()
+	}
+
+	/**
+	 * @return the SoundFont info
+	 */
+	SoundFontInfo getInfo() {
+		return info;
+	}
+
+	/**
+	 * @return the banks with the presets
+	 */
+	List<SoundFontBank> getBanks() {
+		return banks;
+	}
+
+	/**
+	 * @return the file position of the sample data (the smpl chunk's data)
+	 */
+	long getSampleDataOffset() {
+		return sampleDataOffset;
+	}
+
+	/**
+	 * @return the length of the sample data in bytes
+	 */
+	long getSampleDataLength() {
+		return sampleDataLength;
+	}
+
+	/**
+	 * Read the cache for the given SoundFont file.
+	 * 
+	 * @param cacheFile the cache file
+	 * @param soundFont the SoundFont file
+	 * @return the cached SoundFont, or null if the cache file does not exist,
+	 *         is outdated, or cannot be read
+	 */
+	static SoundFontBankCache read(File cacheFile, File soundFont) {
+		if (!cacheFile.exists()) {
+			return null;
+		}
+		try {
+			RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+			try {
+				ByteBuffer bb = raf.getChannel().map(
+						FileChannel.MapMode.READ_ONLY, 0, raf.length());
+				if (bb.getInt() != MAGIC || bb.getInt() != VERSION
+						|| bb.getLong() != soundFont.length()
+						|| bb.getLong() != soundFont.lastModified()
+						|| bb.getInt() != hash(soundFont)) {
+					if (Parser.TRACE_CACHE) {
+						debug("soundbank cache " + cacheFile + " is outdated");
+					}
+					return null;
+				}
+				SoundFontBankCache cache = new SoundFontBankCache();
+				cache.readContent(bb);
+				return cache;
+			} finally {
+				raf.close();
+			}
+		} catch (Exception e) {
+			// I/O error or corrupt cache
+			if (Parser.TRACE_CACHE) {
+				debug("cannot read soundbank cache " + cacheFile + ": " + e);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Write the cache for the given SoundFont file. The cache is written to
+	 * a temporary file first, so that a concurrent reader never sees a
+	 * partial cache.
+	 * 
+	 * @param cacheFile the cache file
+	 * @param soundFont the SoundFont file
+	 * @param info the parsed info
+	 * @param banks the parsed banks
+	 * @param sampleDataOffset the file position of the sample data
+	 * @param sampleDataLength the length of the sample data in bytes
+	 * @throws IOException on write error
+	 */
+	static void write(File cacheFile, File soundFont, SoundFontInfo info,
+			List<SoundFontBank> banks, long sampleDataOffset,
+			long sampleDataLength) throws IOException {
+		File tempFile = new File(cacheFile.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tempFile), 65536));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(soundFont.length());
+			out.writeLong(soundFont.lastModified());
+			out.writeInt(hash(soundFont));
+			writeContent(out, info, banks, sampleDataOffset, sampleDataLength);
+		} finally {
+			out.close();
+		}
+		cacheFile.delete();
+		if (!tempFile.renameTo(cacheFile)) {
+			tempFile.delete();
+			throw new IOException("cannot write soundbank cache " + cacheFile);
+		}
+		if (Parser.TRACE_CACHE) {
+			debug("wrote soundbank cache " + cacheFile + " ("
+					+ cacheFile.length() + " bytes)");
+		}
+	}
+
+	/**
+	 * Calculate the CRC32 of the first and the last HASH_BYTES of the file.
+	 */
+	private static int hash(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			CRC32 crc = new CRC32();
+			long length = raf.length();
+			byte[] buffer = new byte[(int) Math.min(length, HASH_BYTES)];
+			raf.readFully(buffer);
+			crc.update(buffer);
+			if (length > HASH_BYTES) {
+				raf.seek(Math.max(HASH_BYTES, length - HASH_BYTES));
+				int count = (int) (length - raf.getFilePointer());
+				raf.readFully(buffer, 0, count);
+				crc.update(buffer, 0, count);
+			}
+			return (int) crc.getValue();
+		} finally {
+			raf.close();
+		}
+	}
+
+	// writing
+
+	private static void writeContent(DataOutputStream out, SoundFontInfo info,
+			List<SoundFontBank> banks, long sampleDataOffset,
+			long sampleDataLength) throws IOException {
+		out.writeLong(sampleDataOffset);
+		out.writeLong(sampleDataLength);
+		writeInfo(out, info);
+
+		// number the presets, instruments, and samples in order of appearance
+		Map<Object, Integer> indexes = new IdentityHashMap<Object, Integer>();
+		List<SoundFontPreset> presets = new ArrayList<SoundFontPreset>();
+		List<SoundFontInstrument> insts = new ArrayList<SoundFontInstrument>();
+		List<SoundFontSample> samples = new ArrayList<SoundFontSample>();
+		for (SoundFontBank bank : banks) {
+			for (SoundFontPreset preset : bank.getPresets()) {
+				if (preset == null || indexes.containsKey(preset)) {
+					continue;
+				}
+				indexes.put(preset, presets.size());
+				presets.add(preset);
+				for (SoundFontPresetZone pz : preset.getZones()) {
+					SoundFontInstrument inst = pz.getInstrument();
+					if (inst == null || indexes.containsKey(inst)) {
+						continue;
+					}
+					indexes.put(inst, insts.size());
+					insts.add(inst);
+					for (SoundFontInstrumentZone iz : inst.getZones()) {
+						SoundFontSample sample = iz.getSample();
+						if (sample != null && !indexes.containsKey(sample)) {
+							indexes.put(sample, samples.size());
+							samples.add(sample);
+						}
+					}
+				}
+			}
+		}
+		// the instrument zones are numbered across all instruments, for the
+		// stereo links
+		int zoneIndex = 0;
+		for (SoundFontInstrument inst : insts) {
+			for (SoundFontInstrumentZone iz : inst.getZones()) {
+				indexes.put(iz, zoneIndex++);
+			}
+		}
+
+		out.writeInt(samples.size());
+		for (SoundFontSample sample : samples) {
+			writeString(out, sample.getName());
+			out.writeInt(sample.getStart());
+			out.writeInt(sample.getEnd());
+			out.writeInt(sample.getStartLoop());
+			out.writeInt(sample.getEndLoop());
+			out.writeFloat(sample.getSampleRate());
+			out.writeInt(sample.getOriginalPitch());
+			out.writeInt(sample.getPitchCorrection());
+			out.writeInt(sample.getSampleLinkIndex());
+			out.writeInt(sample.getSampleType());
+		}
+		out.writeInt(insts.size());
+		for (SoundFontInstrument inst : insts) {
+			writeString(out, inst.getName());
+			SoundFontInstrumentZone[] zones = inst.getZones();
+			out.writeInt(zones.length);
+			for (SoundFontInstrumentZone iz : zones) {
+				writeZone(out, iz);
+				out.writeInt(index(indexes, iz.getSample()));
+				out.writeInt(index(indexes, iz.getZoneLink()));
+			}
+		}
+		out.writeInt(presets.size());
+		for (SoundFontPreset preset : presets) {
+			writeString(out, preset.getName());
+			out.writeInt(preset.getMidiNumber());
+			out.writeInt(preset.getBank());
+			SoundFontPresetZone[] zones = preset.getZones();
+			out.writeInt(zones.length);
+			for (SoundFontPresetZone pz : zones) {
+				writeZone(out, pz);
+				out.writeInt(index(indexes, pz.getInstrument()));
+			}
+		}
+		out.writeInt(banks.size());
+		for (SoundFontBank bank : banks) {
+			out.writeInt(bank.getMidiNumber());
+			SoundFontPreset[] bankPresets = bank.getPresets();
+			out.writeInt(bankPresets.length);
+			for (SoundFontPreset preset : bankPresets) {
+				out.writeInt(index(indexes, preset));
+			}
+		}
+	}
+
+	private static int index(Map<Object, Integer> indexes, Object o) {
+		if (o == null) {
+			return -1;
+		}
+		Integer index = indexes.get(o);
+		return (index == null) ? -1 : index.intValue();
+	}
+
+	private static void writeInfo(DataOutputStream out, SoundFontInfo info)
+			throws IOException {
+		out.writeInt(info.getVersionMajor());
+		out.writeInt(info.getVersionMinor());
+		writeString(out, info.getName());
+		writeString(out, info.getSoundEngine());
+		writeString(out, info.getRomName());
+		out.writeInt(info.getROMVersionMajor());
+		out.writeInt(info.getROMVersionMinor());
+		writeString(out, info.getCreationDate());
+		writeString(out, info.getEngineer());
+		writeString(out, info.getProduct());
+		writeString(out, info.getCopyright());
+		writeString(out, info.getComment());
+		writeString(out, info.getSoftware());
+	}
+
+	private static void writeZone(DataOutputStream out, SoundFontZone zone)
+			throws IOException {
+		out.writeShort(zone.keyMin);
+		out.writeShort(zone.keyMax);
+		out.writeShort(zone.velMin);
+		out.writeShort(zone.velMax);
+		SoundFontGenerator[] gens = zone.getGenerators();
+		out.writeInt(gens.length);
+		for (SoundFontGenerator gen : gens) {
+			out.writeShort(gen.getOp());
+			out.writeShort(gen.getAmount());
+		}
+		SoundFontModulator[] mods = zone.getModulators();
+		out.writeInt(mods.length);
+		for (SoundFontModulator mod : mods) {
+			out.writeShort(mod.getSourceOp());
+			out.writeShort(mod.getDestOp());
+			out.writeShort(mod.getAmount());
+			out.writeShort(mod.getSourceOpAmount());
+			out.writeShort(mod.getTransform());
+		}
+	}
+
+	/**
+	 * Write a string as its length and UTF-8 bytes, or -1 for null.
+	 */
+	private static void writeString(DataOutputStream out, String s)
+			throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = s.getBytes("UTF-8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	// reading
+
+	private void readContent(ByteBuffer bb) throws IOException {
+		sampleDataOffset = bb.getLong();
+		sampleDataLength = bb.getLong();
+		info = readInfo(bb);
+
+		SoundFontSample[] samples = new SoundFontSample[readCount(bb, 40)];
+		for (int i = 0; i < samples.length; i++) {
+			samples[i] = new SoundFontSample(readString(bb), bb.getInt(),
+					bb.getInt(), bb.getInt(), bb.getInt(), bb.getFloat(),
+					bb.getInt(), bb.getInt(), bb.getInt(), bb.getInt());
+		}
+		SoundFontInstrument[] insts = new SoundFontInstrument[readCount(bb, 8)];
+		List<SoundFontInstrumentZone> allZones = new ArrayList<SoundFontInstrumentZone>();
+		List<Integer> links = new ArrayList<Integer>();
+		for (int i = 0; i < insts.length; i++) {
+			insts[i] = new SoundFontInstrument(readString(bb));
+			SoundFontInstrumentZone[] zones = new SoundFontInstrumentZone[readCount(bb, 24)];
+			for (int z = 0; z < zones.length; z++) {
+				int[] ranges = readRanges(bb);
+				SoundFontGenerator[] gens = readGenerators(bb);
+				SoundFontModulator[] mods = readModulators(bb);
+				int sample = bb.getInt();
+				zones[z] = new SoundFontInstrumentZone(gens, mods,
+						(sample < 0) ? null : samples[sample]);
+				zones[z].setRanges(ranges[0], ranges[1], ranges[2], ranges[3]);
+				allZones.add(zones[z]);
+				links.add(bb.getInt());
+			}
+			insts[i].setZones(zones);
+		}
+		for (int i = 0; i < allZones.size(); i++) {
+			int link = links.get(i);
+			if (link >= 0) {
+				allZones.get(i).setZoneLink(allZones.get(link));
+			}
+		}
+		SoundFontPreset[] presets = new SoundFontPreset[readCount(bb, 16)];
+		for (int i = 0; i < presets.length; i++) {
+			presets[i] = new SoundFontPreset(readString(bb), bb.getInt(),
+					bb.getInt());
+			SoundFontPresetZone[] zones = new SoundFontPresetZone[readCount(bb, 20)];
+			for (int z = 0; z < zones.length; z++) {
+				int[] ranges = readRanges(bb);
+				SoundFontGenerator[] gens = readGenerators(bb);
+				SoundFontModulator[] mods = readModulators(bb);
+				int inst = bb.getInt();
+				zones[z] = new SoundFontPresetZone(gens, mods,
+						(inst < 0) ? null : insts[inst]);
+				zones[z].setRanges(ranges[0], ranges[1], ranges[2], ranges[3]);
+			}
+			presets[i].setZones(zones);
+		}
+		int bankCount = readCount(bb, 8);
+		banks = new ArrayList<SoundFontBank>(bankCount);
+		for (int i = 0; i < bankCount; i++) {
+			SoundFontBank bank = new SoundFontBank(bb.getInt());
+			int count = readCount(bb, 4);
+			for (int p = 0; p < count; p++) {
+				int preset = bb.getInt();
+				if (preset >= 0) {
+					bank.setPreset(p, presets[preset]);
+				}
+			}
+			banks.add(bank);
+		}
+	}
+
+	private static SoundFontInfo readInfo(ByteBuffer bb) throws IOException {
+		SoundFontInfo info = new SoundFontInfo();
+		int major = bb.getInt();
+		info.setVersion(major, bb.getInt());
+		info.setName(readString(bb));
+		info.setSoundEngine(readString(bb));
+		info.setRomName(readString(bb));
+		major = bb.getInt();
+		info.setROMVersion(major, bb.getInt());
+		info.setCreationDate(readString(bb));
+		info.setEngineer(readString(bb));
+		info.setProduct(readString(bb));
+		info.setCopyright(readString(bb));
+		info.setComment(readString(bb));
+		info.setSoftware(readString(bb));
+		return info;
+	}
+
+	private static int[] readRanges(ByteBuffer bb) {
+		return new int[] {
+				bb.getShort(), bb.getShort(), bb.getShort(), bb.getShort()
+		};
+	}
+
+	private static SoundFontGenerator[] readGenerators(ByteBuffer bb)
+			throws IOException {
+		SoundFontGenerator[] gens = new SoundFontGenerator[readCount(bb, 4)];
+		for (int i = 0; i < gens.length; i++) {
+			int op = bb.getShort() & 0xFFFF;
+			gens[i] = new SoundFontGenerator(op, bb.getShort());
+		}
+		return gens;
+	}
+
+	private static SoundFontModulator[] readModulators(ByteBuffer bb)
+			throws IOException {
+		SoundFontModulator[] mods = new SoundFontModulator[readCount(bb, 10)];
+		for (int i = 0; i < mods.length; i++) {
+			int sourceOp = bb.getShort() & 0xFFFF;
+			int destOp = bb.getShort() & 0xFFFF;
+			short amount = bb.getShort();
+			int sourceOpAmount = bb.getShort() & 0xFFFF;
+			int transform = bb.getShort() & 0xFFFF;
+			mods[i] = new SoundFontModulator(sourceOp, destOp, amount,
+					sourceOpAmount, transform);
+		}
+		return mods;
+	}
+
+	/**
+	 * Read the number of elements of an array. A count that is negative, or
+	 * that cannot fit into the remaining bytes of the cache file, means that
+	 * the cache file is corrupt.
+	 * 
+	 * @param bb the buffer to read from
+	 * @param elementSize the minimum size of one element in bytes
+	 * @return the count
+	 * @throws IOException if the count is invalid
+	 */
+	private static int readCount(ByteBuffer bb, int elementSize)
+			throws IOException {
+		int count = bb.getInt();
+		if (count < 0 || (long) count * elementSize > bb.remaining()) {
+			throw new IOException("corrupt element count: " + count);
+		}
+		return count;
+	}
+
+	private static String readString(ByteBuffer bb) throws IOException {
+		int length = bb.getInt();
+		if (length < 0) {
+			return null;
+		}
+		if (length > bb.remaining()) {
+			throw new IOException("corrupt string length: " + length);
+		}
+		byte[] bytes = new byte[length];
+		bb.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
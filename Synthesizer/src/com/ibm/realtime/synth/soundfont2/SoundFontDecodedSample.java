@@ -0,0 +1,208 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ibm.realtime.synth.soundfont2;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ibm.realtime.synth.engine.Interpolator;
+
+/**
+ * The decoded audio data of one sample, in native endian short or float
+ * format. The decoded data has Interpolator.GUARD_SAMPLES guard samples
+ * before the start and after the end of the sample, so that the
+ * interpolators never need to check the array bounds. The guard before the
+ * start is silence. The guard after the end is silence, too, unless the loop
+ * ends at (or close to) the end of the sample: then the guard continues the
+ * loop.
+ * <p>
+ * A preroll only contains the beginning of a sample, a pinned loop only the
+ * samples from the loop start to the loop end. Their guards inside the
+ * sample contain the adjacent samples.
+ */
+final class SoundFontDecodedSample {
+
+	/**
+	 * The decoded data as 16-bit values, or null if decoded to float
+	 */
+	private final short[] shortData;
+
+	/**
+	 * The decoded data as normalized float values, or null if decoded to
+	 * short
+	 */
+	private final float[] floatData;
+
+	/**
+	 * The first sample position in the sample data
+	 */
+	private final int start;
+
+	/**
+	 * One after the last sample position in the sample data
+	 */
+	private final int end;
+
+	/**
+	 * True if the entire sample is decoded, false for a preroll or a loop
+	 */
+	private final boolean complete;
+
+	/**
+	 * The number of voices using this data. Voices return the data without
+	 * the lock of the SoundFontSampleData instance.
+	 */
+	final AtomicInteger users = new AtomicInteger();
+
+	/**
+	 * For a preroll: the entirely decoded sample once it is in the cache, so
+	 * that voices can switch to it without locking. Written with the lock of
+	 * the SoundFontSampleData instance.
+	 */
+	private volatile SoundFontDecodedSample loaded;
+
+	/**
+	 * Decode a range of the given sample.
+	 * 
+	 * @param data the sample data of the soundfont
+	 * @param sample the sample to decode
+	 * @param toFloat if true, decode to float, otherwise to short
+	 * @param from the first sample position to decode: the start of the
+	 *            sample, or the loop start for a pinned loop
+	 * @param length the number of samples to decode: up to the end of the
+	 *            sample, or less for a preroll or a pinned loop
+	 */
+	SoundFontDecodedSample(SoundFontSampleData data, SoundFontSample sample,
+			boolean toFloat, int from, int length) {
+		int guard = Interpolator.GUARD_SAMPLES;
+		start = from;
+		end = Math.min(from + length, sample.getEnd());
+		boolean toEnd = (end == sample.getEnd());
+		complete = (start == sample.getStart() && toEnd);
+		int count = end - start;
+		short[] s = new short[count + 2 * guard];
+		// the guards inside the sample are the adjacent samples
+		int readFrom = (start > sample.getStart()) ? start - guard : start;
+		int readEnd = toEnd ? end : end + guard;
+		data.read(readFrom, s, guard - (start - readFrom), readEnd - readFrom);
+		// continue the loop into the trailing guard
+		int loopStart = sample.getStartLoop();
+		int loopEnd = sample.getEndLoop();
+		if (toEnd && loopStart >= start && loopEnd > loopStart
+				&& loopEnd <= end && end - loopEnd < guard) {
+			int loopLength = loopEnd - loopStart;
+			for (int pos = end; pos < end + guard; pos++) {
+				int src = loopStart + ((pos - loopEnd) % loopLength);
+				s[guard + pos - start] = s[guard + src - start];
+			}
+		}
+		if (toFloat) {
+			float[] f = new float[s.length];
+			for (int i = 0; i < s.length; i++) {
+				f[i] = s[i] * (1.0f / 32768.0f);
+			}
+			floatData = f;
+			shortData = null;
+		} else {
+			shortData = s;
+			floatData = null;
+		}
+	}
+
+	short[] getShortData() {
+		return shortData;
+	}
+
+	float[] getFloatData() {
+		return floatData;
+	}
+
+	/**
+	 * @return the value to add to a sample position to get the index in the
+	 *         decoded arrays
+	 */
+	int getIndexOffset() {
+		return Interpolator.GUARD_SAMPLES - start;
+	}
+
+	/**
+	 * @return the first sample position in the sample data
+	 */
+	int getStart() {
+		return start;
+	}
+
+	/**
+	 * @return one after the last decoded sample position
+	 */
+	int getEnd() {
+		return end;
+	}
+
+	/**
+	 * @return true if the entire sample is decoded, false for a preroll or a
+	 *         loop
+	 */
+	boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return true if the data is decoded to float
+	 */
+	boolean isFloat() {
+		return floatData != null;
+	}
+
+	/**
+	 * @return for a preroll, the entirely decoded sample if it is in the
+	 *         cache, otherwise null
+	 */
+	SoundFontDecodedSample getLoaded() {
+		return loaded;
+	}
+
+	void setLoaded(SoundFontDecodedSample loaded) {
+		this.loaded = loaded;
+	}
+
+	/**
+	 * @return true if all sample positions in between start and end can be
+	 *         read from the decoded data
+	 */
+	boolean covers(int start, int end) {
+		return start >= this.start && end <= this.end;
+	}
+
+	/**
+	 * @return the size of the decoded data in bytes
+	 */
+	int getSize() {
+		if (shortData != null) {
+			return shortData.length * 2;
+		}
+		return floatData.length * 4;
+	}
+}
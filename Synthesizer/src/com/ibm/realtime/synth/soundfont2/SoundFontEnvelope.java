@@ -139,6 +139,24 @@ public class SoundFontEnvelope {
 	 * Create an envelope without any influence on pitch, volume, or cutoff.
 	 */
 	public SoundFontEnvelope(AudioTime time) {
+		reset(time);
+	}
+
+	/**
+	 * Reset all parameters to the initial values of a new instance, so that
+	 * this envelope can be reused for a new note.
+	 */
+	void reset(AudioTime time) {
+		pitch = 0.0;
+		volume = 0.0;
+		cutoff = 0.0;
+		keyNumToHoldTimeCents = 0;
+		keyNumToDecayTimeCents = 0;
+		key = 0;
+		nextSegmentStartTime = 0.0;
+		value = 0.0;
+		releaseLevel = 0.0;
+		segment = DELAY;
 		startTime = time.getNanoTime();
 		segmentStartTime = 0.0;
 		// set default values
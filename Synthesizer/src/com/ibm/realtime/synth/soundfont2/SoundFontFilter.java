@@ -1,7 +1,7 @@
 package com.ibm.realtime.synth.soundfont2;
 
 import com.ibm.realtime.synth.engine.*;
-import org.jsresources.utils.audio.AudioUtils;
+import com.ibm.realtime.synth.utils.FastMath;
 
 import org.tritonus.share.sampled.AudioBuffer;
 
@@ -110,6 +110,38 @@ public class SoundFontFilter {
 		this.owner = owner;
 	}
 
+	/**
+	 * Reset all parameters and the filter state to the initial values, so
+	 * that this instance can be reused for a new note.
+	 */
+	void reset() {
+		enabled = false;
+		initialCutoffCents = 13500;
+		initialNormalizedCutoff = 1.0f;
+		cutoffController = 0.0f;
+		initialResonanceCB = 0;
+		initialNormalizedResonance = 0.0f;
+		resonanceController = 0.0f;
+		currentSampleRate = 0.0f;
+		currentCutOffOffset = 0.0f;
+		F1 = 0.0f;
+		Q1 = 0.0f;
+		lastLP = 0.0f;
+		lastBP = 0.0f;
+		lastCutoffOffset = -100000.0f;
+		lastCutoff = 1.0f;
+		lastResonanceOffset = -100000.0f;
+		lastResonance = 0.0f;
+	}
+
+	/**
+	 * @return true if the cutoff is currently audible, i.e. if process() will
+	 *         actually filter the samples
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
 	/**
 	 * Must be called after initializing the initial cutoff and resonance.
 	 */
@@ -154,7 +186,56 @@ public class SoundFontFilter {
 		if (enabled) {
 			// this filter only operates on one channel, so only use the first
 			// one
-			process(buffer.getChannel(0), buffer.getSampleCount());
+			process(buffer.getChannel(0), 0, buffer.getSampleCount());
+		}
+	}
+
+	/**
+	 * Apply the low pass filter to a part of the buffer. The filter state is
+	 * kept, so consecutive parts can be filtered with different cutoff
+	 * values.
+	 * 
+	 * @param buffer - the audio buffer to filter
+	 * @param offset - the first sample to filter
+	 * @param count - the number of samples to filter
+	 */
+	public void process(AudioBuffer buffer, int offset, int count) {
+		// check if the samplerate has changed
+		if (buffer.getSampleRate() != currentSampleRate) {
+			setSampleRate(buffer.getSampleRate());
+			calcFilter();
+		}
+		if (enabled) {
+			process(buffer.getChannel(0), offset, offset + count);
+		}
+	}
+
+	/**
+	 * Set up the kernel to run this filter while mixing.
+	 * 
+	 * @param kernel - the kernel for fused rendering
+	 * @param sampleRate - the sample rate of the rendered samples
+	 */
+	void loadKernel(MixKernel kernel, float sampleRate) {
+		// check if the samplerate has changed
+		if (sampleRate != currentSampleRate) {
+			setSampleRate(sampleRate);
+			calcFilter();
+		}
+		if (enabled) {
+			kernel.setFilter(F1, Q1, lastLP, lastBP);
+		} else {
+			kernel.setFilterOff();
+		}
+	}
+
+	/**
+	 * Take over the filter state from the kernel after mixing.
+	 */
+	void storeKernel(MixKernel kernel) {
+		if (enabled) {
+			lastLP = kernel.getFilterLowPass();
+			lastBP = kernel.getFilterBandPass();
 		}
 	}
 
@@ -270,7 +351,7 @@ public class SoundFontFilter {
 			resInDB = 0.0f;
 		}
 		this.initialNormalizedResonance = (float)
-				AudioUtils.decibel2linear(/*DB_TO_RESONANCE_SCALING * */ -resInDB);
+				FastMath.decibel2linear(/*DB_TO_RESONANCE_SCALING * */ -resInDB);
 		if (DEBUG_LP) {
 			debug(" Low Pass: resInDB="+format3(resInDB)+" -> calculated normalized initial resonance: "
 					+ format3(initialNormalizedResonance));
@@ -312,7 +393,7 @@ public class SoundFontFilter {
 		float cutoffOffset = currentCutOffOffset + cutoffController;
 		if (cutoffOffset != lastCutoffOffset) {
 			float cutoffOffsetFactor = (float)
-					AudioUtils.getSamplerateFactorFromRelativeNote(cutoffOffset);
+					FastMath.semitones2factor(cutoffOffset);
 			// the effective cutoff is the product
 			cutoff = initialNormalizedCutoff * cutoffOffsetFactor;
 			
@@ -343,7 +424,7 @@ public class SoundFontFilter {
 		float resonance;
 		if (lastResonanceOffset != resonanceController) {
 			float resonanceOffsetFactor = (float)
-					AudioUtils.decibel2linear(/*DB_TO_RESONANCE_SCALING * */
+					FastMath.decibel2linear(/*DB_TO_RESONANCE_SCALING * */
 							-resonanceController);
 			resonance = initialNormalizedResonance * resonanceOffsetFactor;
 			//if (resonance < 1.0) {
@@ -379,14 +460,14 @@ public class SoundFontFilter {
 		}
 	}
 
-	private void process(float[] samples, int count) {
+	private void process(float[] samples, int start, int end) {
 		// use local variables for more efficient access
 		float localLastLP = lastLP;
 		float localLastBP = lastBP;
 		float localF1 = F1;
 		float localQ1 = Q1;
 		
-		for (int i = 0; i < count; i++) {
+		for (int i = start; i < end; i++) {
 			localLastBP += localF1 * (samples[i] - localLastLP - localQ1 * localLastBP);
 			localLastLP += localF1 * localLastBP;
 			samples[i] = localLastLP;
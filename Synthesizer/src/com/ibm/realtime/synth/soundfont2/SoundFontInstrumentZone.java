@@ -85,6 +85,14 @@ public class SoundFontInstrumentZone extends SoundFontZone {
 		slaveZone.makeInaccessible();
 	}
 	
+	/**
+	 * Set the linked zone without changing the ranges, for restoring a zone
+	 * from the soundbank cache.
+	 */
+	void setZoneLink(SoundFontInstrumentZone zoneLink) {
+		this.zoneLink = zoneLink;
+	}
+
 	public boolean isValid() {
 		return (sample != null) && (keyMin>=0);
 	}
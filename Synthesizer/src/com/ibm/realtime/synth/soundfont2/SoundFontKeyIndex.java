@@ -0,0 +1,94 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ibm.realtime.synth.soundfont2;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the lookup table of regions by MIDI key. For each of the 128 keys,
+ * the table has the array of the items whose key range contains the key, in
+ * their original order. Adjacent keys with the same items share
+ * the array, and keys without items share an empty array, so the table is
+ * small. A note-on then only checks the velocity ranges of the few items
+ * for its key, without allocating a list.
+ */
+final class SoundFontKeyIndex {
+
+	/**
+	 * The number of MIDI keys
+	 */
+	static final int KEYS = 128;
+
+	private SoundFontKeyIndex() {
+		// no instances
+	}
+
+	/**
+	 * Build the key table of items. An item is excluded if its keyMin is
+	 * larger than its keyMax.
+	 * 
+	 * @param items the regions to index, in the order they are played
+	 * @param keyMin the lowest key of each item
+	 * @param keyMax the highest key of each item
+	 * @return an array of 128 arrays, none of them null
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> T[][] build(T[] items, int[] keyMin, int[] keyMax) {
+		Class<?> type = items.getClass().getComponentType();
+		T[][] result = (T[][]) Array.newInstance(items.getClass(), KEYS);
+		T[] empty = (T[]) Array.newInstance(type, 0);
+		List<T> keyItems = new ArrayList<T>();
+		T[] prev = empty;
+		for (int key = 0; key < KEYS; key++) {
+			keyItems.clear();
+			for (int i = 0; i < items.length; i++) {
+				if (key >= keyMin[i] && key <= keyMax[i]) {
+					keyItems.add(items[i]);
+				}
+			}
+			if (!equals(prev, keyItems)) {
+				prev = keyItems.toArray((T[]) Array.newInstance(type,
+						keyItems.size()));
+			}
+			result[key] = prev;
+		}
+		return result;
+	}
+
+	private static <T> boolean equals(T[] array, List<T> list) {
+		if (array.length != list.size()) {
+			return false;
+		}
+		for (int i = 0; i < array.length; i++) {
+			if (array[i] != list.get(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
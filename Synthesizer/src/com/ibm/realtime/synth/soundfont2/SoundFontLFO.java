@@ -40,6 +40,11 @@ public class SoundFontLFO {
 
 	public static boolean DEBUG_LFO = false;
 
+	/**
+	 * The default frequency, in hertz.
+	 */
+	private static final double DEFAULT_FREQUENCY = cents2hertzLFO(0);
+
 	// for debugging
 	String name;
 
@@ -77,7 +82,7 @@ public class SoundFontLFO {
 	/**
 	 * The frequency, in hertz.
 	 */
-	private double frequency = cents2hertzLFO(0);
+	private double frequency = DEFAULT_FREQUENCY;
 
 	// runtime variables
 
@@ -101,7 +106,23 @@ public class SoundFontLFO {
 	 * Create an LFO without any influence on pitch, volume, or cutoff.
 	 */
 	public SoundFontLFO(AudioTime time) {
+		reset(time);
+	}
+
+	/**
+	 * Reset all parameters to the initial values of a new instance, so that
+	 * this LFO can be reused for a new note.
+	 */
+	void reset(AudioTime time) {
+		pitch = 0.0;
+		runtimePitchOffset = 0.0;
+		volume = 0.0;
+		cutoff = 0.0;
+		delay = DEFAULT_ARTICULATION_DELAY;
+		frequency = DEFAULT_FREQUENCY;
 		startTime = time.getMicroTime();
+		period = 0.0;
+		value = 0.0;
 	}
 
 	/**
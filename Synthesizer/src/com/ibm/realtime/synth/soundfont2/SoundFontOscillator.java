@@ -32,8 +32,141 @@ import org.tritonus.share.sampled.ConversionTool;
 
 public class SoundFontOscillator extends Oscillator {
 
+	/**
+	 * Return value of selectSource(): read the native bytes
+	 */
+	private static final int SOURCE_NATIVE = 0;
+
+	/**
+	 * Return value of selectSource(): read the block's typed array
+	 */
+	private static final int SOURCE_ARRAY = 1;
+
+	/**
+	 * Return value of selectSource(): the streamed samples are not
+	 * available, render silence
+	 */
+	private static final int SOURCE_SILENCE = 2;
+
+	/**
+	 * The size of the windows, allocated by reset(). A block that needs a
+	 * larger window is rendered in parts.
+	 */
+	private static final int WINDOW_SAMPLES = 2048;
+
+	/**
+	 * The played sample
+	 */
+	private SoundFontSample sample;
+
+	/**
+	 * The sample data of the soundbank
+	 */
+	private SoundFontSampleData sampleData;
+
+	/**
+	 * The decoded sample from the sample data's cache, or null. It may be a
+	 * preroll.
+	 */
+	private SoundFontDecodedSample decoded;
+
+	/**
+	 * The end of the decoded data: the decoded data is only used for blocks
+	 * that do not read from this position on.
+	 */
+	private int decodedEnd;
+
+	/**
+	 * The decoded data used for rendering, or null to read the native bytes
+	 */
+	private short[] decodedShorts;
+
+	/**
+	 * The decoded data used for rendering, or null to read the native bytes
+	 */
+	private float[] decodedFloats;
+
+	/**
+	 * The value to add to nativePos to get the index in the decoded data
+	 */
+	private int decodedIndexOffset;
+
+	/**
+	 * When streaming a looped sample: the pinned loop, or null
+	 */
+	private SoundFontDecodedSample loop;
+
+	/**
+	 * The stream of this oscillator, created on first use and reused for
+	 * all notes
+	 */
+	private SoundFontSampleStream stream;
+
+	/**
+	 * True if the stream is used for the current note
+	 */
+	private boolean streaming;
+
+	/**
+	 * One after the last sample position that the stream may be restarted
+	 * for
+	 */
+	private int streamLimit;
+
+	/**
+	 * True once the stream reads ahead the samples after the pinned loop,
+	 * for the release
+	 */
+	private boolean tailStreamed;
+
+	/**
+	 * The samples read from the mapped or streamed data for the current
+	 * block
+	 */
+	private short[] window;
+
+	/**
+	 * The current block for a sinc tier, with the samples after the loop end
+	 * replaced by the samples after the loop start
+	 */
+	private short[] loopWindow;
+	private float[] loopWindowFloats;
+
+	/**
+	 * The read position of the previous block, and true once the read
+	 * position jumped back to the loop start. Updated for every block in all
+	 * tiers, so that a sinc tier wraps correctly after a change of the tier.
+	 */
+	private double lastBlockPos;
+	private boolean looped;
+
+	/**
+	 * The typed array for the current block, set by selectSource()
+	 */
+	private short[] blockShorts;
+	private float[] blockFloats;
+	private int blockIndexOffset;
+
 	public SoundFontOscillator(SoundFontSample sample,
 			SoundFontSampleData sampleData) {
+		reset(sample, sampleData);
+	}
+
+	/**
+	 * Create an oscillator for a pooled voice. It must be set up with
+	 * reset(SoundFontSample, SoundFontSampleData) before use.
+	 */
+	SoundFontOscillator() {
+		// nothing
+	}
+
+	/**
+	 * Reset all state and set up this oscillator for playing the given
+	 * sample.
+	 */
+	void reset(SoundFontSample sample, SoundFontSampleData sampleData) {
+		free();
+		reset();
 		setNativeAudioFormat(sample.getSampleRate(), 16, 2, 1, true, false);
 		this.nativeSamples = sampleData.getData();
 		this.nativeSamplesStartPos = sample.getStart();
@@ -41,15 +174,415 @@ public class SoundFontOscillator extends Oscillator {
 
 		this.loopStart = sample.getStartLoop();
 		this.loopEnd = sample.getEndLoop();
+		this.sample = sample;
+		this.sampleData = sampleData;
+		this.decoded = sampleData.acquireDecodedSample(sample);
+		this.decodedShorts = null;
+		this.decodedFloats = null;
+		if (window == null) {
+			window = new short[WINDOW_SAMPLES];
+			loopWindow = new short[WINDOW_SAMPLES];
+			loopWindowFloats = new float[WINDOW_SAMPLES];
+		}
+	}
+
+	/**
+	 * @return the maximum number of output samples of a part of a block, so
+	 *         that the window of the part fits into WINDOW_SAMPLES
+	 */
+	private int getMaxPartCount() {
+		int guard = Interpolator.GUARD_SAMPLES;
+		int count = (int) ((WINDOW_SAMPLES - 2 * guard - 2) / nativePosDelta);
+		return (count < 1) ? 1 : count;
+	}
+
+	/**
+	 * Use the decoded sample if it covers the play range and the loop, as
+	 * modified by the generators. Otherwise read the native bytes, or the
+	 * mapped data. When streaming, pin the loop and start the stream for the
+	 * samples after the preroll.
+	 */
+	public void init() {
+		super.init();
+		lastBlockPos = 0.0;
+		looped = false;
+		useDecoded();
+		if (sampleData.isStreamed()
+				&& (decoded == null || !decoded.isComplete())) {
+			initStream();
+		}
+	}
+
+	private void initStream() {
+		int guard = Interpolator.GUARD_SAMPLES;
+		if (loopMode != LOOPMODE_NONE) {
+			loop = sampleData.acquireLoop(sample, (int) loopStart,
+					(int) loopEnd);
+			if (loop != null
+					&& !loop.covers((int) loopStart, (int) loopEnd)) {
+				sampleData.releaseDecodedSample(loop);
+				loop = null;
+			}
+		}
+		int headEnd = nativeSamplesStartPos;
+		if (decodedShorts != null || decodedFloats != null) {
+			headEnd = decodedEnd;
+		}
+		int readAhead = sampleData.getStreamReadAhead();
+		int streamEnd;
+		if (loop != null) {
+			// blocks crossing the loop start read from the stream, also if
+			// the preroll reaches the loop: a block can start in the preroll
+			// and end after it
+			headEnd = Math.min(headEnd, loop.getStart());
+			streamEnd = Math.min(nativeSamplesEndPos, loop.getStart()
+					+ readAhead / 2);
+		} else {
+			streamEnd = nativeSamplesEndPos;
+		}
+		int streamStart = Math.max(nativeSamplesStartPos, headEnd
+				- readAhead / 2);
+		if (stream == null) {
+			stream = sampleData.createStream();
+		}
+		streamLimit = nativeSamplesEndPos + guard + 1;
+		tailStreamed = false;
+		stream.start(streamStart, streamEnd + guard + 1,
+				nativeSamplesStartPos - guard, readAhead);
+		streaming = true;
+	}
+
+	/**
+	 * Set up the typed arrays of the decoded sample.
+	 * 
+	 * @return true if the decoded sample can be used
+	 */
+	private boolean useDecoded() {
+		decodedShorts = null;
+		decodedFloats = null;
+		if (decoded == null || nativeFormatCode != ConversionTool.CT_16SL
+				|| nativeSamplesStartPos < decoded.getStart()
+				|| (loopMode != LOOPMODE_NONE && loopStart < decoded.getStart())) {
+			return false;
+		}
+		if (decoded.isComplete()) {
+			if (!decoded.covers(nativeSamplesStartPos, nativeSamplesEndPos)
+					|| (loopMode != LOOPMODE_NONE && !decoded.covers(
+							(int) loopStart, (int) loopEnd))) {
+				return false;
+			}
+			decodedEnd = Integer.MAX_VALUE;
+		} else {
+			decodedEnd = decoded.getEnd();
+		}
+		decodedShorts = decoded.getShortData();
+		decodedFloats = decoded.getFloatData();
+		decodedIndexOffset = decoded.getIndexOffset();
+		return true;
+	}
+
+	/**
+	 * Check if the next block of count samples can be read from the decoded
+	 * data. If the block reaches beyond a preroll, switch to the entire
+	 * sample if the maintenance thread has decoded it already. The preroll
+	 * holds the reference to the entire sample, so this does not lock.
+	 */
+	private boolean decodedCovers(int count) {
+		if (((int) (nativePos + count * nativePosDelta)) < decodedEnd) {
+			return true;
+		}
+		SoundFontDecodedSample full = decoded.getLoaded();
+		if (full == null) {
+			// read from the sample data until the sample is loaded;
+			// streamed samples are never loaded entirely
+			return false;
+		}
+		full.users.incrementAndGet();
+		sampleData.releaseDecodedSample(decoded);
+		decoded = full;
+		return useDecoded();
+	}
+
+	/**
+	 * Select the source for the next block of count samples: the decoded
+	 * sample, the pinned loop, the stream, a window read from the mapped or
+	 * streamed data, or the native bytes.
+	 * 
+	 * @return SOURCE_NATIVE, SOURCE_ARRAY, or SOURCE_SILENCE
+	 */
+	private int selectSource(int count) {
+		int guard = Interpolator.GUARD_SAMPLES;
+		int first = ((int) nativePos) - guard;
+		if (streaming) {
+			stream.advance(first);
+		}
+		if ((decodedShorts != null || decodedFloats != null)
+				&& decodedCovers(count)) {
+			blockShorts = decodedShorts;
+			blockFloats = decodedFloats;
+			blockIndexOffset = decodedIndexOffset;
+			return SOURCE_ARRAY;
+		}
+		if (loop != null && first + guard >= loop.getStart()
+				&& ((int) (nativePos + (count - 1) * nativePosDelta)) < loop.getEnd()) {
+			// the oscillator splits the blocks at the loop end, the taps
+			// after the loop end read the guard of the pinned loop
+			if (streaming && !tailStreamed
+					&& loopMode != LOOPMODE_CONTINOUSLY) {
+				// the head is played: read ahead the release
+				tailStreamed = true;
+				stream.start(loop.getEnd(), streamLimit, loop.getEnd(),
+						sampleData.getStreamReadAhead());
+			}
+			blockShorts = loop.getShortData();
+			blockFloats = loop.getFloatData();
+			blockIndexOffset = loop.getIndexOffset();
+			return SOURCE_ARRAY;
+		}
+		if (nativeSamples != null) {
+			return SOURCE_NATIVE;
+		}
+		int size = ((int) (nativePos + count * nativePosDelta)) + guard + 1
+				- first;
+		if (size > window.length) {
+			// only for an extreme pitch, where a single sample does not fit
+			return SOURCE_SILENCE;
+		}
+		blockShorts = window;
+		blockFloats = null;
+		blockIndexOffset = -first;
+		if (streaming) {
+			int split = first;
+			if (loop != null && first + guard >= loop.getStart()
+					&& first < loop.getEnd()) {
+				// released in the pinned loop: the samples up to the loop
+				// end are read from the loop, the rest from the stream
+				split = loop.getEnd();
+			}
+			int result = stream.read(split, window, split - first, size
+					- (split - first));
+			if (result == SoundFontSampleStream.AVAILABLE) {
+				if (split > first) {
+					return copyLoopHead(first, split, size);
+				}
+				return SOURCE_ARRAY;
+			}
+			sampleData.countUnderrun();
+			if (result == SoundFontSampleStream.UNAVAILABLE
+					&& first + size <= streamLimit
+					&& size <= sampleData.getStreamReadAhead() / 2) {
+				// not in the stream, e.g. after looping without a pinned
+				// loop: never read the file on the rendering thread, but
+				// restart the stream at this block
+				stream.start(Math.max(split, 0), streamLimit, split,
+						sampleData.getStreamReadAhead());
+			}
+			return SOURCE_SILENCE;
+		}
+		sampleData.read(first, window, 0, size);
+		return SOURCE_ARRAY;
+	}
+
+	/**
+	 * Complete the window of a block that starts in the pinned loop and ends
+	 * after it: copy the samples from first to split - 1 from the loop. The
+	 * samples from split are read from the stream already.
+	 * 
+	 * @return SOURCE_ARRAY
+	 */
+	private int copyLoopHead(int first, int split, int size) {
+		int offset = loop.getIndexOffset();
+		short[] loopShorts = loop.getShortData();
+		if (loopShorts != null) {
+			System.arraycopy(loopShorts, first + offset, window, 0, split
+					- first);
+			return SOURCE_ARRAY;
+		}
+		float[] loopFloats = loop.getFloatData();
+		System.arraycopy(loopFloats, first + offset, loopWindowFloats, 0,
+				split - first);
+		for (int i = split - first; i < size; i++) {
+			loopWindowFloats[i] = window[i] * (1.0f / 32768.0f);
+		}
+		blockShorts = null;
+		blockFloats = loopWindowFloats;
+		return SOURCE_ARRAY;
+	}
+
+	/**
+	 * Return the decoded sample and the pinned loop to the cache, and stop
+	 * streaming.
+	 */
+	public void free() {
+		if (decoded != null) {
+			sampleData.releaseDecodedSample(decoded);
+			decoded = null;
+		}
+		if (loop != null) {
+			sampleData.releaseDecodedSample(loop);
+			loop = null;
+		}
+		if (streaming) {
+			stream.stop();
+			streaming = false;
+		}
+		decodedShorts = null;
+		decodedFloats = null;
+		blockShorts = null;
+		blockFloats = null;
+	}
+
+	/**
+	 * For the sinc tiers: once the loop is played, the taps reach beyond the
+	 * loop end, and after jumping back also before the loop start. In that
+	 * case, copy the next block of count samples to the loop window, with
+	 * the samples outside of the loop replaced by the samples at the other
+	 * end of the loop. The other tiers read at most 2 samples beyond the
+	 * loop end, which are supposed to continue the loop in a SoundFont.
+	 * Blocks read from the stream are not wrapped, because they do not
+	 * contain the entire loop.
+	 * 
+	 * @return the new source
+	 */
+	private int wrapLoop(int source, int count) {
+		trackLoop();
+		if (loopMode == LOOPMODE_NONE || source == SOURCE_SILENCE
+				|| Interpolator.getTaps(interpolation) == 0) {
+			return source;
+		}
+		int guard = Interpolator.GUARD_SAMPLES;
+		int start = (int) loopStart;
+		int end = (int) loopEnd;
+		int first = ((int) nativePos) - guard;
+		int last = ((int) (nativePos + count * nativePosDelta)) + guard + 1;
+		if (end <= start || first >= end || (last <= end
+				&& (!looped || first >= start))) {
+			return source;
+		}
+		int size = last - first;
+		int length = end - start;
+		if (size > loopWindow.length) {
+			// only for an extreme pitch, where a single sample does not fit
+			return source;
+		}
+		if (source == SOURCE_ARRAY) {
+			if (blockShorts != null && blockShorts == window) {
+				return source;
+			}
+			int arrayLength = (blockShorts != null) ? blockShorts.length
+					: blockFloats.length;
+			if (start + blockIndexOffset < 0
+					|| end + blockIndexOffset > arrayLength) {
+				// a preroll that does not contain the entire loop
+				return source;
+			}
+		} else if (nativeFormatCode != ConversionTool.CT_16SL) {
+			return source;
+		}
+		if (source == SOURCE_ARRAY && blockFloats != null) {
+			for (int i = 0; i < size; i++) {
+				loopWindowFloats[i] = blockFloats[wrap(first + i, start, end,
+						length) + blockIndexOffset];
+			}
+			blockFloats = loopWindowFloats;
+		} else {
+			if (source == SOURCE_ARRAY) {
+				for (int i = 0; i < size; i++) {
+					loopWindow[i] = blockShorts[wrap(first + i, start, end,
+							length) + blockIndexOffset];
+				}
+			} else {
+				// only the native bytes exist: not for mapped or streamed data
+				int frames = nativeSamples.length >> 1;
+				for (int i = 0; i < size; i++) {
+					int pos = wrap(first + i, start, end, length);
+					if (pos >= 0 && pos < frames) {
+						int b = pos << 1;
+						loopWindow[i] = (short) ((nativeSamples[b] & 0xFF) | (nativeSamples[b + 1] << 8));
+					} else {
+						loopWindow[i] = 0;
+					}
+				}
+			}
+			blockShorts = loopWindow;
+			blockFloats = null;
+		}
+		blockIndexOffset = -first;
+		return SOURCE_ARRAY;
+	}
+
+	/**
+	 * Remember if the read position jumped back to the loop start since the
+	 * previous block.
+	 */
+	private void trackLoop() {
+		if (nativePos < lastBlockPos) {
+			looped = true;
+		}
+		lastBlockPos = nativePos;
+	}
+
+	/**
+	 * @return the sample position pos, wrapped into the loop if it is beyond
+	 *         the loop end, or before the loop start once the loop is played
+	 */
+	private int wrap(int pos, int start, int end, int length) {
+		if (pos >= end) {
+			return start + ((pos - end) % length);
+		}
+		if (looped && pos < start) {
+			return end - 1 - ((start - 1 - pos) % length);
+		}
+		return pos;
 	}
 
 	protected void convertOneBlock(AudioBuffer buffer, int offset, int count) {
 		assert(buffer.getChannelCount()==1);
+		int part = getMaxPartCount();
+		while (count > part) {
+			convertPart(buffer, offset, part);
+			nativePos += part * nativePosDelta;
+			offset += part;
+			count -= part;
+		}
+		convertPart(buffer, offset, count);
+	}
+
+	/**
+	 * Convert a part of a block whose window fits into WINDOW_SAMPLES.
+	 */
+	private void convertPart(AudioBuffer buffer, int offset, int count) {
+		int source = wrapLoop(selectSource(count), count);
+		if (source == SOURCE_ARRAY) {
+			if (blockShorts != null) {
+				Interpolator.interpolate(interpolation, blockShorts,
+						blockIndexOffset, nativePos, nativePosDelta,
+						buffer.getChannel(0), offset, count);
+			} else {
+				Interpolator.interpolate(interpolation, blockFloats,
+						blockIndexOffset, nativePos, nativePosDelta,
+						buffer.getChannel(0), offset, count);
+			}
+			return;
+		}
+		if (source == SOURCE_SILENCE) {
+			float[] data = buffer.getChannel(0);
+			for (int i = offset + count - 1; i >= offset; i--) {
+				data[i] = 0.0f;
+			}
+			return;
+		}
 		// optimization for the most common soundfont format: 16-bit signed, little endian
 		if (nativeFormatCode == ConversionTool.CT_16SL) {
-			ConversionTool.byte2floatLSRC_16SL(nativeSamples,0, nativeChannels,
-					nativePos, nativePosDelta, buffer.getChannel(0),
-					offset, count);
+			if (interpolation == Interpolator.LINEAR) {
+				ConversionTool.byte2floatLSRC_16SL(nativeSamples, 0,
+						nativeChannels, nativePos, nativePosDelta,
+						buffer.getChannel(0), offset, count);
+			} else {
+				Interpolator.interpolate16(interpolation, nativeSamples,
+						nativePos, nativePosDelta, buffer.getChannel(0),
+						offset, count);
+			}
 		} else {
 			ConversionTool.byte2floatGenericLSRC(nativeSamples,
 					0, nativeSampleSize, nativePos,
@@ -58,6 +591,56 @@ public class SoundFontOscillator extends Oscillator {
 		}
 	}
 
+	protected void mixOneBlock(float[] left, float[] right, int offset,
+			int count, MixKernel kernel) {
+		if (interpolation != Interpolator.LINEAR) {
+			// other tiers interpolate to the kernel's scratch buffer first
+			super.mixOneBlock(left, right, offset, count, kernel);
+			return;
+		}
+		int part = getMaxPartCount();
+		while (count > part) {
+			mixPart(left, right, offset, part, kernel);
+			nativePos += part * nativePosDelta;
+			offset += part;
+			count -= part;
+		}
+		mixPart(left, right, offset, count, kernel);
+	}
+
+	/**
+	 * Mix a part of a block whose window fits into WINDOW_SAMPLES with the
+	 * linear tier.
+	 */
+	private void mixPart(float[] left, float[] right, int offset, int count,
+			MixKernel kernel) {
+		// the linear tier does not wrap, but keeps the loop state
+		trackLoop();
+		int source = selectSource(count);
+		if (source == SOURCE_ARRAY) {
+			if (blockShorts != null) {
+				kernel.mixLinear(blockShorts, blockIndexOffset, nativePos,
+						nativePosDelta, left, right, offset, count);
+			} else {
+				kernel.mixLinear(blockFloats, blockIndexOffset, nativePos,
+						nativePosDelta, left, right, offset, count);
+			}
+		} else if (source == SOURCE_SILENCE) {
+			// mix silence so that the volume ramp and the filter advance
+			float[] silence = kernel.getScratchBuffer(count, outSampleRate)
+					.getChannel(0);
+			for (int i = 0; i < count; i++) {
+				silence[i] = 0.0f;
+			}
+			kernel.mixFloat(silence, 0, left, right, offset, count);
+		} else if (nativeFormatCode == ConversionTool.CT_16SL) {
+			kernel.mix16(nativeSamples, nativePos, nativePosDelta, left,
+					right, offset, count);
+		} else {
+			super.mixOneBlock(left, right, offset, count, kernel);
+		}
+	}
+
 	/**
 	 * @param loopEnd The loopEnd to add.
 	 */
@@ -33,6 +33,22 @@ public class SoundFontPatch extends Patch {
 	private int velocity;
 
 	public SoundFontPatch(int note, int velocity, int bank, int program, SoundFontSample sample) {
+		reset(note, velocity, bank, program, sample);
+	}
+
+	/**
+	 * Create an empty patch for a pooled voice.
+	 */
+	SoundFontPatch() {
+		// nothing
+	}
+
+	/**
+	 * Set all fields for playing a new note.
+	 */
+	void reset(int note, int velocity, int bank, int program, SoundFontSample sample) {
+		this.selfExclusive = true;
+		this.exclusiveLevel = 0;
 		this.note = note;
 		this.velocity = velocity;
 		this.bank = bank;
@@ -41,8 +41,25 @@ public class SoundFontPreset implements Soundbank.Instrument {
 	private int program;
 	private int bank;
 
+	private static final SoundFontRegion[] NO_REGIONS = new SoundFontRegion[0];
+
 	private SoundFontPresetZone[] zones;
 
+	/**
+	 * The zones flattened to regions. They are compiled by buildIndex() when
+	 * the soundbank is loaded, or on first access by a preset that is not
+	 * part of a soundbank. Volatile, because notes may be played from
+	 * several threads: a thread either sees the complete array, or null and
+	 * compiles it itself.
+	 */
+	private volatile SoundFontRegion[] regions;
+
+	/**
+	 * For each key, the regions whose key range contains it. Built like
+	 * regions.
+	 */
+	private volatile SoundFontRegion[][] keyRegions;
+
 	public SoundFontPreset(String name, int program, int bank) {
 		this.name = name;
 		this.program = program;
@@ -82,6 +99,56 @@ public class SoundFontPreset implements Soundbank.Instrument {
 	 */
 	protected void setZones(SoundFontPresetZone[] zones) {
 		this.zones = zones;
+		this.regions = null;
+		this.keyRegions = null;
+	}
+
+	/**
+	 * Return the regions of this preset: each instrument zone reachable
+	 * through a preset zone, with the generators of the preset, instrument,
+	 * and global zones resolved. The soundbank compiles the regions when
+	 * it is loaded, so that playing a note only needs to find the matching
+	 * regions.
+	 * 
+	 * @return the regions of this preset, never null
+	 */
+	public SoundFontRegion[] getRegions() {
+		SoundFontRegion[] r = regions;
+		if (r == null) {
+			r = SoundFontRegion.compile(this);
+			regions = r;
+		}
+		return r;
+	}
+
+	/**
+	 * Return the regions of this preset whose key range contains the given
+	 * note. The velocity range still needs to be checked with
+	 * SoundFontRegion.matches(). The returned array is shared and must not
+	 * be modified.
+	 * 
+	 * @param note the MIDI key [0..127]
+	 * @return the regions for the note, possibly an empty array
+	 */
+	public SoundFontRegion[] getRegions(int note) {
+		SoundFontRegion[][] k = keyRegions;
+		if (k == null) {
+			k = SoundFontRegion.buildKeyIndex(getRegions());
+			keyRegions = k;
+		}
+		if (note < 0 || note >= SoundFontKeyIndex.KEYS) {
+			return NO_REGIONS;
+		}
+		return k[note];
+	}
+
+	/**
+	 * Build the lookup tables of this preset: the regions and their key
+	 * index. Called by the soundbank when it is loaded, otherwise the
+	 * tables are built on first use.
+	 */
+	void buildIndex() {
+		getRegions(0);
 	}
 
 	/**
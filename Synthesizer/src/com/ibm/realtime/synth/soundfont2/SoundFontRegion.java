@@ -0,0 +1,393 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ibm.realtime.synth.soundfont2;
+
+import static com.ibm.realtime.synth.soundfont2.SoundFontGenerator.*;
+
+/**
+ * A flattened region of a preset: one instrument zone as reached through one
+ * preset zone. The global and local generators of both levels are resolved
+ * once at load time into a single list, so that a note-on does not need to
+ * walk the preset and instrument zones, nor check the global zones'
+ * generators against the local ones.
+ * <p>
+ * The first part of the list holds the instrument level generators, which
+ * set absolute values. Generators that are overridden by the local zone are
+ * removed, only the sample offsets are accumulated. The second part holds
+ * the preset level generators, which are added to the instrument values.
+ * Generators without effect on preset level are removed. The velocity and
+ * key dependent default modulators are still executed for each note.
+ */
+public final class SoundFontRegion {
+
+	private final SoundFontPreset preset;
+	private final SoundFontInstrument instrument;
+	private final SoundFontSample sample;
+
+	private final int keyMin;
+	private final int keyMax;
+	private final int velMin;
+	private final int velMax;
+
+	/**
+	 * The generator ops: first the instrument level, then the preset level
+	 * generators
+	 */
+	private final int[] ops;
+
+	/**
+	 * The amounts of the generators in ops
+	 */
+	private final short[] amounts;
+
+	/**
+	 * The index of the first preset level generator in ops
+	 */
+	private final int presetStart;
+
+	/**
+	 * The sample's pitch correction in semitones
+	 */
+	private final double pitchCorrection;
+
+	/**
+	 * The region of the phase-locked (stereo) sample, or null
+	 */
+	private SoundFontRegion link;
+
+	/**
+	 * The name used for debugging the articulation
+	 */
+	private final String name;
+
+	private SoundFontRegion(SoundFontPreset preset, SoundFontPresetZone pZone,
+			SoundFontPresetZone pZoneGlobal, SoundFontInstrument inst,
+			SoundFontInstrumentZone iZone, SoundFontZone rangeZone) {
+		this.preset = preset;
+		this.instrument = inst;
+		this.sample = iZone.getSample();
+		// the region plays where both the preset and the instrument zone match
+		keyMin = Math.max(pZone.keyMin, rangeZone.keyMin);
+		keyMax = Math.min(pZone.keyMax, rangeZone.keyMax);
+		velMin = Math.max(pZone.velMin, rangeZone.velMin);
+		velMax = Math.min(pZone.velMax, rangeZone.velMax);
+
+		SoundFontInstrumentZone iZoneGlobal = inst.getGlobalZone();
+		int max = iZone.getGenerators().length + pZone.getGenerators().length;
+		if (iZoneGlobal != null) {
+			max += iZoneGlobal.getGenerators().length;
+		}
+		if (pZoneGlobal != null) {
+			max += pZoneGlobal.getGenerators().length;
+		}
+		int[] o = new int[max];
+		short[] a = new short[max];
+
+		// instrument level: the global zone, then the local zone
+		int count = 0;
+		if (iZoneGlobal != null) {
+			count = addAbsolute(iZoneGlobal, o, a, count);
+		}
+		count = addAbsolute(iZone, o, a, count);
+		presetStart = count;
+
+		// preset level: the global zone's generators, unless overridden by
+		// the local zone, and the local zone's generators
+		if (pZoneGlobal != null) {
+			count = addRelative(pZoneGlobal, pZone, o, a, count);
+		}
+		count = addRelative(pZone, null, o, a, count);
+
+		ops = new int[count];
+		amounts = new short[count];
+		System.arraycopy(o, 0, ops, 0, count);
+		System.arraycopy(a, 0, amounts, 0, count);
+
+		pitchCorrection = sample.getPitchCorrection() / 100.0;
+		name = preset.getName() + "." + inst.getName();
+	}
+
+	/**
+	 * Compile the regions of the given preset, in the order of its zones.
+	 * A phase-locked sample is not a region of its own, but attached to the
+	 * region of its partner.
+	 * 
+	 * @return the regions, possibly an empty array
+	 */
+	static SoundFontRegion[] compile(SoundFontPreset preset) {
+		SoundFontPresetZone[] pZones = preset.getZones();
+		if (pZones == null) {
+			return new SoundFontRegion[0];
+		}
+		SoundFontPresetZone pZoneGlobal = preset.getGlobalZone();
+		int count = 0;
+		for (SoundFontPresetZone pZone : pZones) {
+			SoundFontInstrument inst = pZone.getInstrument();
+			if (inst != null && inst.getZones() != null) {
+				count += inst.getZones().length;
+			}
+		}
+		SoundFontRegion[] result = new SoundFontRegion[count];
+		count = 0;
+		for (SoundFontPresetZone pZone : pZones) {
+			SoundFontInstrument inst = pZone.getInstrument();
+			if (inst == null || inst.getZones() == null) {
+				continue;
+			}
+			for (SoundFontInstrumentZone iZone : inst.getZones()) {
+				if (iZone.getSample() == null) {
+					continue;
+				}
+				SoundFontRegion region = new SoundFontRegion(preset, pZone,
+						pZoneGlobal, inst, iZone, iZone);
+				if (region.keyMin > region.keyMax
+						|| region.velMin > region.velMax) {
+					// the preset zone and the instrument zone do not overlap
+					continue;
+				}
+				SoundFontInstrumentZone iZoneLink = iZone.getZoneLink();
+				if (iZoneLink != null && iZoneLink.getSample() != null) {
+					region.link = new SoundFontRegion(preset, pZone,
+							pZoneGlobal, inst, iZoneLink, iZone);
+				}
+				result[count++] = region;
+			}
+		}
+		if (count < result.length) {
+			SoundFontRegion[] newResult = new SoundFontRegion[count];
+			System.arraycopy(result, 0, newResult, 0, count);
+			result = newResult;
+		}
+		return result;
+	}
+
+	/**
+	 * Build the key index of the given regions.
+	 * 
+	 * @return for each of the 128 keys, the regions whose key range
+	 *         contains it
+	 */
+	static SoundFontRegion[][] buildKeyIndex(SoundFontRegion[] regions) {
+		int[] keyMin = new int[regions.length];
+		int[] keyMax = new int[regions.length];
+		for (int i = 0; i < regions.length; i++) {
+			keyMin[i] = regions[i].keyMin;
+			keyMax[i] = regions[i].keyMax;
+		}
+		return SoundFontKeyIndex.build(regions, keyMin, keyMax);
+	}
+
+	/**
+	 * Add the instrument level generators of zone to the list. A generator
+	 * that is already in the list is overridden, except the sample offsets,
+	 * which add up.
+	 */
+	private static int addAbsolute(SoundFontZone zone, int[] o, short[] a,
+			int count) {
+		for (SoundFontGenerator gen : zone.getGenerators()) {
+			int op = gen.getOp();
+			short amount = gen.getAmount();
+			if (!isEffective(op, false)) {
+				continue;
+			}
+			if (op == OVERRIDING_ROOTKEY && (amount < 0 || amount > 127)) {
+				// ignored by executeGenerator
+				continue;
+			}
+			int index = -1;
+			if (!isOffset(op)) {
+				index = indexOf(op, o, count);
+			}
+			if (index >= 0) {
+				a[index] = amount;
+			} else {
+				o[count] = op;
+				a[count] = amount;
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Add the preset level generators of zone to the list, leaving out the
+	 * ones defined in forbiddenZone.
+	 */
+	private static int addRelative(SoundFontZone zone,
+			SoundFontZone forbiddenZone, int[] o, short[] a, int count) {
+		for (SoundFontGenerator gen : zone.getGenerators()) {
+			int op = gen.getOp();
+			if (!isEffective(op, true)) {
+				continue;
+			}
+			if (forbiddenZone != null && isDefined(op, forbiddenZone)) {
+				continue;
+			}
+			o[count] = op;
+			a[count] = gen.getAmount();
+			count++;
+		}
+		return count;
+	}
+
+	private static int indexOf(int op, int[] o, int count) {
+		for (int i = 0; i < count; i++) {
+			if (o[i] == op) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isDefined(int op, SoundFontZone zone) {
+		for (SoundFontGenerator gen : zone.getGenerators()) {
+			if (gen.getOp() == op) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if op is one of the sample offset generators
+	 */
+	private static boolean isOffset(int op) {
+		switch (op) {
+		case START_ADDRS_OFFSET:
+		case END_ADDRS_OFFSET:
+		case START_LOOP_ADDRS_OFFSET:
+		case END_LOOP_ADDRS_OFFSET:
+		case START_ADDRS_COARSE_OFFSET:
+		case ENDADDRSCOARSE_OFFSET:
+		case START_LOOP_ADDRS_COARSE_OFFSET:
+		case END_LOOP_ADDRS_COARSE_OFFSET:
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return false if SoundFontZone.executeGenerator() does nothing for
+	 *         this generator
+	 */
+	private static boolean isEffective(int op, boolean isRelative) {
+		switch (op) {
+		case INSTRUMENT:
+		case SAMPLE_ID:
+		case KEY_RANGE:
+		case VEL_RANGE:
+			return false;
+		case KEYNUM:
+		case VELOCITY:
+		case SAMPLE_MODES:
+		case SCALE_TUNING:
+		case EXCLUSIVE_CLASS:
+		case OVERRIDING_ROOTKEY:
+			// only valid on instrument level
+			return !isRelative;
+		}
+		if (isOffset(op)) {
+			return !isRelative;
+		}
+		return true;
+	}
+
+	/**
+	 * Apply the generators of this region to the voice's patch,
+	 * articulation, and oscillator.
+	 */
+	void apply(SoundFontPatch patch, SoundFontArticulation art,
+			SoundFontOscillator osc) {
+		for (int i = 0; i < presetStart; i++) {
+			SoundFontZone.executeGenerator(ops[i], amounts[i], false, art,
+					osc, patch);
+		}
+		for (int i = presetStart; i < ops.length; i++) {
+			SoundFontZone.executeGenerator(ops[i], amounts[i], true, art,
+					osc, patch);
+		}
+	}
+
+	/**
+	 * @return true if this region plays the given note and velocity
+	 */
+	public boolean matches(int note, int vel) {
+		return note >= keyMin && note <= keyMax && vel >= velMin
+				&& vel <= velMax;
+	}
+
+	/**
+	 * @return the preset of this region
+	 */
+	public SoundFontPreset getPreset() {
+		return preset;
+	}
+
+	/**
+	 * @return the instrument of this region
+	 */
+	public SoundFontInstrument getInstrument() {
+		return instrument;
+	}
+
+	/**
+	 * @return the sample played by this region
+	 */
+	public SoundFontSample getSample() {
+		return sample;
+	}
+
+	/**
+	 * @return the region of the phase-locked sample, or null
+	 */
+	public SoundFontRegion getLink() {
+		return link;
+	}
+
+	/**
+	 * @return the sample's pitch correction in semitones
+	 */
+	double getPitchCorrection() {
+		return pitchCorrection;
+	}
+
+	/**
+	 * @return the number of generators executed for a note of this region
+	 */
+	public int getGeneratorCount() {
+		return ops.length;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	public String toString() {
+		return "Region " + name + " with " + ops.length
+				+ " generators (key: " + keyMin + "-" + keyMax + ", vel: "
+				+ velMin + "-" + velMax + ", sample: " + sample.getName() + ")";
+	}
+}
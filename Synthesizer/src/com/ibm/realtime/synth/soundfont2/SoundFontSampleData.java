@@ -25,15 +25,329 @@
  */
 package com.ibm.realtime.synth.soundfont2;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.ibm.realtime.synth.engine.ThreadFactory;
+
+import static com.ibm.realtime.synth.utils.Debug.*;
+
 /**
  * A class to store the actual audio sample data of a SoundFont file.
+ * <p>
+ * Besides the raw 16-bit little endian data, this class can maintain a cache
+ * of decoded samples, so that the oscillators can read typed arrays without
+ * assembling bytes. The cache is off by default: a cache format must be set
+ * with setCacheFormat(). The samples are then decoded on first use, or all
+ * at once with decodeAll(). Without a preroll, the first voice of a sample
+ * plays the raw data while a background thread decodes the sample for the
+ * following voices. The cache format is a
+ * trade-off between memory and speed: short uses the same memory as the raw
+ * data, float uses twice as much, but needs no conversion at all.
+ * <p>
+ * The cache can be limited to a memory budget. When the decoded samples
+ * exceed the budget, the least recently used samples that are not used by
+ * a playing voice are evicted. With a preroll, the first samples of every
+ * played sample are kept decoded permanently: on a cache miss, the voice
+ * starts playing from the preroll while a background thread decodes the
+ * entire sample. Note-on never waits for decoding: a missing preroll is
+ * decoded in the background, too, unless decodeAll() decoded it when
+ * loading. When the format or the
+ * preroll length changes, the background thread decodes the new prerolls
+ * and the voices use the old ones until then. Voices return decoded data
+ * without locking; the background thread evicts.
+ * <p>
+ * Alternatively, the sample data can be memory mapped from the SoundFont
+ * file. Then the data is not loaded at all: the operating system pages it
+ * in when it is read, and shares the pages with other processes that map
+ * the same file. The mapping is split into segments, so the sample data can
+ * be larger than 2GB.
+ * <p>
+ * For very large samples, the sample data can be streamed from the file.
+ * Only the prerolls and the loops are kept in memory: voices play the
+ * beginning of a sample from the preroll, and the rest from a ring buffer
+ * that is filled by a pool of I/O threads ahead of the play position. The
+ * loop of a sample is pinned in memory, so looping never needs to seek;
+ * while a voice loops, its ring buffer reads ahead the samples after the
+ * loop end for the release. Samples not longer than the preroll are decoded
+ * entirely.
  * 
  * @author florian
  * 
  */
 public class SoundFontSampleData {
+
+	/**
+	 * Cache format: do not decode, the oscillators read the raw data
+	 */
+	public final static int CACHE_NONE = 0;
+
+	/**
+	 * Cache format: decode to native endian short arrays
+	 */
+	public final static int CACHE_SHORT = 1;
+
+	/**
+	 * Cache format: decode to normalized float arrays
+	 */
+	public final static int CACHE_FLOAT = 2;
+
+	/**
+	 * Storage: the sample data is loaded into memory
+	 */
+	public final static int STORAGE_MEMORY = 0;
+
+	/**
+	 * Storage: the sample data is memory mapped from the file
+	 */
+	public final static int STORAGE_MAPPED = 1;
+
+	/**
+	 * Storage: the sample data is streamed from the file
+	 */
+	public final static int STORAGE_STREAMED = 2;
+
+	/**
+	 * The default preroll for streaming, in samples
+	 */
+	public final static int DEFAULT_STREAMING_PREROLL = 16384;
+
+	/**
+	 * The default size of the voices' ring buffers for streaming, in samples
+	 */
+	public final static int DEFAULT_STREAM_READ_AHEAD = 65536;
+
+	/**
+	 * The minimum size of the ring buffers. It must hold at least two
+	 * blocks including the guard samples.
+	 */
+	private final static int MIN_STREAM_READ_AHEAD = 4096;
+
+	/**
+	 * The number of samples per mapped segment
+	 */
+	private final static int SEGMENT_SAMPLES = 1 << 28;
+
 	private byte[] data;
 
+	/**
+	 * The memory mapped data, or null if the data is in memory
+	 */
+	private ShortBuffer[] mapped;
+
+	/**
+	 * The number of samples in the mapped or streamed data
+	 */
+	private int mappedSampleCount;
+
+	/**
+	 * The file to stream from, or null if not streaming. Volatile: the voices
+	 * and the I/O threads read it without a lock.
+	 */
+	private volatile RandomAccessFile streamFile;
+
+	/**
+	 * The file position of the streamed sample data
+	 */
+	private long streamOffset;
+
+	/**
+	 * The size of the voices' ring buffers in samples
+	 */
+	private int streamReadAhead = DEFAULT_STREAM_READ_AHEAD;
+
+	/**
+	 * The number of I/O threads for streaming
+	 */
+	private int streamThreadCount = 2;
+
+	/**
+	 * The maximum number of queued I/O requests. Every stream has at most
+	 * one request queued, so this is the maximum number of voices that
+	 * stream at the same time.
+	 */
+	private final static int STREAM_REQUEST_CAPACITY = 1024;
+
+	/**
+	 * The time an idle I/O thread sleeps before it looks for requests
+	 * again, unless it is woken up by a new request
+	 */
+	private final static long STREAM_IDLE_NANOS = 10000000L;
+
+	/**
+	 * The I/O requests of the streams, executed by the I/O threads. The
+	 * rendering threads queue requests without locking or allocating.
+	 */
+	private final RequestRing streamRequests =
+			new RequestRing(STREAM_REQUEST_CAPACITY);
+
+	/**
+	 * An idle I/O thread that waits for requests, or null. The thread
+	 * queueing a request wakes it up.
+	 */
+	private final AtomicReference<Thread> idleStreamWorker =
+			new AtomicReference<Thread>();
+
+	/**
+	 * The number of running I/O threads. They are started when streamed
+	 * data is set. Guarded by streamRequests.
+	 */
+	private int streamWorkerCount = 0;
+
+	/**
+	 * Incremented to stop the running I/O threads. Written with the lock of
+	 * streamRequests.
+	 */
+	private volatile int streamWorkerGeneration = 0;
+
+	/**
+	 * The number of blocks that voices could not play because the I/O
+	 * threads did not read them in time
+	 */
+	private final AtomicLong underruns = new AtomicLong();
+
+	/**
+	 * The buffer of every I/O thread for reading from the file
+	 */
+	private static final ThreadLocal<ByteBuffer> ioBuffer =
+			new ThreadLocal<ByteBuffer>() {
+				protected ByteBuffer initialValue() {
+					return ByteBuffer.allocate(32768).order(
+							ByteOrder.LITTLE_ENDIAN);
+				}
+			};
+
+	/**
+	 * The format of the decoded samples
+	 */
+	private int cacheFormat = CACHE_NONE;
+
+	/**
+	 * The decoded samples, in least recently used order
+	 */
+	private final LinkedHashMap<SoundFontSample, SoundFontDecodedSample> cache =
+			new LinkedHashMap<SoundFontSample, SoundFontDecodedSample>(16,
+					0.75f, true);
+
+	/**
+	 * The total size of the decoded samples in bytes
+	 */
+	private long cacheSize = 0;
+
+	/**
+	 * The maximum size of the decoded samples in bytes, or 0 for unlimited
+	 */
+	private long cacheBudget = 0;
+
+	/**
+	 * The number of samples decoded as preroll, or 0 to decode entire
+	 * samples on a cache miss
+	 */
+	private int prerollSamples = 0;
+
+	/**
+	 * The decoded prerolls, they are never evicted
+	 */
+	private final Map<SoundFontSample, SoundFontDecodedSample> prerolls =
+			new HashMap<SoundFontSample, SoundFontDecodedSample>();
+
+	/**
+	 * The pinned loops of streamed samples, they are never evicted. There is
+	 * one loop for every loop range used by the voices of a sample: the loop
+	 * points can be modified by generators.
+	 */
+	private final Map<SoundFontSample, List<SoundFontDecodedSample>> loops =
+			new HashMap<SoundFontSample, List<SoundFontDecodedSample>>();
+
+	/**
+	 * The total size of the prerolls and pinned loops in bytes
+	 */
+	private long prerollSize = 0;
+
+	/**
+	 * The samples to be decoded by the loader thread
+	 */
+	private final LinkedList<SoundFontSample> loadQueue =
+			new LinkedList<SoundFontSample>();
+
+	/**
+	 * The samples whose preroll is to be decoded by the maintenance thread
+	 */
+	private final LinkedList<SoundFontSample> prerollQueue =
+			new LinkedList<SoundFontSample>();
+
+	/**
+	 * The loops to be pinned by the maintenance thread
+	 */
+	private final LinkedList<LoopRequest> loopQueue =
+			new LinkedList<LoopRequest>();
+
+	/**
+	 * The time the maintenance thread waits for work before it exits
+	 */
+	private final static long MAINTENANCE_LINGER_NANOS = 1000000000L;
+
+	/**
+	 * True while the maintenance thread is running. It decodes the queued
+	 * samples, prerolls, and loops, evicts, and decodes the prerolls again
+	 * after a change.
+	 */
+	private boolean maintenanceRunning = false;
+
+	/**
+	 * The maintenance thread while it waits for work, or null
+	 */
+	private final AtomicReference<Thread> idleMaintenance =
+			new AtomicReference<Thread>();
+
+	/**
+	 * True if the decoded samples exceed the budget. Written with the lock,
+	 * read by the voices returning decoded data.
+	 */
+	private volatile boolean overBudget = false;
+
+	/**
+	 * Set by a voice returning decoded data while the cache is over budget,
+	 * cleared by the maintenance thread when it evicts
+	 */
+	private volatile boolean evictionRequested = false;
+
+	/**
+	 * True if the prerolls and pinned loops must be decoded again with the
+	 * current format and preroll length. Guarded by this.
+	 */
+	private boolean rebuildRequested = false;
+
+	/**
+	 * Incremented for every change that invalidates the prerolls, so that
+	 * an outdated rebuild is discarded. Guarded by this.
+	 */
+	private int prerollGeneration = 0;
+
+	/**
+	 * Statistics
+	 */
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
 	/**
 	 * @return Returns the data.
 	 */
@@ -45,13 +359,1196 @@ public class SoundFontSampleData {
 	 * @param data The sample data to set.
 	 */
 	protected void setData(byte[] data) {
+		close();
 		this.data = data;
+		this.mapped = null;
+		this.mappedSampleCount = 0;
+		dropCache();
+	}
+
+	/**
+	 * Memory map the sample data from the given file. The mapping stays
+	 * valid after the channel is closed. The samples are not decoded unless
+	 * a cache format is set explicitly: decoding would copy the mapped
+	 * pages to the heap, which defeats mapping.
+	 * 
+	 * @param channel the channel of the SoundFont file
+	 * @param offset the file position of the smpl chunk's data
+	 * @param length the length of the smpl chunk's data in bytes
+	 * @throws IOException if the file cannot be mapped
+	 */
+	protected void setMappedData(FileChannel channel, long offset, long length)
+			throws IOException {
+		long sampleCount = length / 2;
+		if (sampleCount > Integer.MAX_VALUE) {
+			throw new IOException("sample data too large: " + length
+					+ " bytes");
+		}
+		int segments = (int) ((sampleCount + SEGMENT_SAMPLES - 1) / SEGMENT_SAMPLES);
+		ShortBuffer[] buffers = new ShortBuffer[segments];
+		for (int i = 0; i < segments; i++) {
+			long start = ((long) i) * SEGMENT_SAMPLES;
+			long count = Math.min(SEGMENT_SAMPLES, sampleCount - start);
+			buffers[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+					offset + 2 * start, 2 * count).order(
+					ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+		}
+		close();
+		this.data = null;
+		this.mapped = buffers;
+		this.mappedSampleCount = (int) sampleCount;
+		dropCache();
+	}
+
+	/**
+	 * Stream the sample data from the given file. The file is kept open
+	 * until close() is called. If no preroll is set, the preroll is set to
+	 * DEFAULT_STREAMING_PREROLL.
+	 * 
+	 * @param file the SoundFont file
+	 * @param offset the file position of the smpl chunk's data
+	 * @param length the length of the smpl chunk's data in bytes
+	 * @throws IOException if the file cannot be opened
+	 */
+	protected void setStreamedData(File file, long offset, long length)
+			throws IOException {
+		long sampleCount = length / 2;
+		if (sampleCount > Integer.MAX_VALUE) {
+			throw new IOException("sample data too large: " + length
+					+ " bytes");
+		}
+		close();
+		this.data = null;
+		this.mapped = null;
+		this.streamFile = new RandomAccessFile(file, "r");
+		this.streamOffset = offset;
+		this.mappedSampleCount = (int) sampleCount;
+		dropCache();
+		if (prerollSamples == 0) {
+			setPrerollSamples(DEFAULT_STREAMING_PREROLL);
+		}
+		synchronized (streamRequests) {
+			startStreamWorkers();
+		}
+	}
+
+	/**
+	 * Close the streamed file and stop the I/O threads. Playing voices do
+	 * not receive any more data.
+	 */
+	public synchronized void close() {
+		RandomAccessFile file = streamFile;
+		// no more tasks are queued once streamFile is null
+		streamFile = null;
+		synchronized (streamRequests) {
+			SoundFontSampleStream stream;
+			while ((stream = streamRequests.poll()) != null) {
+				stream.cancel();
+			}
+			stopStreamWorkers();
+		}
+		if (file != null) {
+			try {
+				file.close();
+			} catch (IOException ioe) {
+				debug(ioe);
+			}
+		}
+	}
+
+	/**
+	 * @return true if the sample data is memory mapped. Then getData()
+	 *         returns null, and the samples are accessed with read().
+	 */
+	public boolean isMapped() {
+		return mapped != null;
+	}
+
+	/**
+	 * @return true if the sample data is streamed from the file. Then
+	 *         getData() returns null, and the samples are accessed with
+	 *         read(), or streamed by the voices.
+	 */
+	public boolean isStreamed() {
+		return streamFile != null;
+	}
+
+	/**
+	 * @return the storage of the sample data, one of the STORAGE_*
+	 *         constants
+	 */
+	public int getStorage() {
+		if (mapped != null) {
+			return STORAGE_MAPPED;
+		}
+		if (streamFile != null) {
+			return STORAGE_STREAMED;
+		}
+		return STORAGE_MEMORY;
+	}
+
+	/**
+	 * @return the size of the voices' ring buffers for streaming, in
+	 *         samples
+	 */
+	public int getStreamReadAhead() {
+		return streamReadAhead;
+	}
+
+	/**
+	 * Set the size of the voices' ring buffers for streaming. The I/O
+	 * threads read up to this many samples ahead of the play position. It
+	 * takes effect for new notes.
+	 * 
+	 * @param samples the read ahead in samples
+	 */
+	public void setStreamReadAhead(int samples) {
+		if (samples < MIN_STREAM_READ_AHEAD) {
+			throw new IllegalArgumentException("read ahead must be at least "
+					+ MIN_STREAM_READ_AHEAD + " samples");
+		}
+		streamReadAhead = samples;
+	}
+
+	/**
+	 * @return the number of I/O threads for streaming
+	 */
+	public synchronized int getStreamThreadCount() {
+		return streamThreadCount;
+	}
+
+	/**
+	 * Set the number of I/O threads for streaming. The threads are created
+	 * when streamed data is set.
+	 */
+	public synchronized void setStreamThreadCount(int count) {
+		if (count < 1) {
+			throw new IllegalArgumentException("illegal thread count: "
+					+ count);
+		}
+		if (count != streamThreadCount) {
+			streamThreadCount = count;
+			synchronized (streamRequests) {
+				if (streamWorkerCount > 0) {
+					// queued requests are executed by the new threads
+					stopStreamWorkers();
+					startStreamWorkers();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of blocks that voices played as silence because
+	 *         the I/O threads did not read the samples in time
+	 */
+	public long getStreamUnderruns() {
+		return underruns.get();
+	}
+
+	/**
+	 * Count a block that was not streamed in time.
+	 */
+	void countUnderrun() {
+		underruns.incrementAndGet();
+	}
+
+	/**
+	 * Queue a stream's I/O request for the pool of I/O threads. This is
+	 * called by the rendering threads: it does not lock, allocate, or start
+	 * threads. The request is not queued if the file is closed or if too
+	 * many requests are queued; the stream requests again when it advances.
+	 * 
+	 * @return true if the request was queued
+	 */
+	boolean executeStreamTask(SoundFontSampleStream stream) {
+		if (streamFile == null || !streamRequests.offer(stream)) {
+			return false;
+		}
+		Thread idle = idleStreamWorker.getAndSet(null);
+		if (idle != null) {
+			LockSupport.unpark(idle);
+		}
+		return true;
+	}
+
+	/**
+	 * Start the I/O threads with the streaming role of the ThreadFactory.
+	 * The caller must hold the lock of streamRequests.
+	 */
+	private void startStreamWorkers() {
+		while (streamWorkerCount < streamThreadCount) {
+			streamWorkerCount++;
+			ThreadFactory.createThread(new StreamWorker(
+					streamWorkerGeneration), "SoundFont streaming "
+					+ streamWorkerCount, ThreadFactory.NORMAL_PRIORITY,
+					ThreadFactory.ROLE_STREAMING);
+		}
+	}
+
+	/**
+	 * Let the running I/O threads exit after their current request. The
+	 * caller must hold the lock of streamRequests.
+	 */
+	private void stopStreamWorkers() {
+		streamWorkerGeneration++;
+		streamWorkerCount = 0;
+		Thread idle = idleStreamWorker.getAndSet(null);
+		if (idle != null) {
+			LockSupport.unpark(idle);
+		}
+	}
+
+	/**
+	 * An I/O thread: executes the queued requests of the streams until it
+	 * is stopped. When there are no requests, one idle thread waits to be
+	 * woken up, the others sleep for STREAM_IDLE_NANOS.
+	 */
+	private class StreamWorker implements Runnable {
+		private final int generation;
+
+		StreamWorker(int generation) {
+			this.generation = generation;
+		}
+
+		public void run() {
+			Thread self = Thread.currentThread();
+			while (generation == streamWorkerGeneration) {
+				SoundFontSampleStream stream = streamRequests.poll();
+				if (stream == null) {
+					idleStreamWorker.compareAndSet(null, self);
+					// a request queued before registering is seen here
+					stream = streamRequests.poll();
+					if (stream == null) {
+						LockSupport.parkNanos(STREAM_IDLE_NANOS);
+						if (self.isInterrupted()) {
+							idleStreamWorker.compareAndSet(self, null);
+							return;
+						}
+						continue;
+					}
+					idleStreamWorker.compareAndSet(self, null);
+				}
+				try {
+					stream.run();
+				} catch (RuntimeException re) {
+					debug(re);
+				}
+			}
+			idleStreamWorker.compareAndSet(self, null);
+		}
+	}
+
+	/**
+	 * A bounded queue of stream requests for several producers and
+	 * consumers, in a preallocated ring. Every slot has a sequence number
+	 * that tells whether it is free for the producer of a position, or
+	 * filled for the consumer of that position.
+	 */
+	private static final class RequestRing {
+		private final AtomicReferenceArray<SoundFontSampleStream> slots;
+		private final AtomicLongArray sequences;
+		private final int mask;
+
+		/**
+		 * The next position to poll
+		 */
+		private final AtomicLong head = new AtomicLong();
+
+		/**
+		 * The next position to offer
+		 */
+		private final AtomicLong tail = new AtomicLong();
+
+		/**
+		 * @param capacity the number of slots, a power of 2
+		 */
+		RequestRing(int capacity) {
+			slots = new AtomicReferenceArray<SoundFontSampleStream>(capacity);
+			sequences = new AtomicLongArray(capacity);
+			for (int i = 0; i < capacity; i++) {
+				sequences.set(i, i);
+			}
+			mask = capacity - 1;
+		}
+
+		/**
+		 * @return false if the ring is full
+		 */
+		boolean offer(SoundFontSampleStream stream) {
+			while (true) {
+				long pos = tail.get();
+				int index = ((int) pos) & mask;
+				long seq = sequences.get(index);
+				if (seq == pos) {
+					if (tail.compareAndSet(pos, pos + 1)) {
+						slots.set(index, stream);
+						sequences.set(index, pos + 1);
+						return true;
+					}
+				} else if (seq < pos) {
+					// the slot is not polled yet since the last round
+					return false;
+				}
+			}
+		}
+
+		/**
+		 * @return the oldest request, or null if the ring is empty
+		 */
+		SoundFontSampleStream poll() {
+			while (true) {
+				long pos = head.get();
+				int index = ((int) pos) & mask;
+				long seq = sequences.get(index);
+				if (seq == pos + 1) {
+					if (head.compareAndSet(pos, pos + 1)) {
+						SoundFontSampleStream stream = slots.get(index);
+						slots.set(index, null);
+						sequences.set(index, pos + mask + 1);
+						return stream;
+					}
+				} else if (seq < pos + 1) {
+					return null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Create a stream for a voice.
+	 */
+	SoundFontSampleStream createStream() {
+		return new SoundFontSampleStream(this);
+	}
+
+	/**
+	 * Read 16-bit samples to a native endian array. Positions outside of the
+	 * sample data are read as silence.
+	 * 
+	 * @param pos the sample position of the first sample to read
+	 * @param dest the array to write to
+	 * @param offset the first index to write to in dest
+	 * @param count the number of samples to read
+	 */
+	void read(int pos, short[] dest, int offset, int count) {
+		int sampleCount = getSampleCount();
+		// silence before and after the sample data
+		while (count > 0 && pos < 0) {
+			dest[offset++] = 0;
+			pos++;
+			count--;
+		}
+		while (count > 0 && pos + count > sampleCount) {
+			dest[offset + count - 1] = 0;
+			count--;
+		}
+		if (count <= 0) {
+			return;
+		}
+		if (streamFile != null) {
+			readStreamed(pos, dest, offset, count);
+		} else if (mapped == null) {
+			byte[] d = data;
+			int b = pos * 2;
+			int end = offset + count;
+			for (int i = offset; i < end; i++) {
+				dest[i] = (short) ((d[b] & 0xFF) | (d[b + 1] << 8));
+				b += 2;
+			}
+		} else {
+			while (count > 0) {
+				int segment = pos / SEGMENT_SAMPLES;
+				int segmentPos = pos - segment * SEGMENT_SAMPLES;
+				int thisCount = Math.min(count, SEGMENT_SAMPLES - segmentPos);
+				// absolute reads, so that concurrent readers do not share
+				// the position
+				ShortBuffer buffer = mapped[segment];
+				int end = offset + thisCount;
+				for (int i = offset; i < end; i++) {
+					dest[i] = buffer.get(segmentPos++);
+				}
+				pos += thisCount;
+				offset = end;
+				count -= thisCount;
+			}
+		}
+	}
+
+	/**
+	 * Read from the streamed file with positional reads, so that several
+	 * threads can read at the same time. On error, silence is returned.
+	 */
+	private void readStreamed(int pos, short[] dest, int offset, int count) {
+		ByteBuffer buffer = ioBuffer.get();
+		RandomAccessFile file = streamFile;
+		try {
+			while (count > 0) {
+				int thisCount = Math.min(count, buffer.capacity() / 2);
+				buffer.clear();
+				buffer.limit(thisCount * 2);
+				long filePos = streamOffset + 2L * pos;
+				while (buffer.hasRemaining()) {
+					int read = file.getChannel().read(buffer,
+							filePos + buffer.position());
+					if (read < 0) {
+						throw new IOException("premature end of file");
+					}
+				}
+				for (int i = 0; i < thisCount; i++) {
+					dest[offset + i] = buffer.getShort(2 * i);
+				}
+				pos += thisCount;
+				offset += thisCount;
+				count -= thisCount;
+			}
+		} catch (Exception e) {
+			// closed or I/O error
+			debug(e);
+			while (count > 0) {
+				dest[offset++] = 0;
+				count--;
+			}
+		}
+	}
+
+	/**
+	 * @return the format of the decoded samples, one of the CACHE_*
+	 *         constants
+	 */
+	public int getCacheFormat() {
+		return cacheFormat;
+	}
+
+	/**
+	 * Set the format of the decoded samples. The default is CACHE_NONE. If
+	 * the format changes, all decoded samples are discarded, and the
+	 * prerolls and pinned loops are decoded again in the background. Playing
+	 * voices keep their decoded data. When streaming, CACHE_NONE decodes the
+	 * prerolls and loops to short.
+	 * 
+	 * @param format one of the CACHE_* constants
+	 */
+	public synchronized void setCacheFormat(int format) {
+		if (format < CACHE_NONE || format > CACHE_FLOAT) {
+			throw new IllegalArgumentException("illegal cache format: "
+					+ format);
+		}
+		if (format != cacheFormat) {
+			cacheFormat = format;
+			clearCache();
+		}
+	}
+
+	/**
+	 * Discard all decoded samples. The prerolls and pinned loops are decoded
+	 * again in the background, and replace the current ones when done, so
+	 * that voices started in the meantime do not read the sample data on
+	 * note-on. Playing voices keep their decoded data.
+	 */
+	public synchronized void clearCache() {
+		clearDecodedSamples();
+		if (getDecodeFormat() == CACHE_NONE) {
+			dropPrerolls();
+		} else {
+			requestRebuild();
+		}
+	}
+
+	/**
+	 * Discard all decoded samples, prerolls, and pinned loops at once,
+	 * because the sample data changed.
+	 */
+	private synchronized void dropCache() {
+		clearDecodedSamples();
+		dropPrerolls();
+	}
+
+	/**
+	 * Discard the entirely decoded samples. The caller must hold the lock.
+	 */
+	private void clearDecodedSamples() {
+		cache.clear();
+		cacheSize = 0;
+		overBudget = false;
+		loadQueue.clear();
+		for (SoundFontDecodedSample preroll : prerolls.values()) {
+			preroll.setLoaded(null);
+		}
+	}
+
+	/**
+	 * Discard the prerolls and pinned loops, and cancel a pending rebuild.
+	 * The caller must hold the lock.
+	 */
+	private void dropPrerolls() {
+		prerolls.clear();
+		loops.clear();
+		prerollSize = 0;
+		rebuildRequested = false;
+		prerollGeneration++;
+		prerollQueue.clear();
+		loopQueue.clear();
+	}
+
+	/**
+	 * @return the memory used by the decoded samples, in bytes, not
+	 *         including the prerolls
+	 */
+	public synchronized long getCacheSize() {
+		return cacheSize;
+	}
+
+	/**
+	 * @return the memory budget for the decoded samples in bytes, or 0 if
+	 *         unlimited
+	 */
+	public synchronized long getCacheBudget() {
+		return cacheBudget;
+	}
+
+	/**
+	 * Set the memory budget for the decoded samples. If the decoded samples
+	 * exceed the budget, the least recently used samples are evicted, unless
+	 * they are used by a playing voice. The prerolls are not included in the
+	 * budget.
+	 * 
+	 * @param bytes the budget in bytes, or 0 for unlimited
+	 */
+	public synchronized void setCacheBudget(long bytes) {
+		if (bytes < 0) {
+			throw new IllegalArgumentException("illegal cache budget: "
+					+ bytes);
+		}
+		cacheBudget = bytes;
+		evict();
+	}
+
+	/**
+	 * @return the number of samples decoded as preroll, or 0 if prerolls are
+	 *         not used
+	 */
+	public synchronized int getPrerollSamples() {
+		return prerollSamples;
+	}
+
+	/**
+	 * Set the length of the prerolls. If non-zero, the first samples are
+	 * kept decoded permanently, and the entire sample is decoded in the
+	 * background. If zero, only the entire sample is decoded. In both cases,
+	 * the voice with the cache miss plays the raw or streamed data, and the
+	 * decoding happens in the background for the following voices. Use
+	 * decodeAll() to decode the prerolls when loading. When the length
+	 * changes, the prerolls are decoded again in the background, and the
+	 * voices use the previous prerolls until then.
+	 * 
+	 * @param samples the number of samples in a preroll
+	 */
+	public synchronized void setPrerollSamples(int samples) {
+		if (samples < 0) {
+			throw new IllegalArgumentException("illegal preroll length: "
+					+ samples);
+		}
+		if (samples != prerollSamples) {
+			prerollSamples = samples;
+			if (samples == 0 || getDecodeFormat() == CACHE_NONE) {
+				dropPrerolls();
+			} else {
+				requestRebuild();
+			}
+		}
+	}
+
+	/**
+	 * @return the memory used by the prerolls and the pinned loops, in bytes
+	 */
+	public synchronized long getPrerollSize() {
+		return prerollSize;
+	}
+
+	/**
+	 * @return the number of times a voice found its sample in the cache
+	 */
+	public synchronized long getCacheHits() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of times a voice did not find its sample in the
+	 *         cache
+	 */
+	public synchronized long getCacheMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return the number of samples evicted from the cache because of the
+	 *         memory budget
+	 */
+	public synchronized long getCacheEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Reset the hit, miss, and eviction statistics.
+	 */
+	public synchronized void resetCacheStatistics() {
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+		underruns.set(0);
+	}
+
+	/**
+	 * Get the decoded data of a sample for a voice. This is called when a
+	 * note starts, possibly on the rendering thread, so it never decodes: on
+	 * a cache miss, the maintenance thread decodes the preroll, or a sample
+	 * not longer than the preroll, and null is returned until then. The
+	 * entire sample is decoded in the background, too: with a preroll, it
+	 * can then be retrieved with getLoaded() of the preroll. The caller must
+	 * return the data with releaseDecodedSample() when done.
+	 * 
+	 * @param sample the sample
+	 * @return the decoded sample, or null if decoding is switched off, the
+	 *         sample is not decoded yet, or the sample is not consistent
+	 *         with the sample data
+	 */
+	synchronized SoundFontDecodedSample acquireDecodedSample(
+			SoundFontSample sample) {
+		if (getDecodeFormat() == CACHE_NONE || !isConsistent(sample)) {
+			return null;
+		}
+		SoundFontDecodedSample decoded = cache.get(sample);
+		if (decoded != null) {
+			hits++;
+			decoded.users.incrementAndGet();
+			return decoded;
+		}
+		misses++;
+		int preroll = prerollSamples;
+		if (preroll > 0 && sample.getEnd() - sample.getStart() > preroll) {
+			if (streamFile == null) {
+				scheduleLoad(sample);
+			}
+			decoded = prerolls.get(sample);
+			if (decoded != null) {
+				decoded.users.incrementAndGet();
+				return decoded;
+			}
+			schedulePreroll(sample);
+		} else if (preroll > 0 || streamFile == null) {
+			// decoded entirely, also when streaming
+			scheduleLoad(sample);
+		}
+		return null;
+	}
+
+	/**
+	 * Get the pinned loop of a streamed sample: the decoded samples from the
+	 * given loop start to the loop end, and the guard samples after it. Like
+	 * acquireDecodedSample(), this never decodes: if the loop is not pinned
+	 * yet, the maintenance thread decodes it, and null is returned until
+	 * then. The caller must return the data with releaseDecodedSample() when
+	 * done.
+	 * 
+	 * @param sample the sample
+	 * @param loopStart the loop start of the voice, usually the loop start
+	 *            of the sample
+	 * @param loopEnd the loop end of the voice
+	 * @return the decoded samples, or null if decoding is switched off, the
+	 *         loop is not decoded yet, or the loop is not consistent with
+	 *         the sample
+	 */
+	synchronized SoundFontDecodedSample acquireLoop(SoundFontSample sample,
+			int loopStart, int loopEnd) {
+		if (getDecodeFormat() == CACHE_NONE || !isConsistent(sample)
+				|| loopStart < sample.getStart() || loopEnd <= loopStart
+				|| loopEnd > sample.getEnd()) {
+			return null;
+		}
+		SoundFontDecodedSample decoded = getLoop(sample, loopStart, loopEnd);
+		if (decoded != null) {
+			decoded.users.incrementAndGet();
+			return decoded;
+		}
+		for (LoopRequest request : loopQueue) {
+			if (request.sample == sample && request.start == loopStart
+					&& request.end == loopEnd) {
+				return null;
+			}
+		}
+		loopQueue.add(new LoopRequest(sample, loopStart, loopEnd));
+		startMaintenance();
+		return null;
+	}
+
+	/**
+	 * Decode a loop outside of the lock, and pin it if the format did not
+	 * change in the meantime.
+	 */
+	private void decodeLoop(SoundFontSample sample, int format,
+			int loopStart, int loopEnd) {
+		synchronized (this) {
+			if (getLoop(sample, loopStart, loopEnd) != null) {
+				return;
+			}
+		}
+		SoundFontDecodedSample decoded = new SoundFontDecodedSample(this,
+				sample, format == CACHE_FLOAT, loopStart, loopEnd - loopStart);
+		synchronized (this) {
+			if (format == getDecodeFormat()
+					&& getLoop(sample, loopStart, loopEnd) == null) {
+				addLoop(loops, sample, decoded);
+				prerollSize += decoded.getSize();
+			}
+		}
+	}
+
+	/**
+	 * @return the pinned loop of the sample with the given loop points, or
+	 *         null. The caller must hold the lock.
+	 */
+	private SoundFontDecodedSample getLoop(SoundFontSample sample,
+			int loopStart, int loopEnd) {
+		List<SoundFontDecodedSample> list = loops.get(sample);
+		if (list != null) {
+			for (SoundFontDecodedSample loop : list) {
+				if (loop.getStart() == loopStart && loop.getEnd() == loopEnd) {
+					return loop;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Add a loop to the given map of pinned loops.
+	 */
+	private static void addLoop(
+			Map<SoundFontSample, List<SoundFontDecodedSample>> map,
+			SoundFontSample sample, SoundFontDecodedSample loop) {
+		List<SoundFontDecodedSample> list = map.get(sample);
+		if (list == null) {
+			list = new ArrayList<SoundFontDecodedSample>(1);
+			map.put(sample, list);
+		}
+		list.add(loop);
+	}
+
+	/**
+	 * Keep a preroll. If the entire sample is in the cache already, voices
+	 * starting from the preroll switch to it. The caller must hold the lock.
+	 */
+	private void addPreroll(SoundFontSample sample,
+			SoundFontDecodedSample preroll) {
+		preroll.setLoaded(cache.get(sample));
+		prerolls.put(sample, preroll);
+		prerollSize += preroll.getSize();
+	}
+
+	/**
+	 * Return decoded data retrieved with acquireDecodedSample(),
+	 * acquireLoop(), or SoundFontDecodedSample.getLoaded(), so that it can be
+	 * evicted. This does not lock: if the cache is over budget, the
+	 * maintenance thread evicts.
+	 */
+	void releaseDecodedSample(SoundFontDecodedSample decoded) {
+		if (decoded.users.decrementAndGet() == 0 && overBudget) {
+			evictionRequested = true;
+			Thread idle = idleMaintenance.getAndSet(null);
+			if (idle != null) {
+				LockSupport.unpark(idle);
+			}
+		}
+	}
+
+	/**
+	 * Decode all given samples now, so that playing a note never needs to
+	 * decode. With a memory budget, only the most recently decoded samples
+	 * are kept. When streaming, only the prerolls and the pinned loops are
+	 * decoded, and the samples not longer than the preroll. The samples are
+	 * decoded outside of the lock, so that voices can be started in the
+	 * meantime.
+	 * 
+	 * @param samples the samples to decode
+	 */
+	public void decodeAll(List<SoundFontSample> samples) {
+		for (SoundFontSample sample : samples) {
+			int format;
+			int preroll;
+			boolean streamed;
+			synchronized (this) {
+				format = getDecodeFormat();
+				if (format == CACHE_NONE) {
+					return;
+				}
+				if (!isConsistent(sample)) {
+					continue;
+				}
+				preroll = prerollSamples;
+				streamed = (streamFile != null);
+			}
+			int length = sample.getEnd() - sample.getStart();
+			if (streamed && preroll > 0 && length > preroll) {
+				decodePreroll(sample, format, preroll);
+				int loopStart = sample.getStartLoop();
+				int loopEnd = sample.getEndLoop();
+				if (loopStart >= sample.getStart() && loopEnd > loopStart
+						&& loopEnd <= sample.getEnd()) {
+					decodeLoop(sample, format, loopStart, loopEnd);
+				}
+			} else {
+				decodeEntirely(sample, format);
+			}
+		}
+	}
+
+	/**
+	 * Decode the preroll of the sample outside of the lock, and keep it if
+	 * the format and the preroll length did not change in the meantime.
+	 */
+	private void decodePreroll(SoundFontSample sample, int format, int preroll) {
+		synchronized (this) {
+			if (prerolls.containsKey(sample)) {
+				return;
+			}
+		}
+		SoundFontDecodedSample decoded = new SoundFontDecodedSample(this,
+				sample, format == CACHE_FLOAT, sample.getStart(), preroll);
+		synchronized (this) {
+			if (format == getDecodeFormat() && preroll == prerollSamples
+					&& !prerolls.containsKey(sample)) {
+				addPreroll(sample, decoded);
+			}
+		}
+	}
+
+	/**
+	 * Decode the entire sample outside of the lock, and add it to the cache
+	 * if the format did not change in the meantime.
+	 */
+	private void decodeEntirely(SoundFontSample sample, int format) {
+		synchronized (this) {
+			if (cache.containsKey(sample)) {
+				return;
+			}
+		}
+		SoundFontDecodedSample decoded = new SoundFontDecodedSample(this,
+				sample, format == CACHE_FLOAT, sample.getStart(),
+				sample.getEnd() - sample.getStart());
+		synchronized (this) {
+			if (format == getDecodeFormat() && !cache.containsKey(sample)) {
+				add(sample, decoded);
+				evict();
+			}
+		}
+	}
+
+	/**
+	 * @return the format for decoding: the cache format, or CACHE_SHORT if
+	 *         streaming with CACHE_NONE
+	 */
+	private int getDecodeFormat() {
+		if (cacheFormat == CACHE_NONE && streamFile != null) {
+			return CACHE_SHORT;
+		}
+		return cacheFormat;
+	}
+
+	private boolean isConsistent(SoundFontSample sample) {
+		return sample.getStart() >= 0 && sample.getEnd() >= sample.getStart()
+				&& sample.getEnd() <= getSampleCount();
+	}
+
+	/**
+	 * Add an entirely decoded sample to the cache. The caller must hold the
+	 * lock.
+	 */
+	private void add(SoundFontSample sample, SoundFontDecodedSample decoded) {
+		cache.put(sample, decoded);
+		cacheSize += decoded.getSize();
+		overBudget = (cacheBudget > 0 && cacheSize > cacheBudget);
+		SoundFontDecodedSample preroll = prerolls.get(sample);
+		if (preroll != null) {
+			preroll.setLoaded(decoded);
+		}
+	}
+
+	/**
+	 * Evict the least recently used samples that are not in use until the
+	 * cache fits into the budget. A voice may switch from a preroll to an
+	 * evicted sample just before it is evicted: it keeps using it, it is
+	 * only not accounted anymore. The caller must hold the lock.
+	 */
+	private void evict() {
+		evictionRequested = false;
+		if (cacheBudget <= 0) {
+			overBudget = false;
+			return;
+		}
+		Iterator<Map.Entry<SoundFontSample, SoundFontDecodedSample>> it =
+				cache.entrySet().iterator();
+		while (cacheSize > cacheBudget && it.hasNext()) {
+			Map.Entry<SoundFontSample, SoundFontDecodedSample> entry =
+					it.next();
+			SoundFontDecodedSample decoded = entry.getValue();
+			if (decoded.users.get() == 0) {
+				it.remove();
+				cacheSize -= decoded.getSize();
+				evictions++;
+				SoundFontDecodedSample preroll = prerolls.get(entry.getKey());
+				if (preroll != null) {
+					preroll.setLoaded(null);
+				}
+			}
+		}
+		overBudget = (cacheSize > cacheBudget);
+	}
+
+	/**
+	 * Add the sample to the queue of the maintenance thread. The caller must
+	 * hold the lock.
+	 */
+	private void scheduleLoad(SoundFontSample sample) {
+		if (loadQueue.contains(sample)) {
+			return;
+		}
+		loadQueue.add(sample);
+		startMaintenance();
+	}
+
+	/**
+	 * Add the sample to the preroll queue of the maintenance thread. The
+	 * caller must hold the lock.
+	 */
+	private void schedulePreroll(SoundFontSample sample) {
+		if (prerollQueue.contains(sample)) {
+			return;
+		}
+		prerollQueue.add(sample);
+		startMaintenance();
+	}
+
+	/**
+	 * Let the maintenance thread decode the prerolls and pinned loops again.
+	 * The current ones are used until then. The caller must hold the lock.
+	 */
+	private void requestRebuild() {
+		prerollGeneration++;
+		rebuildRequested = true;
+		startMaintenance();
+	}
+
+	/**
+	 * Start the maintenance thread, or wake it up if it is waiting. The
+	 * caller must hold the lock.
+	 */
+	private void startMaintenance() {
+		if (!maintenanceRunning) {
+			maintenanceRunning = true;
+			ThreadFactory.createThread(new Maintenance(),
+					"SoundFont sample maintenance",
+					ThreadFactory.NORMAL_PRIORITY, ThreadFactory.ROLE_BACKGROUND);
+		} else {
+			Thread idle = idleMaintenance.getAndSet(null);
+			if (idle != null) {
+				LockSupport.unpark(idle);
+			}
+		}
+	}
+
+	/**
+	 * Decode the prerolls and pinned loops with the current format and
+	 * preroll length outside of the lock, and replace the current ones if
+	 * nothing changed in the meantime. Prerolls and loops added by voices in
+	 * the meantime are kept if they match.
+	 */
+	private void rebuildPrerolls() {
+		int generation;
+		int format;
+		int preroll;
+		List<SoundFontSample> samples;
+		List<SoundFontDecodedSample> oldLoops =
+				new ArrayList<SoundFontDecodedSample>();
+		List<SoundFontSample> loopSamples = new ArrayList<SoundFontSample>();
+		synchronized (this) {
+			generation = prerollGeneration;
+			format = getDecodeFormat();
+			preroll = prerollSamples;
+			samples = new ArrayList<SoundFontSample>(prerolls.keySet());
+			for (Map.Entry<SoundFontSample, List<SoundFontDecodedSample>> entry : loops.entrySet()) {
+				for (SoundFontDecodedSample loop : entry.getValue()) {
+					loopSamples.add(entry.getKey());
+					oldLoops.add(loop);
+				}
+			}
+		}
+		boolean toFloat = (format == CACHE_FLOAT);
+		Map<SoundFontSample, SoundFontDecodedSample> newPrerolls =
+				new HashMap<SoundFontSample, SoundFontDecodedSample>();
+		Map<SoundFontSample, List<SoundFontDecodedSample>> newLoops =
+				new HashMap<SoundFontSample, List<SoundFontDecodedSample>>();
+		if (format != CACHE_NONE) {
+			for (SoundFontSample sample : samples) {
+				if (preroll > 0 && isConsistent(sample)
+						&& sample.getEnd() - sample.getStart() > preroll) {
+					newPrerolls.put(sample, new SoundFontDecodedSample(this,
+							sample, toFloat, sample.getStart(), preroll));
+				}
+			}
+			for (int i = 0; i < oldLoops.size(); i++) {
+				SoundFontDecodedSample loop = oldLoops.get(i);
+				addLoop(newLoops, loopSamples.get(i),
+						new SoundFontDecodedSample(this, loopSamples.get(i),
+								toFloat, loop.getStart(), loop.getEnd()
+										- loop.getStart()));
+			}
+		}
+		synchronized (this) {
+			if (generation != prerollGeneration) {
+				// changed again in the meantime, another rebuild follows
+				return;
+			}
+			for (Map.Entry<SoundFontSample, SoundFontDecodedSample> entry : prerolls.entrySet()) {
+				SoundFontDecodedSample decoded = entry.getValue();
+				if (!newPrerolls.containsKey(entry.getKey())
+						&& decoded.isFloat() == toFloat
+						&& decoded.getEnd() - decoded.getStart() == preroll) {
+					newPrerolls.put(entry.getKey(), decoded);
+				}
+			}
+			for (Map.Entry<SoundFontSample, List<SoundFontDecodedSample>> entry : loops.entrySet()) {
+				for (SoundFontDecodedSample loop : entry.getValue()) {
+					List<SoundFontDecodedSample> list =
+							newLoops.get(entry.getKey());
+					boolean found = false;
+					if (list != null) {
+						for (SoundFontDecodedSample other : list) {
+							if (other.getStart() == loop.getStart()
+									&& other.getEnd() == loop.getEnd()) {
+								found = true;
+								break;
+							}
+						}
+					}
+					if (!found && loop.isFloat() == toFloat) {
+						addLoop(newLoops, entry.getKey(), loop);
+					}
+				}
+			}
+			prerolls.clear();
+			loops.clear();
+			prerollSize = 0;
+			for (Map.Entry<SoundFontSample, SoundFontDecodedSample> entry : newPrerolls.entrySet()) {
+				addPreroll(entry.getKey(), entry.getValue());
+			}
+			for (Map.Entry<SoundFontSample, List<SoundFontDecodedSample>> entry : newLoops.entrySet()) {
+				loops.put(entry.getKey(), entry.getValue());
+				for (SoundFontDecodedSample loop : entry.getValue()) {
+					prerollSize += loop.getSize();
+				}
+			}
+		}
+	}
+
+	/**
+	 * The maintenance thread decodes the queued prerolls, loops, and samples,
+	 * and the prerolls after a change, outside of the lock, so that voices
+	 * can acquire samples in the meantime, and evicts when voices return
+	 * data while the cache is over budget. It exits when it had no work for
+	 * MAINTENANCE_LINGER_NANOS.
+	 */
+	private class Maintenance implements Runnable {
+		public void run() {
+			Thread self = Thread.currentThread();
+			boolean waited = false;
+			while (true) {
+				SoundFontSample sample = null;
+				LoopRequest loop = null;
+				int format = CACHE_NONE;
+				int preroll = 0;
+				boolean rebuild = false;
+				synchronized (SoundFontSampleData.this) {
+					if (evictionRequested) {
+						evict();
+					}
+					format = getDecodeFormat();
+					preroll = prerollSamples;
+					if (rebuildRequested) {
+						rebuildRequested = false;
+						rebuild = true;
+					} else if (!prerollQueue.isEmpty()) {
+						// the prerolls first: they are needed for the
+						// attack of the next notes
+						sample = prerollQueue.removeFirst();
+						if (format == CACHE_NONE || preroll == 0) {
+							continue;
+						}
+					} else if (!loopQueue.isEmpty()) {
+						loop = loopQueue.removeFirst();
+						if (format == CACHE_NONE) {
+							continue;
+						}
+					} else if (!loadQueue.isEmpty()) {
+						sample = loadQueue.removeFirst();
+						preroll = 0;
+						if (format == CACHE_NONE || cache.containsKey(sample)) {
+							continue;
+						}
+					} else if (waited) {
+						maintenanceRunning = false;
+						idleMaintenance.compareAndSet(self, null);
+						return;
+					}
+				}
+				if (rebuild) {
+					rebuildPrerolls();
+					waited = false;
+				} else if (loop != null) {
+					decodeLoop(loop.sample, format, loop.start, loop.end);
+					waited = false;
+				} else if (sample != null) {
+					if (preroll > 0) {
+						decodePreroll(sample, format, preroll);
+					} else {
+						decodeEntirely(sample, format);
+					}
+					waited = false;
+				} else {
+					idleMaintenance.set(self);
+					if (!evictionRequested) {
+						LockSupport.parkNanos(MAINTENANCE_LINGER_NANOS);
+					}
+					idleMaintenance.compareAndSet(self, null);
+					// exit unless woken up for an eviction
+					waited = !evictionRequested;
+				}
+			}
+		}
+	}
+
+	/**
+	 * A loop to be pinned by the maintenance thread.
+	 */
+	private static final class LoopRequest {
+		final SoundFontSample sample;
+		final int start;
+		final int end;
+
+		LoopRequest(SoundFontSample sample, int start, int end) {
+			this.sample = sample;
+			this.start = start;
+			this.end = end;
+		}
 	}
 
 	/**
 	 * @return the number of sample data points
 	 */
 	public int getSampleCount() {
+		if (mapped != null || streamFile != null) {
+			return mappedSampleCount;
+		}
 		if (data == null) {
 			return 0;
 		}
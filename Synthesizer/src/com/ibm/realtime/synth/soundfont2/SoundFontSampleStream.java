@@ -0,0 +1,230 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ibm.realtime.synth.soundfont2;
+
+/**
+ * A ring buffer of samples streamed from a file, used by one voice. An I/O
+ * thread of the sample data reads ahead of the play position; the voice
+ * copies the samples of every block from the ring buffer to its window.
+ * <p>
+ * The ring buffer holds the sample positions from the last position
+ * consumed by the voice up to the filled position. Only the I/O thread
+ * writes to the ring buffer, and only one task of a stream runs at a time.
+ * When the stream is restarted for another note, the generation changes so
+ * that a running task does not publish data of the previous note.
+ */
+final class SoundFontSampleStream implements Runnable {
+
+	/**
+	 * Return value of read(): the samples were copied
+	 */
+	static final int AVAILABLE = 0;
+
+	/**
+	 * Return value of read(): the samples are not read from the file yet
+	 */
+	static final int UNDERRUN = 1;
+
+	/**
+	 * Return value of read(): the samples are not in the range of the
+	 * stream, or the block does not fit into the ring buffer
+	 */
+	static final int UNAVAILABLE = 2;
+
+	/**
+	 * The maximum number of samples read from the file at once
+	 */
+	private static final int CHUNK_SAMPLES = 16384;
+
+	private final SoundFontSampleData data;
+
+	/**
+	 * The ring buffer, sample position p is at index p % capacity
+	 */
+	private short[] ring;
+
+	private int capacity;
+
+	/**
+	 * The first sample position of the stream
+	 */
+	private int start;
+
+	/**
+	 * One after the last sample position of the stream
+	 */
+	private int end;
+
+	/**
+	 * One after the last sample position available in the ring buffer
+	 */
+	private volatile int filled;
+
+	/**
+	 * The first sample position that the voice may still read. The I/O
+	 * thread does not overwrite it.
+	 */
+	private volatile int consumed;
+
+	/**
+	 * Incremented for every start() and stop(). Guarded by this.
+	 */
+	private int generation;
+
+	/**
+	 * True while a task is scheduled or running
+	 */
+	private volatile boolean scheduled;
+
+	SoundFontSampleStream(SoundFontSampleData data) {
+		this.data = data;
+	}
+
+	/**
+	 * Start streaming the given range. The I/O thread starts reading
+	 * immediately.
+	 * 
+	 * @param start the first sample position to stream
+	 * @param end one after the last sample position to stream
+	 * @param playPos the current play position of the voice
+	 * @param capacity the size of the ring buffer in samples, i.e. the read
+	 *            ahead
+	 */
+	synchronized void start(int start, int end, int playPos, int capacity) {
+		generation++;
+		if (ring == null || ring.length < capacity) {
+			ring = new short[capacity];
+		}
+		this.capacity = capacity;
+		this.start = start;
+		this.end = end;
+		this.consumed = Math.min(start, playPos);
+		this.filled = start;
+		requestFill();
+	}
+
+	/**
+	 * Stop streaming. A running task finishes without publishing its data.
+	 */
+	synchronized void stop() {
+		generation++;
+		end = start;
+		filled = start;
+	}
+
+	/**
+	 * Copy the samples from first to first + count - 1 to dest, starting at
+	 * the given offset.
+	 * 
+	 * @return AVAILABLE, UNDERRUN, or UNAVAILABLE
+	 */
+	int read(int first, short[] dest, int offset, int count) {
+		if (first < start || first < consumed || count > capacity / 2) {
+			return UNAVAILABLE;
+		}
+		if (first + count > filled) {
+			return (first + count <= end) ? UNDERRUN : UNAVAILABLE;
+		}
+		int index = first % capacity;
+		int count1 = Math.min(count, capacity - index);
+		System.arraycopy(ring, index, dest, offset, count1);
+		if (count1 < count) {
+			System.arraycopy(ring, 0, dest, offset + count1, count - count1);
+		}
+		return AVAILABLE;
+	}
+
+	/**
+	 * Tell the stream that the voice will not read before the given
+	 * position anymore, and schedule reading ahead if there is enough room
+	 * in the ring buffer.
+	 */
+	void advance(int pos) {
+		if (pos > consumed) {
+			consumed = pos;
+		}
+		if (!scheduled && filled < end
+				&& filled - consumed < (capacity * 3) / 4) {
+			synchronized (this) {
+				requestFill();
+			}
+		}
+	}
+
+	/**
+	 * Queue a request with the I/O thread pool. The caller must hold the
+	 * lock. If the request cannot be queued, it is requested again on the
+	 * next advance().
+	 */
+	private void requestFill() {
+		if (!scheduled && filled < end) {
+			scheduled = true;
+			if (!data.executeStreamTask(this)) {
+				scheduled = false;
+			}
+		}
+	}
+
+	/**
+	 * Called when a queued request is discarded without being executed.
+	 */
+	synchronized void cancel() {
+		scheduled = false;
+	}
+
+	/**
+	 * The I/O task: fill the ring buffer up to the consumed position plus
+	 * the capacity.
+	 */
+	public void run() {
+		while (true) {
+			int gen;
+			int pos;
+			int index;
+			int count;
+			short[] buffer;
+			synchronized (this) {
+				gen = generation;
+				pos = filled;
+				int limit = Math.min(end, consumed + capacity);
+				if (pos >= limit) {
+					scheduled = false;
+					return;
+				}
+				buffer = ring;
+				index = pos % capacity;
+				count = Math.min(Math.min(limit - pos, CHUNK_SAMPLES),
+						capacity - index);
+			}
+			data.read(pos, buffer, index, count);
+			synchronized (this) {
+				if (gen == generation) {
+					filled = pos + count;
+				}
+			}
+		}
+	}
+}
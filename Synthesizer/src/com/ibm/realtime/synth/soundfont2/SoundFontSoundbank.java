@@ -29,7 +29,7 @@ import android.content.res.AssetManager;
 
 import com.ibm.realtime.synth.engine.*;
 
-import org.jsresources.utils.audio.AudioUtils;
+import com.ibm.realtime.synth.utils.FastMath;
 
 import java.io.*;
 import java.util.*;
@@ -41,7 +41,7 @@ import static com.ibm.realtime.synth.utils.Debug.*;
  *
  * @author florian
  */
-public class SoundFontSoundbank implements Soundbank {
+public class SoundFontSoundbank implements Soundbank, VoicePool.Factory {
 
     public static boolean TRACE_SB2SB = false;
 
@@ -60,13 +60,82 @@ public class SoundFontSoundbank implements Soundbank {
      */
     private List<SoundFontBank> banks;
 
+    /**
+     * The banks by MIDI bank number [0..16383]: the first index is the bank
+     * MSB, the second the bank LSB. The second level arrays are only
+     * created for existing banks.
+     */
+    private SoundFontBank[][] bankTable;
+
+    /**
+     * The pool of voices, so that playing a note does not need to create
+     * new objects
+     */
+    private VoicePool voicePool;
+
     /**
      * Create a new instance of SoundFont2Soundbank by parsing the specified
      * file.
      */
     public SoundFontSoundbank(File inputFile) throws IOException,
             Parser.SoundFont2ParserException {
-        load(new FileInputStream(inputFile));
+        this(inputFile, false);
+    }
+
+    /**
+     * Create a new instance of SoundFont2Soundbank by parsing the specified
+     * file. If memoryMapped is true, the sample data is memory mapped
+     * instead of loaded: it is paged in on demand, and shared with other
+     * processes using the same file. The samples are rendered from the
+     * mapped data, unless a sample cache format is set.
+     */
+    public SoundFontSoundbank(File inputFile, boolean memoryMapped)
+            throws IOException, Parser.SoundFont2ParserException {
+        this(inputFile, memoryMapped ? SoundFontSampleData.STORAGE_MAPPED
+                : SoundFontSampleData.STORAGE_MEMORY);
+    }
+
+    /**
+     * Create a new instance of SoundFont2Soundbank by parsing the specified
+     * file, with the given storage of the sample data. With
+     * STORAGE_STREAMED, only the prerolls and loops are kept in memory, and
+     * the file stays open until close() is called.
+     *
+     * @param storage one of the SoundFontSampleData.STORAGE_* constants
+     */
+    public SoundFontSoundbank(File inputFile, int storage)
+            throws IOException, Parser.SoundFont2ParserException {
+        this(inputFile, storage, null);
+    }
+
+    /**
+     * Create a new instance of SoundFont2Soundbank from the specified file,
+     * using a binary cache of the parsed presets. The first time, the file
+     * is parsed and the cache is written. Later, the presets are read from
+     * the cache, as long as the file is not modified.
+     *
+     * @param storage one of the SoundFontSampleData.STORAGE_* constants
+     * @param cacheFile the cache file, or null to not use a cache
+     */
+    public SoundFontSoundbank(File inputFile, int storage, File cacheFile)
+            throws IOException, Parser.SoundFont2ParserException {
+        Parser parser = new Parser();
+        parser.load(inputFile, storage, cacheFile);
+        init(parser);
+        if (sampleData.isStreamed()) {
+            // voices must not decode prerolls or loops on note-on
+            decodeAllSamples();
+        }
+    }
+
+    /**
+     * Close the file of streamed sample data. Not necessary for the other
+     * storage types.
+     */
+    public void close() {
+        if (sampleData != null) {
+            sampleData.close();
+        }
     }
 
     /**
@@ -103,6 +172,8 @@ public class SoundFontSoundbank implements Soundbank {
         this.sampleData = sampleData;
         this.info = info;
         this.banks = banks;
+        this.voicePool = new VoicePool(this);
+        buildIndex();
     }
 
     /**
@@ -116,9 +187,130 @@ public class SoundFontSoundbank implements Soundbank {
         } finally {
             is.close();
         }
+        init(parser);
+    }
+
+    private void init(Parser parser) {
         sampleData = parser.getSampleData();
         info = parser.getInfo();
         banks = parser.getPresetBanks();
+        voicePool = new VoicePool(this);
+        buildIndex();
+    }
+
+    /**
+     * Build the lookup tables: the direct bank table, and for each preset
+     * the regions and their key index, so that this is not done when
+     * playing a note.
+     */
+    private void buildIndex() {
+        bankTable = new SoundFontBank[128][];
+        if (banks == null) {
+            return;
+        }
+        for (SoundFontBank bank : banks) {
+            int number = bank.getMidiNumber();
+            if (number >= 0 && number < 16384) {
+                SoundFontBank[] lsbTable = bankTable[number >> 7];
+                if (lsbTable == null) {
+                    lsbTable = new SoundFontBank[128];
+                    bankTable[number >> 7] = lsbTable;
+                }
+                lsbTable[number & 0x7F] = bank;
+            }
+            for (SoundFontPreset preset : bank.getPresets()) {
+                if (preset != null) {
+                    preset.buildIndex();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param bank the MIDI bank number [0..16383]
+     * @return the bank, or null if it does not exist
+     */
+    private SoundFontBank getBank(int bank) {
+        if (bank < 0 || bank >= 16384) {
+            return null;
+        }
+        SoundFontBank[] lsbTable = bankTable[bank >> 7];
+        if (lsbTable == null) {
+            return null;
+        }
+        return lsbTable[bank & 0x7F];
+    }
+
+    /**
+     * @return the pool of voices used by this soundbank. Use it to configure
+     * the pool size and the policy when it runs dry, and to query the pool
+     * statistics.
+     */
+    public VoicePool getVoicePool() {
+        return voicePool;
+    }
+
+    /**
+     * @return the sample data of this soundbank, e.g. to configure the memory
+     * budget and preroll of the decoded sample cache, and to query its
+     * statistics
+     */
+    public SoundFontSampleData getSampleData() {
+        return sampleData;
+    }
+
+    /**
+     * Set the format of the decoded sample cache, one of the
+     * SoundFontSampleData.CACHE_* constants. CACHE_NONE, the default, renders
+     * directly from the 16-bit little endian sample data. With a cache, call
+     * decodeAllSamples(), so that the first note of a sample is rendered from
+     * the decoded data, too.
+     */
+    public void setSampleCacheFormat(int format) {
+        sampleData.setCacheFormat(format);
+    }
+
+    /**
+     * @return the format of the decoded sample cache
+     */
+    public int getSampleCacheFormat() {
+        return sampleData.getCacheFormat();
+    }
+
+    /**
+     * Decode all samples used by the presets of this soundbank, so that no
+     * sample needs to be decoded when a note is played the first time. When
+     * streaming, only the prerolls and the loops are decoded: this is done
+     * when loading, and needs to be repeated after changing the preroll
+     * length or the cache format.
+     */
+    public void decodeAllSamples() {
+        Set<SoundFontSample> samples = new LinkedHashSet<SoundFontSample>();
+        for (SoundFontBank bank : banks) {
+            for (SoundFontPreset preset : bank.getPresets()) {
+                if (preset == null) {
+                    continue;
+                }
+                for (SoundFontPresetZone pz : preset.getZones()) {
+                    SoundFontInstrument inst = pz.getInstrument();
+                    if (inst == null) {
+                        continue;
+                    }
+                    for (SoundFontInstrumentZone iz : inst.getZones()) {
+                        if (iz.getSample() != null) {
+                            samples.add(iz.getSample());
+                        }
+                    }
+                }
+            }
+        }
+        sampleData.decodeAll(new ArrayList<SoundFontSample>(samples));
+    }
+
+    // interface VoicePool.Factory
+    public NoteInput createVoice(VoicePool pool) {
+        SoundFontArticulation art = new SoundFontArticulation();
+        return new NoteInput(pool, new SoundFontPatch(), new SoundFontOscillator(), art);
     }
 
 
@@ -139,67 +331,37 @@ public class SoundFontSoundbank implements Soundbank {
         NoteInput result = null;
 
         // first find a fitting bank
-        int index = SoundFontBank.findBank(banks, channel.getBank());
-        if (index >= 0) {
-            SoundFontBank bank = banks.get(index);
+        SoundFontBank bank = getBank(channel.getBank());
+        if (bank != null) {
             SoundFontPreset preset = bank.getPreset(channel.getProgram());
             if (preset != null) {
-                // we found a preset! now find a fitting zone
+                // we found a preset! now find the fitting regions
                 if (TRACE_SB2SB) {
                     debug("-matching preset: " + preset);
                 }
-                List<SoundFontPresetZone> pZones = preset.getZones(note, vel);
-                if (pZones != null) {
-                    for (SoundFontPresetZone pZone : pZones) {
-                        if (TRACE_SB2SB) {
-                            debug(" -matching preset zone: " + pZone);
-                        }
-                        SoundFontPresetZone pZoneGlobal =
-                                preset.getGlobalZone();
-                        if (TRACE_SB2SB) {
-                            if (pZoneGlobal != null) {
-                                debug(" -matching global preset zone: "
-                                        + pZoneGlobal);
-                            }
-                        }
-
-                        SoundFontInstrument inst = pZone.getInstrument();
-                        if (TRACE_SB2SB) {
-                            debug("  -matching inst: " + inst);
-                        }
-                        List<SoundFontInstrumentZone> iZones =
-                                inst.getZones(note, vel);
-                        if (iZones != null) {
-                            for (SoundFontInstrumentZone iZone : iZones) {
-                                if (TRACE_SB2SB) {
-                                    debug("   -matching inst Zone: " + iZone);
-                                }
-                                NoteInput ni =
-                                        createNoteInput(params, time, channel,
-                                                note, vel, preset, pZone,
-                                                pZoneGlobal, inst, iZone);
-                                result = addNoteInputToResult(result, ni);
-                                if (ni != null) {
-                                    // do we need to set up a linked sample?
-                                    SoundFontInstrumentZone iZoneLink =
-                                            iZone.getZoneLink();
-                                    if (iZoneLink != null) {
-                                        if (TRACE_SB2SB) {
-                                            debug("    -creating phase-locked NoteInput with "
-                                                    + "inst Zone: " + iZoneLink);
-                                        }
-                                        NoteInput linkedNI =
-                                                createNoteInput(params, time,
-                                                        channel, note, vel,
-                                                        preset, pZone,
-                                                        pZoneGlobal, inst,
-                                                        iZoneLink);
-                                        result =
-                                                addNoteInputToResult(result,
-                                                        linkedNI);
-                                    }
-                                }
+                // only the regions in the key range of the note
+                SoundFontRegion[] regions = preset.getRegions(note);
+                for (SoundFontRegion region : regions) {
+                    if (!region.matches(note, vel)) {
+                        continue;
+                    }
+                    if (TRACE_SB2SB) {
+                        debug(" -matching region: " + region);
+                    }
+                    NoteInput ni = createNoteInput(params, time, channel,
+                            note, vel, region);
+                    result = addNoteInputToResult(result, ni);
+                    if (ni != null) {
+                        // do we need to set up a linked sample?
+                        SoundFontRegion link = region.getLink();
+                        if (link != null) {
+                            if (TRACE_SB2SB) {
+                                debug("  -creating phase-locked NoteInput with "
+                                        + "region: " + link);
                             }
+                            NoteInput linkedNI = createNoteInput(params, time,
+                                    channel, note, vel, link);
+                            result = addNoteInputToResult(result, linkedNI);
                         }
                     }
                 }
@@ -239,79 +401,56 @@ public class SoundFontSoundbank implements Soundbank {
 
     private final NoteInput createNoteInput(Synthesizer.Params params,
                                             AudioTime time, MidiChannel channel, int note, int vel,
-                                            SoundFontPreset preset, SoundFontPresetZone pZone,
-                                            SoundFontPresetZone pZoneGlobal, SoundFontInstrument inst,
-                                            SoundFontInstrumentZone iZone) {
+                                            SoundFontRegion region) {
 
-        SoundFontInstrumentZone iZoneGlobal = inst.getGlobalZone();
-        if (TRACE_SB2SB) {
-            if (iZoneGlobal != null) {
-                debug("     -matching global inst Zone: " + iZoneGlobal);
+        SoundFontSample sample = region.getSample();
+        NoteInput voice = voicePool.acquire();
+        if (voice == null) {
+            if (TRACE_SB2SB) {
+                debug("   -voice pool is empty, cannot play note");
             }
+            return null;
         }
-
-        SoundFontSample sample = iZone.getSample();
-        if (TRACE_SB2SB) {
-            debug("     -matching sample: " + sample);
+        SoundFontPatch patch = (SoundFontPatch) voice.getPatch();
+        patch.reset(note, vel, channel.getBank(), channel.getProgram(), sample);
+        SoundFontArticulation art = (SoundFontArticulation) voice.getArticulation();
+        art.reset(time, patch, channel, params.isUsingLowpassFilter());
+        if (SoundFontArticulation.isDebugNames()) {
+            art.setName(region.getName());
         }
-        SoundFontPatch patch =
-                new SoundFontPatch(note, vel, channel.getBank(),
-                        channel.getProgram(), sample);
-        SoundFontArticulation art =
-                new SoundFontArticulation(time, patch, channel, params.isUsingLowpassFilter());
-        art.setName(preset.getName() + "." + inst.getName());
-        SoundFontOscillator osc = new SoundFontOscillator(sample, sampleData);
+        SoundFontOscillator osc = (SoundFontOscillator) voice.getOscillator();
+        osc.reset(sample, sampleData);
 
         // GENERATORS
 
         // the generators may change the values in Patch, also the note!
-
-        // first parse the instrument zone for absolute values
-        if (iZoneGlobal != null) {
-            // don't need to specify a forbidden list, since the global values
-            // will be overriden anyway by the local zone
-            iZoneGlobal.parseZone(false, patch, art, osc, null);
-        }
-        iZone.parseZone(false, patch, art, osc, null);
-
-        // then parse the preset zone for relative values
-        if (pZoneGlobal != null) {
-            pZoneGlobal.parseZone(true, patch, art, osc, pZone);
-        }
-        pZone.parseZone(true, patch, art, osc, null);
+        // The region has the instrument level values first, then the preset
+        // level values to add to them.
+        region.apply(patch, art, osc);
 
         // MODULATORS
 
         // use "patch.getNote()", because the generators may change the note in Patch.
         note = patch.getNote();
         vel = patch.getVelocity();
-        // first parse the instrument zone for absolute values
-        if (iZoneGlobal != null) {
-            iZoneGlobal.parseModulators(note, vel, channel, art, iZone);
-        }
-        iZone.parseModulators(note, vel, channel, art, null);
-
-        // then parse the preset zone's modulators
-        if (pZoneGlobal != null) {
-            pZoneGlobal.parseModulators(note, vel, channel, art, pZone);
-        }
-        pZone.parseModulators(note, vel, channel, art, null);
 
-        // eventually, execute the default modulators (if not overriden by
-        // zone modulators)
+        // the zone modulators are not executed (see
+        // SoundFontZone.parseModulators), so only execute the default
+        // modulators
         executeDefaultModulators(note, vel, channel, art);
 
         // add sample's pitch correction
-        int pitchCorrection = sample.getPitchCorrection();
+        double pitchCorrection = region.getPitchCorrection();
         if (pitchCorrection != 0) {
             art.setInitialPitchOffset(art.getInitialPitchOffset()
-                    + (pitchCorrection / 100.0));
+                    + pitchCorrection);
         }
 
         // initialize the oscillator
         osc.init();
 
-        return new NoteInput(params, time, channel, patch, osc, art, note, vel);
+        voice.reset(params, time, channel, patch, osc, art, note, vel);
+        return voice;
     }
 
     private final void executeDefaultModulators(int note, int vel,
@@ -322,7 +461,7 @@ public class SoundFontSoundbank implements Soundbank {
                 SoundFontUtils.transform(vel / 127.0, true,
                         true, false)
                         * -96.0;
-        double linear = AudioUtils.decibel2linear(velDB);
+        double linear = FastMath.decibel2linear(velDB);
         art.addLinearInitialAttenuation(linear);
         if (TRACE_SB2SB) {
             debug("      -velocity " + vel
@@ -26,7 +26,7 @@
 package com.ibm.realtime.synth.soundfont2;
 
 import java.io.*;
-import org.jsresources.utils.audio.AudioUtils;
+import com.ibm.realtime.synth.utils.FastMath;
 
 /**
  * A class with utility methods for the SoundFont synth.
@@ -41,6 +41,51 @@ public class SoundFontUtils {
 	 */
 	public static final double DEFAULT_ARTICULATION_DELAY = 0.0009765625;
 
+	/**
+	 * The number of intervals of the transform table.
+	 */
+	private static final int TRANSFORM_TABLE_SIZE = 4096;
+
+	/**
+	 * The value at which the positive unipolar concave transform reaches 1.0:
+	 * 1 - 10^(-96/40).
+	 */
+	private static final double CONCAVE_LIMIT = 1.0 - Math.pow(10.0, -2.4);
+
+	/**
+	 * The positive unipolar concave transform for the values
+	 * i * CONCAVE_LIMIT / TRANSFORM_TABLE_SIZE, with one additional entry for
+	 * interpolation. The other unipolar transforms are mirrored versions of
+	 * it. The interpolation error is largest close to CONCAVE_LIMIT, and stays
+	 * below 1e-4 (0.01dB when used for attenuation).
+	 */
+	private static final double[] CONCAVE_TABLE =
+			new double[TRANSFORM_TABLE_SIZE + 2];
+
+	static {
+		for (int i = 0; i <= TRANSFORM_TABLE_SIZE; i++) {
+			CONCAVE_TABLE[i] = transformExact(i * CONCAVE_LIMIT
+					/ TRANSFORM_TABLE_SIZE, false, true, false);
+		}
+		CONCAVE_TABLE[TRANSFORM_TABLE_SIZE + 1] = 1.0;
+	}
+
+	/**
+	 * @return the positive unipolar concave transform, interpolated from the
+	 *         table
+	 */
+	private static final double concave(double value) {
+		if (value <= 0.0) {
+			return 0.0;
+		} else if (value >= CONCAVE_LIMIT) {
+			return 1.0;
+		}
+		double pos = value * (TRANSFORM_TABLE_SIZE / CONCAVE_LIMIT);
+		int index = (int) pos;
+		double v = CONCAVE_TABLE[index];
+		return v + (CONCAVE_TABLE[index + 1] - v) * (pos - index);
+	}
+
 	/**
 	 * Calculate the transform according to the parameters. Value needs to be
 	 * normalized 0..1 for unipolar and -1...+1 for bipolar transforms.
@@ -53,7 +98,30 @@ public class SoundFontUtils {
 	 */
 	public static final double transform(double value, boolean negative,
 			boolean unipolar, boolean convex) {
-		// TODO: use a table
+		if (!unipolar) {
+			return transformExact(value, negative, unipolar, convex);
+		}
+		if (convex) {
+			if (negative) {
+				return 1.0 - concave(value);
+			}
+			return 1.0 - concave(1.0 - value);
+		}
+		if (negative) {
+			return concave(1.0 - value);
+		}
+		return concave(value);
+	}
+
+	/**
+	 * Calculate the transform with the logarithm function. transform() uses a
+	 * table for the unipolar transforms, and this method for the bipolar
+	 * transforms.
+	 * 
+	 * @see #transform(double, boolean, boolean, boolean)
+	 */
+	public static final double transformExact(double value, boolean negative,
+			boolean unipolar, boolean convex) {
 		double factor;
 		double sig;
 		if (!unipolar) {
@@ -110,8 +178,7 @@ public class SoundFontUtils {
 		if (timecents <= -32768) {
 			return 0.0;
 		}
-		// TODO: use a table
-		return Math.pow(2.0, timecents / 1200.0);
+		return FastMath.exp2(timecents * (1.0 / 1200.0));
 	}
 
 	/**
@@ -135,8 +202,7 @@ public class SoundFontUtils {
 	 * @return the converted frequency, in Hz
 	 */
 	public static final double cents2hertzLFO(int cents) {
-		// TODO: use a table
-		return Math.pow(2.0, cents / 1200.0) * 8.176;
+		return FastMath.exp2(cents * (1.0 / 1200.0)) * 8.176;
 	}
 
 	/**
@@ -146,8 +212,7 @@ public class SoundFontUtils {
 	 * @return the converted frequency, in Hz
 	 */
 	public static final double cents2hertzCutoff(int cents) {
-		// TODO: use a table
-		return Math.pow(2.0, (cents - 6900) / 1200.0) * 440.0;
+		return FastMath.exp2((cents - 6900) * (1.0 / 1200.0)) * 440.0;
 	}
 
 	/**
@@ -167,7 +232,7 @@ public class SoundFontUtils {
 		}
 		//return Math.pow(10.0, attenuation / -531.509);
 		// 0.037628713718864591192246979825365 =  (20.0/-531.509)
-		return AudioUtils.decibel2linear(attenuation * 0.037628713718864591);
+		return FastMath.decibel2linear(attenuation * 0.037628713718864591);
 	}
 
 	/**
@@ -176,6 +241,10 @@ public class SoundFontUtils {
 	 * @param args
 	 */
 	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals("-bench")) {
+			benchmark();
+			return;
+		}
 		dump(false, true, false);
 		dump(true, true, false);
 		dump(false, false, false);
@@ -211,6 +280,88 @@ public class SoundFontUtils {
 
 	}
 
+	/**
+	 * Compare the table based conversions with the exact formulas: maximum
+	 * error and time per call.
+	 */
+	public static void benchmark() {
+		int count = 2000000;
+		double maxError = 0.0;
+		for (int i = 0; i <= 100000; i++) {
+			double v = i / 100000.0;
+			for (int t = 0; t < 4; t++) {
+				boolean neg = (t & 1) != 0;
+				boolean convex = (t & 2) != 0;
+				double err = Math.abs(transform(v, neg, true, convex)
+						- transformExact(v, neg, true, convex));
+				if (err > maxError) {
+					maxError = err;
+				}
+			}
+		}
+		System.out.println("transform: max absolute error=" + maxError);
+		maxError = 0.0;
+		for (int tc = -12000; tc <= 8000; tc++) {
+			double err = Math.abs(timecents2seconds(tc)
+					/ Math.pow(2.0, tc / 1200.0) - 1.0);
+			if (err > maxError) {
+				maxError = err;
+			}
+		}
+		System.out.println("timecents2seconds: max relative error="
+				+ maxError);
+
+		double sum = 0.0;
+		for (int run = 0; run < 5; run++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				sum += transformExact((i & 4095) / 4096.0, false, true, true);
+			}
+			long exact = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				sum += transform((i & 4095) / 4096.0, false, true, true);
+			}
+			long table = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				sum += Math.pow(2.0, ((i & 8191) - 6000) / 1200.0);
+			}
+			long exactTC = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				sum += timecents2seconds((i & 8191) - 6000);
+			}
+			long tableTC = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				sum += Math.pow(10.0, (i & 1023) * 0.037628713718864591 / 20.0);
+			}
+			long exactAtt = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				sum += attenuation2linear(i & 1023);
+			}
+			long tableAtt = System.nanoTime() - start;
+			System.out.println("run " + run + ": transform: exact "
+					+ format1(exact, count) + "ns, table "
+					+ format1(table, count) + "ns; timecents2seconds: exact "
+					+ format1(exactTC, count) + "ns, table "
+					+ format1(tableTC, count)
+					+ "ns; attenuation2linear: exact "
+					+ format1(exactAtt, count) + "ns, table "
+					+ format1(tableAtt, count) + "ns");
+		}
+		// prevent dead code elimination
+		if (sum == 0.0) {
+			System.out.println("");
+		}
+	}
+
+	private static String format1(long nanos, int count) {
+		return Double.toString(Math.round(nanos * 10.0 / count) / 10.0);
+	}
+
 	public static void dump(boolean neg, boolean uni, boolean convex) {
 		double min = 0.0;
 		if (!uni) {
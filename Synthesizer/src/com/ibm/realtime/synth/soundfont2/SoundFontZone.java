@@ -108,6 +108,17 @@ public abstract class SoundFontZone {
 				&& (zone.velMin == this.velMin) && (zone.velMax == this.velMax);
 	}
 
+	/**
+	 * Set the key and velocity ranges, e.g. when restoring a zone from the
+	 * soundbank cache.
+	 */
+	void setRanges(int keyMin, int keyMax, int velMin, int velMax) {
+		this.keyMin = keyMin;
+		this.keyMax = keyMax;
+		this.velMin = velMin;
+		this.velMax = velMax;
+	}
+
 	/**
 	 * Invalidate this zone so that it will not be used at runtime anymore. This
 	 * is currently achieved by setting the keyMin/keyMax values to impossible
@@ -31,12 +31,19 @@ import static com.ibm.realtime.synth.utils.Debug.error;
 import java.util.Queue;
 import java.util.concurrent.PriorityBlockingQueue;
 
+import com.ibm.realtime.synth.engine.ThreadFactory;
+
 /**
  * A thread to execute the listener asynchronously.
  */
 public class AsynchExec<T> implements Runnable {
 
 	public static boolean DEBUG_ASYNCH_EXEC = false;
+
+	/**
+	 * The maximum time that stop() waits for the dispatcher to exit.
+	 */
+	private static final long STOP_TIMEOUT_MILLIS = 2000;
 	
 	private Listener<T> listener;
 	private String name;
@@ -47,12 +54,19 @@ public class AsynchExec<T> implements Runnable {
 	private Queue<T> execs = new PriorityBlockingQueue<T>();
 
 	/**
-	 * The event dispatcher thread
+	 * flag that is true while the dispatcher is running. The dispatcher may
+	 * run on a shared thread, depending on the ThreadFactory's backend.
 	 */
-	private Thread thread;
+	private volatile boolean running = false;
 
 	private volatile boolean stopped = false;
 
+	/**
+	 * If true, start() was called while the previous dispatcher did not exit
+	 * yet. The previous dispatcher then starts the new one when it exits.
+	 */
+	private boolean restartPending = false;
+
 	public AsynchExec(Listener<T> listener, String name) {
 		this.name = name;
 		this.listener = listener;
@@ -60,29 +74,50 @@ public class AsynchExec<T> implements Runnable {
 
 	public synchronized void start() {
 		stop();
+		if (running) {
+			// stop() timed out: do not run two dispatchers at once
+			restartPending = true;
+			return;
+		}
+		startDispatcher();
+	}
+
+	private void startDispatcher() {
 		stopped = false;
-		thread = new Thread(this, name);
-		thread.setDaemon(true);
-		thread.start();
+		running = true;
+		ThreadFactory.createThread(this, name, ThreadFactory.NORMAL_PRIORITY,
+				ThreadFactory.ROLE_BACKGROUND);
 	}
 
+	/**
+	 * Stop the dispatcher and wait for it to exit, but at most
+	 * STOP_TIMEOUT_MILLIS, e.g. if the listener blocks.
+	 */
 	public synchronized void stop() {
-		if (!stopped && thread != null && thread.isAlive()) {
+		restartPending = false;
+		if (!stopped && running) {
 			stopped = true;
 			synchronized (execs) {
 				execs.notifyAll();
 			}
 			try {
-				thread.join();
+				long end = System.currentTimeMillis() + STOP_TIMEOUT_MILLIS;
+				long wait;
+				while (running
+						&& (wait = end - System.currentTimeMillis()) > 0) {
+					this.wait(wait);
+				}
 			} catch (InterruptedException ie) {
 				error(ie);
 			}
+			if (running && DEBUG_ASYNCH_EXEC) {
+				debug(name + ": stop timed out.");
+			}
 		}
-		thread = null;
 	}
 	
 	public synchronized boolean isStarted() {
-		return !stopped;
+		return !stopped || restartPending;
 	}
 
 	/**
@@ -102,8 +137,8 @@ public class AsynchExec<T> implements Runnable {
 		}
 		try {
 			while (!stopped) {
-				if (execs.isEmpty()) {
-					synchronized (execs) {
+				synchronized (execs) {
+					if (!stopped && execs.isEmpty()) {
 						execs.wait();
 					}
 				}
@@ -116,6 +151,15 @@ public class AsynchExec<T> implements Runnable {
 			}
 		} catch (InterruptedException ie) {
 			error(ie);
+		} finally {
+			synchronized (this) {
+				running = false;
+				if (restartPending) {
+					restartPending = false;
+					startDispatcher();
+				}
+				this.notifyAll();
+			}
 		}
 		if (DEBUG_ASYNCH_EXEC) {
 			debug(name+": exit.");
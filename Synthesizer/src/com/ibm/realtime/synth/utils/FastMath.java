@@ -0,0 +1,178 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008
+ * All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ibm.realtime.synth.utils;
+
+/**
+ * Table based replacements for the exponential conversions used during
+ * rendering: decibel to linear, semitones to frequency factor, and cents or
+ * timecents to hertz or seconds. All of them are powers of 2, calculated from
+ * an interpolated table of 2^x for x in [0..1) and an exact power of 2 for the
+ * integer part.
+ * <p>
+ * Error bound: with linear interpolation between EXP2_TABLE_SIZE entries,
+ * the relative error of exp2() is below (ln(2) / EXP2_TABLE_SIZE)^2 / 8, i.e.
+ * less than 6e-8 (about 5e-7 dB, or 1e-4 cents). Results are exact at
+ * integer x.
+ */
+public class FastMath {
+
+	/**
+	 * The number of table entries for one octave, as a power of 2.
+	 */
+	private static final int EXP2_TABLE_BITS = 10;
+
+	/**
+	 * The number of table entries for one octave.
+	 */
+	public static final int EXP2_TABLE_SIZE = 1 << EXP2_TABLE_BITS;
+
+	/**
+	 * 2^(i / EXP2_TABLE_SIZE), with one additional entry for interpolation.
+	 */
+	private static final double[] EXP2_TABLE = new double[EXP2_TABLE_SIZE + 1];
+
+	/**
+	 * log2(10) / 20: the factor to convert decibels to octaves of amplitude.
+	 */
+	private static final double DECIBEL_TO_EXP2 = 0.16609640474436813;
+
+	static {
+		for (int i = 0; i <= EXP2_TABLE_SIZE; i++) {
+			EXP2_TABLE[i] = Math.pow(2.0, ((double) i) / EXP2_TABLE_SIZE);
+		}
+	}
+
+	/**
+	 * Added to x * EXP2_TABLE_SIZE so that the table position is positive
+	 * and the exponent can be taken from the upper bits.
+	 */
+	private static final int EXP2_OFFSET = 1022 * EXP2_TABLE_SIZE;
+
+	/**
+	 * @return 2^x, with a relative error of less than 6e-8
+	 */
+	public static final double exp2(double x) {
+		if (!(x > -1022.0 && x < 1023.0)) {
+			// out of the range of normalized doubles, or NaN
+			return Math.pow(2.0, x);
+		}
+		double pos = x * EXP2_TABLE_SIZE + EXP2_OFFSET;
+		int ipos = (int) pos;
+		int index = ipos & (EXP2_TABLE_SIZE - 1);
+		double v = EXP2_TABLE[index];
+		v += (EXP2_TABLE[index + 1] - v) * (pos - ipos);
+		// 2^(ipos / EXP2_TABLE_SIZE - 1022) as IEEE 754 exponent bits
+		long exponent = (ipos >> EXP2_TABLE_BITS) + 1;
+		return v * Double.longBitsToDouble(exponent << 52);
+	}
+
+	/**
+	 * Replacement for AudioUtils.decibel2linear().
+	 * 
+	 * @param decibel the level in dB
+	 * @return the linear factor 10^(decibel/20)
+	 */
+	public static final double decibel2linear(double decibel) {
+		return exp2(decibel * DECIBEL_TO_EXP2);
+	}
+
+	/**
+	 * Replacement for AudioUtils.getSamplerateFactorFromRelativeNote().
+	 * 
+	 * @param semitones the pitch offset in semitones
+	 * @return the frequency factor 2^(semitones/12)
+	 */
+	public static final double semitones2factor(double semitones) {
+		return exp2(semitones * (1.0 / 12.0));
+	}
+
+	/**
+	 * @param cents the pitch offset in cents
+	 * @return the frequency factor 2^(cents/1200)
+	 */
+	public static final double cents2factor(double cents) {
+		return exp2(cents * (1.0 / 1200.0));
+	}
+
+	/**
+	 * Benchmark and accuracy test of the table functions against Math.pow().
+	 */
+	public static void main(String[] args) {
+		int count = 2000000;
+		double[] values = new double[4096];
+		java.util.Random random = new java.util.Random(1);
+		for (int i = 0; i < values.length; i++) {
+			// typical range: +/- 10 octaves, or +/- 60dB
+			values[i] = (random.nextDouble() - 0.5) * 120.0;
+		}
+		double maxError = 0.0;
+		for (int i = 0; i < values.length; i++) {
+			double x = values[i] / 12.0;
+			double err = Math.abs(exp2(x) / Math.pow(2.0, x) - 1.0);
+			if (err > maxError) {
+				maxError = err;
+			}
+		}
+		System.out.println("exp2: max relative error=" + maxError);
+		double sum = 0;
+		for (int run = 0; run < 5; run++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				sum += Math.pow(10.0, values[i & 4095] / 20.0);
+			}
+			long pow = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				sum += decibel2linear(values[i & 4095]);
+			}
+			long table = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				sum += Math.pow(2.0, values[i & 4095] / 12.0);
+			}
+			long powNote = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				sum += semitones2factor(values[i & 4095]);
+			}
+			long tableNote = System.nanoTime() - start;
+			System.out.println("run " + run + ": decibel2linear: Math.pow "
+					+ format1(pow, count) + "ns, table "
+					+ format1(table, count)
+					+ "ns; semitones2factor: Math.pow "
+					+ format1(powNote, count) + "ns, table "
+					+ format1(tableNote, count) + "ns");
+		}
+		// prevent dead code elimination
+		if (sum == 0.0) {
+			System.out.println("");
+		}
+	}
+
+	private static String format1(long nanos, int count) {
+		return Double.toString(Math.round(nanos * 10.0 / count) / 10.0);
+	}
+}